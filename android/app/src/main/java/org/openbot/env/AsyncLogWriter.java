@@ -0,0 +1,251 @@
+package org.openbot.env;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes a set of text and binary logs on a dedicated thread, so that the threads delivering the
+ * data (sensor callbacks, message handlers, ...) never wait for the file system.
+ *
+ * <p>Appending only puts a record on a lock-free queue. The writer thread drains the queue into the
+ * buffers of the logs and commits them (writes them to the files) in groups, once {@link
+ * #COMMIT_BYTES} were appended or {@link #COMMIT_INTERVAL_MS} passed. {@link #close()} writes all
+ * pending records and syncs the files to the storage device before it returns.
+ */
+public class AsyncLogWriter implements Closeable {
+
+  /** Appended bytes after which the logs are committed. */
+  public static final int COMMIT_BYTES = 64 * 1024;
+
+  /** Time after which appended records are committed at the latest. */
+  public static final long COMMIT_INTERVAL_MS = 100;
+
+  private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+  private final List<Log> logs = new CopyOnWriteArrayList<>();
+  private final Thread thread;
+  private volatile boolean closed;
+
+  public AsyncLogWriter() {
+    thread = new Thread(this::run, "log-writer");
+    thread.start();
+  }
+
+  /**
+   * Opens a text log, appending to an existing file.
+   *
+   * @param file The file to write.
+   * @param header The first line of the log, null for none.
+   */
+  public TextLog openText(File file, String header) throws IOException {
+    final TextLog log = new TextLog(file);
+    logs.add(log);
+    if (header != null) {
+      log.append(header);
+    }
+    return log;
+  }
+
+  /**
+   * Opens a binary log, see {@link BinarySensorLog}.
+   *
+   * @param file The file to write.
+   * @param header Column header of the equivalent text log.
+   * @param numValues Number of values per record.
+   */
+  public BinaryLog openBinary(File file, String header, int numValues) throws IOException {
+    final BinaryLog log = new BinaryLog(new BinarySensorLog(file, header, numValues), numValues);
+    logs.add(log);
+    return log;
+  }
+
+  /** Writes all appended records, syncs and closes the logs and stops the writer thread. */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    LockSupport.unpark(thread);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while closing logs", e);
+    }
+  }
+
+  private void enqueue(Record record) {
+    if (!closed) {
+      queue.offer(record);
+    }
+  }
+
+  private void run() {
+    final long interval = TimeUnit.MILLISECONDS.toNanos(COMMIT_INTERVAL_MS);
+    long lastCommit = System.nanoTime();
+    long pendingBytes = 0;
+    while (true) {
+      // Read the flag before draining, so that records enqueued before close are not missed.
+      final boolean closing = closed;
+      Record record;
+      while ((record = queue.poll()) != null) {
+        pendingBytes += record.write();
+        if (pendingBytes >= COMMIT_BYTES) {
+          commit(false);
+          pendingBytes = 0;
+          lastCommit = System.nanoTime();
+        }
+      }
+      if (closing) {
+        break;
+      }
+      final long now = System.nanoTime();
+      if (now - lastCommit >= interval) {
+        if (pendingBytes > 0) {
+          commit(false);
+          pendingBytes = 0;
+        }
+        lastCommit = now;
+      }
+      LockSupport.parkNanos(this, lastCommit + interval - now);
+    }
+    commit(true);
+    for (Log log : logs) {
+      try {
+        log.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    logs.clear();
+  }
+
+  private void commit(boolean sync) {
+    for (Log log : logs) {
+      try {
+        log.commit(sync);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private interface Log extends Closeable {
+    void commit(boolean sync) throws IOException;
+  }
+
+  /** A log with one line of text per record. */
+  public final class TextLog implements Log {
+    private final FileOutputStream output;
+    private final Writer writer;
+
+    private TextLog(File file) throws IOException {
+      output = new FileOutputStream(file, true);
+      writer = new BufferedWriter(new OutputStreamWriter(output));
+    }
+
+    /** Appends a line. */
+    public void append(String line) {
+      enqueue(new Record(this, line));
+    }
+
+    @Override
+    public void commit(boolean sync) throws IOException {
+      writer.flush();
+      if (sync) {
+        output.getFD().sync();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      writer.close();
+    }
+  }
+
+  /** A log with fixed-width binary records, see {@link BinarySensorLog}. */
+  public final class BinaryLog implements Log {
+    private final BinarySensorLog log;
+    private final int numValues;
+
+    private BinaryLog(BinarySensorLog log, int numValues) {
+      this.log = log;
+      this.numValues = numValues;
+    }
+
+    /** Appends a record. The values are copied, so the array can be reused by the caller. */
+    public void append(long timestamp, float[] values) {
+      final float[] copy = new float[numValues];
+      System.arraycopy(values, 0, copy, 0, Math.min(numValues, values.length));
+      enqueue(new Record(this, timestamp, copy));
+    }
+
+    /** Appends a record of a log with a single value. */
+    public void append(long timestamp, float value) {
+      final float[] copy = new float[numValues];
+      copy[0] = value;
+      enqueue(new Record(this, timestamp, copy));
+    }
+
+    @Override
+    public void commit(boolean sync) throws IOException {
+      log.flush();
+      if (sync) {
+        log.sync();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      log.close();
+    }
+  }
+
+  private static final class Record {
+    private final TextLog textLog;
+    private final String line;
+    private final BinaryLog binaryLog;
+    private final long timestamp;
+    private final float[] values;
+
+    Record(TextLog log, String line) {
+      this.textLog = log;
+      this.line = line;
+      this.binaryLog = null;
+      this.timestamp = 0;
+      this.values = null;
+    }
+
+    Record(BinaryLog log, long timestamp, float[] values) {
+      this.textLog = null;
+      this.line = null;
+      this.binaryLog = log;
+      this.timestamp = timestamp;
+      this.values = values;
+    }
+
+    /** Appends the record to the buffer of its log and returns the (approximate) size. */
+    int write() {
+      try {
+        if (textLog != null) {
+          textLog.writer.write(line);
+          textLog.writer.write('\n');
+          return line.length() + 1;
+        } else {
+          binaryLog.log.append(timestamp, values);
+          return (Long.SIZE + values.length * Float.SIZE) / Byte.SIZE;
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        return 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package org.openbot.env;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Compact log of sensor readings with fixed-width binary records, replacing one text line per
+ * reading. Records are collected in a large direct buffer that is written to the file when full or
+ * when the log is closed, so there is no string formatting and no flush per reading.
+ *
+ * <p>File layout, all values little endian:
+ *
+ * <pre>
+ *   int     magic, "OBSL" (0x4C53424F when read little endian)
+ *   int     version, currently 1
+ *   int     n, number of values per record
+ *   int     h, length of the column header in bytes
+ *   byte[h] column header in UTF-8, the first line of the equivalent text log
+ *   records until the end of the file:
+ *     long     timestamp
+ *     float[n] values
+ * </pre>
+ *
+ * <p>{@link #convertToText} (or {@link #main} on a computer) turns a log back into the text format
+ * of the previous logs, e.g. {@code accelerometerLog.bin} into {@code accelerometerLog.txt}.
+ */
+public class BinarySensorLog implements Closeable {
+
+  public static final int MAGIC = 0x4C53424F;
+  public static final int VERSION = 1;
+  public static final String EXTENSION = ".bin";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer;
+  private final int numValues;
+
+  /**
+   * Creates a log, replacing an existing file.
+   *
+   * @param file The file to write.
+   * @param header Column header of the equivalent text log, e.g. "timestamp[ns],x,y,z".
+   * @param numValues Number of values per record.
+   */
+  public BinarySensorLog(File file, String header, int numValues) throws IOException {
+    this.numValues = numValues;
+    channel = new FileOutputStream(file).getChannel();
+    final int recordSize = Long.SIZE / Byte.SIZE + numValues * Float.SIZE / Byte.SIZE;
+    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE - BUFFER_SIZE % recordSize);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    final byte[] headerBytes = header.getBytes(UTF_8);
+    final ByteBuffer fileHeader = ByteBuffer.allocate(16 + headerBytes.length);
+    fileHeader.order(ByteOrder.LITTLE_ENDIAN);
+    fileHeader.putInt(MAGIC).putInt(VERSION).putInt(numValues).putInt(headerBytes.length);
+    fileHeader.put(headerBytes);
+    fileHeader.flip();
+    while (fileHeader.hasRemaining()) {
+      channel.write(fileHeader);
+    }
+  }
+
+  /** Appends a record with the first n values (see constructor), missing values are 0. */
+  public synchronized void append(long timestamp, float[] values) throws IOException {
+    ensureRecordFits();
+    buffer.putLong(timestamp);
+    for (int i = 0; i < numValues; ++i) {
+      buffer.putFloat(i < values.length ? values[i] : 0);
+    }
+  }
+
+  /** Appends a record of a log with a single value. */
+  public synchronized void append(long timestamp, float value) throws IOException {
+    ensureRecordFits();
+    buffer.putLong(timestamp);
+    buffer.putFloat(value);
+    for (int i = 1; i < numValues; ++i) {
+      buffer.putFloat(0);
+    }
+  }
+
+  /** Writes the buffered records to the file. */
+  public synchronized void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /** Writes the buffered records and syncs the file to the storage device. */
+  public synchronized void sync() throws IOException {
+    flush();
+    channel.force(false);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void ensureRecordFits() throws IOException {
+    if (buffer.remaining() < Long.SIZE / Byte.SIZE + numValues * Float.SIZE / Byte.SIZE) {
+      flush();
+    }
+  }
+
+  /**
+   * Converts a binary log into the text format: the column header followed by one line per record
+   * with the comma separated timestamp and values.
+   */
+  public static void convertToText(File file, Writer writer) throws IOException {
+    try (FileInputStream input = new FileInputStream(file)) {
+      final FileChannel channel = input.getChannel();
+      final ByteBuffer fileHeader = readFully(channel, 16);
+      if (fileHeader.getInt() != MAGIC) {
+        throw new IOException("Not a binary sensor log: " + file);
+      }
+      final int version = fileHeader.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported version " + version + ": " + file);
+      }
+      final int numValues = fileHeader.getInt();
+      final ByteBuffer header = readFully(channel, fileHeader.getInt());
+      writer.write(new String(header.array(), UTF_8));
+      writer.write('\n');
+
+      final int recordSize = Long.SIZE / Byte.SIZE + numValues * Float.SIZE / Byte.SIZE;
+      final StringBuilder line = new StringBuilder();
+      while (channel.position() + recordSize <= channel.size()) {
+        final ByteBuffer record = readFully(channel, recordSize);
+        line.setLength(0);
+        line.append(record.getLong());
+        for (int i = 0; i < numValues; ++i) {
+          line.append(',').append(record.getFloat());
+        }
+        writer.write(line.append('\n').toString());
+      }
+    }
+    writer.flush();
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, int length) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Converts all binary logs in the given directories (e.g. the sensor_data folder of a recording)
+   * into text logs next to them.
+   */
+  public static void main(String[] args) throws IOException {
+    for (String path : args) {
+      final File[] files = new File(path).listFiles();
+      if (files == null) {
+        continue;
+      }
+      for (File file : files) {
+        final String name = file.getName();
+        if (!name.endsWith(EXTENSION)) {
+          continue;
+        }
+        final File text =
+            new File(file.getParentFile(), name.substring(0, name.length() - 4) + ".txt");
+        try (Writer writer = new BufferedWriter(new FileWriter(text))) {
+          convertToText(file, writer);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package org.openbot.env;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the sizes of the camera streams from the sizes a camera supports. A size is an array of
+ * width and height, so the choice does not depend on the camera API and can be checked against size
+ * lists recorded from phones, see {@link #parse}.
+ *
+ * <p>The preview (shown and logged) uses the smallest size that contains the desired size, the
+ * network stream the smallest size with the aspect ratio of the preview that still has one pixel
+ * for every pixel of the network input.
+ */
+public final class CaptureSizes {
+
+  // Largest difference of the aspect ratio of a network stream to the preview.
+  private static final float ASPECT_TOLERANCE = 0.01f;
+
+  private CaptureSizes() {}
+
+  /**
+   * Reads a list of sizes as logged by the camera, e.g. "1920x1080, 1280x720, 640x480".
+   *
+   * @throws IllegalArgumentException If an entry is not a size.
+   */
+  public static int[][] parse(String sizes) {
+    final List<int[]> parsed = new ArrayList<>();
+    for (String size : sizes.split("[,;\\s]+")) {
+      if (size.isEmpty()) {
+        continue;
+      }
+      final String[] dimensions = size.split("x");
+      if (dimensions.length != 2) {
+        throw new IllegalArgumentException("Not a size: " + size);
+      }
+      parsed.add(new int[] {Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1])});
+    }
+    return parsed.toArray(new int[0][]);
+  }
+
+  /**
+   * Chooses the preview size: an exact match if there is one, otherwise the smallest size whose
+   * width and height are at least the smaller of the desired width and height (and at least {@code
+   * minSize}), preferring sizes with the aspect ratio of the desired size.
+   *
+   * @param choices Supported sizes.
+   * @param width Desired width.
+   * @param height Desired height.
+   * @param minSize Smallest width and height to consider.
+   * @return Index of the chosen size, 0 if none is big enough.
+   */
+  public static int choosePreviewSize(int[][] choices, int width, int height, int minSize) {
+    final int minDimension = Math.max(Math.min(width, height), minSize);
+    int correctAspect = -1;
+    int bigEnough = -1;
+    for (int i = 0; i < choices.length; ++i) {
+      final int optionWidth = choices[i][0];
+      final int optionHeight = choices[i][1];
+      if (optionWidth == width && optionHeight == height) {
+        return i;
+      }
+      if (optionWidth >= minDimension && optionHeight >= minDimension) {
+        // Integer ratios, as the preview size was always chosen.
+        if (width / optionWidth == height / optionHeight && isSmaller(choices, i, correctAspect)) {
+          correctAspect = i;
+        }
+        if (isSmaller(choices, i, bigEnough)) {
+          bigEnough = i;
+        }
+      }
+    }
+    if (correctAspect >= 0) {
+      return correctAspect;
+    }
+    return bigEnough >= 0 ? bigEnough : 0;
+  }
+
+  /**
+   * Chooses the size of a stream that is scaled down from the frame: the smallest size with the
+   * aspect ratio of the frame and at least {@code minScale} times its width and height. The stream
+   * then shows the same scene as the frame, so the transforms of the frame apply after scaling.
+   *
+   * @param choices Supported sizes.
+   * @param frameWidth Width of the frame, e.g. the preview.
+   * @param frameHeight Height of the frame.
+   * @param minScale Smallest size relative to the frame, see {@link #getMinScale}.
+   * @return Index of the chosen size, -1 if no size smaller than the frame qualifies.
+   */
+  public static int chooseScaledSize(
+      int[][] choices, int frameWidth, int frameHeight, float minScale) {
+    final float aspect = (float) frameWidth / frameHeight;
+    int chosen = -1;
+    for (int i = 0; i < choices.length; ++i) {
+      final int optionWidth = choices[i][0];
+      final int optionHeight = choices[i][1];
+      if (Math.abs((float) optionWidth / optionHeight - aspect) <= ASPECT_TOLERANCE * aspect
+          && optionWidth >= minScale * frameWidth
+          && optionHeight >= minScale * frameHeight
+          && (long) optionWidth * optionHeight < (long) frameWidth * frameHeight
+          && isSmaller(choices, i, chosen)) {
+        chosen = i;
+      }
+    }
+    return chosen;
+  }
+
+  /**
+   * Returns the smallest scale of the frame at which the region a network crops still has one pixel
+   * for every pixel of the network input, at most 1.
+   *
+   * @param regionWidth Width of the cropped region in frame pixels, along the input width.
+   * @param regionHeight Height of the cropped region in frame pixels, along the input height.
+   * @param inputWidth Width of the network input.
+   * @param inputHeight Height of the network input.
+   */
+  public static float getMinScale(
+      float regionWidth, float regionHeight, int inputWidth, int inputHeight) {
+    if (regionWidth <= 0 || regionHeight <= 0) {
+      return 1;
+    }
+    return Math.min(1, Math.max(inputWidth / regionWidth, inputHeight / regionHeight));
+  }
+
+  // Returns true if size i has a smaller area than size j, or if there is no size j.
+  private static boolean isSmaller(int[][] choices, int i, int j) {
+    return j < 0 || (long) choices[i][0] * choices[i][1] < (long) choices[j][0] * choices[j][1];
+  }
+}
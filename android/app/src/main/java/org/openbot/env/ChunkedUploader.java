@@ -0,0 +1,373 @@
+package org.openbot.env;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads files to the dataset server in fixed-size chunks, so that an interrupted upload resumes
+ * where it stopped instead of starting from zero.
+ *
+ * <p>Protocol, see {@code policy/openbot/server/upload.py}:
+ *
+ * <pre>
+ *   GET  /upload/chunked/NAME                 -> {"offset": n}, bytes received so far
+ *   PUT  /upload/chunked/NAME?offset=n        chunk with header X-Content-SHA256 -> {"offset": n'}
+ *   POST /upload/chunked/NAME/complete?size=n -> the file is unpacked on the server
+ * </pre>
+ *
+ * The server only appends a chunk if it starts at the current offset and its hash matches, so the
+ * offset it reports is always the last acknowledged one. After a failure the upload asks for it and
+ * continues from there.
+ *
+ * <p>Pending files are kept in a queue file, so uploads also survive a restart of the app. At most
+ * {@code maxConcurrent} files are uploaded at a time and all uploads share one bandwidth limit.
+ */
+public class ChunkedUploader {
+
+  /** Called on an upload thread when a file was uploaded and deleted. */
+  public interface Listener {
+    void onUploaded(File file);
+  }
+
+  private static final long MIN_RETRY_MS = 1000;
+  private static final long MAX_RETRY_MS = 60 * 1000;
+  private static final int TIMEOUT_MS = 30 * 1000;
+  // Chunks rejected in a row before the upload backs off like after a connection failure.
+  private static final int MAX_REJECTED_CHUNKS = 3;
+  // Writes are split into slices of this size for the bandwidth limit.
+  private static final int SLICE_SIZE = 16 * 1024;
+  private static final Pattern OFFSET = Pattern.compile("\"offset\"\\s*:\\s*(\\d+)");
+
+  private final File queueFile;
+  private final int chunkSize;
+  private final ExecutorService executor;
+  private final RateLimiter rateLimiter = new RateLimiter();
+
+  // Paths of all files to upload, in order. Guarded by this.
+  private final Set<String> pending = new LinkedHashSet<>();
+  // Paths of the files that are being uploaded. Guarded by this.
+  private final Set<String> active = new HashSet<>();
+
+  private volatile String serverUrl;
+  private volatile Listener listener;
+  private volatile boolean stopped;
+
+  /**
+   * Creates an uploader and loads the files that were not uploaded yet from the queue file.
+   *
+   * @param queueFile File to keep the pending uploads in.
+   * @param chunkSize Size of the chunks in bytes.
+   * @param maxConcurrent Maximum number of files uploaded at the same time.
+   * @param maxBytesPerSecond Bandwidth limit for all uploads together, 0 for none.
+   */
+  public ChunkedUploader(File queueFile, int chunkSize, int maxConcurrent, long maxBytesPerSecond) {
+    this.queueFile = queueFile;
+    this.chunkSize = chunkSize;
+    executor = Executors.newFixedThreadPool(maxConcurrent, r -> new Thread(r, "upload"));
+    setMaxBytesPerSecond(maxBytesPerSecond);
+    loadQueue();
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+    rateLimiter.bytesPerSecond = maxBytesPerSecond;
+  }
+
+  /** Sets the address of the server, e.g. "http://192.168.1.2:8000", and starts the uploads. */
+  public void setServerUrl(String serverUrl) {
+    this.serverUrl = serverUrl;
+    schedule();
+  }
+
+  /** Adds a file to the queue. It is uploaded as soon as the server is known. */
+  public void enqueue(File file) {
+    synchronized (this) {
+      if (!pending.add(file.getAbsolutePath())) {
+        return;
+      }
+      saveQueue();
+    }
+    schedule();
+  }
+
+  /** Returns the number of files that were not uploaded yet. */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /** Stops all uploads. The pending files stay in the queue file. */
+  public void stop() {
+    stopped = true;
+    executor.shutdownNow();
+  }
+
+  private synchronized void schedule() {
+    if (serverUrl == null || stopped) {
+      return;
+    }
+    for (String path : pending) {
+      if (active.add(path)) {
+        try {
+          executor.execute(() -> run(new File(path)));
+        } catch (RejectedExecutionException e) {
+          active.remove(path);
+          return;
+        }
+      }
+    }
+  }
+
+  // Uploads a file, retrying with an increasing delay until it succeeded or the uploader stopped.
+  private void run(File file) {
+    long retryMs = MIN_RETRY_MS;
+    try {
+      while (!stopped) {
+        if (!file.exists()) {
+          remove(file);
+          return;
+        }
+        try {
+          upload(file);
+          file.delete();
+          remove(file);
+          final Listener listener = this.listener;
+          if (listener != null) {
+            listener.onUploaded(file);
+          }
+          return;
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        TimeUnit.MILLISECONDS.sleep(retryMs);
+        retryMs = Math.min(2 * retryMs, MAX_RETRY_MS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (this) {
+        active.remove(file.getAbsolutePath());
+      }
+    }
+  }
+
+  private void upload(File file) throws IOException, InterruptedException {
+    final String url = serverUrl + "/upload/chunked/" + URLEncoder.encode(file.getName(), "UTF-8");
+    final byte[] chunk = new byte[chunkSize];
+    try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+      final long size = input.length();
+      long offset = queryOffset(url);
+      int rejected = 0;
+      while (offset < size) {
+        if (stopped) {
+          throw new InterruptedException();
+        }
+        final int length = (int) Math.min(chunkSize, size - offset);
+        input.seek(offset);
+        input.readFully(chunk, 0, length);
+        final long acknowledged = putChunk(url + "?offset=" + offset, chunk, length);
+        // A chunk that is corrupted on every try would otherwise be resent without a pause.
+        if (acknowledged <= offset) {
+          if (++rejected >= MAX_REJECTED_CHUNKS) {
+            throw new IOException(rejected + " chunks rejected at offset " + acknowledged);
+          }
+        } else {
+          rejected = 0;
+        }
+        offset = acknowledged;
+      }
+      complete(url + "/complete?size=" + size);
+    }
+  }
+
+  private long queryOffset(String url) throws IOException {
+    final HttpURLConnection connection = open(url, "GET");
+    try {
+      return parseOffset(connection, readResponse(connection));
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  // Returns the offset acknowledged by the server, which is the current one if the chunk was
+  // rejected (wrong offset or corrupted in transit).
+  private long putChunk(String url, byte[] chunk, int length)
+      throws IOException, InterruptedException {
+    final HttpURLConnection connection = open(url, "PUT");
+    try {
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(length);
+      connection.setRequestProperty("Content-Type", "application/octet-stream");
+      connection.setRequestProperty("X-Content-SHA256", sha256(chunk, length));
+      try (OutputStream output = connection.getOutputStream()) {
+        for (int i = 0; i < length; i += SLICE_SIZE) {
+          final int slice = Math.min(SLICE_SIZE, length - i);
+          rateLimiter.acquire(slice);
+          output.write(chunk, i, slice);
+        }
+      }
+      return parseOffset(connection, readResponse(connection));
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private void complete(String url) throws IOException {
+    final HttpURLConnection connection = open(url, "POST");
+    try {
+      readResponse(connection);
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Completing upload failed: " + connection.getResponseCode());
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static HttpURLConnection open(String url, String method) throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestMethod(method);
+    connection.setConnectTimeout(TIMEOUT_MS);
+    connection.setReadTimeout(TIMEOUT_MS);
+    return connection;
+  }
+
+  private static String readResponse(HttpURLConnection connection) throws IOException {
+    final InputStream input =
+        connection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST
+            ? connection.getInputStream()
+            : connection.getErrorStream();
+    if (input == null) {
+      return "";
+    }
+    try {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[1024];
+      int read;
+      while ((read = input.read(buffer)) > 0) {
+        output.write(buffer, 0, read);
+      }
+      return output.toString("UTF-8");
+    } finally {
+      input.close();
+    }
+  }
+
+  // Rejected chunks (409 wrong offset, 400 hash mismatch) also report the current offset.
+  private static long parseOffset(HttpURLConnection connection, String response)
+      throws IOException {
+    final Matcher matcher = OFFSET.matcher(response);
+    if (!matcher.find()) {
+      throw new IOException(
+          "Unexpected response " + connection.getResponseCode() + ": " + response);
+    }
+    return Long.parseLong(matcher.group(1));
+  }
+
+  private static String sha256(byte[] data, int length) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    digest.update(data, 0, length);
+    final StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  private synchronized void remove(File file) {
+    if (pending.remove(file.getAbsolutePath())) {
+      saveQueue();
+    }
+  }
+
+  private synchronized void loadQueue() {
+    if (!queueFile.exists()) {
+      return;
+    }
+    try (BufferedReader reader = new BufferedReader(new FileReader(queueFile))) {
+      String path;
+      while ((path = reader.readLine()) != null) {
+        if (!path.isEmpty() && new File(path).exists()) {
+          pending.add(path);
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Writes the queue to a temporary file first, so that a crash never leaves a truncated queue.
+  private synchronized void saveQueue() {
+    final List<String> paths = new ArrayList<>(pending);
+    final File tmp = new File(queueFile.getPath() + ".tmp");
+    try {
+      try (Writer writer = new FileWriter(tmp)) {
+        for (String path : paths) {
+          writer.write(path);
+          writer.write('\n');
+        }
+      }
+      if (!tmp.renameTo(queueFile)) {
+        throw new IOException("Failed to rename " + tmp);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** Spreads the bytes written by all uploads evenly, allowing a burst of one second when idle. */
+  private static final class RateLimiter {
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    volatile long bytesPerSecond;
+    private long nextFreeNanos = System.nanoTime() - SECOND_NANOS;
+
+    void acquire(int bytes) throws InterruptedException {
+      final long bytesPerSecond = this.bytesPerSecond;
+      if (bytesPerSecond <= 0) {
+        return;
+      }
+      final long waitNanos;
+      synchronized (this) {
+        final long now = System.nanoTime();
+        nextFreeNanos = Math.max(nextFreeNanos, now - SECOND_NANOS);
+        nextFreeNanos += bytes * SECOND_NANOS / bytesPerSecond;
+        waitNanos = nextFreeNanos - now;
+      }
+      if (waitNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+    }
+  }
+}
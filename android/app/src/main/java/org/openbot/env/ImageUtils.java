@@ -20,6 +20,7 @@ package org.openbot.env;
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.RectF;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 
@@ -54,6 +55,16 @@ public class ImageUtils {
    * @param root The location to save the bitmap to.
    * @param filename The filename for the bitmap.
    */
+  /**
+   * Compresses a bitmap into a JPEG with the quality used by {@link #saveBitmap(Bitmap, String,
+   * String)}.
+   */
+  public static byte[] compressBitmap(final Bitmap bitmap) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+    bitmap.compress(Bitmap.CompressFormat.JPEG, 99, out);
+    return out.toByteArray();
+  }
+
   public static void saveBitmap(final Bitmap bitmap, final String root, final String filename) {
     LOGGER.i("Saving %dx%d bitmap to %s.", bitmap.getWidth(), bitmap.getHeight(), root);
     final File myDir = new File(root);
@@ -78,6 +89,10 @@ public class ImageUtils {
     }
   }
 
+  /**
+   * Scalar reference conversion of a NV21 buffer. The camera pipeline uses {@link
+   * YuvToArgbConverter}, which produces the same output.
+   */
   public static void convertYUV420SPToARGB8888(byte[] input, int width, int height, int[] output) {
     final int frameSize = width * height;
     for (int j = 0, yp = 0; j < height; j++) {
@@ -121,6 +136,10 @@ public class ImageUtils {
     return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
   }
 
+  /**
+   * Scalar reference conversion of YUV420 planes. The camera pipeline uses {@link
+   * YuvToArgbConverter}, which produces the same output.
+   */
   public static void convertYUV420ToARGB8888(
       byte[] yData,
       byte[] uData,
@@ -0,0 +1,256 @@
+package org.openbot.env;
+
+import java.util.Locale;
+
+/**
+ * Generates the noise that is added to the control during data collection, so that the dataset
+ * contains recoveries from perturbed states.
+ *
+ * <p>The noise advances in fixed steps of {@link Config#periodMs} and only depends on the seed and
+ * the parameters of its {@link Config}, not on when the steps are actually executed. Logging the
+ * config ({@link Config#toString()}) is enough to replay the noise of a run exactly with {@link
+ * Config#parse(String)}. The random numbers come from a SplitMix64 generator (the algorithm of
+ * java.util.SplittableRandom, which is not available on all supported Android versions), and a step
+ * allocates nothing.
+ *
+ * <p>The noise is a value in [0, {@link Config#maxValue}] and a direction: it slows down the left
+ * wheels if the direction is negative and the right wheels otherwise.
+ */
+public class NoiseGenerator {
+
+  public enum Profile {
+    /** Episodes that ramp the noise up and down again in random steps, with a pause in between. */
+    RAMP,
+    /** Mean-reverting random walk (Ornstein-Uhlenbeck process), the sign is the direction. */
+    ORNSTEIN_UHLENBECK,
+    /** Episodes with a constant random noise, with a pause in between. */
+    STEP
+  }
+
+  /** Profile, seed and parameters of the noise. */
+  public static final class Config {
+    public Profile profile = Profile.RAMP;
+    public long seed;
+    /** Duration of a step in ms. */
+    public int periodMs = 50;
+    /** Range of the duration of an episode in ms (ramp, step). */
+    public int minDurationMs = 1000;
+
+    public int maxDurationMs = 2000;
+    /** Pause between episodes in ms (ramp, step). */
+    public int pauseMs = 5000;
+    /** Rate at which the noise reverts to zero in 1/s (Ornstein-Uhlenbeck). */
+    public float theta = 1.f;
+    /** Volatility in 1/sqrt(s) (Ornstein-Uhlenbeck). */
+    public float sigma = 0.3f;
+    /** Maximum noise, relative to the full control. */
+    public float maxValue = 0.5f;
+
+    public Config() {}
+
+    public Config(Profile profile, long seed) {
+      this.profile = profile;
+      this.seed = seed;
+    }
+
+    /** Returns the config as "key=value" pairs separated by ';', as read by {@link #parse}. */
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "profile=%s;seed=%d;periodMs=%d;minDurationMs=%d;maxDurationMs=%d;pauseMs=%d;"
+              + "theta=%s;sigma=%s;maxValue=%s",
+          profile,
+          seed,
+          periodMs,
+          minDurationMs,
+          maxDurationMs,
+          pauseMs,
+          theta,
+          sigma,
+          maxValue);
+    }
+
+    /**
+     * Reads a config written by {@link #toString()}. Missing keys keep their defaults.
+     *
+     * @throws IllegalArgumentException If a key or value is invalid.
+     */
+    public static Config parse(String text) {
+      final Config config = new Config();
+      for (String pair : text.split(";")) {
+        final int separator = pair.indexOf('=');
+        if (separator < 0) {
+          continue;
+        }
+        final String key = pair.substring(0, separator).trim();
+        final String value = pair.substring(separator + 1).trim();
+        switch (key) {
+          case "profile":
+            config.profile = Profile.valueOf(value);
+            break;
+          case "seed":
+            config.seed = Long.parseLong(value);
+            break;
+          case "periodMs":
+            config.periodMs = Integer.parseInt(value);
+            break;
+          case "minDurationMs":
+            config.minDurationMs = Integer.parseInt(value);
+            break;
+          case "maxDurationMs":
+            config.maxDurationMs = Integer.parseInt(value);
+            break;
+          case "pauseMs":
+            config.pauseMs = Integer.parseInt(value);
+            break;
+          case "theta":
+            config.theta = Float.parseFloat(value);
+            break;
+          case "sigma":
+            config.sigma = Float.parseFloat(value);
+            break;
+          case "maxValue":
+            config.maxValue = Float.parseFloat(value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown noise parameter: " + key);
+        }
+      }
+      return config;
+    }
+  }
+
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+  private final Config config;
+  private long state;
+  private double spareGaussian;
+  private boolean hasSpareGaussian;
+
+  // Episodes of the ramp and step profiles, in steps.
+  private long step;
+  private long episodeStart;
+  private long episodeDuration;
+  private long episodeEnd;
+
+  private float value;
+  private int direction;
+  // Signed noise of the Ornstein-Uhlenbeck profile.
+  private double process;
+
+  public NoiseGenerator(Config config) {
+    this.config = config;
+    state = config.seed;
+    // The first episode starts with the first step.
+    episodeEnd = -1;
+  }
+
+  public Config getConfig() {
+    return config;
+  }
+
+  /** Advances the noise by one step of {@link Config#periodMs}. */
+  public void update() {
+    switch (config.profile) {
+      case RAMP:
+        updateRamp();
+        break;
+      case ORNSTEIN_UHLENBECK:
+        updateOrnsteinUhlenbeck();
+        break;
+      case STEP:
+        updateStep();
+        break;
+    }
+    step++;
+  }
+
+  /** Current noise in [0, maxValue]. */
+  public float getValue() {
+    return value;
+  }
+
+  /** Wheels to slow down, -1 for left and 1 for right. */
+  public int getDirection() {
+    return direction;
+  }
+
+  private void updateRamp() {
+    if (startEpisode()) {
+      value = 0;
+    }
+    if (step < episodeStart + episodeDuration) {
+      // The original noise moved by 1 to 8 PWM steps (of 255) per step.
+      final float delta = nextInt(1, 8) / 255.f;
+      value += step < episodeStart + episodeDuration / 2 ? delta : -delta;
+      value = Math.max(0, Math.min(value, config.maxValue));
+    } else {
+      value = 0;
+    }
+  }
+
+  private void updateStep() {
+    if (startEpisode()) {
+      value = (float) (nextDouble() * config.maxValue);
+    }
+    if (step >= episodeStart + episodeDuration) {
+      value = 0;
+    }
+  }
+
+  private void updateOrnsteinUhlenbeck() {
+    final double dt = config.periodMs / 1000.0;
+    process += -config.theta * process * dt + config.sigma * Math.sqrt(dt) * nextGaussian();
+    process = Math.max(-config.maxValue, Math.min(process, config.maxValue));
+    value = (float) Math.abs(process);
+    direction = process < 0 ? -1 : 1;
+  }
+
+  // Starts a new episode with a random duration and direction if the previous one and its pause
+  // are over.
+  private boolean startEpisode() {
+    if (step <= episodeEnd) {
+      return false;
+    }
+    episodeStart = step;
+    episodeDuration = toSteps(nextInt(config.minDurationMs, config.maxDurationMs));
+    episodeEnd = step + episodeDuration + toSteps(config.pauseMs);
+    direction = nextLong() < 0 ? 1 : -1;
+    return true;
+  }
+
+  private long toSteps(long ms) {
+    return ms / config.periodMs;
+  }
+
+  private long nextLong() {
+    long z = (state += GOLDEN_GAMMA);
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  private double nextDouble() {
+    return (nextLong() >>> 11) * DOUBLE_UNIT;
+  }
+
+  // Uniform in [min, max].
+  private int nextInt(int min, int max) {
+    return min + (int) (nextDouble() * (max - min + 1));
+  }
+
+  // Standard normal, by the Box-Muller transform.
+  private double nextGaussian() {
+    if (hasSpareGaussian) {
+      hasSpareGaussian = false;
+      return spareGaussian;
+    }
+    final double radius = Math.sqrt(-2 * Math.log(1 - nextDouble()));
+    final double angle = 2 * Math.PI * nextDouble();
+    spareGaussian = radius * Math.sin(angle);
+    hasSpareGaussian = true;
+    return radius * Math.cos(angle);
+  }
+}
@@ -0,0 +1,203 @@
+package org.openbot.env;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zip archive of a log session that is written while the session is recorded. Images are added as
+ * they are produced, stored without compression (JPEGs do not compress any further), so they are
+ * never written to the log folder first. When the session ends, only the remaining files of the log
+ * folder (e.g. the sensor logs) have to be added.
+ *
+ * <p>All entries are written by a single background thread in the order they were added. Entry
+ * names are relative to the log folder, as if the folder had been zipped at the end of the session.
+ * At most {@link #MAX_PENDING_IMAGES} images wait for the thread, further images are dropped and
+ * counted, so that a slow storage does not fill the memory with JPEGs. Until the archive is
+ * complete, it is written to a ".part" file, so that it is not mistaken for a finished session
+ * (e.g. by an upload of all archives).
+ */
+public class SessionArchive {
+
+  /** Called on the archive thread once the archive is complete. */
+  public interface Callback {
+    void onFinished(File zipFile);
+  }
+
+  /** Number of images that may wait to be written, about 2 seconds of frames. */
+  public static final int MAX_PENDING_IMAGES = 64;
+
+  private final File zipFile;
+  private final File partFile;
+  private final ZipOutputStream zip;
+  // Images are limited by pendingImages, the two more tasks are those of finish().
+  private final ThreadPoolExecutor executor =
+      new ThreadPoolExecutor(
+          1,
+          1,
+          0L,
+          TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(MAX_PENDING_IMAGES + 2),
+          r -> new Thread(r, "session-archive"));
+  private final AtomicInteger pendingImages = new AtomicInteger();
+  private final AtomicInteger droppedImages = new AtomicInteger();
+  private final byte[] copyBuffer = new byte[64 * 1024];
+  private IOException error;
+
+  /**
+   * Creates an archive, replacing an existing file.
+   *
+   * @param zipFile The file to write.
+   */
+  public SessionArchive(File zipFile) throws IOException {
+    this.zipFile = zipFile;
+    partFile = new File(zipFile.getPath() + ".part");
+    final File parent = zipFile.getParentFile();
+    if (parent != null && !parent.exists()) {
+      parent.mkdirs();
+    }
+    zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(partFile), 64 * 1024));
+  }
+
+  public File getFile() {
+    return zipFile;
+  }
+
+  /** Returns the number of images that were dropped because too many were waiting. */
+  public int getNumDroppedImages() {
+    return droppedImages.get();
+  }
+
+  /**
+   * Adds an entry stored without compression, e.g. a JPEG. Drops it if {@link #MAX_PENDING_IMAGES}
+   * entries are waiting already.
+   *
+   * @param name The name of the entry, e.g. "images/1_crop.jpeg".
+   * @param data The content of the entry, must not be modified afterwards.
+   */
+  public void addStored(final String name, final byte[] data) {
+    if (pendingImages.incrementAndGet() > MAX_PENDING_IMAGES) {
+      pendingImages.decrementAndGet();
+      droppedImages.incrementAndGet();
+      return;
+    }
+    execute(
+        () -> {
+          final CRC32 crc = new CRC32();
+          crc.update(data);
+          final ZipEntry entry = new ZipEntry(name);
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(data.length);
+          entry.setCompressedSize(data.length);
+          entry.setCrc(crc.getValue());
+          zip.putNextEntry(entry);
+          zip.write(data);
+          zip.closeEntry();
+        },
+        true);
+  }
+
+  /**
+   * Adds the files of a folder (recursively, compressed) and completes the archive.
+   *
+   * @param folder The log folder, entry names are relative to it.
+   * @param delayMs Time to wait before reading the folder, so that its writers can close their
+   *     files.
+   * @param callback Called if the archive was completed successfully.
+   */
+  public void finish(final File folder, final long delayMs, final Callback callback) {
+    execute(
+        () -> {
+          try {
+            TimeUnit.MILLISECONDS.sleep(delayMs);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          addFolder(folder, "");
+        },
+        false);
+    executor.execute(
+        () -> {
+          try {
+            zip.close();
+            if (error == null && !partFile.renameTo(zipFile)) {
+              error = new IOException("Failed to rename " + partFile);
+            }
+          } catch (IOException e) {
+            if (error == null) {
+              error = e;
+            }
+          }
+          if (error != null) {
+            error.printStackTrace();
+          } else {
+            callback.onFinished(zipFile);
+          }
+        });
+    executor.shutdown();
+  }
+
+  private void addFolder(File folder, String prefix) throws IOException {
+    final File[] files = folder.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      final String name = prefix + file.getName();
+      if (file.isDirectory()) {
+        addFolder(file, name + "/");
+        continue;
+      }
+      zip.putNextEntry(new ZipEntry(name));
+      try (InputStream input = new FileInputStream(file)) {
+        int read;
+        while ((read = input.read(copyBuffer)) > 0) {
+          zip.write(copyBuffer, 0, read);
+        }
+      }
+      zip.closeEntry();
+    }
+  }
+
+  private interface Task {
+    void run() throws IOException;
+  }
+
+  // Runs a task on the archive thread. After the first error, the archive is broken and the
+  // remaining tasks are skipped. Tasks added after finish() are dropped. An image is no longer
+  // pending once its task has run, been skipped or been dropped.
+  private void execute(final Task task, final boolean image) {
+    try {
+      executor.execute(
+          () -> {
+            try {
+              if (error == null) {
+                task.run();
+              }
+            } catch (IOException e) {
+              error = e;
+            } finally {
+              if (image) {
+                pendingImages.decrementAndGet();
+              }
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // The session already ended.
+      if (image) {
+        pendingImages.decrementAndGet();
+      }
+    }
+  }
+}
@@ -18,12 +18,18 @@ public class SharedPreferencesManager {
   private static final String SPEED_MODE = "SPEED_MODE";
   private static final int DEFAULT_DRIVE_MODE = Enums.DriveMode.GAME.ordinal();
   private static final String DRIVE_MODE = "DRIVE_MODE";
-  private static final int DEFAULT_MODEL = Network.Model.DETECTOR_V1_1_0_Q.ordinal();
+  private static final String DEFAULT_MODEL = Network.Model.DETECTOR_V1_1_0_Q.name();
+  // Name of the model, see ModelRegistry. Older versions stored the ordinal of the model type.
+  private static final String MODEL_NAME = "MODEL_NAME";
   private static final String MODEL = "MODEL";
   private static final int DEFAULT_DEVICE = Network.Device.CPU.ordinal();
   private static final String DEVICE = "DEVICE";
   private static final int DEFAULT_NUM_THREAD = 1;
   private static final String NUM_THREAD = "NUM_THREAD";
+  private static final int DEFAULT_NUM_INTERPRETERS = 1;
+  private static final String NUM_INTERPRETERS = "NUM_INTERPRETERS";
+  // Prefix of the autotuned configs, followed by the device fingerprint and the model.
+  private static final String AUTOTUNED_CONFIG = "AUTOTUNED_CONFIG";
   private static final String CAMERA_SWITCH = "CAMERA_SWITCH";
   private static final String SHEET_EXPANDED = "SHEET_EXPANDED";
 
@@ -40,8 +46,13 @@ public class SharedPreferencesManager {
     return preferences.getInt(BAUD_RATE, DEFAULT_BAUD_RATE);
   }
 
-  public int getModel() {
-    return preferences.getInt(MODEL, DEFAULT_MODEL);
+  public String getModel() {
+    if (!preferences.contains(MODEL_NAME) && preferences.contains(MODEL)) {
+      final Network.Model[] models = Network.Model.values();
+      final int model = preferences.getInt(MODEL, 0);
+      return model >= 0 && model < models.length ? models[model].name() : DEFAULT_MODEL;
+    }
+    return preferences.getString(MODEL_NAME, DEFAULT_MODEL);
   }
 
   public int getDevice() {
@@ -68,6 +79,15 @@ public class SharedPreferencesManager {
     return preferences.getInt(NUM_THREAD, DEFAULT_NUM_THREAD);
   }
 
+  public int getNumInterpreters() {
+    return preferences.getInt(NUM_INTERPRETERS, DEFAULT_NUM_INTERPRETERS);
+  }
+
+  /** Returns the autotuned config of a model on a device, null if there is none. */
+  public String getAutotunedConfig(String fingerprint, String model) {
+    return preferences.getString(autotunedConfigKey(fingerprint, model), null);
+  }
+
   public boolean getCameraSwitch() {
     return preferences.getBoolean(CAMERA_SWITCH, false);
   }
@@ -80,8 +100,8 @@ public class SharedPreferencesManager {
     preferences.edit().putInt(BAUD_RATE, baudRate).apply();
   }
 
-  public void setModel(int model) {
-    preferences.edit().putInt(MODEL, model).apply();
+  public void setModel(String model) {
+    preferences.edit().putString(MODEL_NAME, model).remove(MODEL).apply();
   }
 
   public void setDevice(int device) {
@@ -108,6 +128,18 @@ public class SharedPreferencesManager {
     preferences.edit().putInt(NUM_THREAD, numThreads).apply();
   }
 
+  public void setNumInterpreters(int numInterpreters) {
+    preferences.edit().putInt(NUM_INTERPRETERS, numInterpreters).apply();
+  }
+
+  public void setAutotunedConfig(String fingerprint, String model, String config) {
+    preferences.edit().putString(autotunedConfigKey(fingerprint, model), config).apply();
+  }
+
+  private static String autotunedConfigKey(String fingerprint, String model) {
+    return AUTOTUNED_CONFIG + "/" + fingerprint + "/" + model;
+  }
+
   public void setCameraSwitch(boolean isChecked) {
     preferences.edit().putBoolean(CAMERA_SWITCH, isChecked).apply();
   }
@@ -0,0 +1,50 @@
+package org.openbot.env;
+
+/**
+ * Readings of one status message of the vehicle, sent by the firmware as a line of the form {@code
+ * voltage,lWheel,rWheel,obstacle}.
+ *
+ * <p>The record is reused for every message, listeners have to copy the values they keep.
+ */
+public class Telemetry {
+
+  private long timestamp;
+  private float batteryVoltage;
+  private float leftWheelTicks;
+  private float rightWheelTicks;
+  private float sonarReading;
+
+  void set(
+      long timestamp,
+      float batteryVoltage,
+      float leftWheelTicks,
+      float rightWheelTicks,
+      float sonarReading) {
+    this.timestamp = timestamp;
+    this.batteryVoltage = batteryVoltage;
+    this.leftWheelTicks = leftWheelTicks;
+    this.rightWheelTicks = rightWheelTicks;
+    this.sonarReading = sonarReading;
+  }
+
+  /** Time the message was received, in the time base of the receiver (e.g. elapsed realtime). */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public float getBatteryVoltage() {
+    return batteryVoltage;
+  }
+
+  public float getLeftWheelTicks() {
+    return leftWheelTicks;
+  }
+
+  public float getRightWheelTicks() {
+    return rightWheelTicks;
+  }
+
+  public float getSonarReading() {
+    return sonarReading;
+  }
+}
@@ -0,0 +1,187 @@
+package org.openbot.env;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Decodes the status messages of the vehicle from the raw bytes of the serial connection.
+ *
+ * <p>USB reads deliver arbitrary pieces of the stream: a message can be split over several chunks
+ * and a chunk can hold several messages. The bytes are appended to a ring buffer and every complete
+ * line is parsed in place, straight into a reused {@link Telemetry} record, so receiving a message
+ * creates no strings or other objects. Lines that are not a status message (e.g. debug output of
+ * the firmware) are skipped.
+ */
+public class TelemetryParser {
+
+  /** Called on the thread that feeds the parser, with a record that is reused afterwards. */
+  public interface Listener {
+    void onTelemetry(Telemetry telemetry);
+  }
+
+  // Longer lines are no status messages and are skipped.
+  private static final int CAPACITY = 256;
+  private static final int MASK = CAPACITY - 1;
+  private static final int NUM_FIELDS = 4;
+  // Significant digits that fit into the mantissa, further fraction digits are ignored.
+  private static final int MAX_DIGITS = 18;
+  private static final double[] POWERS_OF_TEN = new double[MAX_DIGITS + 1];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i <= MAX_DIGITS; ++i) {
+      POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+    }
+  }
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final Telemetry telemetry = new Telemetry();
+  private final byte[] ring = new byte[CAPACITY];
+  private final float[] fields = new float[NUM_FIELDS];
+
+  // Positions in the stream, the ring holds the bytes from lineStart to end.
+  private int lineStart;
+  private int end;
+  private boolean skipping;
+  private int position;
+  private long numMessages;
+  private long numSkipped;
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Appends received bytes and notifies the listeners of every status message they complete.
+   *
+   * @param data Bytes read from the serial connection.
+   * @param timestamp Time the bytes were received.
+   */
+  public void feed(byte[] data, long timestamp) {
+    feed(data, 0, data.length, timestamp);
+  }
+
+  public void feed(byte[] data, int offset, int length, long timestamp) {
+    for (int i = offset; i < offset + length; ++i) {
+      final byte b = data[i];
+      if (b == '\n') {
+        if (!skipping) {
+          parseLine(timestamp);
+        }
+        skipping = false;
+        lineStart = end;
+      } else if (end - lineStart == CAPACITY) {
+        // No line end in sight, drop the line.
+        skipping = true;
+        lineStart = end;
+        numSkipped++;
+      } else if (!skipping) {
+        ring[end++ & MASK] = b;
+      }
+    }
+  }
+
+  /** Returns the number of status messages decoded so far. */
+  public long getNumMessages() {
+    return numMessages;
+  }
+
+  /** Returns the number of lines that were skipped because they are no status message. */
+  public long getNumSkipped() {
+    return numSkipped;
+  }
+
+  private void parseLine(long timestamp) {
+    position = lineStart;
+    for (int i = 0; i < NUM_FIELDS; ++i) {
+      if (i > 0 && !consume(',')) {
+        numSkipped++;
+        return;
+      }
+      final float value = parseNumber();
+      if (Float.isNaN(value)) {
+        numSkipped++;
+        return;
+      }
+      fields[i] = value;
+    }
+    skipWhitespace();
+    if (position != end) {
+      numSkipped++;
+      return;
+    }
+    numMessages++;
+    telemetry.set(timestamp, fields[0], fields[1], fields[2], fields[3]);
+    for (Listener listener : listeners) {
+      listener.onTelemetry(telemetry);
+    }
+  }
+
+  // Parses a decimal number like "-12", "7.45" or ".5" surrounded by optional whitespace. Returns
+  // NaN if there is none.
+  private float parseNumber() {
+    skipWhitespace();
+    final boolean negative = consume('-');
+    if (!negative) {
+      consume('+');
+    }
+    long mantissa = 0;
+    int numDigits = 0;
+    int numFractionDigits = 0;
+    boolean fraction = false;
+    boolean anyDigit = false;
+    while (position != end) {
+      final int c = ring[position & MASK];
+      if (c >= '0' && c <= '9') {
+        anyDigit = true;
+        if (numDigits < MAX_DIGITS && numFractionDigits < MAX_DIGITS) {
+          mantissa = 10 * mantissa + (c - '0');
+          if (mantissa != 0) {
+            numDigits++;
+          }
+          if (fraction) {
+            numFractionDigits++;
+          }
+        } else if (!fraction) {
+          // Too large for a status message.
+          return Float.NaN;
+        }
+      } else if (c == '.' && !fraction) {
+        fraction = true;
+      } else {
+        break;
+      }
+      position++;
+    }
+    if (!anyDigit) {
+      return Float.NaN;
+    }
+    skipWhitespace();
+    // Both the mantissa and the power of ten are exact doubles, so the quotient is correctly
+    // rounded.
+    final double value = mantissa / POWERS_OF_TEN[numFractionDigits];
+    return (float) (negative ? -value : value);
+  }
+
+  private boolean consume(char c) {
+    if (position != end && ring[position & MASK] == c) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  private void skipWhitespace() {
+    while (position != end) {
+      final byte c = ring[position & MASK];
+      if (c != ' ' && c != '\t' && c != '\r') {
+        break;
+      }
+      position++;
+    }
+  }
+}
@@ -2,8 +2,6 @@
 
 package org.openbot.env;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -12,14 +10,12 @@ import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
-import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.widget.Toast;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.felhr.usbserial.UsbSerialDevice;
 import com.felhr.usbserial.UsbSerialInterface;
-import java.io.UnsupportedEncodingException;
 import java.util.Map;
-import org.openbot.common.Constants;
 
 public class UsbConnection {
   private static final int USB_VENDOR_ID = 6790; // 0x2341; // 9025
@@ -32,12 +28,11 @@ public class UsbConnection {
   private static final String ACTION_USB_PERMISSION = "UsbConnection.USB_PERMISSION";
 
   private UsbDeviceConnection connection;
-  private UsbSerialDevice serialDevice;
+  private volatile UsbSerialDevice serialDevice;
   private final LocalBroadcastManager localBroadcastManager;
-  private String buffer = "";
+  private final TelemetryParser telemetryParser = new TelemetryParser();
   private final Context context;
   private final int baudRate;
-  private boolean busy;
   private int vendorId;
   private int productId;
   private String productName;
@@ -53,22 +48,9 @@ public class UsbConnection {
         PendingIntent.getBroadcast(this.context, 0, new Intent(ACTION_USB_PERMISSION), 0);
   }
 
+  // Status messages are decoded on the read thread of the serial device.
   private final UsbSerialInterface.UsbReadCallback callback =
-      data -> {
-        try {
-          String dataUtf8 = new String(data, "UTF-8");
-          buffer += dataUtf8;
-          int index;
-          while ((index = buffer.indexOf('\n')) != -1) {
-            final String dataStr = buffer.substring(0, index).trim();
-            buffer = buffer.length() == index ? "" : buffer.substring(index + 1);
-
-            AsyncTask.execute(() -> onSerialDataReceived(dataStr));
-          }
-        } catch (UnsupportedEncodingException e) {
-          LOGGER.e("Error receiving USB data");
-        }
-      };
+      data -> telemetryParser.feed(data, SystemClock.elapsedRealtimeNanos());
 
   private final BroadcastReceiver usbPermissionReceiver =
       new BroadcastReceiver() {
@@ -166,13 +148,16 @@ public class UsbConnection {
     return success;
   }
 
-  private void onSerialDataReceived(String data) {
-    // Add whatever you want here
-    LOGGER.i("Serial data received: " + data);
-    localBroadcastManager.sendBroadcast(
-        new Intent(Constants.USB_ACTION_DATA_RECEIVED)
-            .putExtra("from", "usb")
-            .putExtra("data", data));
+  /**
+   * Registers a listener for the status messages of the vehicle. It is called on the USB read
+   * thread.
+   */
+  public void addTelemetryListener(TelemetryParser.Listener listener) {
+    telemetryParser.addListener(listener);
+  }
+
+  public void removeTelemetryListener(TelemetryParser.Listener listener) {
+    telemetryParser.removeListener(listener);
   }
 
   public void stopUsbConnection() {
@@ -192,20 +177,18 @@ public class UsbConnection {
     localBroadcastManager.unregisterReceiver(usbDetachedReceiver);
   }
 
-  public void send(String msg) {
-    busy = true;
-    serialDevice.write(msg.getBytes(UTF_8));
-    busy = false;
+  /** Writes raw bytes to the vehicle, the serial device copies them before returning. */
+  public void send(byte[] data) {
+    final UsbSerialDevice device = serialDevice;
+    if (device != null) {
+      device.write(data);
+    }
   }
 
   public boolean isOpen() {
     return connection != null;
   }
 
-  public boolean isBusy() {
-    return busy;
-  }
-
   public int getBaudRate() {
     return baudRate;
   }
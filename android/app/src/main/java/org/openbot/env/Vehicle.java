@@ -1,184 +1,327 @@
 package org.openbot.env;
 
 import android.os.SystemClock;
-import java.util.Random;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of the vehicle: the control, the indicator and the latest sensor readings.
+ *
+ * <p>The state is written and read by several threads (USB, inference, noise timer, UI). It is kept
+ * in primitive fields guarded by a sequence lock: a writer makes the sequence odd, updates the
+ * fields and makes it even again, and readers retry until they saw the same even sequence before
+ * and after copying the fields. Readers never block writers and always get a consistent view of the
+ * whole state, e.g. the left and right control of the same update. Neither reading nor writing
+ * creates any objects.
+ */
 public class Vehicle {
 
-  private Control control = new Control(0, 0);
-  private Control noisyControl = new Control(0, 0);
-  private final Noise noise = new Noise(1000, 2000, 5000);
-  private int indicator = 0;
-  private static int speedMultiplier = 192; // 128,192,255
-
-  private final SensorReading batteryVoltage = new SensorReading();
-  private final SensorReading leftWheelTicks = new SensorReading();
-  private final SensorReading rightWheelTicks = new SensorReading();
-  private final SensorReading sonarReading = new SensorReading();
+  public static final int DEFAULT_SPEED_MULTIPLIER = 192; // 128,192,255
 
   private static final int diskHoles = 20;
-  private static final int millisPerMinute = 60000;
+  // Standard wheels of the DIY body, adjust for other bodies.
+  private static final double WHEEL_DIAMETER = 0.065;
+  private static final double TRACK_WIDTH = 0.15;
+  // The firmware sends the ticks every second, the speed is fitted over the last few messages.
+  private static final long ODOMETRY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+  // Stepped by a single thread, see applyNoise().
+  private volatile NoiseGenerator noise;
+  private final WheelOdometry odometry =
+      new WheelOdometry(diskHoles, WHEEL_DIAMETER, TRACK_WIDTH, ODOMETRY_WINDOW_NANOS);
+  private final WheelOdometry.Estimate telemetryEstimate = new WheelOdometry.Estimate();
+
+  // Odd while a writer updates the fields below. Writers are serialized by it.
+  private final AtomicLong sequence = new AtomicLong();
+  private volatile float controlLeft;
+  private volatile float controlRight;
+  private volatile float noisyLeft;
+  private volatile float noisyRight;
+  private volatile int indicator;
+  private volatile int speedMultiplier = DEFAULT_SPEED_MULTIPLIER;
+  private volatile float batteryVoltage;
+  private volatile float leftWheelTicks;
+  private volatile float leftWheelRpm;
+  private volatile float rightWheelTicks;
+  private volatile float rightWheelRpm;
+  private volatile float sonarReading;
+
+  private final ThreadLocal<State> states =
+      new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+          return new State();
+        }
+      };
 
+  /** Normalized control of the left and right motors in [-1, 1]. */
   public static class Control {
     private float left = 0;
     private float right = 0;
 
     public Control(float left, float right) {
+      set(left, right);
+    }
+
+    /** Overwrites the control, e.g. to reuse it for the prediction of every frame. */
+    public void set(float left, float right) {
       this.left = Math.max(-1.f, Math.min(1.f, left));
       this.right = Math.max(-1.f, Math.min(1.f, right));
     }
 
+    /** Overwrites the control with a copy of {@code other}. */
+    public void set(Control other) {
+      this.left = other.left;
+      this.right = other.right;
+    }
+
     public float getLeft() {
-      return left * speedMultiplier;
+      return left;
     }
 
     public float getRight() {
-      return right * speedMultiplier;
+      return right;
     }
   }
 
-  private static class Noise {
+  /** Consistent copy of the vehicle state, see {@link #read(State)}. */
+  public static final class State {
+    private long version;
+    private float controlLeft;
+    private float controlRight;
+    private float noisyLeft;
+    private float noisyRight;
+    private int indicator;
+    private int speedMultiplier;
+    private float batteryVoltage;
+    private float leftWheelTicks;
+    private float leftWheelRpm;
+    private float rightWheelTicks;
+    private float rightWheelRpm;
+    private float sonarReading;
+
+    /** Number of updates of the vehicle state before this copy. */
+    public long getVersion() {
+      return version;
+    }
 
-    public Noise(int minDuration, int maxDuration, long timeout) {
-      this.minDuration = minDuration;
-      this.maxDuration = maxDuration;
-      this.timeout = timeout;
+    /** Control of the left motors, scaled by the speed multiplier. */
+    public float getLeft() {
+      return controlLeft * speedMultiplier;
     }
 
-    int minDuration;
-    int maxDuration;
-    long timeout;
-    float value = 0;
-    int direction = 0;
-    long duration = 0;
-    long startTime = 0;
+    /** Control of the right motors, scaled by the speed multiplier. */
+    public float getRight() {
+      return controlRight * speedMultiplier;
+    }
 
-    public void update() {
-      long currentTime = SystemClock.elapsedRealtime();
-      if (currentTime > startTime + duration + timeout) {
-        startTime = currentTime;
-        duration = generateRandomInt(minDuration, maxDuration);
-        value = 0;
-        Random r = new Random();
-        direction = r.nextBoolean() ? 1 : -1;
-      }
-      if (currentTime < startTime + duration) {
-        if (currentTime < startTime + duration / 2) {
-          value += (float) generateRandomInt(1, 8) / 255;
-        } else {
-          value -= (float) generateRandomInt(1, 8) / 255;
-        }
-        value = Math.max(0, Math.min(value, 0.5f));
-      } else value = 0;
+    /** Control of the left motors with noise, scaled by the speed multiplier. */
+    public float getNoisyLeft() {
+      return noisyLeft * speedMultiplier;
     }
 
-    private int generateRandomInt(int min, int max) {
-      Random r = new Random();
-      return r.nextInt((max - min) + 1) + min;
+    /** Control of the right motors with noise, scaled by the speed multiplier. */
+    public float getNoisyRight() {
+      return noisyRight * speedMultiplier;
     }
 
-    private float generateRandomFloat() {
-      Random r = new Random();
-      return r.nextFloat();
+    public int getIndicator() {
+      return indicator;
+    }
+
+    public int getSpeedMultiplier() {
+      return speedMultiplier;
     }
-  }
 
-  private static class SensorReading {
+    public float getBatteryVoltage() {
+      return batteryVoltage;
+    }
 
-    public SensorReading() {
-      this.age = 1000;
-      this.timestamp = 0;
-      this.reading = 0;
+    public float getLeftWheelTicks() {
+      return leftWheelTicks;
     }
 
-    public long getAge() {
-      return age;
+    /** Speed of the left wheel, estimated by the odometry when the readings arrived. */
+    public float getLeftWheelRPM() {
+      return leftWheelRpm;
     }
 
-    public long getTimestamp() {
-      return timestamp;
+    public float getRightWheelTicks() {
+      return rightWheelTicks;
     }
 
-    public float getReading() {
-      return reading;
+    public float getRightWheelRPM() {
+      return rightWheelRpm;
     }
 
-    public void setReading(float reading) {
-      long currentTime = SystemClock.elapsedRealtime();
-      if (currentTime > timestamp + 5 && timestamp > 0) this.age = currentTime - this.timestamp;
-      this.timestamp = currentTime;
-      this.reading = reading;
+    public float getSonarReading() {
+      return sonarReading;
     }
+  }
 
-    private long age;
-    private long timestamp;
-    private float reading;
+  /** Copies the current state into {@code state}. */
+  public void read(State state) {
+    while (true) {
+      final long version = sequence.get();
+      if ((version & 1) != 0) {
+        Thread.yield();
+        continue;
+      }
+      state.controlLeft = controlLeft;
+      state.controlRight = controlRight;
+      state.noisyLeft = noisyLeft;
+      state.noisyRight = noisyRight;
+      state.indicator = indicator;
+      state.speedMultiplier = speedMultiplier;
+      state.batteryVoltage = batteryVoltage;
+      state.leftWheelTicks = leftWheelTicks;
+      state.leftWheelRpm = leftWheelRpm;
+      state.rightWheelTicks = rightWheelTicks;
+      state.rightWheelRpm = rightWheelRpm;
+      state.sonarReading = sonarReading;
+      if (sequence.get() == version) {
+        state.version = version / 2;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the current state in a copy owned by the calling thread, which is overwritten by the
+   * next call on the same thread.
+   */
+  public State getState() {
+    final State state = states.get();
+    read(state);
+    return state;
+  }
+
+  private long beginWrite() {
+    while (true) {
+      final long version = sequence.get();
+      if ((version & 1) == 0 && sequence.compareAndSet(version, version + 1)) {
+        return version + 1;
+      }
+      Thread.yield();
+    }
+  }
+
+  private void endWrite(long version) {
+    sequence.set(version + 1);
   }
 
   public float getBatteryVoltage() {
-    return batteryVoltage.getReading();
+    return batteryVoltage;
   }
 
   public void setBatteryVoltage(float batteryVoltage) {
-    this.batteryVoltage.setReading(batteryVoltage);
+    final long version = beginWrite();
+    this.batteryVoltage = batteryVoltage;
+    endWrite(version);
   }
 
   public float getLeftWheelTicks() {
-    return leftWheelTicks.getReading();
+    return leftWheelTicks;
   }
 
   public float getLeftWheelRPM() {
-    if (leftWheelTicks.getAge() > 0 && leftWheelTicks.getReading() != 0)
-      return leftWheelTicks.getReading() * millisPerMinute / leftWheelTicks.getAge() / diskHoles;
-    else return 0;
-  }
-
-  public void setLeftWheelTicks(float leftWheelTicks) {
-    this.leftWheelTicks.setReading(leftWheelTicks);
+    return getState().getLeftWheelRPM();
   }
 
   public float getRightWheelTicks() {
-    return rightWheelTicks.getReading();
+    return rightWheelTicks;
   }
 
   public float getRightWheelRPM() {
-    if (rightWheelTicks.getAge() > 0 && rightWheelTicks.getReading() != 0)
-      return rightWheelTicks.getReading() * millisPerMinute / rightWheelTicks.getAge() / diskHoles;
-    else return 0;
-  }
-
-  public void setRightWheelTicks(float rightWheelTicks) {
-    this.rightWheelTicks.setReading(rightWheelTicks);
+    return getState().getRightWheelRPM();
   }
 
   public float getSonarReading() {
-    return sonarReading.getReading();
+    return sonarReading;
   }
 
   public void setSonarReading(float sonarReading) {
-    this.sonarReading.setReading(sonarReading);
+    final long version = beginWrite();
+    this.sonarReading = sonarReading;
+    endWrite(version);
   }
 
-  public Control getNoisyControl() {
-    return noisyControl;
+  /**
+   * Updates all sensor readings with a status message of the vehicle in a single update and adds
+   * the wheel ticks to the odometry. Called by a single thread, e.g. the USB read thread.
+   */
+  public void setTelemetry(Telemetry telemetry) {
+    odometry.addSample(
+        telemetry.getTimestamp(), telemetry.getLeftWheelTicks(), telemetry.getRightWheelTicks());
+    odometry.read(telemetry.getTimestamp(), telemetryEstimate);
+    final long version = beginWrite();
+    batteryVoltage = telemetry.getBatteryVoltage();
+    leftWheelTicks = telemetry.getLeftWheelTicks();
+    leftWheelRpm = telemetryEstimate.getLeftWheelRPM();
+    rightWheelTicks = telemetry.getRightWheelTicks();
+    rightWheelRpm = telemetryEstimate.getRightWheelRPM();
+    sonarReading = telemetry.getSonarReading();
+    endWrite(version);
   }
 
-  public Control getControl() {
-    return control;
+  /**
+   * Reads the wheel odometry, extrapolated to the given time.
+   *
+   * @param timestamp Time in the time base of the telemetry, i.e. {@link
+   *     SystemClock#elapsedRealtimeNanos()}.
+   * @param estimate Filled with the speed and pose of the vehicle.
+   */
+  public void readOdometry(long timestamp, WheelOdometry.Estimate estimate) {
+    odometry.read(timestamp, estimate);
   }
 
+  public void resetOdometry() {
+    odometry.reset();
+  }
+
+  /** Sets the control, copying the values of {@code control}. */
   public void setControl(Control control) {
-    this.control = control;
+    setControl(control.left, control.right);
   }
 
   public void setControl(float left, float right) {
-    this.control = new Control(left, right);
+    final long version = beginWrite();
+    controlLeft = Math.max(-1.f, Math.min(1.f, left));
+    controlRight = Math.max(-1.f, Math.min(1.f, right));
+    endWrite(version);
+  }
+
+  /** Sets the generator of the noise, null for none. */
+  public void setNoise(NoiseGenerator noise) {
+    this.noise = noise;
+  }
+
+  public NoiseGenerator getNoise() {
+    return noise;
   }
 
+  /** Advances the noise by one step and updates the noisy control. Called by a single thread. */
   public void applyNoise() {
-    noise.update();
-    if (noise.direction < 0) noisyControl = new Control(control.left - noise.value, control.right);
-    else noisyControl = new Control(control.left, control.right - noise.value);
+    final NoiseGenerator noise = this.noise;
+    final float value;
+    final int direction;
+    if (noise != null) {
+      noise.update();
+      value = noise.getValue();
+      direction = noise.getDirection();
+    } else {
+      value = 0;
+      direction = 0;
+    }
+    final long version = beginWrite();
+    if (direction < 0) {
+      noisyLeft = Math.max(-1.f, Math.min(1.f, controlLeft - value));
+      noisyRight = controlRight;
+    } else {
+      noisyLeft = controlLeft;
+      noisyRight = Math.max(-1.f, Math.min(1.f, controlRight - value));
+    }
+    endWrite(version);
   }
 
   public int getSpeedMultiplier() {
@@ -186,7 +329,9 @@ public class Vehicle {
   }
 
   public void setSpeedMultiplier(int speedMultiplier) {
+    final long version = beginWrite();
     this.speedMultiplier = speedMultiplier;
+    endWrite(version);
   }
 
   public int getIndicator() {
@@ -194,6 +339,8 @@ public class Vehicle {
   }
 
   public void setIndicator(int indicator) {
+    final long version = beginWrite();
     this.indicator = indicator;
+    endWrite(version);
   }
 }
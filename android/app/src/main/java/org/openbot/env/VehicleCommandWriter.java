@@ -0,0 +1,300 @@
+package org.openbot.env;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends control and indicator commands to the vehicle on a dedicated thread.
+ *
+ * <p>Callers only store the latest command of each kind. A command that was not sent yet is
+ * replaced by a newer one (coalesced), since the vehicle only acts on the latest state. The writer
+ * thread sends pending commands as soon as they arrive, but at most at a fixed rate, so bursts of
+ * updates cannot flood the serial connection. Commands are encoded into reused buffers.
+ *
+ * <p>A control can be tagged with the camera frame it was computed from. The {@link
+ * ControlListener} then learns when the control was written or that it was replaced, e.g. to trace
+ * the latency of the frame.
+ *
+ * <p>Encodings:
+ *
+ * <ul>
+ *   <li>{@link Encoding#ASCII}: "c&lt;left&gt;,&lt;right&gt;\n" and "i&lt;indicator&gt;\n", as
+ *       understood by every firmware.
+ *   <li>{@link Encoding#BINARY}: 0xA5, type, payload, checksum (XOR of type and payload). Control:
+ *       type 'c', left and right as 16-bit little endian integers. Indicator: type 'i', value as
+ *       8-bit integer. Needs a firmware built with BINARY_COMMANDS.
+ * </ul>
+ */
+public class VehicleCommandWriter {
+
+  /** Destination of the encoded commands, e.g. the serial connection. */
+  public interface Sink {
+    /** Writes the command. The array is reused afterwards, so it must be copied if kept. */
+    void write(byte[] data);
+  }
+
+  /** Gets told what happened to the controls that were tagged with a frame. */
+  public interface ControlListener {
+    /** Called on the writer thread once the control of the frame was written to the sink. */
+    void onControlWritten(long frame);
+
+    /** Called on the thread setting a newer control, the control of the frame is not sent. */
+    void onControlCoalesced(long frame);
+  }
+
+  /** Tag of controls that do not belong to a frame. */
+  public static final long NO_FRAME = -1;
+
+  public enum Encoding {
+    ASCII,
+    BINARY
+  }
+
+  private static final long NONE = Long.MIN_VALUE;
+  private static final byte FRAME_START = (byte) 0xA5;
+  // "c-2147483648,-2147483648\n"
+  private static final int MAX_COMMAND_LENGTH = 25;
+
+  private final Sink sink;
+  private final Encoding encoding;
+  private final long periodNanos;
+  private final ControlListener controlListener;
+  // The control and its frame are replaced together, so they are guarded by a lock.
+  private final Object controlLock = new Object();
+  private long pendingControl = NONE;
+  private long pendingControlFrame = NO_FRAME;
+  private final AtomicLong pendingIndicator = new AtomicLong(NONE);
+  private final AtomicLong numCoalesced = new AtomicLong();
+  // Commands are encoded into scratch and copied into buffers[length], the sink gets exact arrays.
+  private final byte[] scratch = new byte[MAX_COMMAND_LENGTH];
+  private final byte[][] buffers = new byte[MAX_COMMAND_LENGTH + 1][];
+  private final Thread thread;
+  private volatile boolean closed;
+  private volatile long numSent;
+
+  /**
+   * Creates a writer and starts its thread.
+   *
+   * @param sink Destination of the commands, called on the writer thread.
+   * @param encoding Encoding of the commands, must match the firmware.
+   * @param maxRate Maximum number of commands sent per second.
+   */
+  public VehicleCommandWriter(Sink sink, Encoding encoding, int maxRate) {
+    this(sink, encoding, maxRate, null);
+  }
+
+  /**
+   * Creates a writer and starts its thread.
+   *
+   * @param sink Destination of the commands, called on the writer thread.
+   * @param encoding Encoding of the commands, must match the firmware.
+   * @param maxRate Maximum number of commands sent per second.
+   * @param controlListener Told about the controls tagged with a frame, may be null.
+   */
+  public VehicleCommandWriter(
+      Sink sink, Encoding encoding, int maxRate, ControlListener controlListener) {
+    this.sink = sink;
+    this.encoding = encoding;
+    this.controlListener = controlListener;
+    periodNanos = TimeUnit.SECONDS.toNanos(1) / maxRate;
+    thread = new Thread(this::run, "vehicle-commands");
+    thread.start();
+  }
+
+  /** Sets the control to send next, replacing a control that was not sent yet. */
+  public void setControl(int left, int right) {
+    setControl(left, right, NO_FRAME);
+  }
+
+  /**
+   * Sets the control to send next, replacing a control that was not sent yet.
+   *
+   * @param frame Frame the control was computed from, {@link #NO_FRAME} for none.
+   */
+  public void setControl(int left, int right, long frame) {
+    final long replaced;
+    final long replacedFrame;
+    synchronized (controlLock) {
+      replaced = pendingControl;
+      replacedFrame = pendingControlFrame;
+      pendingControl = ((long) left << 32) | (right & 0xFFFFFFFFL);
+      pendingControlFrame = frame;
+    }
+    if (replaced != NONE) {
+      numCoalesced.incrementAndGet();
+      if (replacedFrame != NO_FRAME && controlListener != null) {
+        controlListener.onControlCoalesced(replacedFrame);
+      }
+    }
+    LockSupport.unpark(thread);
+  }
+
+  /** Sets the indicator to send next, replacing an indicator that was not sent yet. */
+  public void setIndicator(int indicator) {
+    post(pendingIndicator, indicator);
+  }
+
+  /** Returns the number of commands sent. */
+  public long getNumSent() {
+    return numSent;
+  }
+
+  /** Returns the number of commands that were replaced by a newer one before they were sent. */
+  public long getNumCoalesced() {
+    return numCoalesced.get();
+  }
+
+  /** Sends the pending commands and stops the writer thread. */
+  public void close() {
+    closed = true;
+    LockSupport.unpark(thread);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void post(AtomicLong pending, long command) {
+    if (pending.getAndSet(command) != NONE) {
+      numCoalesced.incrementAndGet();
+    }
+    LockSupport.unpark(thread);
+  }
+
+  private void run() {
+    long nextSendNanos = System.nanoTime();
+    while (true) {
+      // Read the flag first, so that commands posted before close are still sent.
+      final boolean closing = closed;
+      final long waitNanos = nextSendNanos - System.nanoTime();
+      if (!closing && waitNanos > 0) {
+        LockSupport.parkNanos(this, waitNanos);
+        continue;
+      }
+      if (sendPending()) {
+        nextSendNanos = System.nanoTime() + periodNanos;
+      } else if (!closing) {
+        LockSupport.park(this);
+      }
+      if (closing) {
+        break;
+      }
+    }
+  }
+
+  private boolean sendPending() {
+    boolean sent = false;
+    final long control;
+    final long controlFrame;
+    synchronized (controlLock) {
+      control = pendingControl;
+      controlFrame = pendingControlFrame;
+      pendingControl = NONE;
+      pendingControlFrame = NO_FRAME;
+    }
+    if (control != NONE) {
+      sendControl((int) (control >> 32), (int) control);
+      sent = true;
+      if (controlFrame != NO_FRAME && controlListener != null) {
+        controlListener.onControlWritten(controlFrame);
+      }
+    }
+    final long indicator = pendingIndicator.getAndSet(NONE);
+    if (indicator != NONE) {
+      sendIndicator((int) indicator);
+      sent = true;
+    }
+    return sent;
+  }
+
+  // Encodes and writes a command on the calling thread. Only used by the writer thread, and by
+  // benchmarks of the encoding while nothing is pending.
+  void sendControl(int left, int right) {
+    send(
+        encoding == Encoding.ASCII
+            ? encodeAsciiControl(left, right)
+            : encodeBinaryControl(left, right));
+  }
+
+  void sendIndicator(int indicator) {
+    send(
+        encoding == Encoding.ASCII
+            ? encodeAsciiIndicator(indicator)
+            : encodeBinaryIndicator(indicator));
+  }
+
+  private void send(int length) {
+    byte[] buffer = buffers[length];
+    if (buffer == null) {
+      buffer = new byte[length];
+      buffers[length] = buffer;
+    }
+    System.arraycopy(scratch, 0, buffer, 0, length);
+    sink.write(buffer);
+    numSent++;
+  }
+
+  private int encodeAsciiControl(int left, int right) {
+    scratch[0] = 'c';
+    int length = putDecimal(left, 1);
+    scratch[length++] = ',';
+    length = putDecimal(right, length);
+    scratch[length++] = '\n';
+    return length;
+  }
+
+  private int encodeAsciiIndicator(int indicator) {
+    scratch[0] = 'i';
+    final int length = putDecimal(indicator, 1);
+    scratch[length] = '\n';
+    return length + 1;
+  }
+
+  // Writes the decimal digits of value at offset and returns the offset after them.
+  private int putDecimal(int value, int offset) {
+    long remaining = value;
+    if (remaining < 0) {
+      scratch[offset++] = '-';
+      remaining = -remaining;
+    }
+    int end = offset;
+    do {
+      scratch[end++] = (byte) ('0' + remaining % 10);
+      remaining /= 10;
+    } while (remaining != 0);
+    for (int i = offset, j = end - 1; i < j; ++i, --j) {
+      final byte digit = scratch[i];
+      scratch[i] = scratch[j];
+      scratch[j] = digit;
+    }
+    return end;
+  }
+
+  private int encodeBinaryControl(int left, int right) {
+    scratch[0] = FRAME_START;
+    scratch[1] = 'c';
+    scratch[2] = (byte) left;
+    scratch[3] = (byte) (left >> 8);
+    scratch[4] = (byte) right;
+    scratch[5] = (byte) (right >> 8);
+    return putChecksum(6);
+  }
+
+  private int encodeBinaryIndicator(int indicator) {
+    scratch[0] = FRAME_START;
+    scratch[1] = 'i';
+    scratch[2] = (byte) indicator;
+    return putChecksum(3);
+  }
+
+  private int putChecksum(int length) {
+    byte checksum = 0;
+    for (int i = 1; i < length; ++i) {
+      checksum ^= scratch[i];
+    }
+    scratch[length] = checksum;
+    return length + 1;
+  }
+}
@@ -0,0 +1,226 @@
+package org.openbot.env;
+
+/**
+ * Wheel odometry of a differential drive vehicle from the tick counts of its wheel speed sensors.
+ *
+ * <p>The firmware sends the ticks counted since its previous message. Each wheel keeps the recent
+ * samples in a ring buffer as cumulative ticks over the receive time, and its speed is the least
+ * squares slope of the samples within a sliding window. Fitting over several samples keeps the
+ * speed stable when messages arrive late or early, unlike dividing the last count by the time since
+ * the previous message.
+ *
+ * <p>The pose (x, y, heading) is integrated from the counted ticks, i.e. from the distance each
+ * wheel actually travelled. {@link #read} extrapolates it with the estimated speed to the requested
+ * time, so the odometry can be sampled at a higher rate (e.g. 100 Hz) than the messages arrive.
+ * Neither adding samples nor reading allocates.
+ */
+public class WheelOdometry {
+
+  private static final int CAPACITY = 64;
+  private static final int MASK = CAPACITY - 1;
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double NANOS_PER_MINUTE = 60 * NANOS_PER_SECOND;
+
+  /** Odometry at a point in time, filled by {@link #read}. */
+  public static final class Estimate {
+    private long timestamp;
+    private float leftRpm;
+    private float rightRpm;
+    private float linearVelocity;
+    private float angularVelocity;
+    private double x;
+    private double y;
+    private double heading;
+
+    /** Time of the estimate, in the time base of the samples. */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    public float getLeftWheelRPM() {
+      return leftRpm;
+    }
+
+    public float getRightWheelRPM() {
+      return rightRpm;
+    }
+
+    /** Forward speed in m/s. */
+    public float getLinearVelocity() {
+      return linearVelocity;
+    }
+
+    /** Turn rate in rad/s, counterclockwise positive. */
+    public float getAngularVelocity() {
+      return angularVelocity;
+    }
+
+    /** Position in m since the start, x pointing forward at the start. */
+    public double getX() {
+      return x;
+    }
+
+    public double getY() {
+      return y;
+    }
+
+    /** Heading in rad since the start, counterclockwise positive. */
+    public double getHeading() {
+      return heading;
+    }
+  }
+
+  // Ring buffer of the samples of one wheel.
+  private static final class Wheel {
+    final long[] timestamps = new long[CAPACITY];
+    final double[] ticks = new double[CAPACITY];
+    int count;
+    int next;
+    // Ticks per ns, the least squares slope within the window.
+    double speed;
+
+    void add(long timestamp, float increment) {
+      // The ticks of the first sample were counted over an unknown time, it only anchors the fit.
+      final double total = count == 0 ? 0 : ticks[(next - 1) & MASK] + increment;
+      timestamps[next] = timestamp;
+      ticks[next] = total;
+      next = (next + 1) & MASK;
+      count = Math.min(count + 1, CAPACITY);
+    }
+
+    void estimateSpeed(long windowNanos) {
+      final int last = (next - 1) & MASK;
+      final long end = timestamps[last];
+      // The samples within the window and the one before, which marks the start of the first
+      // interval in the window.
+      int n = 1;
+      while (n < count && end - timestamps[(last - n + 1) & MASK] < windowNanos) {
+        n++;
+      }
+      if (n < 2) {
+        speed = 0;
+        return;
+      }
+      // Times relative to the last sample, so that the sums stay small.
+      double sumT = 0;
+      double sumC = 0;
+      for (int i = 0; i < n; ++i) {
+        final int index = (last - i) & MASK;
+        sumT += timestamps[index] - end;
+        sumC += ticks[index];
+      }
+      final double meanT = sumT / n;
+      final double meanC = sumC / n;
+      double covariance = 0;
+      double variance = 0;
+      for (int i = 0; i < n; ++i) {
+        final int index = (last - i) & MASK;
+        final double t = timestamps[index] - end - meanT;
+        covariance += t * (ticks[index] - meanC);
+        variance += t * t;
+      }
+      speed = variance > 0 ? covariance / variance : 0;
+    }
+
+    long getLastTimestamp() {
+      return timestamps[(next - 1) & MASK];
+    }
+  }
+
+  private final Wheel left = new Wheel();
+  private final Wheel right = new Wheel();
+  private final int diskHoles;
+  private final double metersPerTick;
+  private final double trackWidth;
+  private final long windowNanos;
+
+  // Pose at the time of the last sample.
+  private double x;
+  private double y;
+  private double heading;
+
+  /**
+   * Creates an odometry.
+   *
+   * @param diskHoles Ticks per revolution of a wheel.
+   * @param wheelDiameter Diameter of the wheels in m.
+   * @param trackWidth Distance between the left and right wheels in m.
+   * @param windowNanos Length of the window of the speed estimation, should cover a few messages.
+   */
+  public WheelOdometry(int diskHoles, double wheelDiameter, double trackWidth, long windowNanos) {
+    this.diskHoles = diskHoles;
+    this.metersPerTick = Math.PI * wheelDiameter / diskHoles;
+    this.trackWidth = trackWidth;
+    this.windowNanos = windowNanos;
+  }
+
+  /**
+   * Adds the ticks counted since the previous sample.
+   *
+   * @param timestamp Time the sample was received, in ns.
+   * @param leftTicks Ticks of the left wheel, negative when driving backwards.
+   * @param rightTicks Ticks of the right wheel.
+   */
+  public synchronized void addSample(long timestamp, float leftTicks, float rightTicks) {
+    final boolean first = left.count == 0;
+    left.add(timestamp, leftTicks);
+    right.add(timestamp, rightTicks);
+    left.estimateSpeed(windowNanos);
+    right.estimateSpeed(windowNanos);
+    if (!first) {
+      final double leftDistance = leftTicks * metersPerTick;
+      final double rightDistance = rightTicks * metersPerTick;
+      final double distance = (leftDistance + rightDistance) / 2;
+      final double turn = (rightDistance - leftDistance) / trackWidth;
+      // Midpoint integration of the arc.
+      x += distance * Math.cos(heading + turn / 2);
+      y += distance * Math.sin(heading + turn / 2);
+      heading += turn;
+    }
+  }
+
+  /**
+   * Reads the odometry at the given time. The pose is extrapolated from the last sample with the
+   * estimated speed, at most for the length of the window. If no sample arrived for longer, the
+   * vehicle is considered stopped.
+   */
+  public synchronized void read(long timestamp, Estimate out) {
+    out.timestamp = timestamp;
+    out.x = x;
+    out.y = y;
+    out.heading = heading;
+    if (left.count == 0 || timestamp - left.getLastTimestamp() > windowNanos) {
+      out.leftRpm = 0;
+      out.rightRpm = 0;
+      out.linearVelocity = 0;
+      out.angularVelocity = 0;
+      return;
+    }
+    out.leftRpm = (float) (left.speed * NANOS_PER_MINUTE / diskHoles);
+    out.rightRpm = (float) (right.speed * NANOS_PER_MINUTE / diskHoles);
+    final double leftVelocity = left.speed * metersPerTick * NANOS_PER_SECOND;
+    final double rightVelocity = right.speed * metersPerTick * NANOS_PER_SECOND;
+    final double linear = (leftVelocity + rightVelocity) / 2;
+    final double angular = (rightVelocity - leftVelocity) / trackWidth;
+    out.linearVelocity = (float) linear;
+    out.angularVelocity = (float) angular;
+
+    final double dt =
+        Math.max(0, Math.min(timestamp - left.getLastTimestamp(), windowNanos)) / NANOS_PER_SECOND;
+    final double turn = angular * dt;
+    out.x += linear * dt * Math.cos(heading + turn / 2);
+    out.y += linear * dt * Math.sin(heading + turn / 2);
+    out.heading += turn;
+  }
+
+  /** Forgets all samples and resets the pose to the origin. */
+  public synchronized void reset() {
+    left.count = 0;
+    right.count = 0;
+    left.speed = 0;
+    right.speed = 0;
+    x = 0;
+    y = 0;
+    heading = 0;
+  }
+}
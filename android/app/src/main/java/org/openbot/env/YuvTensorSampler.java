@@ -0,0 +1,129 @@
+package org.openbot.env;
+
+/**
+ * Samples the input of a network directly from the YUV420 planes of a camera frame. Every pixel of
+ * the network input is mapped through the crop-to-frame transform (the inverse of the transform
+ * used to draw the cropped bitmap) and the nearest camera pixel is converted to ARGB. This replaces
+ * converting the full frame to ARGB, drawing it into the cropped bitmap and reading the bitmap
+ * back.
+ *
+ * <p>The source index of every input pixel only depends on the transform and the plane strides, so
+ * it is computed once and reused for all frames.
+ */
+public class YuvTensorSampler {
+
+  private final int dstWidth;
+  private final int dstHeight;
+
+  // Crop-to-frame transform as returned by android.graphics.Matrix.getValues().
+  private final float[] transform = new float[9];
+  private int frameWidth;
+  private int frameHeight;
+
+  // Index into the Y and UV planes for every input pixel, -1 if it falls outside of the frame.
+  private final int[] yIndex;
+  private final int[] uvIndex;
+  private int yRowStride = -1;
+  private int uvRowStride = -1;
+  private int uvPixelStride = -1;
+
+  /**
+   * Creates a sampler.
+   *
+   * @param dstWidth Width of the network input.
+   * @param dstHeight Height of the network input.
+   */
+  public YuvTensorSampler(int dstWidth, int dstHeight) {
+    this.dstWidth = dstWidth;
+    this.dstHeight = dstHeight;
+    yIndex = new int[dstWidth * dstHeight];
+    uvIndex = new int[dstWidth * dstHeight];
+  }
+
+  /**
+   * Sets the transform from network input to camera frame coordinates.
+   *
+   * @param cropToFrame 3x3 matrix in row major order (see android.graphics.Matrix.getValues()).
+   * @param frameWidth Width of the camera frame.
+   * @param frameHeight Height of the camera frame.
+   */
+  public synchronized void setTransform(float[] cropToFrame, int frameWidth, int frameHeight) {
+    System.arraycopy(cropToFrame, 0, transform, 0, transform.length);
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    yRowStride = -1;
+  }
+
+  /**
+   * Writes the sampled input as ARGB pixels in row major order.
+   *
+   * @param out Array of at least width * height pixels.
+   */
+  public synchronized void sample(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    updateIndices(yRowStride, uvRowStride, uvPixelStride);
+    for (int i = 0; i < yIndex.length; ++i) {
+      out[i] = sample(yData, uData, vData, i);
+    }
+  }
+
+  private int sample(byte[] yData, byte[] uData, byte[] vData, int i) {
+    final int yi = yIndex[i];
+    if (yi < 0) {
+      // Outside of the frame the cropped bitmap stays transparent black.
+      return 0;
+    }
+    final int uvi = uvIndex[i];
+    return YuvToArgbConverter.yuvToArgb(0xff & yData[yi], 0xff & uData[uvi], 0xff & vData[uvi]);
+  }
+
+  private void updateIndices(int yRowStride, int uvRowStride, int uvPixelStride) {
+    if (yRowStride == this.yRowStride
+        && uvRowStride == this.uvRowStride
+        && uvPixelStride == this.uvPixelStride) {
+      return;
+    }
+    int i = 0;
+    for (int y = 0; y < dstHeight; ++y) {
+      for (int x = 0; x < dstWidth; ++x, ++i) {
+        // Nearest neighbour at pixel centres, like drawing the bitmap without filtering.
+        final float cx = x + 0.5f;
+        final float cy = y + 0.5f;
+        final int sx = (int) Math.floor(transform[0] * cx + transform[1] * cy + transform[2]);
+        final int sy = (int) Math.floor(transform[3] * cx + transform[4] * cy + transform[5]);
+        if (sx < 0 || sy < 0 || sx >= frameWidth || sy >= frameHeight) {
+          yIndex[i] = -1;
+          uvIndex[i] = -1;
+        } else {
+          yIndex[i] = sy * yRowStride + sx;
+          uvIndex[i] = (sy >> 1) * uvRowStride + (sx >> 1) * uvPixelStride;
+        }
+      }
+    }
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+  }
+
+  public int getWidth() {
+    return dstWidth;
+  }
+
+  public int getHeight() {
+    return dstHeight;
+  }
+
+  public synchronized int getFrameWidth() {
+    return frameWidth;
+  }
+
+  public synchronized int getFrameHeight() {
+    return frameHeight;
+  }
+}
@@ -0,0 +1,256 @@
+package org.openbot.env;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Table driven YUV420 to ARGB8888 converter. Produces exactly the same output as {@link
+ * ImageUtils#convertYUV420ToARGB8888} and {@link ImageUtils#convertYUV420SPToARGB8888}, but
+ *
+ * <ul>
+ *   <li>replaces the per-pixel multiplications and clamps by lookup tables,
+ *   <li>computes the chroma contribution once per 2x2 block,
+ *   <li>splits the frame into bands of row pairs that are converted on a {@link ForkJoinPool},
+ *   <li>writes into the caller's output array without allocating per frame.
+ * </ul>
+ *
+ * <p>An instance keeps per-frame state in its band tasks, so conversions on the same instance are
+ * serialized. Use one converter per camera stream.
+ */
+public class YuvToArgbConverter {
+
+  // Fixed point coefficients of ImageUtils.YUV2RGB (scaled by 1024).
+  private static final int Y_SCALE = 1192;
+  private static final int R_V = 1634;
+  private static final int G_V = 833;
+  private static final int G_U = 400;
+  private static final int B_U = 2066;
+
+  // Smallest and largest value a channel can take before clamping, see init of the tables.
+  private static final int MIN_CHANNEL = -B_U * 128;
+  private static final int MAX_CHANNEL = Y_SCALE * 239 + B_U * 127;
+
+  // Clamping [0, 2^18 - 1] and then taking the upper eight bits is the same as taking the upper
+  // eight bits (arithmetic shift) and clamping to [0, 255], so a single table does both.
+  private static final int CLAMP_OFFSET = -(MIN_CHANNEL >> 10);
+  private static final int[] CLAMP = new int[(MAX_CHANNEL >> 10) + CLAMP_OFFSET + 1];
+
+  private static final int[] Y_TABLE = new int[256];
+  private static final int[] RV_TABLE = new int[256];
+  private static final int[] GV_TABLE = new int[256];
+  private static final int[] GU_TABLE = new int[256];
+  private static final int[] BU_TABLE = new int[256];
+
+  // Frames with fewer rows than this are converted on the calling thread.
+  private static final int MIN_ROWS_PER_BAND = 16;
+
+  static {
+    for (int i = 0; i < 256; ++i) {
+      Y_TABLE[i] = Y_SCALE * Math.max(i - 16, 0);
+      RV_TABLE[i] = R_V * (i - 128);
+      GV_TABLE[i] = -G_V * (i - 128);
+      GU_TABLE[i] = -G_U * (i - 128);
+      BU_TABLE[i] = B_U * (i - 128);
+    }
+    for (int i = 0; i < CLAMP.length; ++i) {
+      CLAMP[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+    }
+  }
+
+  private final ForkJoinPool pool;
+  private final BandTask[] tasks;
+  private final RecursiveAction root =
+      new RecursiveAction() {
+        @Override
+        protected void compute() {
+          for (int i = 1; i < activeBands; ++i) {
+            tasks[i].fork();
+          }
+          tasks[0].compute();
+          for (int i = 1; i < activeBands; ++i) {
+            tasks[i].join();
+          }
+        }
+      };
+  private int activeBands;
+
+  // Parameters of the frame currently being converted, read by the band tasks.
+  private byte[] yData;
+  private byte[] uData;
+  private byte[] vData;
+  private int yOffset;
+  private int uOffset;
+  private int vOffset;
+  private int width;
+  private int height;
+  private int yRowStride;
+  private int uvRowStride;
+  private int uvPixelStride;
+  private int[] out;
+
+  /** Creates a converter that uses the common pool with one band per available processor. */
+  public YuvToArgbConverter() {
+    this(ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a converter.
+   *
+   * @param pool The pool the bands are executed on.
+   * @param numBands The number of bands a frame is split into. 1 converts on the calling thread.
+   */
+  public YuvToArgbConverter(ForkJoinPool pool, int numBands) {
+    if (numBands < 1) {
+      throw new IllegalArgumentException("numBands must be positive: " + numBands);
+    }
+    this.pool = pool;
+    tasks = new BandTask[numBands];
+    for (int i = 0; i < numBands; ++i) {
+      tasks[i] = new BandTask();
+    }
+  }
+
+  /** Converts planar or semi-planar YUV420 planes as delivered by the Camera2 API. */
+  public synchronized void convertYUV420ToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    convert(
+        yData, 0, uData, 0, vData, 0, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+  }
+
+  /** Converts a NV21 (YUV420SP) buffer as delivered by the legacy Camera API. */
+  public synchronized void convertYUV420SPToARGB8888(
+      byte[] input, int width, int height, int[] output) {
+    final int frameSize = width * height;
+    convert(
+        input, 0, input, frameSize + 1, input, frameSize, width, height, width, width, 2, output);
+  }
+
+  private void convert(
+      byte[] yData,
+      int yOffset,
+      byte[] uData,
+      int uOffset,
+      byte[] vData,
+      int vOffset,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    this.yData = yData;
+    this.uData = uData;
+    this.vData = vData;
+    this.yOffset = yOffset;
+    this.uOffset = uOffset;
+    this.vOffset = vOffset;
+    this.width = width;
+    this.height = height;
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+    this.out = out;
+
+    // Bands are made of whole row pairs so that every band owns its chroma rows.
+    final int rowPairs = (height + 1) >> 1;
+    final int numBands = Math.min(tasks.length, Math.max(1, height / MIN_ROWS_PER_BAND));
+    if (numBands == 1) {
+      convertRows(0, height);
+    } else {
+      for (int i = 0; i < numBands; ++i) {
+        tasks[i].reinitialize();
+        tasks[i].startRow = 2 * (int) ((long) rowPairs * i / numBands);
+        tasks[i].endRow = Math.min(height, 2 * (int) ((long) rowPairs * (i + 1) / numBands));
+      }
+      activeBands = numBands;
+      root.reinitialize();
+      pool.invoke(root);
+    }
+
+    this.yData = null;
+    this.uData = null;
+    this.vData = null;
+    this.out = null;
+  }
+
+  /** Converts rows [startRow, endRow). startRow must be even. */
+  private void convertRows(int startRow, int endRow) {
+    final byte[] yData = this.yData;
+    final byte[] uData = this.uData;
+    final byte[] vData = this.vData;
+    final int[] out = this.out;
+    final int width = this.width;
+    final int yRowStride = this.yRowStride;
+    final int uvPixelStride = this.uvPixelStride;
+
+    for (int j = startRow; j < endRow; j += 2) {
+      final boolean hasSecondRow = j + 1 < endRow;
+      int pY0 = yOffset + yRowStride * j;
+      int pY1 = pY0 + yRowStride;
+      int pU = uOffset + uvRowStride * (j >> 1);
+      int pV = vOffset + uvRowStride * (j >> 1);
+      int o0 = width * j;
+      int o1 = o0 + width;
+
+      for (int i = 0; i < width; i += 2) {
+        final int u = 0xff & uData[pU];
+        final int v = 0xff & vData[pV];
+        pU += uvPixelStride;
+        pV += uvPixelStride;
+
+        final int r = RV_TABLE[v] + CLAMP_OFFSET * 1024;
+        final int g = GV_TABLE[v] + GU_TABLE[u] + CLAMP_OFFSET * 1024;
+        final int b = BU_TABLE[u] + CLAMP_OFFSET * 1024;
+        final boolean hasSecondColumn = i + 1 < width;
+
+        out[o0++] = toArgb(Y_TABLE[0xff & yData[pY0++]], r, g, b);
+        if (hasSecondColumn) {
+          out[o0++] = toArgb(Y_TABLE[0xff & yData[pY0++]], r, g, b);
+        }
+        if (hasSecondRow) {
+          out[o1++] = toArgb(Y_TABLE[0xff & yData[pY1++]], r, g, b);
+          if (hasSecondColumn) {
+            out[o1++] = toArgb(Y_TABLE[0xff & yData[pY1++]], r, g, b);
+          }
+        }
+      }
+    }
+  }
+
+  /** Converts a single YUV sample, equivalent to ImageUtils.YUV2RGB. */
+  static int yuvToArgb(int y, int u, int v) {
+    return toArgb(
+        Y_TABLE[y],
+        RV_TABLE[v] + CLAMP_OFFSET * 1024,
+        GV_TABLE[v] + GU_TABLE[u] + CLAMP_OFFSET * 1024,
+        BU_TABLE[u] + CLAMP_OFFSET * 1024);
+  }
+
+  // r, g and b already include CLAMP_OFFSET (scaled by 1024) so that the index is never negative.
+  private static int toArgb(int y, int r, int g, int b) {
+    return 0xff000000
+        | (CLAMP[(y + r) >> 10] << 16)
+        | (CLAMP[(y + g) >> 10] << 8)
+        | CLAMP[(y + b) >> 10];
+  }
+
+  private final class BandTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    int startRow;
+    int endRow;
+
+    @Override
+    protected void compute() {
+      convertRows(startRow, endRow);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package org.openbot.pipeline;
+
+/**
+ * Decides on which camera frames the detector runs. On the other frames the tracked objects are
+ * only predicted, which is cheap, so the control is still updated at the camera frame rate.
+ *
+ * <p>The detector runs every N frames, where N adapts to the measured detection latency: a
+ * detection may use at most the given share of the time, e.g. with a share of 0.5 a detector that
+ * takes 2 frame periods runs every 4 frames. Up to {@code maxInFlight} detections are in flight,
+ * one per interpreter of the pool, and each may use the share, so a pool of two detects twice as
+ * often. While all interpreters are busy, later frames are predicted until a result arrives.
+ *
+ * <p>Latencies and the frame period are smoothed with an exponential moving average. Timestamps are
+ * in the time base of {@link System#nanoTime()}.
+ */
+public class DetectionScheduler {
+
+  // Weight of a new measurement in the moving averages.
+  private static final double SMOOTHING = 0.2;
+  // A detection that did not come back within this time (e.g. its frame was dropped) is forgotten.
+  private static final long TIMEOUT_NANOS = 1_000_000_000L;
+
+  private final double maxShare;
+  private final int maxInterval;
+  private final int maxInFlight;
+  // Frames and start times of the detections in flight, oldest first.
+  private final long[] inFlightFrames;
+  private final long[] inFlightStartNanos;
+
+  private double framePeriodNanos;
+  private double latencyNanos;
+  private long lastFrameNanos;
+  private long lastDetectionFrame;
+  private int numInFlight;
+  private int interval = 1;
+
+  /**
+   * Creates a scheduler for a single detector.
+   *
+   * @param maxShare Share of the time the detector may use, in (0, 1].
+   * @param maxInterval Maximum number of frames from one detection to the next.
+   */
+  public DetectionScheduler(double maxShare, int maxInterval) {
+    this(maxShare, maxInterval, 1);
+  }
+
+  /**
+   * Creates a scheduler.
+   *
+   * @param maxShare Share of the time each detector may use, in (0, 1].
+   * @param maxInterval Maximum number of frames from one detection to the next.
+   * @param maxInFlight Maximum number of detections at the same time, e.g. the size of the pool.
+   */
+  public DetectionScheduler(double maxShare, int maxInterval, int maxInFlight) {
+    this.maxShare = maxShare;
+    this.maxInterval = maxInterval;
+    this.maxInFlight = Math.max(1, maxInFlight);
+    inFlightFrames = new long[this.maxInFlight];
+    inFlightStartNanos = new long[this.maxInFlight];
+    reset();
+  }
+
+  /**
+   * Called for every camera frame. Returns whether the detector should run on it, in which case
+   * {@link #onDetectionDone} should be called with its result.
+   */
+  public synchronized boolean shouldDetect(long frameNum, long timestampNanos) {
+    if (lastFrameNanos != 0) {
+      framePeriodNanos = smooth(framePeriodNanos, timestampNanos - lastFrameNanos);
+    }
+    lastFrameNanos = timestampNanos;
+
+    int numExpired = 0;
+    while (numExpired < numInFlight
+        && timestampNanos - inFlightStartNanos[numExpired] >= TIMEOUT_NANOS) {
+      numExpired++;
+    }
+    removeInFlight(numExpired);
+    if (numInFlight == maxInFlight) {
+      return false;
+    }
+    if (frameNum - lastDetectionFrame < interval) {
+      return false;
+    }
+    inFlightFrames[numInFlight] = frameNum;
+    inFlightStartNanos[numInFlight] = timestampNanos;
+    numInFlight++;
+    lastDetectionFrame = frameNum;
+    return true;
+  }
+
+  /**
+   * Called when the result of a detection was applied. Results arrive in frame order, so older
+   * detections that are still in flight were dropped and are forgotten as well.
+   */
+  public synchronized void onDetectionDone(long frameNum, long timestampNanos) {
+    int index = 0;
+    while (index < numInFlight && inFlightFrames[index] != frameNum) {
+      index++;
+    }
+    if (index == numInFlight) {
+      return;
+    }
+    latencyNanos = smooth(latencyNanos, timestampNanos - inFlightStartNanos[index]);
+    removeInFlight(index + 1);
+    if (framePeriodNanos > 0) {
+      final double frames = latencyNanos / (maxInFlight * maxShare * framePeriodNanos);
+      interval = (int) Math.max(1, Math.min(Math.ceil(frames), maxInterval));
+    }
+  }
+
+  /** Returns the number of detections in flight. */
+  public synchronized int getNumInFlight() {
+    return numInFlight;
+  }
+
+  /** Returns the current number of frames from one detection to the next. */
+  public synchronized int getInterval() {
+    return interval;
+  }
+
+  /** Returns the smoothed detection latency in ns. */
+  public synchronized long getLatencyNanos() {
+    return (long) latencyNanos;
+  }
+
+  /** Forgets all measurements, e.g. when the detector changed. */
+  public synchronized void reset() {
+    framePeriodNanos = 0;
+    latencyNanos = 0;
+    lastFrameNanos = 0;
+    lastDetectionFrame = Long.MIN_VALUE / 2;
+    numInFlight = 0;
+    interval = 1;
+  }
+
+  // Forgets the oldest count detections in flight.
+  private void removeInFlight(int count) {
+    if (count == 0) {
+      return;
+    }
+    numInFlight -= count;
+    System.arraycopy(inFlightFrames, count, inFlightFrames, 0, numInFlight);
+    System.arraycopy(inFlightStartNanos, count, inFlightStartNanos, 0, numInFlight);
+  }
+
+  private static double smooth(double average, long value) {
+    return average == 0 ? value : average + SMOOTHING * (value - average);
+  }
+}
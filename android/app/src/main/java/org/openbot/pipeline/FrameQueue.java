@@ -0,0 +1,241 @@
+package org.openbot.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded hand-off between exactly one producer and one consumer thread with a latest-frame-wins
+ * drop policy: if the consumer falls behind, publishing a new item drops the oldest queued one
+ * instead of blocking the producer.
+ *
+ * <p>The queue also owns the items that flow through it. The producer gets an item with {@link
+ * #acquire()}, fills it and hands it over with {@link #publish}. The consumer gets it with {@link
+ * #take()} and gives it back with {@link #release} once done. Items are created up front (capacity
+ * plus one for each side), so neither side allocates in steady state.
+ *
+ * <p>Several threads may act as the producer (or the consumer) if they hold a common lock while
+ * calling its methods, e.g. the workers of a {@link ParallelStage}. The number of items each side
+ * holds at the same time then has to be given when creating the queue.
+ *
+ * @param <T> Type of the items, e.g. a frame buffer.
+ */
+public class FrameQueue<T> {
+
+  /** Creates the items of a queue. */
+  public interface Factory<T> {
+    T create();
+  }
+
+  private final String name;
+  private final int capacity;
+
+  // Items handed from the producer to the consumer, oldest at head. The consumer and the producer
+  // (when dropping) both remove from the head, so removal is a CAS. Only the producer adds.
+  private final AtomicReferenceArray<T> queued;
+  private final AtomicLong queuedHead = new AtomicLong();
+  private final AtomicLong queuedTail = new AtomicLong();
+
+  // Items given back by the consumer. Large enough for all items, so it never overflows.
+  private final AtomicReferenceArray<T> free;
+  private final AtomicLong freeHead = new AtomicLong();
+  private final AtomicLong freeTail = new AtomicLong();
+
+  // Items dropped by publish or discarded, reused by the next acquire. Only accessed by the
+  // producer.
+  private final Object[] spares;
+  private int numSpares;
+
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile Thread waitingConsumer;
+  private volatile boolean closed;
+
+  /**
+   * Creates a queue.
+   *
+   * @param name Name of the queue, used for stats.
+   * @param capacity Number of items that can be queued before the oldest is dropped.
+   * @param factory Creates the items.
+   */
+  public FrameQueue(String name, int capacity, Factory<T> factory) {
+    this(name, capacity, 1, 1, factory);
+  }
+
+  /**
+   * Creates a queue whose sides hold several items at the same time.
+   *
+   * @param name Name of the queue, used for stats.
+   * @param capacity Number of items that can be queued before the oldest is dropped.
+   * @param numProducerItems Number of acquired items the producers may hold at the same time.
+   * @param numConsumerItems Number of taken items the consumers may hold at the same time.
+   * @param factory Creates the items.
+   */
+  public FrameQueue(
+      String name, int capacity, int numProducerItems, int numConsumerItems, Factory<T> factory) {
+    if (capacity < 1 || numProducerItems < 1 || numConsumerItems < 1) {
+      throw new IllegalArgumentException(
+          "capacity and items per side must be positive: "
+              + capacity
+              + ", "
+              + numProducerItems
+              + ", "
+              + numConsumerItems);
+    }
+    this.name = name;
+    this.capacity = capacity;
+    final int numItems = capacity + numProducerItems + numConsumerItems;
+    spares = new Object[numItems];
+    queued = new AtomicReferenceArray<>(capacity);
+    free = new AtomicReferenceArray<>(numItems);
+    for (int i = 0; i < numItems; ++i) {
+      free.set(i, factory.create());
+    }
+    freeTail.set(numItems);
+  }
+
+  /**
+   * Returns an item to fill. Producer only. Each acquired item must be passed to {@link #publish}
+   * or {@link #discard}.
+   */
+  @SuppressWarnings("unchecked")
+  public T acquire() {
+    if (numSpares > 0) {
+      final T item = (T) spares[--numSpares];
+      spares[numSpares] = null;
+      return item;
+    }
+    // The producers hold fewer items than they may and the consumers at most theirs, so at least
+    // one item is free, unless a consumer is just releasing it.
+    T item;
+    while ((item = poll(free, freeHead, freeTail)) == null) {
+      Thread.yield();
+    }
+    return item;
+  }
+
+  /** Hands an acquired item to the consumer, dropping the oldest queued item if full. */
+  public void publish(T item) {
+    final long tail = queuedTail.get();
+    long head;
+    while (tail - (head = queuedHead.get()) >= capacity) {
+      final T oldest = queued.get(index(head, capacity));
+      if (queuedHead.compareAndSet(head, head + 1)) {
+        spares[numSpares++] = oldest;
+        dropped.incrementAndGet();
+      }
+    }
+    queued.set(index(tail, capacity), item);
+    queuedTail.set(tail + 1);
+    published.incrementAndGet();
+
+    final Thread consumer = waitingConsumer;
+    if (consumer != null) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  /** Gives back an acquired item without handing it to the consumer. */
+  public void discard(T item) {
+    spares[numSpares++] = item;
+  }
+
+  /**
+   * Returns the oldest queued item without waiting. Consumer only. Each returned item must be
+   * passed to {@link #release}.
+   *
+   * @return The item, or null if none is queued.
+   */
+  public T poll() {
+    return poll(queued, queuedHead, queuedTail);
+  }
+
+  /**
+   * Returns the oldest queued item, waiting for one if necessary. Consumer only. Each taken item
+   * must be passed to {@link #release}.
+   *
+   * @return The item, or null if the queue was closed or the thread interrupted.
+   */
+  public T take() {
+    T item;
+    while ((item = poll(queued, queuedHead, queuedTail)) == null) {
+      if (closed || Thread.currentThread().isInterrupted()) {
+        return null;
+      }
+      waitingConsumer = Thread.currentThread();
+      // Check again, the producer may have published before it could see the waiting consumer.
+      if ((item = poll(queued, queuedHead, queuedTail)) != null) {
+        waitingConsumer = null;
+        return item;
+      }
+      if (!closed) {
+        LockSupport.park(this);
+      }
+      waitingConsumer = null;
+    }
+    return item;
+  }
+
+  /** Gives back a taken item so that the producer can reuse it. */
+  public void release(T item) {
+    final long tail = freeTail.get();
+    free.set(index(tail, free.length()), item);
+    freeTail.set(tail + 1);
+  }
+
+  /** Wakes up the consumer. Afterwards, {@link #take} returns null once the queue is empty. */
+  public void close() {
+    closed = true;
+    final Thread consumer = waitingConsumer;
+    if (consumer != null) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Returns the number of items waiting for the consumer. */
+  public int getDepth() {
+    return (int) Math.max(0, queuedTail.get() - queuedHead.get());
+  }
+
+  /** Returns the number of items published so far. */
+  public long getPublished() {
+    return published.get();
+  }
+
+  /** Returns the number of items dropped so far, because the consumer did not keep up. */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  @Override
+  public String toString() {
+    return name
+        + ": depth "
+        + getDepth()
+        + ", published "
+        + getPublished()
+        + ", dropped "
+        + getDropped();
+  }
+
+  private static <T> T poll(AtomicReferenceArray<T> items, AtomicLong head, AtomicLong tail) {
+    while (true) {
+      final long h = head.get();
+      if (h >= tail.get()) {
+        return null;
+      }
+      final T item = items.get(index(h, items.length()));
+      if (head.compareAndSet(h, h + 1)) {
+        return item;
+      }
+    }
+  }
+
+  private static int index(long position, int length) {
+    return (int) (position % length);
+  }
+}
@@ -0,0 +1,87 @@
+package org.openbot.pipeline;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with logarithmic buckets (16 per power of two, i.e. a
+ * relative error below 7%). Recording is a single atomic increment and never allocates.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values are clamped to 2^32 - 1 microseconds (more than an hour).
+  private static final long MAX_VALUE = (1L << 32) - 1;
+  private static final int NUM_BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+  /** Records a latency. Negative values are ignored. */
+  public void record(long micros) {
+    if (micros < 0) {
+      return;
+    }
+    counts.incrementAndGet(bucketOf(Math.min(micros, MAX_VALUE)));
+  }
+
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      counts.set(i, 0);
+    }
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the latency below which the given fraction of the recorded latencies lie, rounded up to
+   * the upper bound of its bucket.
+   *
+   * @param fraction Fraction in [0, 1], e.g. 0.99 for the 99th percentile.
+   * @return The latency in microseconds, 0 if nothing was recorded.
+   */
+  public long getPercentile(double fraction) {
+    final long[] snapshot = new long[NUM_BUCKETS];
+    long count = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return upperBoundOf(i);
+      }
+    }
+    return MAX_VALUE;
+  }
+
+  // Values below 2 * SUB_BUCKETS get their own bucket, above that each power of two is split into
+  // SUB_BUCKETS buckets.
+  static int bucketOf(long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return SUB_BUCKETS * shift + (int) (value >> shift);
+  }
+
+  static long upperBoundOf(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    final int shift = bucket / SUB_BUCKETS - 1;
+    final long mantissa = bucket - SUB_BUCKETS * shift;
+    return ((mantissa + 1) << shift) - 1;
+  }
+}
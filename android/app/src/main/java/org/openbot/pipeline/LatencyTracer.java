@@ -0,0 +1,207 @@
+package org.openbot.pipeline;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Traces the lifecycle of camera frames from capture to the control command sent to the motors.
+ *
+ * <p>Every stage marks when it is done with a frame. The timestamps are kept in a ring buffer of
+ * records indexed by frame number, so the stages never lock or allocate. Once the last point of a
+ * frame is marked, the time between consecutive points and the total latency are added to
+ * histograms, which can be written as a report with the 50th, 95th and 99th percentiles. Frames
+ * whose control command is replaced by a newer one before it is written are counted as dropped.
+ *
+ * <p>Timestamps are in the time base of {@link System#nanoTime()}.
+ */
+public class LatencyTracer {
+
+  /** Points in the lifecycle of a frame, in order. */
+  public enum Point {
+    /** Exposure of the frame by the camera sensor. */
+    CAPTURE,
+    /** Frame delivered to the app by the camera. */
+    IMAGE_AVAILABLE,
+    /** Frame converted and copied by the camera thread. */
+    CONVERTED,
+    /** Frame cropped to the network input, if it was not sampled straight from the YUV planes. */
+    CROPPED,
+    /** Network input written. */
+    TENSOR_FILLED,
+    /** Inference done. */
+    INFERENCE_DONE,
+    /** Detections tracked and target control computed. */
+    TARGET_DONE,
+    /** Control command written to the USB connection. */
+    USB_WRITTEN
+  }
+
+  private static final Point[] POINTS = Point.values();
+  private static final int NUM_POINTS = POINTS.length;
+
+  private final int mask;
+  private final AtomicLongArray frames;
+  private final AtomicLongArray timestamps;
+
+  // histograms[i] is the latency from the last marked point before POINTS[i] to POINTS[i].
+  private final LatencyHistogram[] histograms = new LatencyHistogram[NUM_POINTS];
+  private final LatencyHistogram total = new LatencyHistogram();
+  private final AtomicLong dropped = new AtomicLong();
+
+  private volatile boolean enabled = true;
+
+  /**
+   * Creates a tracer.
+   *
+   * @param capacity Number of frames that can be in flight at the same time, rounded up to a power
+   *     of two.
+   */
+  public LatencyTracer(int capacity) {
+    final int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    mask = size - 1;
+    frames = new AtomicLongArray(size);
+    timestamps = new AtomicLongArray(size * NUM_POINTS);
+    for (int i = 0; i < size; ++i) {
+      frames.set(i, -1);
+    }
+    for (int i = 0; i < NUM_POINTS; ++i) {
+      histograms[i] = new LatencyHistogram();
+    }
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Starts the record of a frame, overwriting the oldest record.
+   *
+   * @param frame Number of the frame.
+   * @param captureNanos Capture time of the frame, 0 if unknown.
+   * @param imageAvailableNanos Time the frame was delivered to the app.
+   */
+  public void begin(long frame, long captureNanos, long imageAvailableNanos) {
+    if (!enabled) {
+      return;
+    }
+    final int slot = (int) (frame & mask);
+    final int offset = slot * NUM_POINTS;
+    frames.set(slot, -1);
+    for (int i = 0; i < NUM_POINTS; ++i) {
+      timestamps.set(offset + i, 0);
+    }
+    timestamps.set(offset + Point.CAPTURE.ordinal(), captureNanos);
+    timestamps.set(offset + Point.IMAGE_AVAILABLE.ordinal(), imageAvailableNanos);
+    frames.set(slot, frame);
+  }
+
+  /** Marks that a frame reached a point now. */
+  public void mark(long frame, Point point) {
+    if (!enabled) {
+      return;
+    }
+    final int slot = (int) (frame & mask);
+    if (frames.get(slot) != frame) {
+      // Never begun or already overwritten by a newer frame.
+      return;
+    }
+    timestamps.set(slot * NUM_POINTS + point.ordinal(), System.nanoTime());
+  }
+
+  /** Marks the last point of a frame and adds its latencies to the histograms. */
+  public void end(long frame) {
+    mark(frame, Point.USB_WRITTEN);
+    finish(frame);
+  }
+
+  /**
+   * Adds the latencies of a frame to the histograms without marking the last point, e.g. when no
+   * vehicle is connected. The total then ends at the last point that was marked.
+   */
+  public void finish(long frame) {
+    final int slot = (int) (frame & mask);
+    // Ends the record, so the frame is counted once.
+    if (!enabled || !frames.compareAndSet(slot, frame, -1)) {
+      return;
+    }
+    final int offset = slot * NUM_POINTS;
+    long first = 0;
+    long previous = 0;
+    for (int i = 0; i < NUM_POINTS; ++i) {
+      final long timestamp = timestamps.get(offset + i);
+      if (timestamp == 0) {
+        continue;
+      }
+      if (previous != 0) {
+        histograms[i].record((timestamp - previous) / 1000);
+      } else {
+        first = timestamp;
+      }
+      previous = timestamp;
+    }
+    total.record((previous - first) / 1000);
+  }
+
+  /** Ends the record of a frame that never reaches the last point and counts it as dropped. */
+  public void drop(long frame) {
+    final int slot = (int) (frame & mask);
+    if (!enabled || !frames.compareAndSet(slot, frame, -1)) {
+      return;
+    }
+    dropped.incrementAndGet();
+  }
+
+  public void reset() {
+    for (LatencyHistogram histogram : histograms) {
+      histogram.reset();
+    }
+    total.reset();
+    dropped.set(0);
+  }
+
+  /** Returns the number of frames dropped since the last reset. */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /** Returns the histogram of the latency from the previous point to {@code point}. */
+  public LatencyHistogram getHistogram(Point point) {
+    return histograms[point.ordinal()];
+  }
+
+  /** Returns the histogram of the latency from capture (if known) to the control command. */
+  public LatencyHistogram getTotal() {
+    return total;
+  }
+
+  /**
+   * Writes the percentiles of all histograms as CSV: point, count, p50, p95 and p99 in ms. Each
+   * point is measured from the previous point that was marked for the frame. A last line counts the
+   * dropped frames.
+   */
+  public void writeReport(Writer writer) throws IOException {
+    writer.write("point,count,p50_ms,p95_ms,p99_ms\n");
+    for (int i = 1; i < NUM_POINTS; ++i) {
+      writeLine(writer, POINTS[i].name().toLowerCase(Locale.US), histograms[i]);
+    }
+    writeLine(writer, "total", total);
+    writer.write(String.format(Locale.US, "dropped,%d,,,\n", getDropped()));
+    writer.flush();
+  }
+
+  private static void writeLine(Writer writer, String name, LatencyHistogram histogram)
+      throws IOException {
+    writer.write(
+        String.format(
+            Locale.US,
+            "%s,%d,%.3f,%.3f,%.3f\n",
+            name,
+            histogram.getCount(),
+            histogram.getPercentile(0.50) / 1000.0,
+            histogram.getPercentile(0.95) / 1000.0,
+            histogram.getPercentile(0.99) / 1000.0));
+  }
+}
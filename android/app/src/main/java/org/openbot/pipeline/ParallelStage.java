@@ -0,0 +1,238 @@
+package org.openbot.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pipeline stage that processes several items at the same time, each on a worker with its own
+ * {@link Stage.Processor} (e.g. its own interpreter). The stage thread takes the items from the
+ * input queue and hands them to the workers.
+ *
+ * <p>Items are numbered in the order they are taken. A worker publishes its output only if no later
+ * item was published yet, so the outputs stay in order: an output that is overtaken by a later one
+ * is stale and dropped, like the queues drop frames that were not processed in time. An item that
+ * waited for a free worker while a newer one arrived is dropped as well.
+ *
+ * <p>The workers share the input and output queue under a common lock, so the queues have to be
+ * created for this number of items per side (see {@link FrameQueue}): the input queue with {@code
+ * numWorkers + 1} consumer items and the output queue with {@code numWorkers} producer items.
+ *
+ * @param <I> Type of the input items.
+ * @param <O> Type of the output items.
+ */
+public class ParallelStage<I, O> extends Stage<I, O> {
+
+  /** How items are assigned to the workers. */
+  public enum Dispatch {
+    /** The workers take turns, an item waits for its worker. */
+    ROUND_ROBIN,
+    /** An item goes to the next idle worker. */
+    LEAST_BUSY
+  }
+
+  private final FrameQueue<I> input;
+  private final FrameQueue<O> output;
+  private final Dispatch dispatch;
+  private final List<Worker> workers;
+  // Guards the queues and the published sequence for the workers.
+  private final Object lock = new Object();
+  private final AtomicLong numStale = new AtomicLong();
+  private long lastPublished;
+  private volatile Thread dispatcher;
+  private int next;
+
+  /**
+   * Creates a stage.
+   *
+   * @param name Name of the stage, used for the threads.
+   * @param input Queue the stage consumes.
+   * @param output Queue the stage produces, null for the last stage.
+   * @param processors Processor of each worker.
+   * @param dispatch How items are assigned to the workers.
+   */
+  public ParallelStage(
+      String name,
+      FrameQueue<I> input,
+      FrameQueue<O> output,
+      List<? extends Processor<I, O>> processors,
+      Dispatch dispatch) {
+    super(name, input, output, null);
+    this.input = input;
+    this.output = output;
+    this.dispatch = dispatch;
+    workers = new ArrayList<>(processors.size());
+    for (int i = 0; i < processors.size(); ++i) {
+      workers.add(new Worker(name + "-" + i, processors.get(i)));
+    }
+  }
+
+  public int getNumWorkers() {
+    return workers.size();
+  }
+
+  /** Returns the number of items dropped because a later item was published or taken first. */
+  public long getNumStale() {
+    return numStale.get();
+  }
+
+  @Override
+  public synchronized void start() {
+    for (Worker worker : workers) {
+      worker.start();
+    }
+    super.start();
+  }
+
+  /** Stops handing out items, lets the workers finish theirs and waits for all threads. */
+  @Override
+  public synchronized void stop() throws InterruptedException {
+    super.stop();
+    for (Worker worker : workers) {
+      worker.stop();
+    }
+  }
+
+  @Override
+  public void run() {
+    dispatcher = Thread.currentThread();
+    long sequence = 0;
+    I item;
+    while ((item = input.take()) != null) {
+      final Worker worker = awaitWorker();
+      if (worker == null) {
+        release(item);
+        break;
+      }
+      // Prefer a frame that arrived while waiting. Only this thread takes from the input, the lock
+      // is only needed to release.
+      I newer;
+      while ((newer = input.poll()) != null) {
+        release(item);
+        numStale.incrementAndGet();
+        item = newer;
+      }
+      worker.submit(item, ++sequence);
+    }
+  }
+
+  // Returns the worker for the next item once it is idle, null if interrupted.
+  private Worker awaitWorker() {
+    while (!Thread.currentThread().isInterrupted()) {
+      if (dispatch == Dispatch.ROUND_ROBIN) {
+        final Worker worker = workers.get(next);
+        if (worker.isIdle()) {
+          next = (next + 1) % workers.size();
+          return worker;
+        }
+      } else {
+        // Start after the last assigned worker, so that the load is spread.
+        for (int i = 0; i < workers.size(); ++i) {
+          final Worker worker = workers.get((next + i) % workers.size());
+          if (worker.isIdle()) {
+            next = (next + i + 1) % workers.size();
+            return worker;
+          }
+        }
+      }
+      LockSupport.park(this);
+    }
+    return null;
+  }
+
+  private void release(I item) {
+    synchronized (lock) {
+      input.release(item);
+    }
+  }
+
+  private final class Worker implements Runnable {
+    private final String name;
+    private final Processor<I, O> processor;
+    private volatile I pending;
+    private volatile boolean stopped;
+    private long sequence;
+    private Thread thread;
+
+    Worker(String name, Processor<I, O> processor) {
+      this.name = name;
+      this.processor = processor;
+    }
+
+    boolean isIdle() {
+      return pending == null;
+    }
+
+    void submit(I item, long sequence) {
+      this.sequence = sequence;
+      pending = item;
+      LockSupport.unpark(thread);
+    }
+
+    void start() {
+      stopped = false;
+      thread = new Thread(this, name);
+      thread.start();
+    }
+
+    void stop() throws InterruptedException {
+      stopped = true;
+      LockSupport.unpark(thread);
+      thread.join();
+      // An item that was submitted but not started.
+      final I item = pending;
+      if (item != null) {
+        pending = null;
+        release(item);
+      }
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        final I item = pending;
+        if (item == null) {
+          LockSupport.park(this);
+          continue;
+        }
+        process(item);
+        pending = null;
+        final Thread dispatcher = ParallelStage.this.dispatcher;
+        if (dispatcher != null) {
+          LockSupport.unpark(dispatcher);
+        }
+      }
+    }
+
+    private void process(I item) {
+      final O result;
+      if (output != null) {
+        synchronized (lock) {
+          result = output.acquire();
+        }
+      } else {
+        result = null;
+      }
+      boolean publish = false;
+      try {
+        publish = processor.process(item, result);
+      } finally {
+        synchronized (lock) {
+          input.release(item);
+          if (output != null) {
+            if (publish && sequence > lastPublished) {
+              output.publish(result);
+              lastPublished = sequence;
+            } else {
+              output.discard(result);
+              if (publish) {
+                numStale.incrementAndGet();
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+}
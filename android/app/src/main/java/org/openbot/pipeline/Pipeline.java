@@ -0,0 +1,49 @@
+package org.openbot.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A chain of {@link Stage}s connected by {@link FrameQueue}s. Frames enter through the input queue
+ * of the first stage, e.g. from the camera thread.
+ */
+public class Pipeline {
+
+  private final List<Stage<?, ?>> stages = new ArrayList<>();
+
+  /** Appends a stage. Its input queue should be the output queue of the previous stage. */
+  public Pipeline addStage(Stage<?, ?> stage) {
+    stages.add(stage);
+    return this;
+  }
+
+  public List<Stage<?, ?>> getStages() {
+    return Collections.unmodifiableList(stages);
+  }
+
+  public synchronized void start() {
+    for (Stage<?, ?> stage : stages) {
+      stage.start();
+    }
+  }
+
+  /** Stops all stages, starting with the first one, and waits for them to finish. */
+  public synchronized void stop() throws InterruptedException {
+    for (Stage<?, ?> stage : stages) {
+      stage.stop();
+    }
+  }
+
+  /** Returns the depth and drop counters of the queue in front of every stage. */
+  public String getStats() {
+    final StringBuilder stats = new StringBuilder();
+    for (Stage<?, ?> stage : stages) {
+      if (stats.length() > 0) {
+        stats.append("; ");
+      }
+      stats.append(stage.getInput());
+    }
+    return stats.toString();
+  }
+}
@@ -0,0 +1,181 @@
+package org.openbot.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the throughput of a {@link ParallelStage} for combinations of the number of workers and
+ * the number of threads of each worker, e.g. interpreters and their intra-op threads.
+ *
+ * <p>Every configuration runs for a fixed time after a warm-up. An input item is queued whenever
+ * the queue is empty, so the workers never wait for frames, and a last stage counts the results.
+ * The items are used as created by the factory, e.g. blank input buffers.
+ *
+ * @param <I> Type of the input items.
+ * @param <O> Type of the output items.
+ */
+public class PoolBenchmark<I, O> {
+
+  /** Creates the workers of a configuration. */
+  public interface Target<I, O> {
+    /**
+     * Creates a processor for each worker.
+     *
+     * @param numWorkers Number of workers.
+     * @param numThreads Number of threads of each worker.
+     */
+    List<Stage.Processor<I, O>> open(int numWorkers, int numThreads) throws Exception;
+
+    /** Releases the processors of the last {@link #open}. */
+    void close();
+  }
+
+  /** Measurements of one configuration. */
+  public static final class Result {
+    public final int numWorkers;
+    public final int numThreads;
+    /** Results per second. */
+    public final double throughput;
+    /** Mean time a worker spent on an item in ms. */
+    public final double meanProcessingMs;
+    /** Items dropped for a later one, see {@link ParallelStage#getNumStale}. */
+    public final long numStale;
+
+    Result(int numWorkers, int numThreads, double throughput, double meanProcessingMs, long stale) {
+      this.numWorkers = numWorkers;
+      this.numThreads = numThreads;
+      this.throughput = throughput;
+      this.meanProcessingMs = meanProcessingMs;
+      this.numStale = stale;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "workers %d, threads %d: %.1f results/s, %.1f ms per item, %d stale",
+          numWorkers,
+          numThreads,
+          throughput,
+          meanProcessingMs,
+          numStale);
+    }
+  }
+
+  private final Target<I, O> target;
+  private final FrameQueue.Factory<I> inputs;
+  private final FrameQueue.Factory<O> outputs;
+  private final ParallelStage.Dispatch dispatch;
+
+  public PoolBenchmark(
+      Target<I, O> target,
+      FrameQueue.Factory<I> inputs,
+      FrameQueue.Factory<O> outputs,
+      ParallelStage.Dispatch dispatch) {
+    this.target = target;
+    this.inputs = inputs;
+    this.outputs = outputs;
+    this.dispatch = dispatch;
+  }
+
+  /**
+   * Runs all configurations with at most {@code maxTotalThreads} threads in total.
+   *
+   * @param maxWorkers Maximum number of workers.
+   * @param maxThreads Maximum number of threads per worker.
+   * @param maxTotalThreads Maximum number of workers times threads, e.g. the number of cores.
+   * @param warmUpMs Time before the measurement of each configuration.
+   * @param durationMs Time of the measurement of each configuration.
+   * @return The results, the fastest first.
+   */
+  public List<Result> sweep(
+      int maxWorkers, int maxThreads, int maxTotalThreads, long warmUpMs, long durationMs)
+      throws Exception {
+    final List<Result> results = new ArrayList<>();
+    for (int numWorkers = 1; numWorkers <= maxWorkers; ++numWorkers) {
+      for (int numThreads = 1;
+          numThreads <= maxThreads && numWorkers * numThreads <= maxTotalThreads;
+          ++numThreads) {
+        results.add(run(numWorkers, numThreads, warmUpMs, durationMs));
+      }
+    }
+    Collections.sort(results, (a, b) -> Double.compare(b.throughput, a.throughput));
+    return results;
+  }
+
+  /** Runs one configuration. */
+  public Result run(int numWorkers, int numThreads, long warmUpMs, long durationMs)
+      throws Exception {
+    final AtomicLong numResults = new AtomicLong();
+    final AtomicLong numProcessed = new AtomicLong();
+    final AtomicLong processingNanos = new AtomicLong();
+    final List<Stage.Processor<I, O>> processors = new ArrayList<>();
+    try {
+      for (final Stage.Processor<I, O> processor : target.open(numWorkers, numThreads)) {
+        processors.add(
+            (input, output) -> {
+              final long start = System.nanoTime();
+              final boolean publish = processor.process(input, output);
+              processingNanos.addAndGet(System.nanoTime() - start);
+              numProcessed.incrementAndGet();
+              return publish;
+            });
+      }
+      final FrameQueue<I> in = new FrameQueue<>("benchmark", 1, 1, numWorkers + 1, inputs);
+      final FrameQueue<O> out = new FrameQueue<>("results", 1, numWorkers, 1, outputs);
+      final ParallelStage<I, O> stage =
+          new ParallelStage<>("benchmark", in, out, processors, dispatch);
+      final Pipeline pipeline =
+          new Pipeline()
+              .addStage(stage)
+              .addStage(
+                  new Stage<O, Void>(
+                      "results",
+                      out,
+                      null,
+                      (result, unused) -> {
+                        numResults.incrementAndGet();
+                        return false;
+                      }));
+      pipeline.start();
+      try {
+        feed(in, warmUpMs);
+        final long stale = stage.getNumStale();
+        numResults.set(0);
+        numProcessed.set(0);
+        processingNanos.set(0);
+        final long start = System.nanoTime();
+        feed(in, durationMs);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final long processed = Math.max(1, numProcessed.get());
+        return new Result(
+            numWorkers,
+            numThreads,
+            numResults.get() / seconds,
+            processingNanos.get() / 1e6 / processed,
+            stage.getNumStale() - stale);
+      } finally {
+        pipeline.stop();
+      }
+    } finally {
+      target.close();
+    }
+  }
+
+  // Keeps an item queued for the given time.
+  private static <I> void feed(FrameQueue<I> queue, long durationMs) {
+    final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+    while (System.nanoTime() < end) {
+      if (queue.getDepth() == 0) {
+        queue.publish(queue.acquire());
+      } else {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package org.openbot.pipeline;
+
+/**
+ * A pipeline stage running on its own thread. It takes items from its input queue, processes them
+ * into items of its output queue and gives the input items back, so that the previous stage can
+ * already work on the next frame while this one is busy.
+ *
+ * @param <I> Type of the input items.
+ * @param <O> Type of the output items.
+ */
+public class Stage<I, O> implements Runnable {
+
+  /** Does the work of a stage. */
+  public interface Processor<I, O> {
+    /**
+     * Processes one item.
+     *
+     * @param input The input item, only valid during this call.
+     * @param output The output item to fill, null for the last stage.
+     * @return True if the output should be handed to the next stage.
+     */
+    boolean process(I input, O output);
+  }
+
+  private final String name;
+  private final FrameQueue<I> input;
+  private final FrameQueue<O> output;
+  private final Processor<I, O> processor;
+  private Thread thread;
+
+  /**
+   * Creates a stage.
+   *
+   * @param name Name of the stage, used for the thread.
+   * @param input Queue the stage consumes.
+   * @param output Queue the stage produces, null for the last stage.
+   * @param processor Does the work.
+   */
+  public Stage(String name, FrameQueue<I> input, FrameQueue<O> output, Processor<I, O> processor) {
+    this.name = name;
+    this.input = input;
+    this.output = output;
+    this.processor = processor;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public FrameQueue<I> getInput() {
+    return input;
+  }
+
+  public synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    thread = new Thread(this, name);
+    thread.start();
+  }
+
+  /** Stops the stage after the item in progress and waits for its thread to finish. */
+  public synchronized void stop() throws InterruptedException {
+    if (thread == null) {
+      return;
+    }
+    input.close();
+    thread.interrupt();
+    thread.join();
+    thread = null;
+  }
+
+  @Override
+  public void run() {
+    I item;
+    while ((item = input.take()) != null) {
+      final O result = output != null ? output.acquire() : null;
+      final boolean publish;
+      try {
+        publish = processor.process(item, result);
+      } finally {
+        input.release(item);
+      }
+      if (output != null) {
+        if (publish) {
+          output.publish(result);
+        } else {
+          output.discard(result);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,379 @@
+package org.openbot.replay;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.openbot.pipeline.FrameQueue;
+import org.openbot.pipeline.LatencyTracer;
+import org.openbot.pipeline.Pipeline;
+import org.openbot.pipeline.Stage;
+
+/**
+ * Streams the frames of a recorded session through the stages of the bot, as a reproducible
+ * performance and regression test without a robot: the images are decoded, written into the network
+ * input and handed to a {@link Policy} (inference, tracking and control), and the resulting control
+ * is compared with the control that was logged at the time of the frame.
+ *
+ * <p>The stages run on their own threads, connected by {@link FrameQueue}s like the camera
+ * pipeline. At the original speed (or a multiple of it) the frames are fed at the pace of their
+ * timestamps and frames are dropped like on the robot if a stage falls behind. At {@link
+ * #MAX_SPEED} the next frame is fed as soon as a stage is free, and no frame is dropped, so that
+ * every replay of a session processes the same frames.
+ *
+ * <p>The latencies between the stages are traced with a {@link LatencyTracer}: the frame is fed at
+ * {@link LatencyTracer.Point#IMAGE_AVAILABLE}, decoded at {@link LatencyTracer.Point#CONVERTED},
+ * preprocessed at {@link LatencyTracer.Point#TENSOR_FILLED}, controlled at {@link
+ * LatencyTracer.Point#TARGET_DONE} and compared at the end.
+ */
+public class ReplayEngine {
+
+  /** Feeds the frames as fast as the stages process them, without dropping any. */
+  public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+  // Frames in flight at MAX_SPEED: one in the slowest stage and one queued in front of it, so it
+  // never waits. The queues hold as many, so none can overflow.
+  private static final int MAX_IN_FLIGHT = 2;
+
+  private static final long POLL_MILLIS = 1;
+
+  // A control logged up to this long after a frame still belongs to it, like in the training data.
+  private static final long CONTROL_OFFSET_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** Decodes the image of a frame. */
+  public interface ImageDecoder {
+    /**
+     * Decodes an image and scales it to the given size if needed.
+     *
+     * @param data Encoded image, e.g. a JPEG.
+     * @param pixels ARGB pixels of the given size in row major order.
+     */
+    void decode(byte[] data, int[] pixels, int width, int height) throws IOException;
+  }
+
+  /** The network, tracker and control of the bot. Each method is called by a single thread. */
+  public interface Policy {
+    int getInputWidth();
+
+    int getInputHeight();
+
+    /** Creates a network input, several are in flight. */
+    ByteBuffer createInput();
+
+    /** Writes the network input of a decoded frame. */
+    void preprocess(int[] pixels, ByteBuffer input);
+
+    /**
+     * Computes the control of a frame.
+     *
+     * @param frameNum Number of the frame.
+     * @param input The network input of the frame.
+     * @param indicator Indicator logged at the time of the frame.
+     * @param control Left and right control in the units of the control log, to be written.
+     */
+    void control(long frameNum, ByteBuffer input, int indicator, float[] control);
+  }
+
+  /** Outcome of a replay. */
+  public static final class Report {
+    /** Frames of the session. */
+    public long numFrames;
+    /** Frames fed but dropped by a queue. */
+    public long numDropped;
+    /** Frames without an image or with an image that could not be decoded. */
+    public long numSkipped;
+    /** Frames controlled by the policy. */
+    public long numProcessed;
+    /** Processed frames with a logged control. */
+    public long numCompared;
+
+    public double durationSeconds;
+    /** Mean absolute and root mean square difference to the logged control, and the largest one. */
+    public double meanAbsoluteError;
+
+    public double rootMeanSquareError;
+    public double maxAbsoluteError;
+    /** Latency percentiles per stage, as written by {@link LatencyTracer#writeReport}. */
+    public String latencies;
+
+    public double getThroughput() {
+      return durationSeconds > 0 ? numProcessed / durationSeconds : 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "%d frames: %d processed, %d dropped, %d skipped in %.1f s (%.1f fps); control vs. log"
+              + " (%d frames): mean abs %.2f, rms %.2f, max %.2f",
+          numFrames,
+          numProcessed,
+          numDropped,
+          numSkipped,
+          durationSeconds,
+          getThroughput(),
+          numCompared,
+          meanAbsoluteError,
+          rootMeanSquareError,
+          maxAbsoluteError);
+    }
+  }
+
+  private static final class FedFrame {
+    int index;
+  }
+
+  private static final class DecodedFrame {
+    int index;
+    boolean valid;
+    int[] pixels;
+  }
+
+  private static final class InputFrame {
+    int index;
+    boolean valid;
+    final ByteBuffer buffer;
+
+    InputFrame(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  private static final class ResultFrame {
+    int index;
+    boolean valid;
+    final float[] control = new float[2];
+  }
+
+  private final SessionReader session;
+  private final ImageDecoder decoder;
+  private final Policy policy;
+  // First exception of a stage, which ends the replay.
+  private volatile RuntimeException failure;
+
+  public ReplayEngine(SessionReader session, ImageDecoder decoder, Policy policy) {
+    this.session = session;
+    this.decoder = decoder;
+    this.policy = policy;
+  }
+
+  /**
+   * Replays the session and waits until all frames are processed.
+   *
+   * @param speed Multiple of the original speed, or {@link #MAX_SPEED}.
+   */
+  public Report run(double speed) throws IOException, InterruptedException {
+    if (!(speed > 0)) {
+      throw new IllegalArgumentException("speed must be positive: " + speed);
+    }
+    final List<SessionReader.Frame> frames = session.readFrames();
+    final SessionReader.Timeline controls = session.readTimeline(SessionReader.CONTROL_LOG, 2);
+    final SessionReader.Timeline indicators = session.readTimeline(SessionReader.INDICATOR_LOG, 1);
+    final boolean lossless = speed == MAX_SPEED;
+    // Like the camera pipeline, a queue holds one frame unless no frame may be dropped.
+    final int capacity = lossless ? MAX_IN_FLIGHT : 1;
+    final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    final LatencyTracer tracer = new LatencyTracer(64);
+    failure = null;
+    final Report report = new Report();
+    report.numFrames = frames.size();
+    final AtomicLong numSkipped = new AtomicLong();
+    final AtomicLong numProcessed = new AtomicLong();
+    final int numPixels = policy.getInputWidth() * policy.getInputHeight();
+    // Sums of the comparison, only accessed by the compare stage.
+    final double[] errors = new double[3];
+
+    final FrameQueue<FedFrame> fed = new FrameQueue<>("decode", capacity, FedFrame::new);
+    final FrameQueue<DecodedFrame> decoded =
+        new FrameQueue<>(
+            "preprocess",
+            capacity,
+            () -> {
+              final DecodedFrame frame = new DecodedFrame();
+              frame.pixels = new int[numPixels];
+              return frame;
+            });
+    final FrameQueue<InputFrame> inputs =
+        new FrameQueue<>("control", capacity, () -> new InputFrame(policy.createInput()));
+    final FrameQueue<ResultFrame> results = new FrameQueue<>("compare", capacity, ResultFrame::new);
+
+    final Pipeline pipeline =
+        new Pipeline()
+            .addStage(
+                new Stage<>(
+                    "decode",
+                    fed,
+                    decoded,
+                    guard(
+                        (fedFrame, frame) -> {
+                          frame.index = fedFrame.index;
+                          frame.valid = decode(frames.get(frame.index), frame.pixels);
+                          tracer.mark(frame.index, LatencyTracer.Point.CONVERTED);
+                          return true;
+                        })))
+            .addStage(
+                new Stage<>(
+                    "preprocess",
+                    decoded,
+                    inputs,
+                    guard(
+                        (frame, input) -> {
+                          input.index = frame.index;
+                          input.valid = frame.valid;
+                          if (frame.valid) {
+                            input.buffer.rewind();
+                            policy.preprocess(frame.pixels, input.buffer);
+                            tracer.mark(frame.index, LatencyTracer.Point.TENSOR_FILLED);
+                          }
+                          return true;
+                        })))
+            .addStage(
+                new Stage<>(
+                    "control",
+                    inputs,
+                    results,
+                    guard(
+                        (input, result) -> {
+                          result.index = input.index;
+                          result.valid = input.valid;
+                          if (input.valid) {
+                            final SessionReader.Frame frame = frames.get(input.index);
+                            final int event = indicators.indexAt(frame.timestamp);
+                            final int indicator =
+                                event >= 0 ? (int) indicators.getValue(event, 0) : 0;
+                            policy.control(frame.frameNum, input.buffer, indicator, result.control);
+                            tracer.mark(input.index, LatencyTracer.Point.TARGET_DONE);
+                          }
+                          return true;
+                        })))
+            .addStage(
+                new Stage<ResultFrame, Void>(
+                    "compare",
+                    results,
+                    null,
+                    guard(
+                        (result, unused) -> {
+                          if (result.valid) {
+                            numProcessed.incrementAndGet();
+                            compare(
+                                frames.get(result.index), controls, result.control, errors, report);
+                            tracer.end(result.index);
+                          } else {
+                            numSkipped.incrementAndGet();
+                          }
+                          if (lossless) {
+                            inFlight.release();
+                          }
+                          return false;
+                        })));
+
+    pipeline.start();
+    final long start = System.nanoTime();
+    try {
+      final long firstTimestamp = frames.isEmpty() ? 0 : frames.get(0).timestamp;
+      for (int index = 0; index < frames.size() && failure == null; ++index) {
+        if (lossless) {
+          if (!inFlight.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            --index;
+            continue;
+          }
+        } else {
+          final long due = start + (long) ((frames.get(index).timestamp - firstTimestamp) / speed);
+          long wait;
+          while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        }
+        tracer.begin(index, 0, System.nanoTime());
+        final FedFrame frame = fed.acquire();
+        frame.index = index;
+        fed.publish(frame);
+      }
+      // Wait for the frames in flight. Every frame either reaches the last stage or is dropped.
+      while (failure == null
+          && numProcessed.get() + numSkipped.get() + getDropped(pipeline) < frames.size()) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS));
+      }
+    } finally {
+      report.durationSeconds = (System.nanoTime() - start) / 1e9;
+      pipeline.stop();
+    }
+    if (failure != null) {
+      throw new IOException("Replay failed.", failure);
+    }
+
+    report.numDropped = getDropped(pipeline);
+    report.numSkipped = numSkipped.get();
+    report.numProcessed = numProcessed.get();
+    if (report.numCompared > 0) {
+      report.meanAbsoluteError = errors[0] / (2 * report.numCompared);
+      report.rootMeanSquareError = Math.sqrt(errors[1] / (2 * report.numCompared));
+      report.maxAbsoluteError = errors[2];
+    }
+    final StringWriter latencies = new StringWriter();
+    tracer.writeReport(latencies);
+    report.latencies = latencies.toString();
+    return report;
+  }
+
+  // Records the exception of a stage instead of ending its thread, so the replay stops.
+  private <I, O> Stage.Processor<I, O> guard(Stage.Processor<I, O> processor) {
+    return (input, output) -> {
+      try {
+        return processor.process(input, output);
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        }
+        return false;
+      }
+    };
+  }
+
+  private boolean decode(SessionReader.Frame frame, int[] pixels) {
+    if (frame.image == null) {
+      return false;
+    }
+    try {
+      decoder.decode(
+          session.read(frame.image), pixels, policy.getInputWidth(), policy.getInputHeight());
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  // Compares the control with the last control logged before the frame. errors holds the sum of
+  // the absolute and squared differences and the largest difference.
+  private static void compare(
+      SessionReader.Frame frame,
+      SessionReader.Timeline controls,
+      float[] control,
+      double[] errors,
+      Report report) {
+    final int event = controls.indexAt(frame.timestamp + CONTROL_OFFSET_NANOS);
+    if (event < 0) {
+      return;
+    }
+    for (int i = 0; i < 2; ++i) {
+      final double error = Math.abs(control[i] - controls.getValue(event, i));
+      errors[0] += error;
+      errors[1] += error * error;
+      errors[2] = Math.max(errors[2], error);
+    }
+    report.numCompared++;
+  }
+
+  private static long getDropped(Pipeline pipeline) {
+    long dropped = 0;
+    for (Stage<?, ?> stage : pipeline.getStages()) {
+      dropped += stage.getInput().getDropped();
+    }
+    return dropped;
+  }
+}
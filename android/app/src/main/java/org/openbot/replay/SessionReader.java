@@ -0,0 +1,220 @@
+package org.openbot.replay;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads a recorded log session, either the log folder or its zip archive: the frames of {@code
+ * sensor_data/rgbFrames.txt} with their images in {@code images/} and the text logs of the
+ * SensorService, e.g. {@code ctrlLog.txt} and {@code indicatorLog.txt}.
+ *
+ * <p>Entry names are relative to the log folder. An archive may also contain the folder itself, the
+ * prefix is found by the location of {@code sensor_data/rgbFrames.txt}.
+ */
+public class SessionReader implements Closeable {
+
+  public static final String SENSOR_DATA = "sensor_data/";
+  public static final String IMAGES = "images/";
+  public static final String FRAME_LOG = "rgbFrames.txt";
+  public static final String CONTROL_LOG = "ctrlLog.txt";
+  public static final String INDICATOR_LOG = "indicatorLog.txt";
+
+  /** A logged frame. */
+  public static final class Frame {
+    public final long timestamp;
+    public final long frameNum;
+    /** Entry of the image, the crop if there is one, otherwise the preview. Null if neither. */
+    public final String image;
+
+    Frame(long timestamp, long frameNum, String image) {
+      this.timestamp = timestamp;
+      this.frameNum = frameNum;
+      this.image = image;
+    }
+  }
+
+  /** Events of a text log with a timestamp and numeric values per line, in chronological order. */
+  public static final class Timeline {
+    private final long[] timestamps;
+    private final float[] values;
+    private final int numValues;
+
+    Timeline(long[] timestamps, float[] values, int numValues) {
+      this.timestamps = timestamps;
+      this.values = values;
+      this.numValues = numValues;
+    }
+
+    public int size() {
+      return timestamps.length;
+    }
+
+    public long getTimestamp(int event) {
+      return timestamps[event];
+    }
+
+    public float getValue(int event, int column) {
+      return values[event * numValues + column];
+    }
+
+    /** Returns the last event at or before the timestamp, -1 if there is none. */
+    public int indexAt(long timestamp) {
+      int index = Arrays.binarySearch(timestamps, timestamp);
+      if (index < 0) {
+        return -index - 2;
+      }
+      // The last of several events with the same timestamp.
+      while (index + 1 < timestamps.length && timestamps[index + 1] == timestamp) {
+        index++;
+      }
+      return index;
+    }
+  }
+
+  private final File folder;
+  private final ZipFile zip;
+  private final String prefix;
+  private final byte[] copyBuffer = new byte[64 * 1024];
+
+  /**
+   * Opens a session.
+   *
+   * @param file The log folder or its zip archive.
+   */
+  public SessionReader(File file) throws IOException {
+    if (file.isDirectory()) {
+      folder = file;
+      zip = null;
+      prefix = "";
+    } else {
+      folder = null;
+      zip = new ZipFile(file);
+      prefix = findPrefix(zip);
+    }
+  }
+
+  /** Returns the logged frames in the order of the log. */
+  public List<Frame> readFrames() throws IOException {
+    final List<Frame> frames = new ArrayList<>();
+    try (BufferedReader reader = openText(SENSOR_DATA + FRAME_LOG)) {
+      String line = reader.readLine(); // Header.
+      while ((line = reader.readLine()) != null) {
+        final String[] columns = line.split(",");
+        if (columns.length < 2) {
+          continue;
+        }
+        final long frameNum = Long.parseLong(columns[1].trim());
+        frames.add(new Frame(Long.parseLong(columns[0].trim()), frameNum, findImage(frameNum)));
+      }
+    }
+    return frames;
+  }
+
+  /**
+   * Reads a text log of the SensorService with a timestamp and {@code numValues} numbers per line.
+   * Lines with fewer values are skipped. A missing log is empty.
+   *
+   * @param name Name of the log in {@code sensor_data/}, e.g. {@link #CONTROL_LOG}.
+   */
+  public Timeline readTimeline(String name, int numValues) throws IOException {
+    if (!exists(SENSOR_DATA + name)) {
+      return new Timeline(new long[0], new float[0], numValues);
+    }
+    long[] timestamps = new long[1024];
+    float[] values = new float[1024 * numValues];
+    int size = 0;
+    try (BufferedReader reader = openText(SENSOR_DATA + name)) {
+      String line = reader.readLine(); // Header.
+      while ((line = reader.readLine()) != null) {
+        final String[] columns = line.split(",");
+        if (columns.length < 1 + numValues) {
+          continue;
+        }
+        if (size == timestamps.length) {
+          timestamps = Arrays.copyOf(timestamps, 2 * size);
+          values = Arrays.copyOf(values, 2 * size * numValues);
+        }
+        timestamps[size] = Long.parseLong(columns[0].trim());
+        for (int i = 0; i < numValues; ++i) {
+          values[size * numValues + i] = Float.parseFloat(columns[1 + i].trim());
+        }
+        size++;
+      }
+    }
+    return new Timeline(
+        Arrays.copyOf(timestamps, size), Arrays.copyOf(values, size * numValues), numValues);
+  }
+
+  /** Reads an entry of the session, e.g. the image of a frame. */
+  public byte[] read(String name) throws IOException {
+    try (InputStream input = open(name)) {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+      int length;
+      while ((length = input.read(copyBuffer)) > 0) {
+        output.write(copyBuffer, 0, length);
+      }
+      return output.toByteArray();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (zip != null) {
+      zip.close();
+    }
+  }
+
+  private String findImage(long frameNum) {
+    final String crop = IMAGES + frameNum + "_crop.jpeg";
+    if (exists(crop)) {
+      return crop;
+    }
+    final String preview = IMAGES + frameNum + "_preview.jpeg";
+    return exists(preview) ? preview : null;
+  }
+
+  private boolean exists(String name) {
+    return zip != null ? zip.getEntry(prefix + name) != null : new File(folder, name).isFile();
+  }
+
+  private InputStream open(String name) throws IOException {
+    if (zip == null) {
+      return new FileInputStream(new File(folder, name));
+    }
+    final ZipEntry entry = zip.getEntry(prefix + name);
+    if (entry == null) {
+      throw new FileNotFoundException(prefix + name);
+    }
+    return zip.getInputStream(entry);
+  }
+
+  private BufferedReader openText(String name) throws IOException {
+    return new BufferedReader(new InputStreamReader(open(name), StandardCharsets.UTF_8));
+  }
+
+  private static String findPrefix(ZipFile zip) throws IOException {
+    final String frameLog = SENSOR_DATA + FRAME_LOG;
+    final Enumeration<? extends ZipEntry> entries = zip.entries();
+    while (entries.hasMoreElements()) {
+      final String name = entries.nextElement().getName();
+      if (name.equals(frameLog) || name.endsWith("/" + frameLog)) {
+        return name.substring(0, name.length() - frameLog.length());
+      }
+    }
+    throw new FileNotFoundException("No " + frameLog + " in " + zip.getName());
+  }
+}
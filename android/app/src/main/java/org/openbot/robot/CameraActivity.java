@@ -28,6 +28,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.hardware.Camera;
 import android.hardware.camera2.CameraAccessException;
@@ -38,6 +39,7 @@ import android.media.Image;
 import android.media.Image.Plane;
 import android.media.ImageReader;
 import android.media.ImageReader.OnImageAvailableListener;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -71,6 +73,9 @@ import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -88,10 +93,20 @@ import org.openbot.env.ControllerToBotEventBus;
 import org.openbot.env.GameController;
 import org.openbot.env.ImageUtils;
 import org.openbot.env.Logger;
+import org.openbot.env.NoiseGenerator;
 import org.openbot.env.PhoneController;
+import org.openbot.env.SessionArchive;
 import org.openbot.env.SharedPreferencesManager;
+import org.openbot.env.Telemetry;
+import org.openbot.env.TelemetryParser;
 import org.openbot.env.UsbConnection;
 import org.openbot.env.Vehicle;
+import org.openbot.env.VehicleCommandWriter;
+import org.openbot.env.WheelOdometry;
+import org.openbot.env.YuvToArgbConverter;
+import org.openbot.pipeline.LatencyTracer;
+import org.openbot.tflite.Autotuner;
+import org.openbot.tflite.ModelRegistry;
 import org.openbot.tflite.Network.Device;
 import org.openbot.tflite.Network.Model;
 import org.zeroturnaround.zip.ZipUtil;
@@ -117,6 +132,15 @@ public abstract class CameraActivity extends AppCompatActivity
   private static final String PERMISSION_STORAGE = Manifest.permission.WRITE_EXTERNAL_STORAGE;
   private static final String PERMISSION_BLUETOOTH = Manifest.permission.BLUETOOTH;
 
+  // Binary commands need a firmware built with BINARY_COMMANDS.
+  private static final VehicleCommandWriter.Encoding COMMAND_ENCODING =
+      VehicleCommandWriter.Encoding.ASCII;
+  private static final int MAX_COMMAND_RATE = 50;
+
+  // Largest difference of the capture time of a network stream frame to the current frame, until
+  // the frame period of the network stream is known.
+  private static final long NETWORK_FRAME_MAX_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
   private static Context context;
   private int cameraSelection = CameraCharacteristics.LENS_FACING_BACK;
   protected int previewWidth = 0;
@@ -129,8 +153,29 @@ public abstract class CameraActivity extends AppCompatActivity
   private final byte[][] yuvBytes = new byte[3][];
   private int[] rgbBytes = null;
   private int yRowStride;
+  private int uvRowStride;
+  private int uvPixelStride;
+  private boolean hasYuvPlanes = false;
+  private long captureNanos;
+  private long imageAvailableNanos;
+  private long frameTimestamp;
+  // Latest frame of the network stream, see setNetworkStream(). Only used on the camera thread.
+  private final byte[][] networkYuvBytes = new byte[3][];
+  private int networkFrameWidth;
+  private int networkFrameHeight;
+  private int networkYRowStride;
+  private int networkUvRowStride;
+  private int networkUvPixelStride;
+  private long networkFrameTimestamp;
+  // Smoothed time between frames of the network stream, 0 while unknown.
+  private long networkFramePeriodNanos;
+  private boolean hasNetworkPlanes = false;
+  private final OnImageAvailableListener networkImageListener = this::onNetworkImageAvailable;
+  private volatile float networkStreamScale;
+  private volatile CameraConnectionFragment cameraConnectionFragment;
   private Runnable postInferenceCallback;
   private Runnable imageConverter;
+  private final YuvToArgbConverter yuvConverter = new YuvToArgbConverter();
 
   private LinearLayout bottomSheetLayout;
   private LinearLayout gestureLayout;
@@ -154,16 +199,45 @@ public abstract class CameraActivity extends AppCompatActivity
       logSpinner,
       speedModeSpinner;
   private TextView threadsTextView, voltageTextView, speedTextView, sonarTextView;
-  private Model model = Model.DETECTOR_V1_1_0_Q;
+  protected ModelRegistry modelRegistry;
+  private ModelRegistry.Entry model;
   private Device device = Device.CPU;
   private int numThreads = -1;
+  private int numInterpreters = 1;
 
   // **** USB **** //
   protected UsbConnection usbConnection;
+  // Sends the commands to the vehicle, null while disconnected.
+  private volatile VehicleCommandWriter commandWriter;
   protected boolean usbConnected;
   public int[] BaudRates = {9600, 14400, 19200, 38400, 57600, 115200, 230400, 460800, 921600};
   private int baudRate = 115200;
   private LocalBroadcastManager localBroadcastManager;
+  private final TelemetryParser.Listener telemetryListener = this::onTelemetry;
+  // Ends the latency trace of a frame once its control is written to the vehicle.
+  private final VehicleCommandWriter.ControlListener controlListener =
+      new VehicleCommandWriter.ControlListener() {
+        @Override
+        public void onControlWritten(long frame) {
+          latencyTracer.end(frame);
+        }
+
+        @Override
+        public void onControlCoalesced(long frame) {
+          latencyTracer.drop(frame);
+        }
+      };
+  // Only used on the USB read thread.
+  private final WheelOdometry.Estimate odometryEstimate = new WheelOdometry.Estimate();
+  private final Runnable updateVehicleViews =
+      () -> {
+        final Vehicle.State state = vehicle.getState();
+        voltageTextView.setText(String.format(Locale.US, "%2.1f V", state.getBatteryVoltage()));
+        speedTextView.setText(
+            String.format(
+                Locale.US, "%3.0f,%3.0f rpm", state.getLeftWheelRPM(), state.getRightWheelRPM()));
+        sonarTextView.setText(String.format(Locale.US, "%3.0f cm", state.getSonarReading()));
+      };
   private BroadcastReceiver localBroadcastReceiver;
 
   protected LogMode logMode = LogMode.CROP_IMG;
@@ -171,6 +245,8 @@ public abstract class CameraActivity extends AppCompatActivity
   protected SpeedMode speedMode = SpeedMode.NORMAL;
   protected DriveMode driveMode = DriveMode.GAME;
   protected String logFolder;
+  // Archive of the current log session, null if logging is off.
+  private volatile SessionArchive sessionArchive;
   protected boolean loggingEnabled;
   protected boolean networkEnabled = false;
   protected boolean noiseEnabled = false;
@@ -178,6 +254,7 @@ public abstract class CameraActivity extends AppCompatActivity
   private Intent intentSensorService;
   private UploadService uploadService;
   private SharedPreferencesManager preferencesManager;
+  protected final LatencyTracer latencyTracer = new LatencyTracer(64);
   protected final GameController gameController = new GameController(driveMode);
   private final PhoneController phoneController = new PhoneController();
   protected final ControllerHandler controllerHandler = new ControllerHandler();
@@ -205,6 +282,10 @@ public abstract class CameraActivity extends AppCompatActivity
     }
 
     preferencesManager = new SharedPreferencesManager(this);
+    // Models may have been added to the app storage in the meantime.
+    modelRegistry = ModelRegistry.getInstance(this);
+    modelRegistry.refresh();
+    model = findModel(preferencesManager.getModel());
 
     connectionSwitchCompat = findViewById(R.id.connection_switch);
     threadsTextView = findViewById(R.id.threads);
@@ -225,8 +306,8 @@ public abstract class CameraActivity extends AppCompatActivity
     baudRateSpinner.setAdapter(baudRateAdapter);
 
     modelSpinner = findViewById(R.id.model_spinner);
-    ArrayAdapter<CharSequence> modelAdapter =
-        ArrayAdapter.createFromResource(this, R.array.models, R.layout.spinner_item);
+    ArrayAdapter<ModelRegistry.Entry> modelAdapter =
+        new ArrayAdapter<>(this, R.layout.spinner_item, modelRegistry.getEntries());
     modelAdapter.setDropDownViewResource(android.R.layout.simple_list_item_checked);
     modelSpinner.setAdapter(modelAdapter);
 
@@ -348,31 +429,6 @@ public abstract class CameraActivity extends AppCompatActivity
 
                 case Constants.USB_ACTION_CONNECTION_CLOSED:
                   break;
-
-                case Constants.USB_ACTION_DATA_RECEIVED:
-                  long timestamp = SystemClock.elapsedRealtimeNanos();
-                  String data = intent.getStringExtra("data");
-                  // Data has the following form: voltage, lWheel, rWheel, obstacle
-                  sendVehicleDataToSensorService(timestamp, data);
-                  String[] itemList = data.split(",");
-                  vehicle.setBatteryVoltage(Float.parseFloat(itemList[0]));
-                  vehicle.setLeftWheelTicks(Float.parseFloat(itemList[1]));
-                  vehicle.setRightWheelTicks(Float.parseFloat(itemList[2]));
-                  vehicle.setSonarReading(Float.parseFloat(itemList[3]));
-                  runOnUiThread(
-                      () -> {
-                        voltageTextView.setText(
-                            String.format(Locale.US, "%2.1f V", vehicle.getBatteryVoltage()));
-                        speedTextView.setText(
-                            String.format(
-                                Locale.US,
-                                "%3.0f,%3.0f rpm",
-                                vehicle.getLeftWheelRPM(),
-                                vehicle.getRightWheelRPM()));
-                        sonarTextView.setText(
-                            String.format(Locale.US, "%3.0f cm", vehicle.getSonarReading()));
-                      });
-                  break;
               }
             }
           }
@@ -380,7 +436,6 @@ public abstract class CameraActivity extends AppCompatActivity
     IntentFilter localIntentFilter = new IntentFilter();
     localIntentFilter.addAction(Constants.USB_ACTION_CONNECTION_ESTABLISHED);
     localIntentFilter.addAction(Constants.USB_ACTION_CONNECTION_CLOSED);
-    localIntentFilter.addAction(Constants.USB_ACTION_DATA_RECEIVED);
     localBroadcastManager = LocalBroadcastManager.getInstance(this);
     localBroadcastManager.registerReceiver(localBroadcastReceiver, localIntentFilter);
   }
@@ -390,7 +445,7 @@ public abstract class CameraActivity extends AppCompatActivity
     cameraSwitchCompat.setChecked(preferencesManager.getCameraSwitch());
 
     baudRateSpinner.setSelection(Arrays.binarySearch(BaudRates, preferencesManager.getBaudrate()));
-    modelSpinner.setSelection(preferencesManager.getModel());
+    modelSpinner.setSelection(Math.max(0, modelRegistry.getEntries().indexOf(model)));
     deviceSpinner.setSelection(preferencesManager.getDevice());
     logSpinner.setSelection(preferencesManager.getLogMode());
     controlModeSpinner.setSelection(preferencesManager.getControlMode());
@@ -399,6 +454,9 @@ public abstract class CameraActivity extends AppCompatActivity
 
     setNumThreads(preferencesManager.getNumThreads());
     threadsTextView.setText(Integer.toString(numThreads));
+    // No UI control yet, the pool size can be set with the "num_interpreters" extra of the intent.
+    setNumInterpreters(
+        getIntent().getIntExtra("num_interpreters", preferencesManager.getNumInterpreters()));
 
     if (preferencesManager.getSheetExpanded()) {
       sheetBehavior.setState(BottomSheetBehavior.STATE_EXPANDED);
@@ -418,6 +476,84 @@ public abstract class CameraActivity extends AppCompatActivity
     return yuvBytes[0];
   }
 
+  /** Returns true if the current frame is available as separate Y, U and V planes (Camera2). */
+  protected boolean hasYuvPlanes() {
+    return hasYuvPlanes;
+  }
+
+  protected byte[][] getYuvBytes() {
+    return yuvBytes;
+  }
+
+  /**
+   * Returns true if there is a frame of the network stream (see {@link #setNetworkStream}) that was
+   * captured together with the current frame, or at most one frame apart. Half a frame period is
+   * allowed on top for the jitter of the timestamps.
+   */
+  protected boolean hasNetworkPlanes() {
+    final long maxAge =
+        networkFramePeriodNanos > 0
+            ? networkFramePeriodNanos + networkFramePeriodNanos / 2
+            : NETWORK_FRAME_MAX_AGE_NANOS;
+    return hasNetworkPlanes && Math.abs(frameTimestamp - networkFrameTimestamp) <= maxAge;
+  }
+
+  protected byte[][] getNetworkYuvBytes() {
+    return networkYuvBytes;
+  }
+
+  protected int getNetworkFrameWidth() {
+    return networkFrameWidth;
+  }
+
+  protected int getNetworkFrameHeight() {
+    return networkFrameHeight;
+  }
+
+  protected int getNetworkLuminanceStride() {
+    return networkYRowStride;
+  }
+
+  protected int getNetworkUvRowStride() {
+    return networkUvRowStride;
+  }
+
+  protected int getNetworkUvPixelStride() {
+    return networkUvPixelStride;
+  }
+
+  /**
+   * Requests a second camera stream for the network, scaled down from the preview, while the
+   * preview and the logged images stay at the preview size. Only with the Camera2 API.
+   *
+   * @param minScale Smallest size of the stream relative to the preview, 0 for no stream.
+   */
+  protected void setNetworkStream(float minScale) {
+    networkStreamScale = minScale;
+    final CameraConnectionFragment fragment = cameraConnectionFragment;
+    if (fragment != null) {
+      fragment.setNetworkStream(minScale, networkImageListener);
+    }
+  }
+
+  protected int getUvRowStride() {
+    return uvRowStride;
+  }
+
+  protected int getUvPixelStride() {
+    return uvPixelStride;
+  }
+
+  /** Returns the capture time of the current frame (see {@link LatencyTracer}), 0 if unknown. */
+  protected long getCaptureNanos() {
+    return captureNanos;
+  }
+
+  /** Returns the time the current frame was delivered (see {@link LatencyTracer}). */
+  protected long getImageAvailableNanos() {
+    return imageAvailableNanos;
+  }
+
   /** Callback for android.hardware.Camera API */
   @Override
   public void onPreviewFrame(final byte[] bytes, final Camera camera) {
@@ -441,14 +577,17 @@ public abstract class CameraActivity extends AppCompatActivity
     }
 
     isProcessingFrame = true;
+    imageAvailableNanos = System.nanoTime();
+    captureNanos = 0;
     yuvBytes[0] = bytes;
     yRowStride = previewWidth;
+    hasYuvPlanes = false;
 
     imageConverter =
         new Runnable() {
           @Override
           public void run() {
-            ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
+            yuvConverter.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
           }
         };
 
@@ -485,19 +624,26 @@ public abstract class CameraActivity extends AppCompatActivity
         return;
       }
       isProcessingFrame = true;
+      imageAvailableNanos = System.nanoTime();
+      frameTimestamp = image.getTimestamp();
+      // Sensor timestamps are usually in the time base of elapsedRealtimeNanos (timestamp source
+      // REALTIME). Otherwise they cannot be related to other clocks and the capture is unknown.
+      final long age = SystemClock.elapsedRealtimeNanos() - image.getTimestamp();
+      captureNanos = age >= 0 && age < TimeUnit.SECONDS.toNanos(1) ? imageAvailableNanos - age : 0;
       Trace.beginSection("imageAvailable");
       final Plane[] planes = image.getPlanes();
       fillBytes(planes, yuvBytes);
 
       yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
+      uvRowStride = planes[1].getRowStride();
+      uvPixelStride = planes[1].getPixelStride();
+      hasYuvPlanes = true;
 
       imageConverter =
           new Runnable() {
             @Override
             public void run() {
-              ImageUtils.convertYUV420ToARGB8888(
+              yuvConverter.convertYUV420ToARGB8888(
                   yuvBytes[0],
                   yuvBytes[1],
                   yuvBytes[2],
@@ -528,6 +674,41 @@ public abstract class CameraActivity extends AppCompatActivity
     Trace.endSection();
   }
 
+  /** Copies the latest frame of the network stream, on the camera thread. */
+  private void onNetworkImageAvailable(final ImageReader reader) {
+    final Image image = reader.acquireLatestImage();
+    if (image == null) {
+      return;
+    }
+    try {
+      final Plane[] planes = image.getPlanes();
+      for (int i = 0; i < planes.length; ++i) {
+        final ByteBuffer buffer = planes[i].getBuffer();
+        if (networkYuvBytes[i] == null || networkYuvBytes[i].length != buffer.remaining()) {
+          networkYuvBytes[i] = new byte[buffer.remaining()];
+        }
+        buffer.get(networkYuvBytes[i]);
+      }
+      networkFrameWidth = image.getWidth();
+      networkFrameHeight = image.getHeight();
+      networkYRowStride = planes[0].getRowStride();
+      networkUvRowStride = planes[1].getRowStride();
+      networkUvPixelStride = planes[1].getPixelStride();
+      final long period = image.getTimestamp() - networkFrameTimestamp;
+      // Gaps like a restart of the stream are no frame period.
+      if (hasNetworkPlanes && period > 0 && period < NETWORK_FRAME_MAX_AGE_NANOS) {
+        networkFramePeriodNanos =
+            networkFramePeriodNanos == 0
+                ? period
+                : networkFramePeriodNanos + (period - networkFramePeriodNanos) / 8;
+      }
+      networkFrameTimestamp = image.getTimestamp();
+      hasNetworkPlanes = true;
+    } finally {
+      image.close();
+    }
+  }
+
   @Override
   public synchronized void onStart() {
     LOGGER.d("onStart " + this);
@@ -764,8 +945,11 @@ public abstract class CameraActivity extends AppCompatActivity
               getDesiredPreviewFrameSize());
 
       camera2Fragment.setCamera(cameraId);
+      camera2Fragment.setNetworkStream(networkStreamScale, networkImageListener);
+      cameraConnectionFragment = camera2Fragment;
       fragment = camera2Fragment;
     } else {
+      cameraConnectionFragment = null;
       fragment =
           new LegacyCameraConnectionFragment(
               this, getLayoutId(), getDesiredPreviewFrameSize(), cameraSelection);
@@ -923,47 +1107,126 @@ public abstract class CameraActivity extends AppCompatActivity
     }
   }
 
-  protected Model getModel() {
+  protected ModelRegistry.Entry getModel() {
     return model;
   }
 
-  private void setModel(Model model) {
+  // Returns the model of this name, the default model if it is gone.
+  private ModelRegistry.Entry findModel(String name) {
+    final ModelRegistry.Entry model = modelRegistry.get(name);
+    if (model != null) {
+      return model;
+    }
+    final ModelRegistry.Entry defaultModel = modelRegistry.get(Model.DETECTOR_V1_1_0_Q.name());
+    return defaultModel != null || modelRegistry.getEntries().isEmpty()
+        ? defaultModel
+        : modelRegistry.getEntries().get(0);
+  }
+
+  private void setModel(ModelRegistry.Entry model) {
     if (this.model != model) {
       LOGGER.d("Updating  model: " + model);
       this.model = model;
-      preferencesManager.setModel(model.ordinal());
+      preferencesManager.setModel(model.name);
+      loadAutotunedConfig(model);
+      onInferenceConfigurationChanged();
+    }
+  }
+
+  /** Stores the autotuned device and threads of a model for this phone and its software. */
+  protected void saveAutotunedConfig(ModelRegistry.Entry model, Autotuner.Config config) {
+    preferencesManager.setAutotunedConfig(Build.FINGERPRINT, model.name, config.toString());
+  }
+
+  /** Switches to the autotuned device and threads of the current model, if there are any. */
+  protected void applyAutotunedConfig() {
+    if (loadAutotunedConfig(model)) {
       onInferenceConfigurationChanged();
     }
   }
 
+  // Sets the autotuned device and threads of the model and returns whether they changed.
+  private boolean loadAutotunedConfig(ModelRegistry.Entry model) {
+    if (model == null) {
+      return false;
+    }
+    final String text = preferencesManager.getAutotunedConfig(Build.FINGERPRINT, model.name);
+    if (text == null) {
+      return false;
+    }
+    try {
+      final Autotuner.Config config = Autotuner.Config.parse(text);
+      final boolean deviceChanged = updateDevice(Device.valueOf(config.device));
+      final boolean threadsChanged = updateNumThreads(config.numThreads);
+      LOGGER.d("Autotuned config of %s: %s", model, config);
+      return deviceChanged || threadsChanged;
+    } catch (IllegalArgumentException e) {
+      LOGGER.e(e, "Invalid autotuned config of %s: %s", model, text);
+      return false;
+    }
+  }
+
   protected Device getDevice() {
     return device;
   }
 
   private void setDevice(Device device) {
-    if (this.device != device) {
-      LOGGER.d("Updating  device: " + device);
-      this.device = device;
-      final boolean threadsEnabled = device == Device.CPU;
-      plusImageView.setEnabled(threadsEnabled);
-      minusImageView.setEnabled(threadsEnabled);
-      threadsTextView.setText(threadsEnabled ? String.valueOf(numThreads) : "N/A");
-      if (threadsEnabled) threadsTextView.setTextColor(Color.BLACK);
-      else threadsTextView.setTextColor(Color.GRAY);
-      preferencesManager.setDevice(device.ordinal());
+    if (updateDevice(device)) {
       onInferenceConfigurationChanged();
     }
   }
 
+  private boolean updateDevice(Device device) {
+    if (this.device == device) {
+      return false;
+    }
+    LOGGER.d("Updating  device: " + device);
+    this.device = device;
+    deviceSpinner.setSelection(device.ordinal());
+    final boolean threadsEnabled = device == Device.CPU;
+    plusImageView.setEnabled(threadsEnabled);
+    minusImageView.setEnabled(threadsEnabled);
+    threadsTextView.setText(threadsEnabled ? String.valueOf(numThreads) : "N/A");
+    if (threadsEnabled) threadsTextView.setTextColor(Color.BLACK);
+    else threadsTextView.setTextColor(Color.GRAY);
+    preferencesManager.setDevice(device.ordinal());
+    return true;
+  }
+
   protected int getNumThreads() {
     return numThreads;
   }
 
   private void setNumThreads(int numThreads) {
-    if (this.numThreads != numThreads) {
-      LOGGER.d("Updating  numThreads: " + numThreads);
-      this.numThreads = numThreads;
-      preferencesManager.setNumThreads(numThreads);
+    if (updateNumThreads(numThreads)) {
+      onInferenceConfigurationChanged();
+    }
+  }
+
+  private boolean updateNumThreads(int numThreads) {
+    if (this.numThreads == numThreads) {
+      return false;
+    }
+    LOGGER.d("Updating  numThreads: " + numThreads);
+    this.numThreads = numThreads;
+    if (device == Device.CPU) {
+      threadsTextView.setText(String.valueOf(numThreads));
+    }
+    preferencesManager.setNumThreads(numThreads);
+    return true;
+  }
+
+  /** Returns the number of interpreters that run the network on alternate frames. */
+  protected int getNumInterpreters() {
+    return numInterpreters;
+  }
+
+  private void setNumInterpreters(int numInterpreters) {
+    numInterpreters = Math.max(1, numInterpreters);
+    if (this.numInterpreters != numInterpreters) {
+      LOGGER.d("Updating  numInterpreters: " + numInterpreters);
+      this.numInterpreters = numInterpreters;
+      preferencesManager.setNumInterpreters(numInterpreters);
       onInferenceConfigurationChanged();
     }
   }
@@ -1020,8 +1283,9 @@ public abstract class CameraActivity extends AppCompatActivity
   protected void sendControlToSensorService() {
     if (sensorMessenger != null) {
       Message msg = Message.obtain();
-      msg.arg1 = (int) (vehicle.getControl().getLeft());
-      msg.arg2 = (int) (vehicle.getControl().getRight());
+      Vehicle.State state = vehicle.getState();
+      msg.arg1 = (int) state.getLeft();
+      msg.arg2 = (int) state.getRight();
       msg.what = SensorService.MSG_CONTROL;
       try {
         sensorMessenger.send(msg);
@@ -1044,12 +1308,47 @@ public abstract class CameraActivity extends AppCompatActivity
     }
   }
 
-  protected void sendVehicleDataToSensorService(long timestamp, String data) {
+  protected void sendNoiseToSensorService() {
+    if (sensorMessenger != null) {
+      Message msg = Message.obtain();
+      Bundle bundle = new Bundle();
+      NoiseGenerator noise = vehicle.getNoise();
+      bundle.putString("config", noise != null ? noise.getConfig().toString() : "off");
+      msg.setData(bundle);
+      msg.what = SensorService.MSG_NOISE;
+      try {
+        sensorMessenger.send(msg);
+      } catch (RemoteException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  protected void sendVehicleDataToSensorService(
+      Telemetry telemetry, WheelOdometry.Estimate odometry) {
     if (sensorMessenger != null) {
       Message msg = Message.obtain();
       Bundle bundle = new Bundle();
-      bundle.putLong("timestamp", timestamp);
-      bundle.putString("data", data);
+      bundle.putLong("timestamp", telemetry.getTimestamp());
+      bundle.putFloatArray(
+          "data",
+          new float[] {
+            telemetry.getBatteryVoltage(),
+            telemetry.getLeftWheelTicks(),
+            telemetry.getRightWheelTicks(),
+            telemetry.getSonarReading()
+          });
+      bundle.putDoubleArray(
+          "odometry",
+          new double[] {
+            odometry.getLeftWheelRPM(),
+            odometry.getRightWheelRPM(),
+            odometry.getLinearVelocity(),
+            odometry.getAngularVelocity(),
+            odometry.getX(),
+            odometry.getY(),
+            odometry.getHeading()
+          });
       msg.setData(bundle);
       msg.what = SensorService.MSG_VEHICLE;
       try {
@@ -1060,6 +1359,14 @@ public abstract class CameraActivity extends AppCompatActivity
     }
   }
 
+  // Called on the USB read thread for every status message of the vehicle.
+  private void onTelemetry(Telemetry telemetry) {
+    vehicle.setTelemetry(telemetry);
+    vehicle.readOdometry(telemetry.getTimestamp(), odometryEstimate);
+    sendVehicleDataToSensorService(telemetry, odometryEstimate);
+    runOnUiThread(updateVehicleViews);
+  }
+
   private void startLogging() {
     logFolder =
         Environment.getExternalStorageDirectory().getAbsolutePath()
@@ -1068,6 +1375,12 @@ public abstract class CameraActivity extends AppCompatActivity
             + File.separator
             + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
     intentSensorService.putExtra("logFolder", logFolder + File.separator + "sensor_data");
+    latencyTracer.reset();
+    try {
+      sessionArchive = new SessionArchive(new File(logFolder + ".zip"));
+    } catch (IOException e) {
+      LOGGER.e(e, "Failed to create session archive, packing the log folder at the end.");
+    }
     startService(intentSensorService);
     bindService(intentSensorService, sensorConnection, Context.BIND_AUTO_CREATE);
     // Send current vehicle state to log
@@ -1078,6 +1391,7 @@ public abstract class CameraActivity extends AppCompatActivity
             TimeUnit.MILLISECONDS.sleep(500);
             sendControlToSensorService();
             sendIndicatorToSensorService();
+            sendNoiseToSensorService();
           } catch (InterruptedException e) {
             LOGGER.e(e, "Got interrupted.");
           }
@@ -1088,12 +1402,32 @@ public abstract class CameraActivity extends AppCompatActivity
     if (sensorConnection != null) unbindService(sensorConnection);
     stopService(intentSensorService);
 
+    final File folder = new File(logFolder);
+    final SessionArchive archive = sessionArchive;
+    sessionArchive = null;
+    writeLatencyReport(logFolder);
+    if (archive != null) {
+      if (archive.getNumDroppedImages() > 0) {
+        LOGGER.w(
+            "Dropped %d images, the archive could not keep up.", archive.getNumDroppedImages());
+      }
+      // The images are in the archive already, only the logs are added. The sensor service closes
+      // its logs when it is destroyed, so the folder is read after a delay.
+      archive.finish(
+          folder,
+          500,
+          zip -> {
+            FileUtils.deleteQuietly(folder);
+            uploadService.upload(zip);
+          });
+      return;
+    }
+
     // Pack and upload the collected data
     runInBackground(
         () -> {
           String logZipFile = logFolder + ".zip";
           // Zip the log folder and then delete it
-          File folder = new File(logFolder);
           File zip = new File(logZipFile);
           try {
             TimeUnit.MILLISECONDS.sleep(500);
@@ -1106,6 +1440,31 @@ public abstract class CameraActivity extends AppCompatActivity
         });
   }
 
+  /**
+   * Saves a JPEG of the bitmap as {@code images/<filename>} of the current log session, straight
+   * into the session archive if there is one.
+   */
+  protected void saveBitmapToLog(Bitmap bitmap, String filename) {
+    final SessionArchive archive = sessionArchive;
+    if (archive != null) {
+      archive.addStored("images/" + filename, ImageUtils.compressBitmap(bitmap));
+    } else {
+      ImageUtils.saveBitmap(bitmap, logFolder + File.separator + "images", filename);
+    }
+  }
+
+  /** Writes the latency percentiles of the frames processed while logging into the log folder. */
+  private void writeLatencyReport(String logFolder) {
+    if (latencyTracer.getTotal().getCount() == 0) {
+      return;
+    }
+    try (Writer writer = new FileWriter(new File(logFolder, "latency.csv"))) {
+      latencyTracer.writeReport(writer);
+    } catch (IOException e) {
+      LOGGER.e(e, "Failed to write latency report.");
+    }
+  }
+
   protected void setIsLoggingActive(boolean loggingActive) {
     if (loggingActive && !loggingEnabled) {
       if (!hasCameraPermission() && logMode != LogMode.ONLY_SENSORS) {
@@ -1152,20 +1511,38 @@ public abstract class CameraActivity extends AppCompatActivity
   protected abstract void setNetworkEnabled(boolean isChecked);
 
   private void connectUsb() {
+    // A reconnect replaces the writer, its thread would otherwise keep running.
+    closeCommandWriter();
     usbConnection = new UsbConnection(this, baudRate);
+    usbConnection.addTelemetryListener(telemetryListener);
     usbConnected = usbConnection.startUsbConnection();
+    if (usbConnected) {
+      commandWriter =
+          new VehicleCommandWriter(
+              usbConnection::send, COMMAND_ENCODING, MAX_COMMAND_RATE, controlListener);
+    }
   }
 
   private void disconnectUsb() {
     if (usbConnection != null) {
       vehicle.setControl(0, 0);
       sendControlToVehicle();
+      // Sends the stop command before the connection is closed.
+      closeCommandWriter();
       usbConnection.stopUsbConnection();
       usbConnection = null;
     }
     usbConnected = false;
   }
 
+  private void closeCommandWriter() {
+    final VehicleCommandWriter writer = commandWriter;
+    if (writer != null) {
+      commandWriter = null;
+      writer.close();
+    }
+  }
+
   protected void toggleCamera(boolean isChecked) {
     LOGGER.d("Camera Toggled to " + isChecked);
     this.cameraSelection = getCameraUserSelection();
@@ -1201,33 +1578,42 @@ public abstract class CameraActivity extends AppCompatActivity
   }
 
   protected void sendControlToVehicle() {
-    if ((usbConnection != null) && usbConnection.isOpen() && !usbConnection.isBusy()) {
-      String message =
-          String.format(
-              Locale.US,
-              "c%d,%d\n",
-              (int) (vehicle.getControl().getLeft()),
-              (int) (vehicle.getControl().getRight()));
-      usbConnection.send(message);
+    sendControlToVehicle(VehicleCommandWriter.NO_FRAME);
+  }
+
+  /**
+   * Sends the control, which was computed from {@code frame}. The latency trace of the frame ends
+   * once the control is written, or right away if no vehicle is connected.
+   */
+  protected void sendControlToVehicle(long frame) {
+    final VehicleCommandWriter writer = commandWriter;
+    if (writer != null) {
+      final Vehicle.State state = vehicle.getState();
+      writer.setControl((int) state.getLeft(), (int) state.getRight(), frame);
+    } else if (frame != VehicleCommandWriter.NO_FRAME) {
+      latencyTracer.finish(frame);
     }
   }
 
   protected void sendNoisyControlToVehicle() {
-    if ((usbConnection != null) && usbConnection.isOpen() && !usbConnection.isBusy()) {
-      String message =
-          String.format(
-              Locale.US,
-              "c%d,%d\n",
-              (int) (vehicle.getNoisyControl().getLeft()),
-              (int) (vehicle.getNoisyControl().getRight()));
-      usbConnection.send(message);
+    sendNoisyControlToVehicle(VehicleCommandWriter.NO_FRAME);
+  }
+
+  /** Like {@link #sendControlToVehicle(long)}, with the noise added to the control. */
+  protected void sendNoisyControlToVehicle(long frame) {
+    final VehicleCommandWriter writer = commandWriter;
+    if (writer != null) {
+      final Vehicle.State state = vehicle.getState();
+      writer.setControl((int) state.getNoisyLeft(), (int) state.getNoisyRight(), frame);
+    } else if (frame != VehicleCommandWriter.NO_FRAME) {
+      latencyTracer.finish(frame);
     }
   }
 
   protected void sendIndicatorToVehicle() {
-    if (usbConnection != null && usbConnection.isOpen() && !usbConnection.isBusy()) {
-      String message = String.format(Locale.US, "i%d\n", vehicle.getIndicator());
-      usbConnection.send(message);
+    final VehicleCommandWriter writer = commandWriter;
+    if (writer != null) {
+      writer.setIndicator(vehicle.getIndicator());
     }
   }
 
@@ -1270,7 +1656,7 @@ public abstract class CameraActivity extends AppCompatActivity
     if (parent == baudRateSpinner) {
       setBaudRate(Integer.parseInt(parent.getItemAtPosition(pos).toString()));
     } else if (parent == modelSpinner) {
-      setModel(Model.valueOf(parent.getItemAtPosition(pos).toString().toUpperCase()));
+      setModel((ModelRegistry.Entry) parent.getItemAtPosition(pos));
     } else if (parent == deviceSpinner) {
       setDevice(Device.valueOf(parent.getItemAtPosition(pos).toString().toUpperCase()));
     } else if (parent == logSpinner) {
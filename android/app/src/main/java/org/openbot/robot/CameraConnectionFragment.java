@@ -56,13 +56,12 @@ import android.view.ViewGroup;
 import android.widget.Toast;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import org.openbot.R;
 import org.openbot.customview.AutoFitTextureView;
+import org.openbot.env.CaptureSizes;
 import org.openbot.env.Logger;
 
 @SuppressLint("ValidFragment")
@@ -129,6 +128,21 @@ public class CameraConnectionFragment extends Fragment {
   private Handler backgroundHandler;
   /** An {@link ImageReader} that handles preview frame capture. */
   private ImageReader previewReader;
+  /** YUV sizes supported by the camera. */
+  private Size[] yuvSizes;
+  /**
+   * Smallest size of the network stream relative to the preview, 0 without a network stream. See
+   * {@link #setNetworkStream}.
+   */
+  private volatile float networkStreamScale;
+  /** Receives the frames of the network stream. */
+  private volatile OnImageAvailableListener networkImageListener;
+  /** The {@link Size} of the network stream, null without one. */
+  private Size networkStreamSize;
+  /** An {@link ImageReader} for the frames of the network stream. */
+  private ImageReader networkReader;
+  /** Whether the camera failed to configure the network stream, it is not tried again. */
+  private boolean networkStreamUnsupported;
   /** {@link CaptureRequest.Builder} for the camera preview */
   private CaptureRequest.Builder previewRequestBuilder;
   /** {@link CaptureRequest} generated by {@link #previewRequestBuilder} */
@@ -203,6 +217,7 @@ public class CameraConnectionFragment extends Fragment {
   /**
    * Given {@code choices} of {@code Size}s supported by a camera, chooses the smallest one whose
    * width and height are at least as large as the minimum of both, or an exact match if possible.
+   * See {@link CaptureSizes#choosePreviewSize}.
    *
    * @param choices The list of sizes that the camera supports for the intended output class
    * @param width The minimum desired width
@@ -210,55 +225,34 @@ public class CameraConnectionFragment extends Fragment {
    * @return The optimal {@code Size}, or an arbitrary one if none were big enough
    */
   protected static Size chooseOptimalSize(final Size[] choices, final int width, final int height) {
+    LOGGER.i("Sizes: [" + TextUtils.join(", ", choices) + "]");
     final int minSize = Math.max(Math.min(width, height), MINIMUM_PREVIEW_SIZE);
-    final Size desiredSize = new Size(width, height);
-
-    // Collect the supported resolutions that are at least as big as the preview Surface
-    boolean exactSizeFound = false;
-    final List<Size> correctAspect = new ArrayList<Size>();
-    final List<Size> bigEnough = new ArrayList<Size>();
-    final List<Size> tooSmall = new ArrayList<Size>();
-    for (final Size option : choices) {
-      LOGGER.i("Size: " + option.getWidth() + "x" + option.getHeight());
-      if (option.equals(desiredSize)) {
-        // Set the size but don't return yet so that remaining sizes will still be logged.
-        exactSizeFound = true;
-      }
-
-      if (option.getHeight() >= minSize && option.getWidth() >= minSize) {
-        // Check for aspect ratio
-        if (desiredSize.getWidth() / option.getWidth()
-            == desiredSize.getHeight() / option.getHeight()) {
-          correctAspect.add(option);
-        }
-        bigEnough.add(option);
-      } else {
-        tooSmall.add(option);
-      }
-    }
-
-    LOGGER.i("Desired size: " + desiredSize + ", min size: " + minSize + "x" + minSize);
-    LOGGER.i("Valid preview sizes: [" + TextUtils.join(", ", bigEnough) + "]");
-    LOGGER.i("Rejected preview sizes: [" + TextUtils.join(", ", tooSmall) + "]");
+    LOGGER.i("Desired size: " + width + "x" + height + ", min size: " + minSize + "x" + minSize);
+    final Size chosenSize =
+        choices[
+            CaptureSizes.choosePreviewSize(toArray(choices), width, height, MINIMUM_PREVIEW_SIZE)];
+    LOGGER.i("Chosen size: " + chosenSize.getWidth() + "x" + chosenSize.getHeight());
+    return chosenSize;
+  }
 
-    if (exactSizeFound) {
-      LOGGER.i("Exact size match found.");
-      return desiredSize;
-    }
+  /**
+   * Chooses the size of the network stream: the smallest size with the aspect ratio of the preview
+   * and at least {@code minScale} times its size, null if there is none smaller than the preview.
+   */
+  protected static Size chooseNetworkStreamSize(
+      final Size[] choices, final Size previewSize, final float minScale) {
+    final int index =
+        CaptureSizes.chooseScaledSize(
+            toArray(choices), previewSize.getWidth(), previewSize.getHeight(), minScale);
+    return index >= 0 ? choices[index] : null;
+  }
 
-    // Pick the smallest of those, assuming we found any
-    if (correctAspect.size() > 0) {
-      final Size chosenSize = Collections.min(correctAspect, new CompareSizesByArea());
-      LOGGER.i("Chosen size: " + chosenSize.getWidth() + "x" + chosenSize.getHeight());
-      return chosenSize;
-    } else if (bigEnough.size() > 0) {
-      final Size chosenSize = Collections.min(bigEnough, new CompareSizesByArea());
-      LOGGER.i("Chosen size: " + chosenSize.getWidth() + "x" + chosenSize.getHeight());
-      return chosenSize;
-    } else {
-      LOGGER.e("Couldn't find any suitable preview size");
-      return choices[0];
+  private static int[][] toArray(final Size[] sizes) {
+    final int[][] array = new int[sizes.length][];
+    for (int i = 0; i < sizes.length; ++i) {
+      array[i] = new int[] {sizes[i].getWidth(), sizes[i].getHeight()};
     }
+    return array;
   }
 
   public static CameraConnectionFragment newInstance(
@@ -330,6 +324,51 @@ public class CameraConnectionFragment extends Fragment {
     this.cameraId = cameraId;
   }
 
+  /**
+   * Requests a second YUV stream at a lower resolution for the network, with the aspect ratio of
+   * the preview, so the network does not have to sample the full preview frames. The capture
+   * session is only reconfigured if the size of the stream changes.
+   *
+   * @param minScale Smallest size of the stream relative to the preview, 0 for no stream.
+   * @param listener Receives the frames of the stream, on the camera thread.
+   */
+  public void setNetworkStream(final float minScale, final OnImageAvailableListener listener) {
+    networkStreamScale = minScale;
+    networkImageListener = listener;
+    final Handler handler = backgroundHandler;
+    if (handler != null) {
+      handler.post(this::updateNetworkStream);
+    }
+  }
+
+  /** Reconfigures the capture session if the network stream changed. Runs on the camera thread. */
+  private void updateNetworkStream() {
+    final Size size = chooseNetworkStreamSize();
+    if (size == null ? networkStreamSize == null : size.equals(networkStreamSize)) {
+      return;
+    }
+    networkStreamSize = size;
+    if (null == cameraDevice) {
+      // Used when the camera is opened.
+      return;
+    }
+    if (null != captureSession) {
+      captureSession.close();
+      captureSession = null;
+    }
+    createCameraPreviewSession();
+  }
+
+  private Size chooseNetworkStreamSize() {
+    final float minScale = networkStreamScale;
+    if (minScale <= 0 || networkStreamUnsupported || yuvSizes == null || previewSize == null) {
+      return null;
+    }
+    final Size size = chooseNetworkStreamSize(yuvSizes, previewSize, minScale);
+    LOGGER.i("Network stream size for scale %.2f: %s", minScale, size);
+    return size;
+  }
+
   /** Sets up member variables related to camera. */
   private void setUpCameraOutputs() {
     final Activity activity = getActivity();
@@ -350,6 +389,8 @@ public class CameraConnectionFragment extends Fragment {
               map.getOutputSizes(SurfaceTexture.class),
               inputSize.getWidth(),
               inputSize.getHeight());
+      yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+      networkStreamSize = chooseNetworkStreamSize();
 
       // We fit the aspect ratio of TextureView to the size of preview we picked.
       final int orientation = getResources().getConfiguration().orientation;
@@ -407,10 +448,7 @@ public class CameraConnectionFragment extends Fragment {
         cameraDevice.close();
         cameraDevice = null;
       }
-      if (null != previewReader) {
-        previewReader.close();
-        previewReader = null;
-      }
+      closeReaders();
     } catch (final InterruptedException e) {
       throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
     } finally {
@@ -418,6 +456,17 @@ public class CameraConnectionFragment extends Fragment {
     }
   }
 
+  private void closeReaders() {
+    if (null != previewReader) {
+      previewReader.close();
+      previewReader = null;
+    }
+    if (null != networkReader) {
+      networkReader.close();
+      networkReader = null;
+    }
+  }
+
   /** Starts a background thread and its {@link Handler}. */
   private void startBackgroundThread() {
     backgroundThread = new HandlerThread("ImageListener");
@@ -456,16 +505,38 @@ public class CameraConnectionFragment extends Fragment {
       LOGGER.i("Opening camera preview: " + previewSize.getWidth() + "x" + previewSize.getHeight());
 
       // Create the reader for the preview frames.
+      closeReaders();
       previewReader =
           ImageReader.newInstance(
               previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 2);
 
       previewReader.setOnImageAvailableListener(imageListener, backgroundHandler);
       previewRequestBuilder.addTarget(previewReader.getSurface());
+      final List<Surface> outputs =
+          new ArrayList<>(Arrays.asList(surface, previewReader.getSurface()));
+
+      // And the reader for the smaller frames of the network, if any.
+      final OnImageAvailableListener networkListener = networkImageListener;
+      if (null != networkStreamSize && null != networkListener) {
+        LOGGER.i(
+            "Opening network stream: "
+                + networkStreamSize.getWidth()
+                + "x"
+                + networkStreamSize.getHeight());
+        networkReader =
+            ImageReader.newInstance(
+                networkStreamSize.getWidth(),
+                networkStreamSize.getHeight(),
+                ImageFormat.YUV_420_888,
+                2);
+        networkReader.setOnImageAvailableListener(networkListener, backgroundHandler);
+        previewRequestBuilder.addTarget(networkReader.getSurface());
+        outputs.add(networkReader.getSurface());
+      }
 
       // Here, we create a CameraCaptureSession for camera preview.
       cameraDevice.createCaptureSession(
-          Arrays.asList(surface, previewReader.getSurface()),
+          outputs,
           new CameraCaptureSession.StateCallback() {
 
             @Override
@@ -497,6 +568,14 @@ public class CameraConnectionFragment extends Fragment {
 
             @Override
             public void onConfigureFailed(final CameraCaptureSession cameraCaptureSession) {
+              if (null != networkReader && null != cameraDevice) {
+                // Not every camera supports a third stream, the network uses the preview then.
+                LOGGER.w("Failed to configure the network stream, using the preview frames.");
+                networkStreamUnsupported = true;
+                networkStreamSize = null;
+                createCameraPreviewSession();
+                return;
+              }
               showToast("Failed");
             }
           },
@@ -548,16 +627,6 @@ public class CameraConnectionFragment extends Fragment {
     void onPreviewSizeChosen(Size size, int cameraRotation);
   }
 
-  /** Compares two {@code Size}s based on their areas. */
-  static class CompareSizesByArea implements Comparator<Size> {
-    @Override
-    public int compare(final Size lhs, final Size rhs) {
-      // We cast here to ensure the multiplications won't overflow
-      return Long.signum(
-          (long) lhs.getWidth() * lhs.getHeight() - (long) rhs.getWidth() * rhs.getHeight());
-    }
-  }
-
   /** Shows an error message dialog. */
   public static class ErrorDialog extends DialogFragment {
     private static final String ARG_MESSAGE = "message";
@@ -19,11 +19,9 @@ package org.openbot.robot;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Matrix;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.media.ImageReader.OnImageAvailableListener;
@@ -36,22 +34,41 @@ import android.view.KeyEvent;
 import android.view.MotionEvent;
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.openbot.R;
 import org.openbot.common.Enums.*;
 import org.openbot.customview.OverlayView;
 import org.openbot.customview.OverlayView.DrawCallback;
 import org.openbot.env.BorderedText;
 import org.openbot.env.BotToControllerEventBus;
+import org.openbot.env.CaptureSizes;
 import org.openbot.env.ImageUtils;
 import org.openbot.env.Logger;
+import org.openbot.env.NoiseGenerator;
+import org.openbot.env.Vehicle;
+import org.openbot.env.VehicleCommandWriter;
+import org.openbot.pipeline.DetectionScheduler;
+import org.openbot.pipeline.FrameQueue;
+import org.openbot.pipeline.LatencyTracer;
+import org.openbot.pipeline.ParallelStage;
+import org.openbot.pipeline.Pipeline;
+import org.openbot.pipeline.PoolBenchmark;
+import org.openbot.pipeline.Stage;
+import org.openbot.replay.ReplayEngine;
+import org.openbot.replay.SessionReader;
 import org.openbot.tflite.Autopilot;
+import org.openbot.tflite.Autotuner;
 import org.openbot.tflite.Detector;
+import org.openbot.tflite.ModelRegistry;
+import org.openbot.tflite.Network;
 import org.openbot.tflite.Network.Device;
 import org.openbot.tflite.Network.Model;
 import org.openbot.tracking.MultiBoxTracker;
@@ -65,22 +82,51 @@ public class NetworkActivity extends CameraActivity implements OnImageAvailableL
 
   // Minimum detection confidence to track a detection.
   private static final float MINIMUM_CONFIDENCE_TF_OD_API = 0.5f;
+  // Classes the detector looks for, the tracker follows the most confident one.
+  private static final String[] TARGET_CLASSES = {"person"};
   private static final Size DESIRED_PREVIEW_SIZE = new Size(1280, 720); // 16:9
 
   private static final float TEXT_SIZE_DIP = 10;
+  // Frames queued in front of each pipeline stage before the oldest is dropped.
+  private static final int PIPELINE_QUEUE_CAPACITY = 1;
+  // Share of the time the detector may use and maximum number of frames from one detection to the
+  // next, the tracked objects are predicted on the frames in between. See DetectionScheduler.
+  private static final double DETECTOR_TIME_SHARE = 0.75;
+  private static final int MAX_DETECTION_INTERVAL = 10;
+  // Limits of the inference pool benchmark, see benchmarkInferencePool().
+  private static final int BENCHMARK_MAX_INTERPRETERS = 4;
+  private static final int BENCHMARK_MAX_THREADS = 8;
+  private static final long BENCHMARK_WARM_UP_MS = 2000;
+  private static final long BENCHMARK_DURATION_MS = 5000;
+  // Inferences before and during the timing of each autotuned configuration, see autotune().
+  private static final int AUTOTUNE_WARM_UPS = 5;
+  private static final int AUTOTUNE_RUNS = 20;
+  private static final NoiseGenerator.Profile NOISE_PROFILE = NoiseGenerator.Profile.RAMP;
   OverlayView trackingOverlay;
   private Integer sensorOrientation;
 
   private Detector detector;
   private Autopilot autoPilot;
+  // Further interpreters of the same model that run the network on alternate frames.
+  private final List<Network> poolNetworks = new ArrayList<>();
 
   private long lastProcessingTimeMs;
   private Bitmap rgbFrameBitmap = null;
   private Bitmap croppedBitmap = null;
-  private Bitmap cropCopyBitmap = null;
 
-  private boolean computingNetwork = false;
+  // Pipeline from the camera to the vehicle and the queue of its first stage, see startPipeline().
+  private volatile Pipeline pipeline;
+  private volatile FrameQueue<CameraFrame> cameraFrames;
+  // Frames the detector runs on, null if the pipeline runs the autopilot.
+  private volatile DetectionScheduler detectionScheduler;
+  // Control of the vehicle, reused for every frame. Only used by the control stage.
+  private final Vehicle.Control resultControl = new Vehicle.Control(0, 0);
+  // Control toward the predicted target, only used on the camera thread, see applyPrediction().
+  private final Vehicle.Control predictionControl = new Vehicle.Control(0, 0);
   private long frameNum = 0;
+  // Incremented for every change of the inference configuration, see
+  // onInferenceConfigurationChanged().
+  private final AtomicInteger networkGeneration = new AtomicInteger();
 
   private Matrix frameToCropTransform;
   private Matrix cropToFrameTransform;
@@ -111,7 +157,7 @@ public class NetworkActivity extends CameraActivity implements OnImageAvailableL
     LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
     rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
 
-    recreateNetwork(getModel(), getDevice(), getNumThreads());
+    recreateNetwork(getModel(), getDevice(), getNumThreads(), getNumInterpreters());
     if (detector == null && autoPilot == null) {
       LOGGER.e("No network on preview!");
       return;
@@ -137,131 +183,475 @@ public class NetworkActivity extends CameraActivity implements OnImageAvailableL
     final long currFrameNum = frameNum;
     // trackingOverlay.postInvalidate();
 
-    // If network is busy and we don't need to log any image, return.
-    if (computingNetwork && !loggingEnabled) {
-      readyForNextImage();
-      return;
-    }
-
     final boolean SAVE_PREVIEW_BITMAP =
         logMode.equals(LogMode.ALL_IMGS) || logMode.equals(LogMode.PREVIEW_IMG);
     final boolean SAVE_CROP_BITMAP =
         logMode.equals(LogMode.ALL_IMGS) || logMode.equals(LogMode.CROP_IMG);
+    final boolean savePreview = loggingEnabled && SAVE_PREVIEW_BITMAP;
+    final boolean saveCrop = loggingEnabled && SAVE_CROP_BITMAP;
 
-    rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
-    if (loggingEnabled && SAVE_PREVIEW_BITMAP) {
-      runInBackground(
-          () ->
-              ImageUtils.saveBitmap(
-                  rgbFrameBitmap,
-                  logFolder + File.separator + "images",
-                  currFrameNum + "_preview.jpeg"));
+    // Network is control of the vehicle. The camera planes are only valid until the image is
+    // released, so a copy of the frame is handed to the pipeline. The pipeline drops frames that
+    // could not be processed in time instead of blocking the camera.
+    final FrameQueue<CameraFrame> frames = cameraFrames;
+    final DetectionScheduler scheduler = detectionScheduler;
+    // On frames the detector skips, the tracked objects are predicted on this thread instead.
+    final boolean predictOnly =
+        networkEnabled
+            && frames != null
+            && scheduler != null
+            && !scheduler.shouldDetect(currFrameNum, getImageAvailableNanos());
+    final boolean runNetwork = networkEnabled && frames != null && !predictOnly;
+    final boolean sampleYuv = runNetwork && hasYuvPlanes();
+
+    final int[] rgbBytes =
+        savePreview || saveCrop || (runNetwork && !sampleYuv) ? getRgbBytes() : null;
+    if (savePreview || saveCrop) {
+      rgbFrameBitmap.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
+    }
+    if (savePreview) {
+      runInBackground(() -> saveBitmapToLog(rgbFrameBitmap, currFrameNum + "_preview.jpeg"));
       if (!SAVE_CROP_BITMAP) sendFrameNumberToSensorService(currFrameNum);
     }
 
+    if (runNetwork) {
+      latencyTracer.begin(currFrameNum, getCaptureNanos(), getImageAvailableNanos());
+      final CameraFrame frame = frames.acquire();
+      frame.frameNum = currFrameNum;
+      if (sampleYuv && hasNetworkPlanes()) {
+        frame.setYuv(
+            getNetworkYuvBytes(),
+            getNetworkFrameWidth(),
+            getNetworkFrameHeight(),
+            getNetworkLuminanceStride(),
+            getNetworkUvRowStride(),
+            getNetworkUvPixelStride());
+      } else if (sampleYuv) {
+        frame.setYuv(
+            getYuvBytes(),
+            previewWidth,
+            previewHeight,
+            getLuminanceStride(),
+            getUvRowStride(),
+            getUvPixelStride());
+      } else {
+        frame.setArgb(rgbBytes);
+      }
+      latencyTracer.mark(currFrameNum, LatencyTracer.Point.CONVERTED);
+      frames.publish(frame);
+    }
+
     readyForNextImage();
-    // If network is busy and we don't need to log the crop, return.
-    if (computingNetwork && !SAVE_CROP_BITMAP) {
-      return;
+
+    if (predictOnly) {
+      applyPrediction(currFrameNum);
     }
 
-    final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
     // For examining the actual TF input.
-    if (loggingEnabled && SAVE_CROP_BITMAP) {
-      runInBackground(
-          () ->
-              ImageUtils.saveBitmap(
-                  croppedBitmap,
-                  logFolder + File.separator + "images",
-                  currFrameNum + "_crop.jpeg"));
+    if (saveCrop) {
+      final Canvas canvas = new Canvas(croppedBitmap);
+      canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
+      runInBackground(() -> saveBitmapToLog(croppedBitmap, currFrameNum + "_crop.jpeg"));
       sendFrameNumberToSensorService(currFrameNum);
     }
 
-    // Network is control of the vehicle
-    if (networkEnabled) {
-      // If network is busy, return.
-      if (computingNetwork) {
-        return;
+    runOnUiThread(
+        () -> {
+          frameValueTextView.setText(
+              String.format(Locale.US, "%d x %d", previewWidth, previewHeight));
+          cropValueTextView.setText(
+              String.format(
+                  Locale.US, "%d x %d", croppedBitmap.getWidth(), croppedBitmap.getHeight()));
+          if (networkEnabled)
+            inferenceTimeTextView.setText(String.format(Locale.US, "%d ms", lastProcessingTimeMs));
+        });
+  }
+
+  /**
+   * Starts the pipeline from the camera to the vehicle for the current network. The camera thread
+   * converts and copies the frames, the remaining stages run on their own threads:
+   *
+   * <ul>
+   *   <li>preprocess: writes the network input of a frame into one of several input buffers,
+   *   <li>inference: runs the network, so the next frame can be preprocessed in the meantime,
+   *   <li>control: tracks the detections and controls the vehicle.
+   * </ul>
+   *
+   * <p>With several interpreters, the inference stage runs one per worker and the frames go to the
+   * least busy one, see {@link ParallelStage}.
+   *
+   * <p>For a detector, only the frames picked by the {@link DetectionScheduler} enter the pipeline,
+   * at most one per interpreter at a time. On the other frames the camera thread predicts the
+   * tracked objects and controls the vehicle.
+   */
+  private void startPipeline() {
+    final Detector detector = this.detector;
+    final Autopilot autoPilot = this.autoPilot;
+    final Network network = detector != null ? detector : autoPilot;
+    if (pipeline != null || network == null) {
+      return;
+    }
+
+    final FrameQueue<CameraFrame> frames =
+        new FrameQueue<>("preprocess", PIPELINE_QUEUE_CAPACITY, CameraFrame::new);
+    final List<Stage.Processor<InputFrame, ResultFrame>> processors = new ArrayList<>();
+    processors.add(createInferenceProcessor(network));
+    for (Network poolNetwork : poolNetworks) {
+      processors.add(createInferenceProcessor(poolNetwork));
+    }
+    final int numWorkers = processors.size();
+    final FrameQueue<InputFrame> inputs =
+        new FrameQueue<>(
+            "inference",
+            PIPELINE_QUEUE_CAPACITY,
+            1,
+            numWorkers > 1 ? numWorkers + 1 : 1,
+            () -> new InputFrame(network.createInputBuffer()));
+    final FrameQueue<ResultFrame> results =
+        new FrameQueue<>("control", PIPELINE_QUEUE_CAPACITY, numWorkers, 1, ResultFrame::new);
+    final Stage<InputFrame, ResultFrame> inference =
+        numWorkers > 1
+            ? new ParallelStage<>(
+                "inference", inputs, results, processors, ParallelStage.Dispatch.LEAST_BUSY)
+            : new Stage<>("inference", inputs, results, processors.get(0));
+
+    pipeline =
+        new Pipeline()
+            .addStage(new Stage<>("preprocess", frames, inputs, new PreprocessStage(network)))
+            .addStage(inference)
+            .addStage(
+                new Stage<ResultFrame, Void>(
+                    "control",
+                    results,
+                    null,
+                    (result, unused) -> {
+                      applyResult(result, detector != null);
+                      return false;
+                    }));
+    pipeline.start();
+    detectionScheduler =
+        detector != null
+            ? new DetectionScheduler(DETECTOR_TIME_SHARE, MAX_DETECTION_INTERVAL, numWorkers)
+            : null;
+    cameraFrames = frames;
+  }
+
+  /** Runs a network on the input of a frame, on the inference stage of the pipeline. */
+  private Stage.Processor<InputFrame, ResultFrame> createInferenceProcessor(Network network) {
+    final Detector detector = network instanceof Detector ? (Detector) network : null;
+    final Autopilot autoPilot = network instanceof Autopilot ? (Autopilot) network : null;
+    return (input, result) -> {
+      if (LOGGER.checkLoggable(Log.VERBOSE)) {
+        LOGGER.v("Running network on image %d", input.frameNum);
+      }
+      final long startTime = SystemClock.elapsedRealtime();
+      network.setInputBuffer(input.buffer);
+      if (detector != null) {
+        detector.recognizeImage(result.detections, result.holders);
+      } else {
+        autoPilot.recognizeImage(vehicle.getIndicator(), result.control);
       }
+      result.frameNum = input.frameNum;
+      result.processingTimeMs = SystemClock.elapsedRealtime() - startTime;
+      latencyTracer.mark(input.frameNum, LatencyTracer.Point.INFERENCE_DONE);
+      return true;
+    };
+  }
 
-      computingNetwork = true;
-      LOGGER.i("Putting image " + currFrameNum + " for detection in bg thread.");
+  /**
+   * Measures the throughput of the inference stage for pools of 1 to {@link
+   * #BENCHMARK_MAX_INTERPRETERS} interpreters with 1 to {@link #BENCHMARK_MAX_THREADS} threads
+   * each, at most one thread per core in total, and logs the results. The pipeline is stopped in
+   * the meantime. Started with the "benchmark_inference_pool" extra of the intent, runs on the
+   * background thread.
+   */
+  private void benchmarkInferencePool(ModelRegistry.Entry model, Device device) {
+    final Network network = detector != null ? detector : autoPilot;
+    if (network == null) {
+      return;
+    }
+    stopPipeline();
+    final List<Network> networks = new ArrayList<>();
+    final PoolBenchmark<InputFrame, ResultFrame> benchmark =
+        new PoolBenchmark<>(
+            new PoolBenchmark.Target<InputFrame, ResultFrame>() {
+              @Override
+              public List<Stage.Processor<InputFrame, ResultFrame>> open(
+                  int numWorkers, int numThreads) throws IOException {
+                final List<Stage.Processor<InputFrame, ResultFrame>> processors = new ArrayList<>();
+                for (int i = 0; i < numWorkers; ++i) {
+                  final Network worker = createNetwork(model, device, numThreads);
+                  networks.add(worker);
+                  processors.add(createInferenceProcessor(worker));
+                }
+                return processors;
+              }
 
-      runInBackground(
-          () -> {
-            if (detector != null) {
-              LOGGER.i("Running detection on image " + currFrameNum);
-              final long startTime = SystemClock.elapsedRealtime();
-              final List<Detector.Recognition> results = detector.recognizeImage(croppedBitmap);
-              lastProcessingTimeMs = SystemClock.elapsedRealtime() - startTime;
-
-              if (!results.isEmpty())
-                LOGGER.i(
-                    "Object: "
-                        + results.get(0).getLocation().centerX()
-                        + ", "
-                        + results.get(0).getLocation().centerY()
-                        + ", "
-                        + results.get(0).getLocation().height()
-                        + ", "
-                        + results.get(0).getLocation().width());
-
-              cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-              final Canvas canvas1 = new Canvas(cropCopyBitmap);
-              final Paint paint = new Paint();
-              paint.setColor(Color.RED);
-              paint.setStyle(Style.STROKE);
-              paint.setStrokeWidth(2.0f);
-
-              float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-
-              final List<Detector.Recognition> mappedRecognitions =
-                  new LinkedList<Detector.Recognition>();
-
-              for (final Detector.Recognition result : results) {
-                final RectF location = result.getLocation();
-                if (location != null && result.getConfidence() >= minimumConfidence) {
-                  canvas1.drawRect(location, paint);
-                  cropToFrameTransform.mapRect(location);
-                  result.setLocation(location);
-                  mappedRecognitions.add(result);
+              @Override
+              public void close() {
+                for (Network worker : networks) {
+                  worker.close();
                 }
+                networks.clear();
               }
+            },
+            () -> new InputFrame(network.createInputBuffer()),
+            ResultFrame::new,
+            ParallelStage.Dispatch.LEAST_BUSY);
+    try {
+      LOGGER.i("Benchmarking inference pool (model=%s, device=%s).", model, device);
+      for (PoolBenchmark.Result result :
+          benchmark.sweep(
+              BENCHMARK_MAX_INTERPRETERS,
+              BENCHMARK_MAX_THREADS,
+              Runtime.getRuntime().availableProcessors(),
+              BENCHMARK_WARM_UP_MS,
+              BENCHMARK_DURATION_MS)) {
+        LOGGER.i("Inference pool: %s", result);
+      }
+    } catch (Exception e) {
+      LOGGER.e(e, "Failed to benchmark inference pool.");
+    }
+    startPipeline();
+  }
 
-              tracker.trackResults(mappedRecognitions, currFrameNum);
-              vehicle.setControl(tracker.updateTarget());
-              trackingOverlay.postInvalidate();
-            } else if (autoPilot != null) {
-              LOGGER.i("Running autopilot on image " + currFrameNum);
-              final long startTime = SystemClock.elapsedRealtime();
-              vehicle.setControl(autoPilot.recognizeImage(croppedBitmap, vehicle.getIndicator()));
-              lastProcessingTimeMs = SystemClock.elapsedRealtime() - startTime;
-            }
+  /**
+   * Times every model on every device, on the CPU with 1 to {@link #BENCHMARK_MAX_THREADS} threads
+   * (at most one per core), and stores the fastest configuration of each model for this phone. The
+   * inputs are blank frames, the time of an inference hardly depends on the content. The pipeline
+   * is stopped in the meantime. Started with the "autotune" extra of the intent, runs on the
+   * background thread.
+   */
+  private void autotune() {
+    stopPipeline();
+    final Autotuner autotuner =
+        new Autotuner(
+            (modelName, config) -> {
+              final Network network =
+                  createNetwork(
+                      modelRegistry.get(modelName),
+                      Device.valueOf(config.device),
+                      config.numThreads);
+              final Stage.Processor<InputFrame, ResultFrame> processor =
+                  createInferenceProcessor(network);
+              final InputFrame input = new InputFrame(network.createInputBuffer());
+              final ResultFrame result = new ResultFrame();
+              return new Autotuner.Interpreter() {
+                @Override
+                public void run() {
+                  processor.process(input, result);
+                }
+
+                @Override
+                public void close() {
+                  network.close();
+                }
+              };
+            },
+            AUTOTUNE_WARM_UPS,
+            AUTOTUNE_RUNS);
+    final List<Autotuner.Config> configs =
+        Autotuner.configs(
+            Device.CPU.name(),
+            Math.min(BENCHMARK_MAX_THREADS, Runtime.getRuntime().availableProcessors()),
+            Device.GPU.name(),
+            Device.NNAPI.name());
+    for (ModelRegistry.Entry model : modelRegistry.getEntries()) {
+      final List<Autotuner.Result> results = autotuner.sweep(model.name, configs);
+      for (Autotuner.Result result : results) {
+        LOGGER.i("Autotune: %s", result);
+      }
+      final Autotuner.Result best = Autotuner.best(results);
+      if (best != null) {
+        LOGGER.i("Autotuned %s: %s", model, best.config);
+        saveAutotunedConfig(model, best.config);
+      }
+    }
+    startPipeline();
+    runOnUiThread(this::applyAutotunedConfig);
+  }
 
-            computingNetwork = false;
+  /**
+   * Replays a recorded session through the network, tracker and control and logs how fast it ran,
+   * the latency of each stage and how far the control is from the logged one. The pipeline is
+   * stopped in the meantime. Started with the "replay_session" extra of the intent, the path of a
+   * log folder or its zip archive, at the speed of the "replay_speed" extra (as fast as possible by
+   * default). Runs on the background thread.
+   */
+  private void replaySession(String path, double speed) {
+    final Network network = detector != null ? detector : autoPilot;
+    if (network == null) {
+      return;
+    }
+    stopPipeline();
+    final int width = network.getImageSizeX();
+    final int height = network.getImageSizeY();
+    final Bitmap scaledBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+    final Canvas scaledCanvas = new Canvas(scaledBitmap);
+    final ReplayEngine.ImageDecoder decoder =
+        (data, pixels, w, h) -> {
+          final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+          if (bitmap == null) {
+            throw new IOException("Cannot decode image.");
+          }
+          if (bitmap.getWidth() == w && bitmap.getHeight() == h) {
+            bitmap.getPixels(pixels, 0, w, 0, 0, w, h);
+          } else {
+            // A preview instead of a crop.
+            scaledCanvas.drawBitmap(bitmap, null, new RectF(0, 0, w, h), null);
+            scaledBitmap.getPixels(pixels, 0, w, 0, 0, w, h);
+          }
+          bitmap.recycle();
+        };
+    // Separate tracker, so the overlay is not affected.
+    final MultiBoxTracker replayTracker = new MultiBoxTracker(this);
+    replayTracker.setFrameConfiguration(previewWidth, previewHeight, sensorOrientation);
+    final List<Detector.Recognition> recognitions = new ArrayList<>();
+    final List<Detector.Recognition> holders = new ArrayList<>();
+    final Vehicle.Control control = new Vehicle.Control(0, 0);
+    final int speedMultiplier = vehicle.getSpeedMultiplier();
+    final ReplayEngine.Policy policy =
+        new ReplayEngine.Policy() {
+          @Override
+          public int getInputWidth() {
+            return width;
+          }
+
+          @Override
+          public int getInputHeight() {
+            return height;
+          }
+
+          @Override
+          public ByteBuffer createInput() {
+            return network.createInputBuffer();
+          }
+
+          @Override
+          public void preprocess(int[] pixels, ByteBuffer input) {
+            network.convertPixelsToByteBuffer(pixels, input);
+          }
 
-            if (loggingEnabled) {
-              sendInferenceTimeToSensorService(currFrameNum, lastProcessingTimeMs);
+          @Override
+          public void control(long frameNum, ByteBuffer input, int indicator, float[] result) {
+            network.setInputBuffer(input);
+            if (detector != null) {
+              detector.recognizeImage(recognitions, holders);
+              for (final Detector.Recognition recognition : recognitions) {
+                recognition.mapLocation(cropToFrameTransform);
+              }
+              replayTracker.trackResults(recognitions, frameNum);
+              replayTracker.updateTarget(control);
+            } else {
+              autoPilot.recognizeImage(indicator, control);
             }
+            // The control log holds the commands sent to the vehicle.
+            result[0] = control.getLeft() * speedMultiplier;
+            result[1] = control.getRight() * speedMultiplier;
+          }
+        };
+    try (SessionReader session = new SessionReader(new File(path))) {
+      LOGGER.i("Replaying %s at speed %s.", path, speed);
+      final ReplayEngine.Report report = new ReplayEngine(session, decoder, policy).run(speed);
+      LOGGER.i("Replay: %s", report);
+      LOGGER.i("Replay latencies:\n%s", report.latencies);
+    } catch (IOException e) {
+      LOGGER.e(e, "Failed to replay %s.", path);
+    } catch (InterruptedException e) {
+      LOGGER.e(e, "Got interrupted.");
+      Thread.currentThread().interrupt();
+    }
+    startPipeline();
+  }
 
-            updateVehicleState();
-          });
+  /** Stops the pipeline and waits until the network is no longer used by it. */
+  private void stopPipeline() {
+    final Pipeline pipeline = this.pipeline;
+    if (pipeline == null) {
+      return;
+    }
+    cameraFrames = null;
+    detectionScheduler = null;
+    this.pipeline = null;
+    try {
+      pipeline.stop();
+      LOGGER.i("Stopped pipeline (%s).", pipeline.getStats());
+    } catch (InterruptedException e) {
+      LOGGER.e(e, "Got interrupted.");
     }
+  }
 
-    runOnUiThread(
-        () -> {
-          frameValueTextView.setText(
-              String.format(Locale.US, "%d x %d", previewWidth, previewHeight));
-          cropValueTextView.setText(
-              String.format(
-                  Locale.US, "%d x %d", croppedBitmap.getWidth(), croppedBitmap.getHeight()));
-          if (networkEnabled)
-            inferenceTimeTextView.setText(String.format(Locale.US, "%d ms", lastProcessingTimeMs));
-        });
+  /** Returns the queue depth and drop counters of every stage of the running pipeline. */
+  protected String getPipelineStats() {
+    final Pipeline pipeline = this.pipeline;
+    if (pipeline == null) {
+      return "";
+    }
+    final DetectionScheduler scheduler = detectionScheduler;
+    return scheduler != null
+        ? pipeline.getStats() + ", detection interval " + scheduler.getInterval()
+        : pipeline.getStats();
+  }
+
+  /** Runs on the control stage of the pipeline. */
+  private void applyResult(ResultFrame result, boolean isDetection) {
+    if (!networkEnabled) {
+      // The network was switched off while this frame was in the pipeline.
+      return;
+    }
+    lastProcessingTimeMs = result.processingTimeMs;
+
+    if (isDetection) {
+      final List<Detector.Recognition> results = result.detections;
+      if (!results.isEmpty() && LOGGER.checkLoggable(Log.VERBOSE)) {
+        LOGGER.v("Object: %s", results.get(0));
+      }
+
+      // The detector already filtered the recognitions by class and confidence.
+      for (final Detector.Recognition recognition : results) {
+        recognition.mapLocation(cropToFrameTransform);
+      }
+
+      tracker.trackResults(results, result.frameNum);
+      tracker.updateTarget(resultControl);
+      vehicle.setControl(resultControl);
+      trackingOverlay.postInvalidate();
+      final DetectionScheduler scheduler = detectionScheduler;
+      if (scheduler != null) {
+        scheduler.onDetectionDone(result.frameNum, System.nanoTime());
+      }
+    } else {
+      vehicle.setControl(result.control);
+    }
+    latencyTracer.mark(result.frameNum, LatencyTracer.Point.TARGET_DONE);
+
+    if (loggingEnabled) {
+      sendInferenceTimeToSensorService(result.frameNum, lastProcessingTimeMs);
+    }
+
+    // The latency trace of the frame ends once the writer thread sent the control.
+    updateVehicleState(result.frameNum);
+  }
+
+  /**
+   * Runs on the camera thread for frames without detection: steers toward the predicted position of
+   * the target, so the control is updated at the camera frame rate.
+   */
+  private void applyPrediction(long frameNum) {
+    tracker.predict(frameNum);
+    tracker.updateTarget(predictionControl);
+    vehicle.setControl(predictionControl);
+    trackingOverlay.postInvalidate();
+    updateVehicleState();
   }
 
   protected void updateVehicleState() {
+    updateVehicleState(VehicleCommandWriter.NO_FRAME);
+  }
+
+  // Sends the control of the vehicle, which was computed from the frame, see
+  // sendControlToVehicle(long).
+  private void updateVehicleState(long frameNum) {
 
     float left;
     float right;
@@ -271,14 +661,15 @@ public class NetworkActivity extends CameraActivity implements OnImageAvailableL
       runInBackground(this::sendControlToSensorService);
     }
 
+    final Vehicle.State state = vehicle.getState();
     if (noiseEnabled) {
-      left = vehicle.getNoisyControl().getLeft();
-      right = vehicle.getNoisyControl().getRight();
-      sendNoisyControlToVehicle();
+      left = state.getNoisyLeft();
+      right = state.getNoisyRight();
+      sendNoisyControlToVehicle(frameNum);
     } else {
-      left = vehicle.getControl().getLeft();
-      right = vehicle.getControl().getRight();
-      sendControlToVehicle();
+      left = state.getLeft();
+      right = state.getRight();
+      sendControlToVehicle(frameNum);
     }
 
     // Update GUI
@@ -293,24 +684,37 @@ public class NetworkActivity extends CameraActivity implements OnImageAvailableL
         });
   }
 
-  private Timer noiseTimer;
+  // Steps the noise at a fixed rate, shared by all instances instead of a Timer per toggle.
+  private static final ScheduledExecutorService noiseExecutor =
+      Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "noise"));
 
-  private class NoiseTask extends TimerTask {
-    @Override
-    public void run() {
-      vehicle.applyNoise();
-      updateVehicleState();
-    }
-  }
+  private ScheduledFuture<?> noiseTask;
 
   protected void toggleNoise() {
     noiseEnabled = !noiseEnabled;
     BotToControllerEventBus.emitEvent(createStatus("NOISE", noiseEnabled));
     if (noiseEnabled) {
-      noiseTimer = new Timer();
-      NoiseTask noiseTask = new NoiseTask();
-      noiseTimer.schedule(noiseTask, 0, 50); // no delay 50ms intervals
-    } else noiseTimer.cancel();
+      final NoiseGenerator.Config config =
+          new NoiseGenerator.Config(NOISE_PROFILE, System.nanoTime());
+      LOGGER.i("Noise: " + config);
+      vehicle.setNoise(new NoiseGenerator(config));
+      noiseTask =
+          noiseExecutor.scheduleAtFixedRate(
+              () -> {
+                vehicle.applyNoise();
+                updateVehicleState();
+              },
+              0,
+              config.periodMs,
+              TimeUnit.MILLISECONDS);
+    } else {
+      if (noiseTask != null) noiseTask.cancel(false);
+      noiseTask = null;
+      vehicle.setNoise(null);
+    }
+    if (loggingEnabled) {
+      runInBackground(this::sendNoiseToSensorService);
+    }
     updateVehicleState();
   }
 
@@ -362,21 +766,94 @@ public class NetworkActivity extends CameraActivity implements OnImageAvailableL
     speedModeSpinner.setEnabled(!networkEnabled);
   }
 
+  @Override
+  public synchronized void onResume() {
+    super.onResume();
+    // The pipeline is stopped while paused, the network (if any) is still there.
+    runInBackground(this::startPipeline);
+  }
+
+  @Override
+  public synchronized void onPause() {
+    // Waits for a pending recreation of the network before the pipeline is stopped.
+    super.onPause();
+    stopPipeline();
+  }
+
   @Override
   protected void onInferenceConfigurationChanged() {
-    computingNetwork = false;
     if (croppedBitmap == null) {
       // Defer creation until we're getting camera frames.
       return;
     }
     final Device device = getDevice();
-    final Model model = getModel();
+    final ModelRegistry.Entry model = getModel();
     final int numThreads = getNumThreads();
-    runInBackground(() -> recreateNetwork(model, device, numThreads));
+    final int numInterpreters = getNumInterpreters();
+    // Skip a configuration that was changed again before its networks were created.
+    final int generation = networkGeneration.incrementAndGet();
+    runInBackground(
+        () -> {
+          if (generation == networkGeneration.get()) {
+            recreateNetwork(model, device, numThreads, numInterpreters);
+          }
+        });
   }
 
-  private void recreateNetwork(Model model, Device device, int numThreads) {
-    tracker.clearTrackedObjects();
+  /** Creates a detector or autopilot for the model, detectors keep only the target classes. */
+  private Network createNetwork(ModelRegistry.Entry model, Device device, int numThreads)
+      throws IOException {
+    if (isDetector(model.type)) {
+      final Detector detector = Detector.create(this, model, device, numThreads);
+      detector.setTargetClasses(TARGET_CLASSES);
+      detector.setMinimumConfidence(MINIMUM_CONFIDENCE_TF_OD_API);
+      return detector;
+    }
+    return Autopilot.create(this, model, device, numThreads);
+  }
+
+  private static boolean isDetector(Model model) {
+    return model == Model.DETECTOR_V1_1_0_Q
+        || model == Model.DETECTOR_V3_S_Q
+        || model == Model.DETECTOR_V1_RAW_F;
+  }
+
+  /**
+   * Creates the networks of the model and swaps them in. The new interpreters are created and
+   * warmed up while the current ones keep driving, only the pipeline is restarted for the swap. The
+   * current networks stay if the new ones cannot be created.
+   */
+  private void recreateNetwork(
+      ModelRegistry.Entry model, Device device, int numThreads, int numInterpreters) {
+    if (model == null) {
+      LOGGER.e("No model to run.");
+      return;
+    }
+    LOGGER.d(
+        "Creating %d network(s) (model=%s, device=%s, numThreads=%d)",
+        numInterpreters, model, device, numThreads);
+    // The pool shares the memory-mapped model, each interpreter has its own buffers.
+    final List<Network> networks = new ArrayList<>();
+    try {
+      for (int i = 0; i < Math.max(1, numInterpreters); ++i) {
+        final Network network = createNetwork(model, device, numThreads);
+        networks.add(network);
+        warmUp(network);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.e(e, "Failed to create network, keeping the current one.");
+      for (Network network : networks) {
+        network.close();
+      }
+      return;
+    }
+
+    final boolean wasDetector = detector != null;
+    stopPipeline();
+    for (Network poolNetwork : poolNetworks) {
+      poolNetwork.close();
+    }
+    poolNetworks.clear();
     if (detector != null) {
       LOGGER.d("Closing detector.");
       detector.close();
@@ -388,46 +865,78 @@ public class NetworkActivity extends CameraActivity implements OnImageAvailableL
       autoPilot = null;
     }
 
-    try {
-      if (model == Model.DETECTOR_V1_1_0_Q || model == Model.DETECTOR_V3_S_Q) {
-        LOGGER.d(
-            "Creating detector (model=%s, device=%s, numThreads=%d)", model, device, numThreads);
-        detector = Detector.create(this, model, device, numThreads);
-        croppedBitmap =
-            Bitmap.createBitmap(
-                detector.getImageSizeX(), detector.getImageSizeY(), Config.ARGB_8888);
-        frameToCropTransform =
-            ImageUtils.getTransformationMatrix(
-                previewWidth,
-                previewHeight,
-                croppedBitmap.getWidth(),
-                croppedBitmap.getHeight(),
-                sensorOrientation,
-                detector.getCropRect(),
-                detector.getMaintainAspect());
-      } else {
-        LOGGER.d(
-            "Creating autopilot (model=%s, device=%s, numThreads=%d)", model, device, numThreads);
-        autoPilot = Autopilot.create(this, model, device, numThreads);
-        croppedBitmap =
-            Bitmap.createBitmap(
-                autoPilot.getImageSizeX(), autoPilot.getImageSizeY(), Config.ARGB_8888);
-        frameToCropTransform =
-            ImageUtils.getTransformationMatrix(
-                previewWidth,
-                previewHeight,
-                croppedBitmap.getWidth(),
-                croppedBitmap.getHeight(),
-                sensorOrientation,
-                autoPilot.getCropRect(),
-                autoPilot.getMaintainAspect());
-      }
+    final Network network = networks.get(0);
+    if (network instanceof Detector) {
+      detector = (Detector) network;
+    } else {
+      autoPilot = (Autopilot) network;
+    }
+    // Another detector keeps following the tracked objects.
+    if (!wasDetector || detector == null) {
+      tracker.clearTrackedObjects();
+    }
+    croppedBitmap =
+        Bitmap.createBitmap(network.getImageSizeX(), network.getImageSizeY(), Config.ARGB_8888);
+    frameToCropTransform =
+        ImageUtils.getTransformationMatrix(
+            previewWidth,
+            previewHeight,
+            croppedBitmap.getWidth(),
+            croppedBitmap.getHeight(),
+            sensorOrientation,
+            network.getCropRect(),
+            network.getMaintainAspect());
+    cropToFrameTransform = new Matrix();
+    frameToCropTransform.invert(cropToFrameTransform);
+    for (Network each : networks) {
+      each.setFrameTransform(previewWidth, previewHeight, cropToFrameTransform);
+    }
+    poolNetworks.addAll(networks.subList(1, networks.size()));
+    setNetworkStream(
+        getIntent().getBooleanExtra("network_stream", true) ? getNetworkStreamScale(network) : 0);
+    if (!poolNetworks.isEmpty()) {
+      LOGGER.d("Created inference pool of %d interpreters.", networks.size());
+    }
+    startPipeline();
+    // The first network is created on the UI thread, these runs take minutes.
+    if (getIntent().getBooleanExtra("autotune", false)) {
+      getIntent().removeExtra("autotune");
+      runInBackground(this::autotune);
+    }
+    if (getIntent().getBooleanExtra("benchmark_inference_pool", false)) {
+      // Only once, not again when the network is recreated.
+      getIntent().removeExtra("benchmark_inference_pool");
+      runInBackground(() -> benchmarkInferencePool(model, device));
+    }
+    final String replayPath = getIntent().getStringExtra("replay_session");
+    if (replayPath != null) {
+      getIntent().removeExtra("replay_session");
+      final double speed = getIntent().getDoubleExtra("replay_speed", ReplayEngine.MAX_SPEED);
+      runInBackground(() -> replaySession(replayPath, speed));
+    }
+  }
 
-      cropToFrameTransform = new Matrix();
-      frameToCropTransform.invert(cropToFrameTransform);
+  /**
+   * Returns the smallest size of the network stream relative to the preview: the region of the
+   * preview the network crops has to keep one pixel for every pixel of the input.
+   */
+  private float getNetworkStreamScale(Network network) {
+    final RectF region = new RectF(0, 0, network.getImageSizeX(), network.getImageSizeY());
+    cropToFrameTransform.mapRect(region);
+    final boolean transpose = sensorOrientation % 180 != 0;
+    return CaptureSizes.getMinScale(
+        transpose ? region.height() : region.width(),
+        transpose ? region.width() : region.height(),
+        network.getImageSizeX(),
+        network.getImageSizeY());
+  }
 
-    } catch (IOException e) {
-      LOGGER.e(e, "Failed to create detector.");
+  // Runs a first inference, which allocates the tensors, before the network drives.
+  private static void warmUp(Network network) {
+    if (network instanceof Detector) {
+      ((Detector) network).recognizeImage(new ArrayList<>());
+    } else {
+      ((Autopilot) network).recognizeImage(0, new Vehicle.Control(0, 0));
     }
   }
 
@@ -484,4 +993,116 @@ public class NetworkActivity extends CameraActivity implements OnImageAvailableL
 
     return super.dispatchKeyEvent(event);
   }
+
+  /** Copy of a camera frame, handed from the camera thread to the preprocess stage. */
+  private static class CameraFrame {
+    long frameNum;
+    boolean yuv;
+    final byte[][] yuvBytes = new byte[3][];
+    int yRowStride;
+    int uvRowStride;
+    int uvPixelStride;
+    int[] rgbBytes;
+    // Size of the YUV frame, the preview or the network stream.
+    int width;
+    int height;
+
+    void setYuv(
+        byte[][] yuvBytes,
+        int width,
+        int height,
+        int yRowStride,
+        int uvRowStride,
+        int uvPixelStride) {
+      for (int i = 0; i < yuvBytes.length; ++i) {
+        if (this.yuvBytes[i] == null || this.yuvBytes[i].length != yuvBytes[i].length) {
+          this.yuvBytes[i] = new byte[yuvBytes[i].length];
+        }
+        System.arraycopy(yuvBytes[i], 0, this.yuvBytes[i], 0, yuvBytes[i].length);
+      }
+      this.yRowStride = yRowStride;
+      this.uvRowStride = uvRowStride;
+      this.uvPixelStride = uvPixelStride;
+      this.width = width;
+      this.height = height;
+      yuv = true;
+    }
+
+    void setArgb(int[] rgbBytes) {
+      if (this.rgbBytes == null || this.rgbBytes.length != rgbBytes.length) {
+        this.rgbBytes = new int[rgbBytes.length];
+      }
+      System.arraycopy(rgbBytes, 0, this.rgbBytes, 0, rgbBytes.length);
+      yuv = false;
+    }
+  }
+
+  /** Network input of a frame, handed from the preprocess to the inference stage. */
+  private static class InputFrame {
+    long frameNum;
+    final ByteBuffer buffer;
+
+    InputFrame(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  /** Network output of a frame, handed from the inference to the control stage. */
+  private static class ResultFrame {
+    long frameNum;
+    long processingTimeMs;
+    final List<Detector.Recognition> detections = new ArrayList<>();
+    // Recognitions of the detections, reused for every frame.
+    final List<Detector.Recognition> holders = new ArrayList<>();
+    final Vehicle.Control control = new Vehicle.Control(0, 0);
+  }
+
+  /** Writes the network input of a camera frame, either from the YUV planes or the ARGB frame. */
+  private class PreprocessStage implements Stage.Processor<CameraFrame, InputFrame> {
+    private final Network network;
+    private final Matrix frameToCropTransform;
+    private final Matrix cropToFrameTransform;
+    private final Bitmap frameBitmap;
+    private final Bitmap cropBitmap;
+    private final Canvas cropCanvas;
+
+    PreprocessStage(Network network) {
+      this.network = network;
+      this.frameToCropTransform = NetworkActivity.this.frameToCropTransform;
+      this.cropToFrameTransform = NetworkActivity.this.cropToFrameTransform;
+      frameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
+      cropBitmap =
+          Bitmap.createBitmap(network.getImageSizeX(), network.getImageSizeY(), Config.ARGB_8888);
+      cropCanvas = new Canvas(cropBitmap);
+    }
+
+    @Override
+    public boolean process(CameraFrame frame, InputFrame input) {
+      if (frame.yuv) {
+        if (!network.hasFrameTransform(frame.width, frame.height)) {
+          // The network stream shows the scene of the preview at a smaller size.
+          final Matrix transform = new Matrix(cropToFrameTransform);
+          transform.postScale(
+              (float) frame.width / previewWidth, (float) frame.height / previewHeight);
+          network.setFrameTransform(frame.width, frame.height, transform);
+        }
+        network.convertYuvToByteBuffer(
+            frame.yuvBytes[0],
+            frame.yuvBytes[1],
+            frame.yuvBytes[2],
+            frame.yRowStride,
+            frame.uvRowStride,
+            frame.uvPixelStride,
+            input.buffer);
+      } else {
+        frameBitmap.setPixels(frame.rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
+        cropCanvas.drawBitmap(frameBitmap, frameToCropTransform, null);
+        latencyTracer.mark(frame.frameNum, LatencyTracer.Point.CROPPED);
+        network.convertBitmapToByteBuffer(cropBitmap, input.buffer);
+      }
+      input.frameNum = frame.frameNum;
+      latencyTracer.mark(frame.frameNum, LatencyTracer.Point.TENSOR_FILLED);
+      return true;
+    }
+  }
 }
@@ -21,11 +21,12 @@ import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import org.openbot.R;
+import org.openbot.env.AsyncLogWriter;
+import org.openbot.env.BinarySensorLog;
 import org.openbot.env.Logger;
 
 public class SensorService extends Service implements SensorEventListener {
@@ -41,21 +42,26 @@ public class SensorService extends Service implements SensorEventListener {
   private Sensor motionSensor;
   private Sensor stationarySensor;
 
-  private BufferedWriter accelerometerLog;
-  private BufferedWriter gyroscopeLog;
-  private BufferedWriter gravityLog;
-  private BufferedWriter magneticLog;
-  private BufferedWriter lightLog;
-  private BufferedWriter proximityLog;
-  private BufferedWriter pressureLog;
-  private BufferedWriter poseLog;
-  private BufferedWriter motionLog;
-  private BufferedWriter gpsLog;
-  private BufferedWriter frameLog;
-  private BufferedWriter inferenceLog;
-  private BufferedWriter ctrlLog;
-  private BufferedWriter indicatorLog;
-  private BufferedWriter vehicleLog;
+  private AsyncLogWriter.BinaryLog accelerometerLog;
+  private AsyncLogWriter.BinaryLog gyroscopeLog;
+  private AsyncLogWriter.BinaryLog gravityLog;
+  private AsyncLogWriter.BinaryLog magneticLog;
+  private AsyncLogWriter.BinaryLog lightLog;
+  private AsyncLogWriter.BinaryLog proximityLog;
+  private AsyncLogWriter.BinaryLog pressureLog;
+  private AsyncLogWriter.BinaryLog poseLog;
+  private AsyncLogWriter.BinaryLog motionLog;
+  private AsyncLogWriter.TextLog gpsLog;
+  private AsyncLogWriter.TextLog frameLog;
+  private AsyncLogWriter.TextLog inferenceLog;
+  private AsyncLogWriter.TextLog ctrlLog;
+  private AsyncLogWriter.TextLog indicatorLog;
+  private AsyncLogWriter.TextLog vehicleLog;
+  private AsyncLogWriter.TextLog odometryLog;
+  private AsyncLogWriter.TextLog noiseLog;
+
+  // Writes all logs on its own thread, so that callbacks never wait for the file system.
+  private AsyncLogWriter logWriter;
 
   private boolean trackingLocation = false;
   private boolean hasStarted = false;
@@ -68,6 +74,7 @@ public class SensorService extends Service implements SensorEventListener {
   public static final int MSG_CONTROL = 2;
   public static final int MSG_INDICATOR = 3;
   public static final int MSG_VEHICLE = 4;
+  public static final int MSG_NOISE = 5;
 
   private static final Logger LOGGER = new Logger();
   Messenger messenger = new Messenger(new SensorMessageHandler());
@@ -103,59 +110,61 @@ public class SensorService extends Service implements SensorEventListener {
       logFolder = (String) extras.get("logFolder");
     }
 
-    accelerometerLog = openLog(logFolder, "accelerometerLog.txt");
-    // appendLog(mAccelerometerLog, mAccelerometer.getName());
-    appendLog(accelerometerLog, "timestamp[ns],x[m/s^2],y[m/s^2],z[m/s^2]");
+    if (logWriter != null) {
+      closeLog(logWriter);
+    }
+    logWriter = new AsyncLogWriter();
+
+    accelerometerLog =
+        openBinaryLog(logFolder, "accelerometerLog", "timestamp[ns],x[m/s^2],y[m/s^2],z[m/s^2]", 3);
+
+    gyroscopeLog =
+        openBinaryLog(logFolder, "gyroscopeLog", "timestamp[ns],x[rad/s],y[rad/s],z[rad/s]", 3);
 
-    gyroscopeLog = openLog(logFolder, "gyroscopeLog.txt");
-    // appendLog(mGyroscopeLog, mGyroscope.getName());
-    appendLog(gyroscopeLog, "timestamp[ns],x[rad/s],y[rad/s],z[rad/s]");
+    gravityLog =
+        openBinaryLog(logFolder, "gravityLog", "timestamp[ns],x[m/s^2],y[m/s^2],z[m/s^2]", 3);
 
-    gravityLog = openLog(logFolder, "gravityLog.txt");
-    // appendLog(mGravityLog, mGravity.getName());
-    appendLog(gravityLog, "timestamp[ns],x[m/s^2],y[m/s^2],z[m/s^2]");
+    magneticLog = openBinaryLog(logFolder, "magneticLog", "timestamp[ns],x[uT],y[uT],z[uT]", 3);
 
-    magneticLog = openLog(logFolder, "magneticLog.txt");
-    // appendLog(mMagneticLog, mMagnetic.getName());
-    appendLog(magneticLog, "timestamp[ns],x[uT],y[uT],z[uT]");
+    lightLog = openBinaryLog(logFolder, "lightLog", "timestamp[ns],light[lux]", 1);
 
-    lightLog = openLog(logFolder, "lightLog.txt");
-    // appendLog(mLightLog, mLight.getName());
-    appendLog(lightLog, "timestamp[ns],light[lux]");
+    proximityLog = openBinaryLog(logFolder, "proximityLog", "timestamp[ns],proximity[cm]", 1);
 
-    proximityLog = openLog(logFolder, "proximityLog.txt");
-    // appendLog(mProximityLog, mProximity.getName());
-    appendLog(proximityLog, "timestamp[ns],proximity[cm]");
+    pressureLog = openBinaryLog(logFolder, "pressureLog", "timestamp[ns],pressure[hPa]", 1);
 
-    pressureLog = openLog(logFolder, "pressureLog.txt");
-    // appendLog(mPressureLog, mPressure.getName());
-    appendLog(pressureLog, "timestamp[ns],pressure[hPa]");
+    poseLog =
+        openBinaryLog(
+            logFolder, "poseLog", "timestamp[ns],x,y,z,w,x,y,z,dx,dy,dz,dw,dx,dy,dz,id", 15);
 
-    poseLog = openLog(logFolder, "poseLog.txt");
-    // appendLog(mPoseLog, mPose.getName());
-    appendLog(poseLog, "timestamp[ns],x,y,z,w,x,y,z,dx,dy,dz,dw,dx,dy,dz,id");
+    motionLog = openBinaryLog(logFolder, "motionLog", "timestamp[ns],motion", 1);
 
-    motionLog = openLog(logFolder, "motionLog.txt");
-    // appendLog(mMotionLog, mMotion.getName());
-    appendLog(motionLog, "timestamp[ns],motion");
+    gpsLog =
+        openLog(
+            logFolder,
+            "gpsLog.txt",
+            "timestamp[ns],latitude,longitude,altitude[m],bearing,speed[m/s]");
 
-    gpsLog = openLog(logFolder, "gpsLog.txt");
-    appendLog(gpsLog, "timestamp[ns],latitude,longitude,altitude[m],bearing,speed[m/s]");
+    frameLog = openLog(logFolder, "rgbFrames.txt", "timestamp[ns],frame");
 
-    frameLog = openLog(logFolder, "rgbFrames.txt");
-    appendLog(frameLog, "timestamp[ns],frame");
+    inferenceLog = openLog(logFolder, "inferenceTime.txt", "frame, inferenceTime [ns]");
 
-    inferenceLog = openLog(logFolder, "inferenceTime.txt");
-    appendLog(inferenceLog, "frame, inferenceTime [ns]");
+    ctrlLog = openLog(logFolder, "ctrlLog.txt", "timestamp[ns],leftCtrl,rightCtrl");
 
-    ctrlLog = openLog(logFolder, "ctrlLog.txt");
-    appendLog(ctrlLog, "timestamp[ns],leftCtrl,rightCtrl");
+    indicatorLog = openLog(logFolder, "indicatorLog.txt", "timestamp[ns],signal");
 
-    indicatorLog = openLog(logFolder, "indicatorLog.txt");
-    appendLog(indicatorLog, "timestamp[ns],signal");
+    vehicleLog =
+        openLog(
+            logFolder,
+            "vehicleLog.txt",
+            "timestamp[ns],batteryVoltage,leftWheel,rightWheel,obstacle");
 
-    vehicleLog = openLog(logFolder, "vehicleLog.txt");
-    appendLog(vehicleLog, "timestamp[ns],batteryVoltage,leftWheel,rightWheel,obstacle");
+    odometryLog =
+        openLog(
+            logFolder,
+            "odometryLog.txt",
+            "timestamp[ns],leftRPM,rightRPM,linear[m/s],angular[rad/s],x[m],y[m],heading[rad]");
+
+    noiseLog = openLog(logFolder, "noiseLog.txt", "timestamp[ns],config");
 
     sensorManager.registerListener(this, accelerometerSensor, SensorManager.SENSOR_DELAY_NORMAL);
     sensorManager.registerListener(
@@ -222,73 +231,39 @@ public class SensorService extends Service implements SensorEventListener {
   public final void onSensorChanged(SensorEvent event) {
     // The light sensor returns a single value.
     // Many sensors return 3 values, one for each axis.
-    String sensorName = event.sensor.getName();
-    // Do something with this sensor value.
     switch (event.sensor.getType()) {
       case Sensor.TYPE_ACCELEROMETER:
         // Acceleration including gravity along the X, Y and Z axis
         // Units are m/s^2
-        appendLog(
-            accelerometerLog,
-            event.timestamp
-                + ","
-                + event.values[0]
-                + ","
-                + event.values[1]
-                + ","
-                + event.values[2]);
+        appendLog(accelerometerLog, event.timestamp, event.values);
         break;
       case Sensor.TYPE_GYROSCOPE:
         // Angular speed around the device's local X, Y and Z axis
         // Units are radians/second
         // The coordinate system is the same as is used by the acceleration sensor
-        appendLog(
-            gyroscopeLog,
-            event.timestamp
-                + ","
-                + event.values[0]
-                + ","
-                + event.values[1]
-                + ","
-                + event.values[2]);
+        appendLog(gyroscopeLog, event.timestamp, event.values);
         break;
       case Sensor.TYPE_GRAVITY:
         // A three dimensional vector indicating the direction and magnitude of gravity
         // Units are m/s^2
         // The coordinate system is the same as is used by the acceleration sensor
-        appendLog(
-            gravityLog,
-            event.timestamp
-                + ","
-                + event.values[0]
-                + ","
-                + event.values[1]
-                + ","
-                + event.values[2]);
+        appendLog(gravityLog, event.timestamp, event.values);
         break;
       case Sensor.TYPE_MAGNETIC_FIELD:
         // Ambient magnetic field in the X, Y and Z axis in micro-Tesla (uT).
-        appendLog(
-            magneticLog,
-            event.timestamp
-                + ","
-                + event.values[0]
-                + ","
-                + event.values[1]
-                + ","
-                + event.values[2]);
+        appendLog(magneticLog, event.timestamp, event.values);
         break;
       case Sensor.TYPE_LIGHT:
         // Ambient light level in SI lux units
-        appendLog(lightLog, event.timestamp + "," + event.values[0]);
+        appendLog(lightLog, event.timestamp, event.values);
         break;
       case Sensor.TYPE_PROXIMITY:
         // Proximity sensor distance measured in centimeters
-        appendLog(proximityLog, event.timestamp + "," + event.values[0]);
+        appendLog(proximityLog, event.timestamp, event.values);
         break;
       case Sensor.TYPE_PRESSURE:
         // Atmospheric pressure in mPa (millibar)
-        appendLog(pressureLog, event.timestamp + "," + event.values[0]);
+        appendLog(pressureLog, event.timestamp, event.values);
         break;
       case Sensor.TYPE_POSE_6DOF:
         // values[0]: x*sin(θ/2)
@@ -306,45 +281,13 @@ public class SensorService extends Service implements SensorEventListener {
         // values[12]: Delta translation along y axis.
         // values[13]: Delta translation along z axis.
         // values[14]: Sequence number
-        appendLog(
-            poseLog,
-            event.timestamp
-                + ","
-                + event.values[0]
-                + ","
-                + event.values[1]
-                + ","
-                + event.values[2]
-                + ","
-                + event.values[3]
-                + ","
-                + event.values[4]
-                + ","
-                + event.values[5]
-                + ","
-                + event.values[6]
-                + ","
-                + event.values[7]
-                + ","
-                + event.values[8]
-                + ","
-                + event.values[9]
-                + ","
-                + event.values[10]
-                + ","
-                + event.values[11]
-                + ","
-                + event.values[12]
-                + ","
-                + event.values[13]
-                + ","
-                + event.values[14]);
+        appendLog(poseLog, event.timestamp, event.values);
         break;
       case Sensor.TYPE_MOTION_DETECT:
-        appendLog(motionLog, event.timestamp + "," + event.values[0]);
+        appendLog(motionLog, event.timestamp, event.values);
         break;
       case Sensor.TYPE_STATIONARY_DETECT:
-        appendLog(motionLog, event.timestamp + "," + (-1) * event.values[0]);
+        appendLog(motionLog, event.timestamp, (-1) * event.values[0]);
         break;
       default:
         // Unknown sensor
@@ -375,8 +318,22 @@ public class SensorService extends Service implements SensorEventListener {
             appendLog(indicatorLog, SystemClock.elapsedRealtimeNanos() + "," + msg.arg1);
         } else if (msg.what == MSG_VEHICLE) {
           long timestamp = msg.getData().getLong("timestamp");
-          String data = msg.getData().getString("data");
-          if (vehicleLog != null) appendLog(vehicleLog, timestamp + "," + data);
+          float[] data = msg.getData().getFloatArray("data");
+          if (vehicleLog != null && data != null)
+            appendLog(
+                vehicleLog,
+                timestamp + "," + data[0] + "," + data[1] + "," + data[2] + "," + data[3]);
+          double[] odometry = msg.getData().getDoubleArray("odometry");
+          if (odometryLog != null && odometry != null) {
+            StringBuilder line = new StringBuilder().append(timestamp);
+            for (double value : odometry) line.append(',').append(value);
+            appendLog(odometryLog, line.toString());
+          }
+        } else if (msg.what == MSG_NOISE) {
+          // The config is enough to replay the noise, see NoiseGenerator.Config.parse
+          String config = msg.getData().getString("config");
+          if (noiseLog != null)
+            appendLog(noiseLog, SystemClock.elapsedRealtimeNanos() + "," + config);
         }
       } else LOGGER.d("Message skipped.");
     }
@@ -388,25 +345,51 @@ public class SensorService extends Service implements SensorEventListener {
     sensorManager.unregisterListener(this);
     stopTrackingLocation();
 
-    if (accelerometerLog != null) closeLog(accelerometerLog);
-    if (gyroscopeLog != null) closeLog(gyroscopeLog);
-    if (gravityLog != null) closeLog(gravityLog);
-    if (magneticLog != null) closeLog(magneticLog);
-    if (lightLog != null) closeLog(lightLog);
-    if (proximityLog != null) closeLog(proximityLog);
-    if (pressureLog != null) closeLog(pressureLog);
-    if (poseLog != null) closeLog(poseLog);
-    if (motionLog != null) closeLog(motionLog);
-    if (gpsLog != null) closeLog(gpsLog);
-    if (frameLog != null) closeLog(frameLog);
-    if (inferenceLog != null) closeLog(inferenceLog);
-    if (ctrlLog != null) closeLog(ctrlLog);
-    if (indicatorLog != null) closeLog(indicatorLog);
-    if (vehicleLog != null) closeLog(vehicleLog);
+    // Writes all pending records and syncs the files before the log folder is packed.
+    if (logWriter != null) {
+      closeLog(logWriter);
+      logWriter = null;
+    }
   }
 
-  public BufferedWriter openLog(String path, String filename) {
+  /**
+   * Opens a text log, appending to an existing file.
+   *
+   * @param path The folder of the log.
+   * @param filename The name of the log.
+   * @param header The first line of the log.
+   */
+  public AsyncLogWriter.TextLog openLog(String path, String filename, String header) {
     LOGGER.i("Opening log file: " + filename);
+    try {
+      return logWriter.openText(new File(makeLogDir(path), filename), header);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Opens a binary log for sensor readings, see {@link BinarySensorLog}.
+   *
+   * @param path The folder of the log.
+   * @param name The name of the log without extension.
+   * @param header The column header of the equivalent text log.
+   * @param numValues The number of values per reading.
+   */
+  public AsyncLogWriter.BinaryLog openBinaryLog(
+      String path, String name, String header, int numValues) {
+    LOGGER.i("Opening log file: " + name + BinarySensorLog.EXTENSION);
+    try {
+      return logWriter.openBinary(
+          new File(makeLogDir(path), name + BinarySensorLog.EXTENSION), header, numValues);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  private File makeLogDir(String path) {
     final File myDir = new File(path);
 
     if (!myDir.exists()) {
@@ -414,41 +397,32 @@ public class SensorService extends Service implements SensorEventListener {
         LOGGER.i("Make dir failed");
       }
     }
+    return myDir;
+  }
 
-    final File file = new File(myDir, filename);
+  // The append methods only queue the record for the log writer thread.
 
-    if (!file.exists()) {
-      try {
-        file.createNewFile();
-      } catch (IOException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      }
+  public void appendLog(AsyncLogWriter.TextLog log, String text) {
+    if (log != null) {
+      log.append(text);
     }
+  }
 
-    try {
-      // BufferedWriter for performance, true to set append to file flag
-      return new BufferedWriter(new FileWriter(file, true));
-    } catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-      return null;
+  public void appendLog(AsyncLogWriter.BinaryLog log, long timestamp, float[] values) {
+    if (log != null) {
+      log.append(timestamp, values);
     }
   }
 
-  public void appendLog(BufferedWriter writer, String text) {
-    try {
-      writer.append(text);
-      writer.newLine();
-      writer.flush();
-    } catch (IOException e) {
-      e.printStackTrace();
+  public void appendLog(AsyncLogWriter.BinaryLog log, long timestamp, float value) {
+    if (log != null) {
+      log.append(timestamp, value);
     }
   }
 
-  public void closeLog(BufferedWriter writer) {
+  public void closeLog(Closeable log) {
     try {
-      writer.close();
+      log.close();
     } catch (IOException e) {
       e.printStackTrace();
     }
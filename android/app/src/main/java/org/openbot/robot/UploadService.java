@@ -7,15 +7,26 @@ import android.os.Environment;
 import android.util.Log;
 import com.loopj.android.http.AsyncHttpClient;
 import com.loopj.android.http.AsyncHttpResponseHandler;
-import com.loopj.android.http.RequestParams;
 import cz.msebera.android.httpclient.Header;
 import java.io.File;
-import java.io.FileNotFoundException;
 import org.openbot.R;
+import org.openbot.env.ChunkedUploader;
 
 class UploadService {
 
+  // Below the default request size limit (1 MB) of the aiohttp server.
+  private static final int CHUNK_SIZE = 512 * 1024;
+  private static final int MAX_CONCURRENT_UPLOADS = 2;
+  // Bandwidth limit for all uploads in bytes per second, 0 for none.
+  private static final long MAX_BYTES_PER_SECOND = 0;
+  private static final String QUEUE_FILE = ".upload_queue";
+
+  // One uploader for the process: each instance keeps its own copy of the queue file, and the
+  // threads of a stopped one can still be in the middle of a request.
+  private static ChunkedUploader sharedUploader;
+
   private final AsyncHttpClient client;
+  private final ChunkedUploader uploader;
   private final Context context;
   private final NsdService nsdService;
   private final NsdManager.ResolveListener resolveListener =
@@ -39,6 +50,7 @@ class UploadService {
                 @Override
                 public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
                   Log.d("Upload", "Server found");
+                  uploader.setServerUrl(serverUrl);
                 }
 
                 @Override
@@ -56,59 +68,33 @@ class UploadService {
     this.client = new AsyncHttpClient();
     this.context = context;
     this.nsdService = new NsdService();
+    this.uploader = getUploader(getLogDir());
+  }
+
+  private static synchronized ChunkedUploader getUploader(String logDir) {
+    if (sharedUploader == null) {
+      sharedUploader =
+          new ChunkedUploader(
+              new File(logDir, QUEUE_FILE),
+              CHUNK_SIZE,
+              MAX_CONCURRENT_UPLOADS,
+              MAX_BYTES_PER_SECOND);
+      sharedUploader.setListener(file -> Log.d("Upload", "uploaded: " + file.getName()));
+    }
+    return sharedUploader;
   }
 
   public void start() {
     this.nsdService.start(context, resolveListener);
   }
 
+  /** Queues a file for upload. It is uploaded once the server is found and deleted afterwards. */
   public void upload(File file) {
-    if (serverUrl == null) {
-      return;
-    }
-    if (serverUrl.isEmpty()) {
-      return;
-    }
-    Log.d("Upload", "Start: " + serverUrl);
-
-    RequestParams params = new RequestParams();
-    try {
-      params.put("file", file);
-    } catch (FileNotFoundException e) {
-      Log.e("Upload", "File not found: " + file.getAbsolutePath());
-      return;
-    }
-
-    client.post(
-        context,
-        serverUrl + "/upload",
-        params,
-        new AsyncHttpResponseHandler() {
-          @Override
-          public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
-            // called when response HTTP status is "200 OK"
-            if (file.delete()) {
-              Log.d("Upload", "uploaded: " + file.getName());
-            } else {
-              Log.e("Upload", "delete error: " + file.getName());
-            }
-          }
-
-          @Override
-          public void onFailure(
-              int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
-            // called when response HTTP status is "4XX" (eg. 401, 403, 404)
-          }
-        });
+    uploader.enqueue(file);
   }
 
   public void uploadAll() {
-    String logDir =
-        Environment.getExternalStorageDirectory().getAbsolutePath()
-            + File.separator
-            + context.getString(R.string.app_name);
-    File directory = new File(logDir);
-    File[] files = directory.listFiles();
+    File[] files = new File(getLogDir()).listFiles();
     if (files != null) {
       for (File file : files) {
         if (file.getName().endsWith(".zip")) {
@@ -118,6 +104,13 @@ class UploadService {
     }
   }
 
+  private String getLogDir() {
+    return Environment.getExternalStorageDirectory().getAbsolutePath()
+        + File.separator
+        + context.getString(R.string.app_name);
+  }
+
+  /** Stops looking for the server. Started uploads continue, the uploader is shared. */
   public void stop() {
     client.cancelRequests(context, true);
   }
@@ -17,7 +17,7 @@ public abstract class Autopilot extends Network {
    * Creates a autopilot with the provided configuration.
    *
    * @param activity The current Activity.
-   * @param model The model to use for classification.
+   * @param model The model file, its type selects the network.
    * @param device The device to use for classification.
    * @param numThreads The number of threads to use for classification.
    * @return A detector with the desired configuration.
@@ -26,21 +26,38 @@ public abstract class Autopilot extends Network {
   /** A ByteBuffer to hold image data, to be feed into Tensorflow Lite as inputs. */
   protected ByteBuffer indicatorBuffer = null;
 
-  public static Autopilot create(Activity activity, Model model, Device device, int numThreads)
+  /** Inputs and outputs of the interpreter, created once and reused for every image. */
+  private final Object[] inputArray;
+
+  private final int imageInputIndex;
+
+  private final float[][] predictedCtrl = new float[1][2];
+
+  public static Autopilot create(
+      Activity activity, ModelRegistry.Entry model, Device device, int numThreads)
       throws IOException {
-    switch (model) {
+    switch (model.type) {
       case AUTOPILOT_F:
-        return new AutopilotFloat(activity, device, numThreads);
+        return new AutopilotFloat(activity, model, device, numThreads);
       default:
-        return new AutopilotFloat(activity, device, numThreads);
+        return new AutopilotFloat(activity, model, device, numThreads);
     }
   }
 
   /** Initializes a {@code Autopilot}. */
-  protected Autopilot(Activity activity, Device device, int numThreads) throws IOException {
-    super(activity, device, numThreads);
+  protected Autopilot(Activity activity, ModelRegistry.Entry model, Device device, int numThreads)
+      throws IOException {
+    super(activity, model, device, numThreads);
     indicatorBuffer = ByteBuffer.allocateDirect(4);
     indicatorBuffer.order(ByteOrder.nativeOrder());
+    if (tflite.getInputIndex("cmd_input") == 0) {
+      inputArray = new Object[] {indicatorBuffer, imgData};
+      imageInputIndex = 1;
+    } else {
+      inputArray = new Object[] {imgData, indicatorBuffer};
+      imageInputIndex = 0;
+    }
+    outputMap.put(0, predictedCtrl);
     LOGGER.d("Created a Tensorflow Lite Autopilot.");
   }
 
@@ -53,31 +70,43 @@ public abstract class Autopilot extends Network {
   }
 
   public Vehicle.Control recognizeImage(final Bitmap bitmap, final int indicator) {
-    // Log this method so that it can be analyzed with systrace.
-    Trace.beginSection("recognizeImage");
     Trace.beginSection("preprocessBitmap");
     convertBitmapToByteBuffer(bitmap);
-    convertIndicatorToByteBuffer(indicator);
     Trace.endSection(); // preprocessBitmap
 
+    return recognizeImage(indicator);
+  }
+
+  /**
+   * Runs the autopilot on the input that was already written to {@link #imgData}, e.g. by {@link
+   * #convertYuvToByteBuffer}.
+   */
+  public Vehicle.Control recognizeImage(final int indicator) {
+    final Vehicle.Control control = new Vehicle.Control(0, 0);
+    recognizeImage(indicator, control);
+    return control;
+  }
+
+  /**
+   * Runs the autopilot on the input that was already written to {@link #imgData} and writes the
+   * predicted control into {@code control}. Does not allocate, so the caller can reuse the control
+   * for every frame.
+   */
+  public void recognizeImage(final int indicator, final Vehicle.Control control) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+    convertIndicatorToByteBuffer(indicator);
+
     // Run the inference call.
     Trace.beginSection("runInference");
     long startTime = SystemClock.elapsedRealtime();
-    Object[] inputArray;
-    if (tflite.getInputIndex("cmd_input") == 0) {
-      inputArray = new Object[] {indicatorBuffer, imgData};
-    } else {
-      inputArray = new Object[] {imgData, indicatorBuffer};
-    }
-
-    float[][] predicted_ctrl = new float[1][2];
-    outputMap.put(0, predicted_ctrl);
+    inputArray[imageInputIndex] = imgData;
     tflite.runForMultipleInputsOutputs(inputArray, outputMap);
     long endTime = SystemClock.elapsedRealtime();
     Trace.endSection();
     LOGGER.v("Timecost to run model inference: " + (endTime - startTime));
 
     Trace.endSection(); // "recognizeImage"
-    return new Vehicle.Control(predicted_ctrl[0][0], predicted_ctrl[0][1]);
+    control.set(predictedCtrl[0][0], predictedCtrl[0][1]);
   }
 }
@@ -18,13 +18,9 @@ class AutopilotFloat extends Autopilot {
    *
    * @param activity
    */
-  public AutopilotFloat(Activity activity, Device device, int numThreads) throws IOException {
-    super(activity, device, numThreads);
-  }
-
-  @Override
-  protected String getModelPath() {
-    return "networks/autopilot_float.tflite";
+  public AutopilotFloat(Activity activity, ModelRegistry.Entry model, Device device, int numThreads)
+      throws IOException {
+    super(activity, model, device, numThreads);
   }
 
   @Override
@@ -48,14 +44,7 @@ class AutopilotFloat extends Autopilot {
   }
 
   @Override
-  protected int getNumBytesPerChannel() {
-    return 4; // Float.SIZE / Byte.SIZE;
-  }
-
-  @Override
-  protected void addPixelValue(int pixelValue) {
-    imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-    imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-    imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+  protected ImagePreprocessor createPreprocessor() {
+    return ImagePreprocessor.floatMeanStd(IMAGE_MEAN, IMAGE_STD);
   }
 }
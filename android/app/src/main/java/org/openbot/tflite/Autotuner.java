@@ -0,0 +1,178 @@
+package org.openbot.tflite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the fastest device and number of threads for a model: every configuration is loaded, warmed
+ * up and then timed for a number of inferences, and the one with the lowest median time wins.
+ *
+ * <p>The interpreters are created by a {@link Factory}, so the sweep does not depend on TensorFlow
+ * Lite and runs with a fake interpreter as well. A configuration that cannot be created or fails to
+ * run (e.g. no GPU delegate on the phone) is reported as failed and skipped by {@link #best}.
+ */
+public class Autotuner {
+
+  /** Runs inferences of a model on the next input, e.g. a synthetic or recorded frame. */
+  public interface Interpreter {
+    void run() throws Exception;
+
+    void close();
+  }
+
+  /** Creates the interpreter of a configuration. */
+  public interface Factory {
+    Interpreter create(String model, Config config) throws Exception;
+  }
+
+  /** Device and number of threads. */
+  public static final class Config {
+    /** Name of the device, e.g. of a Network.Device. */
+    public final String device;
+
+    public final int numThreads;
+
+    public Config(String device, int numThreads) {
+      this.device = device;
+      this.numThreads = numThreads;
+    }
+
+    /** Returns the config as "device/threads", as read by {@link #parse}. */
+    @Override
+    public String toString() {
+      return device + "/" + numThreads;
+    }
+
+    /**
+     * Reads a config written by {@link #toString()}.
+     *
+     * @throws IllegalArgumentException If the text is not a config.
+     */
+    public static Config parse(String text) {
+      final int separator = text.lastIndexOf('/');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Not a config: " + text);
+      }
+      return new Config(
+          text.substring(0, separator), Integer.parseInt(text.substring(separator + 1)));
+    }
+  }
+
+  /** Timing of one configuration. */
+  public static final class Result {
+    public final String model;
+    public final Config config;
+    /** Median and maximum time of an inference in ms, NaN if the configuration failed. */
+    public final double medianMs;
+
+    public final double maxMs;
+    /** Why the configuration failed, null if it did not. */
+    public final String error;
+
+    Result(String model, Config config, double medianMs, double maxMs, String error) {
+      this.model = model;
+      this.config = config;
+      this.medianMs = medianMs;
+      this.maxMs = maxMs;
+      this.error = error;
+    }
+
+    public boolean isValid() {
+      return error == null;
+    }
+
+    @Override
+    public String toString() {
+      return isValid()
+          ? String.format(
+              Locale.US, "%s %s: median %.2f ms, max %.2f ms", model, config, medianMs, maxMs)
+          : String.format(Locale.US, "%s %s: failed (%s)", model, config, error);
+    }
+  }
+
+  private final Factory factory;
+  private final int numWarmUps;
+  private final int numRuns;
+
+  /**
+   * @param factory Creates the interpreters.
+   * @param numWarmUps Inferences before the timing of each configuration.
+   * @param numRuns Timed inferences of each configuration.
+   */
+  public Autotuner(Factory factory, int numWarmUps, int numRuns) {
+    if (numRuns < 1) {
+      throw new IllegalArgumentException("At least one timed run is needed.");
+    }
+    this.factory = factory;
+    this.numWarmUps = numWarmUps;
+    this.numRuns = numRuns;
+  }
+
+  /** Times the model for all configurations, in the given order. */
+  public List<Result> sweep(String model, List<Config> configs) {
+    final List<Result> results = new ArrayList<>(configs.size());
+    for (Config config : configs) {
+      results.add(run(model, config));
+    }
+    return results;
+  }
+
+  /** Times the model for one configuration. */
+  public Result run(String model, Config config) {
+    final Interpreter interpreter;
+    try {
+      interpreter = factory.create(model, config);
+    } catch (Exception e) {
+      return failed(model, config, e);
+    }
+    try {
+      for (int i = 0; i < numWarmUps; ++i) {
+        interpreter.run();
+      }
+      final long[] nanos = new long[numRuns];
+      for (int i = 0; i < numRuns; ++i) {
+        final long start = System.nanoTime();
+        interpreter.run();
+        nanos[i] = System.nanoTime() - start;
+      }
+      Arrays.sort(nanos);
+      return new Result(model, config, nanos[numRuns / 2] / 1e6, nanos[numRuns - 1] / 1e6, null);
+    } catch (Exception e) {
+      return failed(model, config, e);
+    } finally {
+      interpreter.close();
+    }
+  }
+
+  /** Returns the valid result with the lowest median time, null if all failed. */
+  public static Result best(List<Result> results) {
+    Result best = null;
+    for (Result result : results) {
+      if (result.isValid() && (best == null || result.medianMs < best.medianMs)) {
+        best = result;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns the configurations of the devices: every number of threads from 1 to {@code maxThreads}
+   * on the CPU and one thread on the other devices, which run most of the model themselves.
+   */
+  public static List<Config> configs(String cpu, int maxThreads, String... otherDevices) {
+    final List<Config> configs = new ArrayList<>();
+    for (int numThreads = 1; numThreads <= maxThreads; ++numThreads) {
+      configs.add(new Config(cpu, numThreads));
+    }
+    for (String device : otherDevices) {
+      configs.add(new Config(device, 1));
+    }
+    return configs;
+  }
+
+  private static Result failed(String model, Config config, Exception e) {
+    return new Result(model, config, Double.NaN, Double.NaN, String.valueOf(e));
+  }
+}
@@ -0,0 +1,221 @@
+package org.openbot.tflite;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Filters the raw detections of a detector: only classes of the allow set with a score above the
+ * threshold are kept, overlapping detections are suppressed (non-maximum suppression) and at most
+ * the top K are returned.
+ *
+ * <p>The detector adds candidates with {@link #add}, referring to their box by an index into a box
+ * array of 4 values (left, top, right, bottom) per box, so several candidates (e.g. classes) can
+ * share a box. {@link #run} then sorts the candidates by score and keeps each one that does not
+ * overlap a kept candidate by more than the IoU threshold, only comparing candidates of the same
+ * class unless the suppression is class-agnostic. The boxes of the kept candidates are held in
+ * parallel arrays, so the overlap test is a plain loop over primitives.
+ *
+ * <p>The allow set is an array indexed by class, so filtering needs no string compares. Buffers
+ * grow with the number of candidates and are reused, afterwards nothing is allocated.
+ */
+public class DetectionPostprocessor {
+
+  private boolean[] allowedClasses = new boolean[0];
+  private boolean allowAll = true;
+  private float minScore;
+  private int maxResults = Integer.MAX_VALUE;
+  private float maxIou = 1;
+  private boolean classAgnostic;
+
+  // Candidates.
+  private int numCandidates;
+  private int[] candidateBoxes = new int[16];
+  private int[] candidateClasses = new int[16];
+  private float[] candidateScores = new float[16];
+  private long[] order = new long[16];
+
+  // Results, with a copy of their boxes for the overlap test.
+  private int numResults;
+  private int[] resultBoxes = new int[16];
+  private int[] resultClasses = new int[16];
+  private float[] resultScores = new float[16];
+  private float[] lefts = new float[16];
+  private float[] tops = new float[16];
+  private float[] rights = new float[16];
+  private float[] bottoms = new float[16];
+  private float[] areas = new float[16];
+
+  /**
+   * Keeps only the given classes.
+   *
+   * @param labels Labels of the detector, indexed by class.
+   * @param names Labels of the classes to keep, all classes if empty.
+   */
+  public void setTargetClasses(List<String> labels, String... names) {
+    allowAll = names.length == 0;
+    allowedClasses = new boolean[labels.size()];
+    for (String name : names) {
+      final int index = labels.indexOf(name);
+      if (index < 0) {
+        throw new IllegalArgumentException("Unknown class: " + name);
+      }
+      allowedClasses[index] = true;
+    }
+  }
+
+  /** Returns whether candidates of the class are kept. */
+  public boolean isAllowed(int classId) {
+    return allowAll || (classId >= 0 && classId < allowedClasses.length && allowedClasses[classId]);
+  }
+
+  /** Drops candidates with a lower score. */
+  public void setMinScore(float minScore) {
+    this.minScore = minScore;
+  }
+
+  public float getMinScore() {
+    return minScore;
+  }
+
+  /** Returns at most this many results. */
+  public void setMaxResults(int maxResults) {
+    this.maxResults = maxResults;
+  }
+
+  /**
+   * Configures the non-maximum suppression.
+   *
+   * @param maxIou Maximum overlap (IoU) of a result with a result of higher score, 1 to disable.
+   * @param classAgnostic Whether results of different classes suppress each other.
+   */
+  public void setNms(float maxIou, boolean classAgnostic) {
+    this.maxIou = maxIou;
+    this.classAgnostic = classAgnostic;
+  }
+
+  /** Drops the candidates and results. */
+  public void clear() {
+    numCandidates = 0;
+    numResults = 0;
+  }
+
+  /**
+   * Adds a candidate if its class is allowed and its score reaches the threshold.
+   *
+   * @param box Index of the box, i.e. its values start at {@code 4 * box}.
+   */
+  public void add(int box, int classId, float score) {
+    if (score < minScore || !isAllowed(classId)) {
+      return;
+    }
+    if (numCandidates == candidateBoxes.length) {
+      final int capacity = 2 * numCandidates;
+      candidateBoxes = Arrays.copyOf(candidateBoxes, capacity);
+      candidateClasses = Arrays.copyOf(candidateClasses, capacity);
+      candidateScores = Arrays.copyOf(candidateScores, capacity);
+      order = new long[capacity];
+    }
+    candidateBoxes[numCandidates] = box;
+    candidateClasses[numCandidates] = classId;
+    candidateScores[numCandidates] = score;
+    numCandidates++;
+  }
+
+  /**
+   * Suppresses overlapping candidates and keeps the top K.
+   *
+   * @param boxes Boxes the candidates refer to.
+   * @return The number of results.
+   */
+  public int run(float[] boxes) {
+    numResults = 0;
+    // Sort by score: the bits of a non-negative float are ordered like its value. Negative scores
+    // (e.g. logits) are shifted, so their order is kept as well.
+    for (int i = 0; i < numCandidates; ++i) {
+      order[i] = ((long) sortableBits(candidateScores[i]) << 32) | i;
+    }
+    Arrays.sort(order, 0, numCandidates);
+    ensureResultCapacity(Math.min(numCandidates, maxResults));
+
+    for (int k = numCandidates - 1; k >= 0 && numResults < maxResults; --k) {
+      final int candidate = (int) order[k];
+      final int offset = 4 * candidateBoxes[candidate];
+      final float left = boxes[offset];
+      final float top = boxes[offset + 1];
+      final float right = boxes[offset + 2];
+      final float bottom = boxes[offset + 3];
+      final float area = Math.max(0, right - left) * Math.max(0, bottom - top);
+      final int classId = candidateClasses[candidate];
+      if (maxIou < 1 && overlapsResult(left, top, right, bottom, area, classId)) {
+        continue;
+      }
+      resultBoxes[numResults] = candidateBoxes[candidate];
+      resultClasses[numResults] = classId;
+      resultScores[numResults] = candidateScores[candidate];
+      lefts[numResults] = left;
+      tops[numResults] = top;
+      rights[numResults] = right;
+      bottoms[numResults] = bottom;
+      areas[numResults] = area;
+      numResults++;
+    }
+    return numResults;
+  }
+
+  public int getNumResults() {
+    return numResults;
+  }
+
+  /** Returns the index of the box of a result. */
+  public int getResultBox(int result) {
+    return resultBoxes[result];
+  }
+
+  public int getResultClass(int result) {
+    return resultClasses[result];
+  }
+
+  public float getResultScore(int result) {
+    return resultScores[result];
+  }
+
+  private boolean overlapsResult(
+      float left, float top, float right, float bottom, float area, int classId) {
+    for (int r = 0; r < numResults; ++r) {
+      if (!classAgnostic && resultClasses[r] != classId) {
+        continue;
+      }
+      final float width = Math.min(right, rights[r]) - Math.max(left, lefts[r]);
+      final float height = Math.min(bottom, bottoms[r]) - Math.max(top, tops[r]);
+      if (width <= 0 || height <= 0) {
+        continue;
+      }
+      final float intersection = width * height;
+      // iou > maxIou without the division.
+      if (intersection > maxIou * (area + areas[r] - intersection)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void ensureResultCapacity(int capacity) {
+    if (resultBoxes.length >= capacity) {
+      return;
+    }
+    resultBoxes = new int[capacity];
+    resultClasses = new int[capacity];
+    resultScores = new float[capacity];
+    lefts = new float[capacity];
+    tops = new float[capacity];
+    rights = new float[capacity];
+    bottoms = new float[capacity];
+    areas = new float[capacity];
+  }
+
+  // Maps a float to an int with the same order, flipping the magnitude bits of negative values.
+  private static int sortableBits(float value) {
+    final int bits = Float.floatToIntBits(value);
+    return bits >= 0 ? bits : bits ^ 0x7FFFFFFF;
+  }
+}
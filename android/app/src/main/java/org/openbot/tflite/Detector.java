@@ -19,6 +19,7 @@ package org.openbot.tflite;
 
 import android.app.Activity;
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.os.SystemClock;
 import android.os.Trace;
@@ -35,57 +36,96 @@ import java.util.Locale;
  */
 public abstract class Detector extends Network {
 
+  /** Classes that are detected unless configured otherwise. */
+  private static final String[] DEFAULT_TARGET_CLASSES = {"person"};
+  // Detections of any class that overlap a detection with a higher score by more than this are
+  // dropped.
+  private static final float NMS_MAX_IOU = 0.6f;
+
   /** Labels corresponding to the output of the vision model. */
   protected List<String> labels;
 
+  /** Filters the raw detections, see {@link #addRecognitions}. */
+  protected final DetectionPostprocessor postprocessor = new DetectionPostprocessor();
+
+  // Ids of the recognitions by class, created once.
+  private String[] classIds;
+  // Recognitions that are filled by addRecognitions(), set for the duration of recognizeImage().
+  private List<Recognition> holders;
+
   /**
    * Creates a detector with the provided configuration.
    *
    * @param activity The current Activity.
-   * @param model The model to use for classification.
+   * @param model The model file, its type selects the network.
    * @param device The device to use for classification.
    * @param numThreads The number of threads to use for classification.
    * @return A detector with the desired configuration.
    */
-  public static Detector create(Activity activity, Model model, Device device, int numThreads)
+  public static Detector create(
+      Activity activity, ModelRegistry.Entry model, Device device, int numThreads)
       throws IOException {
-    switch (model) {
+    switch (model.type) {
       case DETECTOR_V1_1_0_Q:
-        return new DetectorQuantizedMobileNetV1(activity, device, numThreads);
+        return new DetectorQuantizedMobileNetV1(activity, model, device, numThreads);
       case DETECTOR_V3_S_Q:
-        return new DetectorQuantizedMobileNetV3(activity, device, numThreads);
+        return new DetectorQuantizedMobileNetV3(activity, model, device, numThreads);
+      case DETECTOR_V1_RAW_F:
+        return new DetectorRawSsd(activity, model, device, numThreads);
       default:
-        return new DetectorQuantizedMobileNetV1(activity, device, numThreads);
+        return new DetectorQuantizedMobileNetV1(activity, model, device, numThreads);
     }
   }
 
-  /** An immutable result returned by a Classifier/Detector describing what was recognized. */
+  /**
+   * A result returned by a Classifier/Detector describing what was recognized. The detector reuses
+   * recognitions for later frames, see {@link #recognizeImage(List, List)}.
+   */
   public static class Recognition {
     /**
      * A unique identifier for what has been recognized. Specific to the class, not the instance of
      * the object.
      */
-    private final String id;
+    private String id;
 
     /** Display name for the recognition. */
-    private final String title;
+    private String title;
 
     /**
      * A sortable score for how good the recognition is relative to others. Higher should be better.
      */
-    private final Float confidence;
+    private float confidence;
 
     /** Optional location within the source image for the location of the recognized object. */
     private RectF location;
 
     public Recognition(
-        final String id, final String title, final Float confidence, final RectF location) {
+        final String id, final String title, final float confidence, final RectF location) {
       this.id = id;
       this.title = title;
       this.confidence = confidence;
       this.location = location;
     }
 
+    // Creates a holder for addRecognitions().
+    private Recognition() {
+      location = new RectF();
+    }
+
+    private void set(
+        String id,
+        String title,
+        float confidence,
+        float left,
+        float top,
+        float right,
+        float bottom) {
+      this.id = id;
+      this.title = title;
+      this.confidence = confidence;
+      location.set(left, top, right, bottom);
+    }
+
     public String getId() {
       return id;
     }
@@ -94,18 +134,35 @@ public abstract class Detector extends Network {
       return title;
     }
 
-    public Float getConfidence() {
+    public float getConfidence() {
       return confidence;
     }
 
+    /** Returns a copy of the location. */
     public RectF getLocation() {
       return new RectF(location);
     }
 
+    /** Copies the location into {@code location} and returns false if there is none. */
+    public boolean getLocation(RectF location) {
+      if (this.location == null) {
+        return false;
+      }
+      location.set(this.location);
+      return true;
+    }
+
     public void setLocation(RectF location) {
       this.location = location;
     }
 
+    /** Transforms the location in place, e.g. from the network input to the camera frame. */
+    public void mapLocation(Matrix transform) {
+      if (location != null) {
+        transform.mapRect(location);
+      }
+    }
+
     @Override
     public String toString() {
       String resultString = "";
@@ -117,9 +174,7 @@ public abstract class Detector extends Network {
         resultString += title + " ";
       }
 
-      if (confidence != null) {
-        resultString += String.format(Locale.US, "(%.1f%%) ", confidence * 100.0f);
-      }
+      resultString += String.format(Locale.US, "(%.1f%%) ", confidence * 100.0f);
 
       if (location != null) {
         resultString += location + " ";
@@ -130,9 +185,16 @@ public abstract class Detector extends Network {
   }
 
   /** Initializes a {@code Detector}. */
-  protected Detector(Activity activity, Device device, int numThreads) throws IOException {
-    super(activity, device, numThreads);
+  protected Detector(Activity activity, ModelRegistry.Entry model, Device device, int numThreads)
+      throws IOException {
+    super(activity, model, device, numThreads);
     labels = loadLabelList(activity);
+    classIds = new String[labels.size()];
+    for (int i = 0; i < classIds.length; ++i) {
+      classIds[i] = Integer.toString(i);
+    }
+    postprocessor.setTargetClasses(labels, DEFAULT_TARGET_CLASSES);
+    postprocessor.setNms(NMS_MAX_IOU, true);
     LOGGER.d("Created a Tensorflow Lite Detector.");
   }
 
@@ -150,13 +212,42 @@ public abstract class Detector extends Network {
   }
 
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
-    // Log this method so that it can be analyzed with systrace.
-    Trace.beginSection("recognizeImage");
-
     Trace.beginSection("preprocessBitmap");
     convertBitmapToByteBuffer(bitmap);
     Trace.endSection(); // preprocessBitmap
 
+    return recognizeImage();
+  }
+
+  /**
+   * Runs the detector on the input that was already written to {@link #imgData}, e.g. by {@link
+   * #convertYuvToByteBuffer}.
+   */
+  public List<Recognition> recognizeImage() {
+    final List<Recognition> recognitions = new ArrayList<>(getNumDetections());
+    recognizeImage(recognitions);
+    return recognitions;
+  }
+
+  /**
+   * Runs the detector on the input that was already written to {@link #imgData} and replaces the
+   * content of {@code recognitions} with new recognitions.
+   */
+  public void recognizeImage(List<Recognition> recognitions) {
+    recognizeImage(recognitions, new ArrayList<>());
+  }
+
+  /**
+   * Runs the detector on the input that was already written to {@link #imgData} and replaces the
+   * content of {@code recognitions} with the result. The recognitions are taken from {@code
+   * holders}, which grows to the largest number of results, so nothing is allocated once the caller
+   * reuses both lists for every frame. The recognitions stay valid until the holders are passed
+   * again.
+   */
+  public void recognizeImage(List<Recognition> recognitions, List<Recognition> holders) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+
     // Copy the input data into TensorFlow.
     Trace.beginSection("feed");
     feedData();
@@ -172,7 +263,55 @@ public abstract class Detector extends Network {
     LOGGER.v("Timecost to run model inference: " + (endTime - startTime));
 
     Trace.endSection(); // "recognizeImage"
-    return getRecognitions();
+    recognitions.clear();
+    this.holders = holders;
+    try {
+      getRecognitions(recognitions);
+    } finally {
+      this.holders = null;
+    }
+  }
+
+  /**
+   * Sets the classes to detect.
+   *
+   * @param names Labels of the classes, all classes if empty.
+   */
+  public void setTargetClasses(String... names) {
+    postprocessor.setTargetClasses(labels, names);
+  }
+
+  /** Sets the minimum confidence of a recognition. */
+  public void setMinimumConfidence(float minimumConfidence) {
+    postprocessor.setMinScore(minimumConfidence);
+  }
+
+  /**
+   * Runs the {@link #postprocessor} on the candidates added to it and adds a recognition for every
+   * result.
+   *
+   * @param boxes Boxes the candidates refer to, relative to the input size (0 to 1).
+   * @param recognitions List the recognitions are added to.
+   */
+  protected void addRecognitions(float[] boxes, List<Recognition> recognitions) {
+    final int numResults = postprocessor.run(boxes);
+    for (int i = 0; i < numResults; ++i) {
+      final int offset = 4 * postprocessor.getResultBox(i);
+      final int classId = postprocessor.getResultClass(i);
+      if (holders.size() <= i) {
+        holders.add(new Recognition());
+      }
+      final Recognition recognition = holders.get(i);
+      recognition.set(
+          classIds[classId],
+          labels.get(classId),
+          postprocessor.getResultScore(i),
+          boxes[offset] * getImageSizeX(),
+          boxes[offset + 1] * getImageSizeY(),
+          boxes[offset + 2] * getImageSizeX(),
+          boxes[offset + 3] * getImageSizeY());
+      recognitions.add(recognition);
+    }
   }
 
   /**
@@ -242,7 +381,7 @@ public abstract class Detector extends Network {
   /**
    * Get the recognitions.
    *
-   * @return
+   * @param recognitions List the recognitions are added to.
    */
-  protected abstract List<Recognition> getRecognitions();
+  protected abstract void getRecognitions(List<Recognition> recognitions);
 }
@@ -20,7 +20,6 @@ package org.openbot.tflite;
 import android.app.Activity;
 import android.graphics.RectF;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 /** This TensorFlow Lite classifier works with the quantized MobileNet model. */
@@ -31,16 +30,21 @@ public class DetectorQuantizedMobileNetV1 extends Detector {
 
   // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
   // contains the location of detected boxes
-  private float[][][] outputLocations;
+  private final float[][][] outputLocations = new float[1][NUM_DETECTIONS][4];
   // outputClasses: array of shape [Batchsize, NUM_DETECTIONS]
   // contains the classes of detected boxes
-  private float[][] outputClasses;
+  private final float[][] outputClasses = new float[1][NUM_DETECTIONS];
   // outputScores: array of shape [Batchsize, NUM_DETECTIONS]
   // contains the scores of detected boxes
-  private float[][] outputScores;
+  private final float[][] outputScores = new float[1][NUM_DETECTIONS];
   // numDetections: array of shape [Batchsize]
   // contains the number of detected boxes
-  private float[] numDetections;
+  private final float[] numDetections = new float[1];
+  // Boxes as (left, top, right, bottom) for the postprocessor.
+  private final float[] boxes = new float[4 * NUM_DETECTIONS];
+
+  /** Inputs of the interpreter, created once and pointed at the current {@link #imgData}. */
+  private final Object[] inputArray;
 
   /**
    * An array to hold inference results, to be feed into Tensorflow Lite as outputs. This isn't part
@@ -53,10 +57,12 @@ public class DetectorQuantizedMobileNetV1 extends Detector {
    *
    * @param activity
    */
-  public DetectorQuantizedMobileNetV1(Activity activity, Device device, int numThreads)
+  public DetectorQuantizedMobileNetV1(
+      Activity activity, ModelRegistry.Entry model, Device device, int numThreads)
       throws IOException {
-    super(activity, device, numThreads);
+    super(activity, model, device, numThreads);
     labelProbArray = new byte[1][getNumLabels()];
+    inputArray = new Object[] {imgData};
   }
 
   @Override
@@ -79,35 +85,20 @@ public class DetectorQuantizedMobileNetV1 extends Detector {
     return 300;
   }
 
-  @Override
-  protected String getModelPath() {
-    // you can download this file from
-    // see build.gradle for where to obtain this file. It should be auto
-    // downloaded into assets.
-    return "networks/mobile_ssd_v1_1.0_quant_coco.tflite";
-  }
-
   @Override
   protected String getLabelPath() {
     return "networks/labelmap.txt";
   }
 
-  @Override
-  protected int getNumBytesPerChannel() {
-    // the quantized model uses a single byte only
-    return 1;
-  }
-
   @Override
   protected final int getNumDetections() {
     return NUM_DETECTIONS;
   }
 
   @Override
-  protected void addPixelValue(int pixelValue) {
-    imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-    imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-    imgData.put((byte) (pixelValue & 0xFF));
+  protected ImagePreprocessor createPreprocessor() {
+    // the quantized model uses a single byte only
+    return ImagePreprocessor.uint8();
   }
 
   @Override
@@ -128,17 +119,13 @@ public class DetectorQuantizedMobileNetV1 extends Detector {
   @Override
   protected void runInference() {
     // tflite.run(imgData, labelProbArray);
-    Object[] inputArray = {imgData};
+    inputArray[0] = imgData;
     tflite.runForMultipleInputsOutputs(inputArray, outputMap);
   }
 
   @Override
   protected void feedData() {
-    outputLocations = new float[1][getNumDetections()][4];
-    outputClasses = new float[1][getNumDetections()];
-    outputScores = new float[1][getNumDetections()];
-    numDetections = new float[1];
-
+    // The output arrays are allocated once and overwritten by every inference.
     // Object[] inputArray = {imgData};
     //    Map<Integer, Object> outputMap = new HashMap<>();
     outputMap.put(0, outputLocations);
@@ -148,30 +135,22 @@ public class DetectorQuantizedMobileNetV1 extends Detector {
   }
 
   @Override
-  protected List<Recognition> getRecognitions() {
-    // Show the best detections.
-    // after scaling them back to the input size.
-    final ArrayList<Recognition> recognitions = new ArrayList<>(getNumDetections());
+  protected void getRecognitions(List<Recognition> recognitions) {
+    // The model already suppressed overlapping detections of the same class. Suppress detections
+    // of different classes on the same object, if several classes are detected.
+    postprocessor.clear();
     for (int i = 0; i < getNumDetections(); ++i) {
-      final RectF detection =
-          new RectF(
-              outputLocations[0][i][1] * getImageSizeY(),
-              outputLocations[0][i][0] * getImageSizeX(),
-              outputLocations[0][i][3] * getImageSizeY(),
-              outputLocations[0][i][2] * getImageSizeX());
+      // Locations are (top, left, bottom, right).
+      boxes[4 * i] = outputLocations[0][i][1];
+      boxes[4 * i + 1] = outputLocations[0][i][0];
+      boxes[4 * i + 2] = outputLocations[0][i][3];
+      boxes[4 * i + 3] = outputLocations[0][i][2];
       // SSD Mobilenet V1 Model assumes class 0 is background class
       // in label file and class labels start from 1 to number_of_classes+1,
       // while outputClasses correspond to class index from 0 to number_of_classes
       int labelOffset = 1;
-      if (labels.get((int) outputClasses[0][i] + labelOffset).contentEquals("person")) {
-        recognitions.add(
-            new Recognition(
-                "" + i,
-                labels.get((int) outputClasses[0][i] + labelOffset),
-                outputScores[0][i],
-                detection));
-      }
+      postprocessor.add(i, (int) outputClasses[0][i] + labelOffset, outputScores[0][i]);
     }
-    return recognitions;
+    addRecognitions(boxes, recognitions);
   }
 }
@@ -0,0 +1,155 @@
+package org.openbot.tflite;
+
+import android.app.Activity;
+import android.graphics.RectF;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Detector for float SSD MobileNet models that were exported without the detection postprocess op.
+ * The model outputs box encodings [1, anchors, 4] and class logits [1, anchors, classes] (class 0
+ * is the background), which are decoded against {@code networks/box_priors.txt} by a {@link
+ * SsdBoxDecoder}, followed by the {@link #postprocessor} for the score threshold and NMS.
+ *
+ * <p>The model is not downloaded by the build, it has to be placed into the assets or the app
+ * storage as in {@link Model#DETECTOR_V1_RAW_F}, see {@link ModelRegistry}. Its anchors have to
+ * match the box priors.
+ */
+public class DetectorRawSsd extends Detector {
+
+  // Only return this many results.
+  private static final int NUM_DETECTIONS = 10;
+  private static final float IMAGE_MEAN = 127.5f;
+  private static final float IMAGE_STD = 127.5f;
+
+  private final SsdBoxDecoder decoder;
+  private final int numClasses;
+
+  // Outputs of the interpreter and views of them, read into the arrays after every inference.
+  private final ByteBuffer encodingsBuffer;
+  private final ByteBuffer logitsBuffer;
+  private final FloatBuffer encodingsView;
+  private final FloatBuffer logitsView;
+  private final float[] encodings;
+  private final float[] logits;
+  private final float[] boxes;
+
+  /** Inputs of the interpreter, created once and pointed at the current {@link #imgData}. */
+  private final Object[] inputArray;
+
+  private final float[][] labelProbArray;
+
+  public DetectorRawSsd(Activity activity, ModelRegistry.Entry model, Device device, int numThreads)
+      throws IOException {
+    super(activity, model, device, numThreads);
+    try (InputStreamReader reader =
+        new InputStreamReader(activity.getAssets().open(getBoxPriorsPath()))) {
+      decoder = SsdBoxDecoder.read(reader);
+    }
+    final int numAnchors = decoder.getNumAnchors();
+    final int[] logitsShape = tflite.getOutputTensor(1).shape();
+    if (tflite.getOutputTensor(0).shape()[1] != numAnchors || logitsShape[1] != numAnchors) {
+      throw new IOException("The model does not match the " + numAnchors + " box priors.");
+    }
+    numClasses = logitsShape[2];
+
+    encodingsBuffer = ByteBuffer.allocateDirect(4 * numAnchors * 4).order(ByteOrder.nativeOrder());
+    logitsBuffer =
+        ByteBuffer.allocateDirect(4 * numAnchors * numClasses).order(ByteOrder.nativeOrder());
+    encodingsView = encodingsBuffer.asFloatBuffer();
+    logitsView = logitsBuffer.asFloatBuffer();
+    encodings = new float[4 * numAnchors];
+    logits = new float[numAnchors * numClasses];
+    boxes = new float[4 * numAnchors];
+
+    labelProbArray = new float[1][getNumLabels()];
+    inputArray = new Object[] {imgData};
+    postprocessor.setMaxResults(NUM_DETECTIONS);
+  }
+
+  @Override
+  public boolean getMaintainAspect() {
+    return false;
+  }
+
+  @Override
+  public RectF getCropRect() {
+    return new RectF(0.0f, 0.0f, 0.0f, 0.0f);
+  }
+
+  @Override
+  public int getImageSizeX() {
+    return 300;
+  }
+
+  @Override
+  public int getImageSizeY() {
+    return 300;
+  }
+
+  @Override
+  protected String getLabelPath() {
+    return "networks/labelmap.txt";
+  }
+
+  protected String getBoxPriorsPath() {
+    return "networks/box_priors.txt";
+  }
+
+  @Override
+  protected final int getNumDetections() {
+    return NUM_DETECTIONS;
+  }
+
+  @Override
+  protected ImagePreprocessor createPreprocessor() {
+    return ImagePreprocessor.floatMeanStd(IMAGE_MEAN, IMAGE_STD);
+  }
+
+  @Override
+  protected float getProbability(int labelIndex) {
+    return labelProbArray[0][labelIndex];
+  }
+
+  @Override
+  protected void setProbability(int labelIndex, Number value) {
+    labelProbArray[0][labelIndex] = value.floatValue();
+  }
+
+  @Override
+  protected float getNormalizedProbability(int labelIndex) {
+    return labelProbArray[0][labelIndex];
+  }
+
+  @Override
+  protected void runInference() {
+    inputArray[0] = imgData;
+    // The interpreter writes the outputs at the position of the buffers.
+    encodingsBuffer.rewind();
+    logitsBuffer.rewind();
+    tflite.runForMultipleInputsOutputs(inputArray, outputMap);
+  }
+
+  @Override
+  protected void feedData() {
+    outputMap.put(0, encodingsBuffer);
+    outputMap.put(1, logitsBuffer);
+  }
+
+  @Override
+  protected void getRecognitions(List<Recognition> recognitions) {
+    encodingsView.rewind();
+    encodingsView.get(encodings);
+    logitsView.rewind();
+    logitsView.get(logits);
+
+    // The logits include the background as class 0, like the label file.
+    postprocessor.clear();
+    decoder.addCandidates(encodings, logits, numClasses, 1, postprocessor, boxes);
+    addRecognitions(boxes, recognitions);
+  }
+}
@@ -0,0 +1,116 @@
+package org.openbot.tflite;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts ARGB pixels into the input tensor of a network. A {@link Network} declares its input
+ * format by returning one of the implementations below from {@link Network#createPreprocessor()}.
+ *
+ * <p>Implementations convert the pixels with per-channel lookup tables and write the (direct) input
+ * buffer with a single bulk write or with absolute puts, instead of three relative puts per pixel.
+ */
+public abstract class ImagePreprocessor {
+
+  /** Returns a preprocessor that writes the RGB bytes unchanged, for quantized models. */
+  public static ImagePreprocessor uint8() {
+    return new Uint8();
+  }
+
+  /** Returns a preprocessor that writes RGB floats scaled to [0, 1]. */
+  public static ImagePreprocessor floatNormalized() {
+    return new FloatMeanStd(0.0f, 255.0f);
+  }
+
+  /** Returns a preprocessor that writes RGB floats normalized by (value - mean) / std. */
+  public static ImagePreprocessor floatMeanStd(float mean, float std) {
+    return new FloatMeanStd(mean, std);
+  }
+
+  /**
+   * Returns a preprocessor that writes RGB floats normalized by (value - mean) / std with
+   * individual values for the red, green and blue channel.
+   */
+  public static ImagePreprocessor floatMeanStd(float[] mean, float[] std) {
+    return new FloatMeanStd(mean, std);
+  }
+
+  /**
+   * Get the number of bytes that is used to store a single color channel value.
+   *
+   * @return
+   */
+  public abstract int getNumBytesPerChannel();
+
+  /**
+   * Writes the first {@code numPixels} pixels as interleaved RGB values to the start of {@code
+   * buffer}. Afterwards, the position of the buffer is at the end of the written values.
+   *
+   * @param pixels ARGB pixels in row major order.
+   * @param numPixels Number of pixels to write.
+   * @param buffer Input buffer of the network.
+   */
+  public abstract void fill(int[] pixels, int numPixels, ByteBuffer buffer);
+
+  private static final class Uint8 extends ImagePreprocessor {
+    private byte[] scratch = new byte[0];
+
+    @Override
+    public int getNumBytesPerChannel() {
+      return 1;
+    }
+
+    @Override
+    public void fill(int[] pixels, int numPixels, ByteBuffer buffer) {
+      if (scratch.length < 3 * numPixels) {
+        scratch = new byte[3 * numPixels];
+      }
+      final byte[] values = scratch;
+      for (int i = 0, j = 0; i < numPixels; ++i, j += 3) {
+        final int pixel = pixels[i];
+        values[j] = (byte) (pixel >> 16);
+        values[j + 1] = (byte) (pixel >> 8);
+        values[j + 2] = (byte) pixel;
+      }
+      buffer.rewind();
+      buffer.put(values, 0, 3 * numPixels);
+    }
+  }
+
+  private static final class FloatMeanStd extends ImagePreprocessor {
+    private final float[] redTable = new float[256];
+    private final float[] greenTable = new float[256];
+    private final float[] blueTable = new float[256];
+
+    FloatMeanStd(float mean, float std) {
+      this(new float[] {mean, mean, mean}, new float[] {std, std, std});
+    }
+
+    FloatMeanStd(float[] mean, float[] std) {
+      if (mean.length != 3 || std.length != 3) {
+        throw new IllegalArgumentException("mean and std need one value per RGB channel");
+      }
+      for (int i = 0; i < 256; ++i) {
+        redTable[i] = (i - mean[0]) / std[0];
+        greenTable[i] = (i - mean[1]) / std[1];
+        blueTable[i] = (i - mean[2]) / std[2];
+      }
+    }
+
+    @Override
+    public int getNumBytesPerChannel() {
+      return 4; // Float.SIZE / Byte.SIZE;
+    }
+
+    @Override
+    public void fill(int[] pixels, int numPixels, ByteBuffer buffer) {
+      // Absolute writes need no float view of the buffer, the pipeline fills several of them.
+      for (int i = 0, j = 0; i < numPixels; ++i, j += 12) {
+        final int pixel = pixels[i];
+        buffer.putFloat(j, redTable[(pixel >> 16) & 0xFF]);
+        buffer.putFloat(j + 4, greenTable[(pixel >> 8) & 0xFF]);
+        buffer.putFloat(j + 8, blueTable[pixel & 0xFF]);
+      }
+      buffer.position(3 * numPixels * 4);
+    }
+  }
+}
@@ -0,0 +1,287 @@
+package org.openbot.tflite;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openbot.env.Logger;
+import org.openbot.tflite.Network.Model;
+
+/**
+ * The models the app can run, found in {@code networks/} of the assets and of the app storage
+ * ({@code Android/data/org.openbot/files/networks}, so models can be added with adb).
+ *
+ * <p>A {@code .tflite} file runs on the network of its {@link Model} type. The bundled models are
+ * known by their asset path. Any other file needs metadata next to it, a JSON file with the same
+ * name, e.g. {@code autopilot_v2.json} for {@code autopilot_v2.tflite}:
+ *
+ * <pre>{"type": "AUTOPILOT_F", "name": "AUTOPILOT_V2"}</pre>
+ *
+ * The name is optional and defaults to the file name. A model in the app storage replaces an asset
+ * of the same name, e.g. {@code autopilot_float.tflite} replaces the bundled autopilot.
+ *
+ * <p>The models are found on first use. A file is mapped into memory when a network first loads it,
+ * and the mapping is shared by all networks of the model.
+ */
+public class ModelRegistry {
+  private static final Logger LOGGER = new Logger();
+
+  /** Folder of the models in the assets and in the app storage. */
+  public static final String FOLDER = "networks";
+
+  private static final String EXTENSION = ".tflite";
+  private static final String METADATA_EXTENSION = ".json";
+
+  /** A model file and the type of network that runs it. */
+  public static final class Entry {
+    /** Unique name, shown in the model list. The bundled models are named like their type. */
+    public final String name;
+
+    public final Model type;
+    // Exactly one of them is set.
+    private final String assetPath;
+    private final File file;
+
+    Entry(String name, Model type, String assetPath, File file) {
+      this.name = name;
+      this.type = type;
+      this.assetPath = assetPath;
+      this.file = file;
+    }
+
+    public boolean isAsset() {
+      return assetPath != null;
+    }
+
+    /** Returns the path in the assets or in the file system. */
+    public String getPath() {
+      return isAsset() ? assetPath : file.getPath();
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private static ModelRegistry instance;
+
+  private final Context context;
+  // Memory-mapped models by path, see map().
+  private final Map<String, MappedByteBuffer> mapped = new HashMap<>();
+  // Models by name, in the order of the model list. Null until found.
+  private Map<String, Entry> entries;
+
+  /** Returns the registry of the app. */
+  public static synchronized ModelRegistry getInstance(Context context) {
+    if (instance == null) {
+      instance = new ModelRegistry(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private ModelRegistry(Context context) {
+    this.context = context;
+  }
+
+  /** Returns the models, the bundled ones first. */
+  public synchronized List<Entry> getEntries() {
+    return Collections.unmodifiableList(new ArrayList<>(findEntries().values()));
+  }
+
+  /** Returns the model of this name, null if there is none. */
+  public synchronized Entry get(String name) {
+    return findEntries().get(name);
+  }
+
+  /** Returns the model named like the type, e.g. the bundled model of the type. */
+  public Entry get(Model type) throws FileNotFoundException {
+    final Entry entry = get(type.name());
+    if (entry == null) {
+      throw new FileNotFoundException("No model " + type.getAssetPath());
+    }
+    return entry;
+  }
+
+  /**
+   * Looks for models again on the next use, e.g. after files were copied. Files that are mapped
+   * already are mapped again, in case they changed.
+   */
+  public synchronized void refresh() {
+    if (entries == null) {
+      return;
+    }
+    synchronized (mapped) {
+      for (Entry entry : entries.values()) {
+        if (!entry.isAsset()) {
+          mapped.remove(entry.getPath());
+        }
+      }
+    }
+    entries = null;
+  }
+
+  /**
+   * Returns the memory-mapped model. Every file is mapped once and shared by all networks using it,
+   * e.g. the interpreters of an inference pool.
+   */
+  public MappedByteBuffer map(Entry entry) throws IOException {
+    synchronized (mapped) {
+      MappedByteBuffer model = mapped.get(entry.getPath());
+      if (model == null) {
+        model = entry.isAsset() ? mapAsset(entry.assetPath) : mapFile(entry.file);
+        mapped.put(entry.getPath(), model);
+      }
+      return model;
+    }
+  }
+
+  private Map<String, Entry> findEntries() {
+    if (entries != null) {
+      return entries;
+    }
+    entries = new LinkedHashMap<>();
+    final AssetManager assets = context.getAssets();
+    String[] names;
+    try {
+      names = assets.list(FOLDER);
+    } catch (IOException e) {
+      LOGGER.e(e, "Failed to list the models in the assets.");
+      names = null;
+    }
+    if (names != null) {
+      // The bundled models first, in the order of their types.
+      final List<String> assetNames = new ArrayList<>();
+      Collections.addAll(assetNames, names);
+      for (Model type : Model.values()) {
+        final String name = type.getAssetPath().substring(FOLDER.length() + 1);
+        if (assetNames.remove(name)) {
+          add(new Entry(type.name(), type, type.getAssetPath(), null));
+        }
+      }
+      Collections.sort(assetNames);
+      for (String name : assetNames) {
+        if (name.endsWith(EXTENSION)) {
+          final String path = FOLDER + "/" + name;
+          final JSONObject metadata = readMetadata(path, true);
+          if (metadata != null) {
+            add(createEntry(name, metadata, path, null));
+          }
+        }
+      }
+    }
+    final File folder = context.getExternalFilesDir(FOLDER);
+    final File[] files = folder != null ? folder.listFiles() : null;
+    if (files != null) {
+      final List<File> sorted = new ArrayList<>();
+      Collections.addAll(sorted, files);
+      Collections.sort(sorted);
+      for (File file : sorted) {
+        final String name = file.getName();
+        if (!file.isFile() || !name.endsWith(EXTENSION)) {
+          continue;
+        }
+        final Model type = findBundledType(name);
+        if (type != null) {
+          add(new Entry(type.name(), type, null, file));
+          continue;
+        }
+        final JSONObject metadata = readMetadata(file.getPath(), false);
+        if (metadata != null) {
+          add(createEntry(name, metadata, null, file));
+        }
+      }
+    }
+    LOGGER.i("Found models %s.", entries.keySet());
+    return entries;
+  }
+
+  private void add(Entry entry) {
+    if (entry == null) {
+      return;
+    }
+    final Entry replaced = entries.put(entry.name, entry);
+    if (replaced != null) {
+      LOGGER.i("Model %s of %s replaces %s.", entry.name, entry.getPath(), replaced.getPath());
+    }
+  }
+
+  // Returns the type of the bundled model with this file name, null if there is none.
+  private static Model findBundledType(String fileName) {
+    for (Model type : Model.values()) {
+      if (type.getAssetPath().equals(FOLDER + "/" + fileName)) {
+        return type;
+      }
+    }
+    return null;
+  }
+
+  private static Entry createEntry(
+      String fileName, JSONObject metadata, String assetPath, File file) {
+    final String defaultName = fileName.substring(0, fileName.length() - EXTENSION.length());
+    try {
+      final Model type = Model.valueOf(metadata.getString("type"));
+      return new Entry(metadata.optString("name", defaultName), type, assetPath, file);
+    } catch (JSONException | IllegalArgumentException e) {
+      LOGGER.e(e, "Invalid metadata of model %s.", fileName);
+      return null;
+    }
+  }
+
+  // Returns the metadata of a model, null if there is none or it cannot be read.
+  private JSONObject readMetadata(String modelPath, boolean isAsset) {
+    final String path =
+        modelPath.substring(0, modelPath.length() - EXTENSION.length()) + METADATA_EXTENSION;
+    final StringBuilder text = new StringBuilder();
+    try (InputStream input =
+            isAsset ? context.getAssets().open(path) : new FileInputStream(new File(path));
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        text.append(line).append('\n');
+      }
+      return new JSONObject(text.toString());
+    } catch (FileNotFoundException e) {
+      LOGGER.w("Skipping model %s without metadata.", modelPath);
+      return null;
+    } catch (IOException | JSONException e) {
+      LOGGER.e(e, "Failed to read the metadata of model %s.", modelPath);
+      return null;
+    }
+  }
+
+  private MappedByteBuffer mapAsset(String path) throws IOException {
+    try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(path);
+        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+      final FileChannel fileChannel = inputStream.getChannel();
+      final long startOffset = fileDescriptor.getStartOffset();
+      final long declaredLength = fileDescriptor.getDeclaredLength();
+      return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    }
+  }
+
+  private static MappedByteBuffer mapFile(File file) throws IOException {
+    try (FileInputStream inputStream = new FileInputStream(file)) {
+      final FileChannel fileChannel = inputStream.getChannel();
+      return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+    }
+  }
+}
@@ -18,19 +18,18 @@ limitations under the License.
 package org.openbot.tflite;
 
 import android.app.Activity;
-import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.os.SystemClock;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Map;
 import org.openbot.env.Logger;
+import org.openbot.env.YuvTensorSampler;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.gpu.GpuDelegate;
 
@@ -38,11 +37,28 @@ public abstract class Network {
 
   protected static final Logger LOGGER = new Logger();
 
-  /** The model. */
+  /** The type of model, i.e. the network that runs it, and the bundled model of the type. */
   public enum Model {
-    DETECTOR_V1_1_0_Q,
-    DETECTOR_V3_S_Q,
-    AUTOPILOT_F,
+    DETECTOR_V1_1_0_Q("networks/mobile_ssd_v1_1.0_quant_coco.tflite"),
+    DETECTOR_V3_S_Q("networks/mobile_ssd_v3_small_quant_coco.tflite"),
+    AUTOPILOT_F("networks/autopilot_float.tflite"),
+    /**
+     * SSD without the postprocess op, see {@link DetectorRawSsd}. Not bundled, only in the model
+     * list if added to the assets.
+     */
+    DETECTOR_V1_RAW_F("networks/ssd_mobilenet_v1_raw_float.tflite");
+
+    // The bundled models are downloaded into the assets by download.gradle.
+    private final String assetPath;
+
+    Model(String assetPath) {
+      this.assetPath = assetPath;
+    }
+
+    /** Returns the path of the bundled model in the assets, see {@link ModelRegistry}. */
+    public String getAssetPath() {
+      return assetPath;
+    }
   }
 
   /** The runtime device type used for execution. */
@@ -63,6 +79,9 @@ public abstract class Network {
   /** Options for configuring the Interpreter. */
   protected final Interpreter.Options tfliteOptions = new Interpreter.Options();
 
+  /** The model file. */
+  protected final ModelRegistry.Entry model;
+
   /** The loaded TensorFlow Lite model. */
   protected MappedByteBuffer tfliteModel;
 
@@ -77,10 +96,18 @@ public abstract class Network {
   /** A HashMap to hold output data, to be feed into Tensorflow Lite as outputs. */
   protected Map<Integer, Object> outputMap = new HashMap<>();
 
+  /** Converts pixels into {@link #imgData}, declared by the subclass. */
+  protected final ImagePreprocessor preprocessor = createPreprocessor();
+
+  /** Samples the input directly from camera frames, set by {@link #setFrameTransform}. */
+  protected YuvTensorSampler yuvSampler = null;
+
   /** Initializes a {@code Network}. */
-  protected Network(Activity activity, Device device, int numThreads) throws IOException {
+  protected Network(Activity activity, ModelRegistry.Entry model, Device device, int numThreads)
+      throws IOException {
 
-    tfliteModel = loadModelFile(activity);
+    this.model = model;
+    tfliteModel = ModelRegistry.getInstance(activity).map(model);
     switch (device) {
       case NNAPI:
         tfliteOptions.setUseNNAPI(true);
@@ -94,47 +121,117 @@ public abstract class Network {
     }
     tfliteOptions.setNumThreads(numThreads);
     tflite = new Interpreter(tfliteModel, tfliteOptions);
-    imgData =
+    imgData = createInputBuffer();
+    LOGGER.d("Created a Tensorflow Lite Network.");
+  }
+
+  /**
+   * Allocates a buffer for the image input. Besides {@link #imgData}, further buffers allow filling
+   * the input of the next frame while the network runs on the current one.
+   */
+  public ByteBuffer createInputBuffer() {
+    final ByteBuffer buffer =
         ByteBuffer.allocateDirect(
             DIM_BATCH_SIZE
                 * getImageSizeX()
                 * getImageSizeY()
                 * DIM_PIXEL_SIZE
-                * getNumBytesPerChannel());
-    imgData.order(ByteOrder.nativeOrder());
-    LOGGER.d("Created a Tensorflow Lite Network.");
+                * preprocessor.getNumBytesPerChannel());
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
   }
 
-  /** Memory-map the model file in Assets. */
-  protected MappedByteBuffer loadModelFile(Activity activity) throws IOException {
-    AssetFileDescriptor fileDescriptor = activity.getAssets().openFd(getModelPath());
-    FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-    FileChannel fileChannel = inputStream.getChannel();
-    long startOffset = fileDescriptor.getStartOffset();
-    long declaredLength = fileDescriptor.getDeclaredLength();
-    return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+  /**
+   * Sets the buffer the image input is read from by the next inference.
+   *
+   * @param buffer A buffer created by {@link #createInputBuffer()}.
+   */
+  public void setInputBuffer(ByteBuffer buffer) {
+    imgData = buffer;
   }
 
   /** Writes Image data into a {@code ByteBuffer}. */
-  protected void convertBitmapToByteBuffer(Bitmap bitmap) {
-    if (imgData == null) {
+  public void convertBitmapToByteBuffer(Bitmap bitmap) {
+    convertBitmapToByteBuffer(bitmap, imgData);
+  }
+
+  /** Writes Image data into {@code buffer}, see {@link #createInputBuffer()}. */
+  public void convertBitmapToByteBuffer(Bitmap bitmap, ByteBuffer buffer) {
+    if (buffer == null) {
       return;
     }
-    imgData.rewind();
     bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-    // Convert the image to floating point.
-    int pixel = 0;
+    convertPixelsToByteBuffer(intValues, buffer);
+  }
+
+  /**
+   * Writes ARGB pixels of the input size, e.g. of a decoded recorded frame, into {@code buffer},
+   * see {@link #createInputBuffer()}.
+   */
+  public void convertPixelsToByteBuffer(int[] pixels, ByteBuffer buffer) {
+    buffer.rewind();
     long startTime = SystemClock.elapsedRealtime();
-    for (int i = 0; i < getImageSizeX(); ++i) {
-      for (int j = 0; j < getImageSizeY(); ++j) {
-        final int val = intValues[pixel++];
-        addPixelValue(val);
-      }
-    }
+    preprocessor.fill(pixels, getImageSizeX() * getImageSizeY(), buffer);
     long endTime = SystemClock.elapsedRealtime();
     LOGGER.v("Timecost to put values into ByteBuffer: " + (endTime - startTime));
   }
 
+  /**
+   * Sets the camera frame the input is sampled from by {@link #convertYuvToByteBuffer}.
+   *
+   * @param frameWidth Width of the camera frame.
+   * @param frameHeight Height of the camera frame.
+   * @param cropToFrameTransform Transform from input to camera frame coordinates.
+   */
+  public void setFrameTransform(int frameWidth, int frameHeight, Matrix cropToFrameTransform) {
+    final float[] values = new float[9];
+    cropToFrameTransform.getValues(values);
+    final YuvTensorSampler sampler = new YuvTensorSampler(getImageSizeX(), getImageSizeY());
+    sampler.setTransform(values, frameWidth, frameHeight);
+    yuvSampler = sampler;
+  }
+
+  /** Returns true if the input is sampled from camera frames of this size. */
+  public boolean hasFrameTransform(int frameWidth, int frameHeight) {
+    final YuvTensorSampler sampler = yuvSampler;
+    return sampler != null
+        && sampler.getFrameWidth() == frameWidth
+        && sampler.getFrameHeight() == frameHeight;
+  }
+
+  /**
+   * Writes the input into {@code imgData} straight from the YUV420 planes of a camera frame,
+   * without going through the ARGB frame and the cropped bitmap.
+   */
+  public void convertYuvToByteBuffer(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride) {
+    convertYuvToByteBuffer(yData, uData, vData, yRowStride, uvRowStride, uvPixelStride, imgData);
+  }
+
+  /** Writes the input into {@code buffer} straight from the YUV420 planes of a camera frame. */
+  public void convertYuvToByteBuffer(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      ByteBuffer buffer) {
+    if (buffer == null || yuvSampler == null) {
+      return;
+    }
+    long startTime = SystemClock.elapsedRealtime();
+    yuvSampler.sample(yData, uData, vData, yRowStride, uvRowStride, uvPixelStride, intValues);
+    preprocessor.fill(intValues, intValues.length, buffer);
+    long endTime = SystemClock.elapsedRealtime();
+    LOGGER.v("Timecost to sample values into ByteBuffer: " + (endTime - startTime));
+  }
+
   /** Closes the interpreter and model to release resources. */
   public void close() {
     if (tflite != null) {
@@ -162,26 +259,17 @@ public abstract class Network {
    */
   public abstract int getImageSizeY();
 
-  /**
-   * Get the name of the model file stored in Assets.
-   *
-   * @return
-   */
-  protected abstract String getModelPath();
+  /** Returns the model file the network runs. */
+  public ModelRegistry.Entry getModel() {
+    return model;
+  }
 
   /**
-   * Get the number of bytes that is used to store a single color channel value.
+   * Get the conversion of pixels into the input of the model.
    *
    * @return
    */
-  protected abstract int getNumBytesPerChannel();
-
-  /**
-   * Add pixelValue to byteBuffer.
-   *
-   * @param pixelValue
-   */
-  protected abstract void addPixelValue(int pixelValue);
+  protected abstract ImagePreprocessor createPreprocessor();
 
   /**
    * Get boolean that determines if aspect ratio should be preserved when rescaling.
@@ -0,0 +1,151 @@
+package org.openbot.tflite;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Decodes the raw outputs of an SSD model that was exported without the detection postprocess op: a
+ * box encoding per anchor (ty, tx, th, tw) and a class logit per anchor and class.
+ *
+ * <p>The anchors (box priors) are read from a file like {@code networks/box_priors.txt} with four
+ * lines of whitespace separated values: the y center, x center, height and width of every anchor,
+ * relative to the input size. An encoding is decoded as in the TensorFlow Object Detection API:
+ * {@code yCenter = ty / 10 * height + prior yCenter}, {@code height = exp(th / 5) * prior height}
+ * and likewise for x and the width.
+ *
+ * <p>{@link #addCandidates} compares the logits with the score threshold converted to a logit, so
+ * the sigmoid is only computed for the few candidates that pass, and decodes only the boxes of
+ * anchors with a candidate. Nothing is allocated.
+ */
+public class SsdBoxDecoder {
+
+  private static final float Y_SCALE = 10.0f;
+  private static final float X_SCALE = 10.0f;
+  private static final float H_SCALE = 5.0f;
+  private static final float W_SCALE = 5.0f;
+
+  private final int numAnchors;
+  private final float[] yCenters;
+  private final float[] xCenters;
+  private final float[] heights;
+  private final float[] widths;
+  private int[] classes = new int[0];
+
+  public SsdBoxDecoder(float[] yCenters, float[] xCenters, float[] heights, float[] widths) {
+    numAnchors = yCenters.length;
+    if (xCenters.length != numAnchors
+        || heights.length != numAnchors
+        || widths.length != numAnchors) {
+      throw new IllegalArgumentException("All priors need " + numAnchors + " anchors.");
+    }
+    this.yCenters = yCenters;
+    this.xCenters = xCenters;
+    this.heights = heights;
+    this.widths = widths;
+  }
+
+  /** Reads the priors from the lines of y centers, x centers, heights and widths. */
+  public static SsdBoxDecoder read(Reader reader) throws IOException {
+    final BufferedReader lines = new BufferedReader(reader);
+    final float[][] priors = new float[4][];
+    for (int i = 0; i < priors.length; ++i) {
+      final String line = lines.readLine();
+      if (line == null) {
+        throw new IOException("Box priors end after " + i + " lines.");
+      }
+      final String[] values = line.trim().split("\\s+");
+      priors[i] = new float[values.length];
+      for (int j = 0; j < values.length; ++j) {
+        priors[i][j] = Float.parseFloat(values[j]);
+      }
+    }
+    return new SsdBoxDecoder(priors[0], priors[1], priors[2], priors[3]);
+  }
+
+  public int getNumAnchors() {
+    return numAnchors;
+  }
+
+  /**
+   * Decodes the box of an anchor.
+   *
+   * @param encodings Box encodings, 4 values per anchor.
+   * @param anchor Index of the anchor.
+   * @param boxes Boxes as (left, top, right, bottom) relative to the input size, the box of the
+   *     anchor is written at {@code 4 * anchor}.
+   */
+  public void decode(float[] encodings, int anchor, float[] boxes) {
+    final int offset = 4 * anchor;
+    final float yCenter = encodings[offset] / Y_SCALE * heights[anchor] + yCenters[anchor];
+    final float xCenter = encodings[offset + 1] / X_SCALE * widths[anchor] + xCenters[anchor];
+    final float halfHeight =
+        (float) Math.exp(encodings[offset + 2] / H_SCALE) * heights[anchor] / 2;
+    final float halfWidth = (float) Math.exp(encodings[offset + 3] / W_SCALE) * widths[anchor] / 2;
+    boxes[offset] = xCenter - halfWidth;
+    boxes[offset + 1] = yCenter - halfHeight;
+    boxes[offset + 2] = xCenter + halfWidth;
+    boxes[offset + 3] = yCenter + halfHeight;
+  }
+
+  /**
+   * Adds a candidate to the postprocessor for every anchor and allowed class whose score reaches
+   * the minimum score of the postprocessor, and decodes the boxes of these anchors.
+   *
+   * @param encodings Box encodings, 4 values per anchor.
+   * @param logits Class logits, {@code numClasses} values per anchor.
+   * @param numClasses Number of classes including the background.
+   * @param firstClass First class that is not background, usually 1.
+   * @param postprocessor Postprocessor the candidates are added to, the box index is the anchor.
+   * @param boxes Boxes of the anchors, only those with a candidate are written.
+   */
+  public void addCandidates(
+      float[] encodings,
+      float[] logits,
+      int numClasses,
+      int firstClass,
+      DetectionPostprocessor postprocessor,
+      float[] boxes) {
+    int numAllowed = 0;
+    if (classes.length < numClasses) {
+      classes = new int[numClasses];
+    }
+    for (int c = firstClass; c < numClasses; ++c) {
+      if (postprocessor.isAllowed(c)) {
+        classes[numAllowed++] = c;
+      }
+    }
+    final float minLogit = logit(postprocessor.getMinScore());
+
+    for (int anchor = 0; anchor < numAnchors; ++anchor) {
+      final int offset = anchor * numClasses;
+      boolean decoded = false;
+      for (int i = 0; i < numAllowed; ++i) {
+        final float value = logits[offset + classes[i]];
+        if (value < minLogit) {
+          continue;
+        }
+        if (!decoded) {
+          decode(encodings, anchor, boxes);
+          decoded = true;
+        }
+        postprocessor.add(anchor, classes[i], sigmoid(value));
+      }
+    }
+  }
+
+  private static float sigmoid(float value) {
+    return (float) (1 / (1 + Math.exp(-value)));
+  }
+
+  // Inverse of the sigmoid, so that sigmoid(x) >= score if x >= logit(score).
+  private static float logit(float score) {
+    if (score <= 0) {
+      return Float.NEGATIVE_INFINITY;
+    }
+    if (score >= 1) {
+      return Float.POSITIVE_INFINITY;
+    }
+    return (float) Math.log(score / (1 - score));
+  }
+}
@@ -27,22 +27,30 @@ import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.text.TextUtils;
-import android.util.Pair;
+import android.util.Log;
 import android.util.TypedValue;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Queue;
 import org.openbot.env.BorderedText;
 import org.openbot.env.ImageUtils;
 import org.openbot.env.Logger;
 import org.openbot.env.Vehicle;
 import org.openbot.tflite.Detector.Recognition;
 
-/** A tracker that handles non-max suppression and matches existing objects to new detections. */
+/**
+ * Tracks the detections with an {@link ObjectTracker}, draws the tracked objects and steers toward
+ * the target. The target is kept by its track ID as long as its track lives.
+ */
 public class MultiBoxTracker {
   private static final float TEXT_SIZE_DIP = 18;
   private static final float MIN_SIZE = 16.0f;
+  // Association and track hysteresis, see ObjectTracker.
+  private static final float MIN_IOU = 0.3f;
+  private static final int MIN_HITS = 2;
+  private static final int MAX_MISSES = 5;
+  // Alpha of tracks that are coasting on their prediction.
+  private static final int COASTING_ALPHA = 96;
   private static final int[] COLORS = {
     Color.BLUE,
     Color.RED,
@@ -60,10 +68,22 @@ public class MultiBoxTracker {
     Color.parseColor("#AA33AA"),
     Color.parseColor("#0D0068")
   };
-  final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
+  // Detections of the last frame on the screen and their scores, reused for every frame.
+  private final List<RectF> screenRects = new ArrayList<>();
+  private float[] screenScores = new float[0];
+  private int numScreenRects;
   private final Logger logger = new Logger();
-  private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  private final ObjectTracker objectTracker = new ObjectTracker(MIN_IOU, MIN_HITS, MAX_MISSES);
+  // Titles of the detections, the tracker refers to them by their index.
+  private final List<String> titles = new ArrayList<>();
+  // Detections of the current frame for the tracker.
+  private float[] boxes = new float[0];
+  private float[] scores = new float[0];
+  private int[] labels = new int[0];
+  private final float[] box = new float[4];
+  private final RectF trackedPos = new RectF();
+  private final RectF detectionFrameRect = new RectF();
+  private int targetId = -1;
   private final Paint boxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
@@ -75,10 +95,6 @@ public class MultiBoxTracker {
   private float rightControl;
 
   public MultiBoxTracker(final Context context) {
-    for (final int color : COLORS) {
-      availableColors.add(color);
-    }
-
     boxPaint.setColor(Color.RED);
     boxPaint.setStyle(Style.STROKE);
     boxPaint.setStrokeWidth(10.0f);
@@ -109,17 +125,24 @@ public class MultiBoxTracker {
     boxPaint.setAlpha(200);
     boxPaint.setStyle(Style.STROKE);
 
-    for (final Pair<Float, RectF> detection : screenRects) {
-      final RectF rect = detection.second;
+    for (int i = 0; i < numScreenRects; ++i) {
+      final RectF rect = screenRects.get(i);
       canvas.drawRect(rect, boxPaint);
-      canvas.drawText("" + detection.first, rect.left, rect.top, textPaint);
-      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + detection.first);
+      canvas.drawText("" + screenScores[i], rect.left, rect.top, textPaint);
+      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + screenScores[i]);
     }
   }
 
   public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
-    logger.i("Processing %d results from %d", results.size(), timestamp);
-    processResults(results);
+    if (logger.checkLoggable(Log.VERBOSE)) {
+      logger.v("Processing %d results from %d", results.size(), timestamp);
+    }
+    processResults(results, timestamp);
+  }
+
+  /** Moves the tracked objects to their predicted position on a frame without detections. */
+  public synchronized void predict(final long timestamp) {
+    objectTracker.predict(timestamp);
   }
 
   private Matrix getFrameToCanvasMatrix() {
@@ -143,10 +166,15 @@ public class MultiBoxTracker {
             false);
   }
 
-  public synchronized Vehicle.Control updateTarget() {
-    if (!trackedObjects.isEmpty()) {
-      // Pick person with highest probability
-      final RectF trackedPos = new RectF(trackedObjects.get(0).location);
+  /**
+   * Writes the control that steers toward the target into {@code control}, stop if there is none.
+   * Does not allocate, so the caller can reuse the control for every frame.
+   */
+  public synchronized void updateTarget(Vehicle.Control control) {
+    final int target = findTarget();
+    if (target >= 0) {
+      objectTracker.getBox(target, box, 0);
+      trackedPos.set(box[0], box[1], box[2], box[3]);
       final boolean rotated = sensorOrientation % 180 == 90;
       float imgWidth = (float) (rotated ? frameHeight : frameWidth);
       float centerX = (rotated ? trackedPos.centerY() : trackedPos.centerX());
@@ -170,102 +198,124 @@ public class MultiBoxTracker {
       leftControl = 0.0f;
       rightControl = 0.0f;
     }
-    return new Vehicle.Control(
+    control.set(
         (0 > sensorOrientation) ? rightControl : leftControl,
         (0 > sensorOrientation) ? leftControl : rightControl);
   }
 
+  // Returns the track of the current target or, if it was lost, picks the confirmed track with the
+  // highest confidence as the new target. Returns -1 if there is none.
+  private int findTarget() {
+    int target = targetId >= 0 ? objectTracker.findTrack(targetId) : -1;
+    if (target >= 0 && objectTracker.isConfirmed(target)) {
+      return target;
+    }
+    target = -1;
+    for (int t = 0; t < objectTracker.getNumTracks(); ++t) {
+      if (objectTracker.isConfirmed(t)
+          && (target < 0 || objectTracker.getScore(t) > objectTracker.getScore(target))) {
+        target = t;
+      }
+    }
+    targetId = target >= 0 ? objectTracker.getId(target) : -1;
+    return target;
+  }
+
   public synchronized void draw(final Canvas canvas) {
     updateFrameToCanvasMatrix(canvas.getHeight(), canvas.getWidth());
 
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos = new RectF(recognition.location);
+    for (int t = 0; t < objectTracker.getNumTracks(); ++t) {
+      if (!objectTracker.isConfirmed(t)) {
+        continue;
+      }
+      objectTracker.getBox(t, box, 0);
+      trackedPos.set(box[0], box[1], box[2], box[3]);
 
       getFrameToCanvasMatrix().mapRect(trackedPos);
-      boxPaint.setColor(recognition.color);
+      boxPaint.setColor(COLORS[objectTracker.getId(t) % COLORS.length]);
+      if (objectTracker.getMisses(t) > 0) {
+        boxPaint.setAlpha(COASTING_ALPHA);
+      }
 
       float cornerSize = Math.min(trackedPos.width(), trackedPos.height()) / 8.0f;
       canvas.drawRoundRect(trackedPos, cornerSize, cornerSize, boxPaint);
 
+      final String title = titles.get(objectTracker.getLabel(t));
+      final float confidence = objectTracker.getScore(t);
       final String labelString =
-          !TextUtils.isEmpty(recognition.title)
-              ? String.format(
-                  Locale.US, "%s %.2f", recognition.title, (100 * recognition.detectionConfidence))
-              : String.format(Locale.US, "%.2f", 100 * recognition.detectionConfidence);
+          !TextUtils.isEmpty(title)
+              ? String.format(Locale.US, "%s %.2f", title, (100 * confidence))
+              : String.format(Locale.US, "%.2f", 100 * confidence);
       borderedText.drawText(
           canvas, trackedPos.left + cornerSize, trackedPos.top, labelString + "%", boxPaint);
-
-      //      if (recognition == trackedObjects.get(0)) {
-      //        borderedText.drawText(
-      //                canvas,
-      //                trackedPos.left + cornerSize,
-      //                trackedPos.top + 40.0f,
-      //                String.format(Locale.US, "%.2f", leftControl) + "," + String.format("%.2f",
-      // rightControl),
-      //                boxPaint);
-      //      }
     }
   }
 
-  public void clearTrackedObjects() {
-    trackedObjects.clear();
+  public synchronized void clearTrackedObjects() {
+    objectTracker.reset();
+    targetId = -1;
   }
 
-  private void processResults(final List<Recognition> results) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
+  private void processResults(final List<Recognition> results, final long timestamp) {
+    ensureCapacity(results.size());
+    int numDetections = 0;
 
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
+    numScreenRects = 0;
+    final Matrix rgbFrameToScreen = getFrameToCanvasMatrix();
 
     for (final Recognition result : results) {
-      if (result.getLocation() == null) {
+      if (!result.getLocation(detectionFrameRect)) {
         continue;
       }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
-
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
-
-      logger.v(
-          "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
+      if (screenRects.size() <= numScreenRects) {
+        screenRects.add(new RectF());
+      }
+      final RectF detectionScreenRect = screenRects.get(numScreenRects);
+      if (rgbFrameToScreen != null) {
+        rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
+      } else {
+        // Not drawn yet.
+        detectionScreenRect.set(detectionFrameRect);
+      }
+      screenScores[numScreenRects++] = result.getConfidence();
 
-      screenRects.add(new Pair<Float, RectF>(result.getConfidence(), detectionScreenRect));
+      if (logger.checkLoggable(Log.VERBOSE)) {
+        logger.v("Result! Frame: %s mapped to screen: %s", detectionFrameRect, detectionScreenRect);
+      }
 
       if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
         logger.w("Degenerate rectangle! " + detectionFrameRect);
         continue;
       }
 
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getConfidence(), result));
+      final int offset = 4 * numDetections;
+      boxes[offset] = detectionFrameRect.left;
+      boxes[offset + 1] = detectionFrameRect.top;
+      boxes[offset + 2] = detectionFrameRect.right;
+      boxes[offset + 3] = detectionFrameRect.bottom;
+      scores[numDetections] = result.getConfidence();
+      labels[numDetections] = getLabel(result.getTitle());
+      numDetections++;
     }
 
-    // Clear so objects don't stay if nothing detected.
-    trackedObjects.clear();
-
-    if (rectsToTrack.isEmpty()) {
-      logger.v("Nothing to track, aborting.");
-      return;
-    }
+    objectTracker.update(timestamp, boxes, scores, labels, numDetections);
+  }
 
-    // trackedObjects.clear();
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      trackedRecognition.color = COLORS[trackedObjects.size()];
-      trackedObjects.add(trackedRecognition);
-
-      if (trackedObjects.size() >= COLORS.length) {
-        break;
-      }
+  private int getLabel(String title) {
+    int label = titles.indexOf(title);
+    if (label < 0) {
+      label = titles.size();
+      titles.add(title);
     }
+    return label;
   }
 
-  private static class TrackedRecognition {
-    RectF location;
-    float detectionConfidence;
-    int color;
-    String title;
+  private void ensureCapacity(int numDetections) {
+    if (scores.length < numDetections) {
+      boxes = new float[4 * numDetections];
+      scores = new float[numDetections];
+      labels = new int[numDetections];
+      screenScores = new float[numDetections];
+    }
   }
 }
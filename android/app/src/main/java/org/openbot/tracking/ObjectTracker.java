@@ -0,0 +1,366 @@
+package org.openbot.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Multi-object tracker that keeps objects and their IDs across frames.
+ *
+ * <p>Every track follows its box with a constant velocity Kalman filter: the center moves with an
+ * estimated velocity, the size is a random walk. On every update the tracks are first predicted to
+ * the time of the detections. Detections are then associated greedily to the tracks of the same
+ * label in the order of decreasing overlap (intersection over union). Matched tracks are corrected
+ * with their detection, every unmatched detection starts a new track.
+ *
+ * <p>Tracks are born tentative and confirmed after {@code minHits} consecutive matches, so single
+ * false detections never show up. A confirmed track survives {@code maxMisses} updates without a
+ * match, during which it coasts on its prediction, so the target is kept through missed detections.
+ * {@link #predict} steps the tracks without detections, e.g. on frames in between two detector
+ * runs. Detections of a frame older than the last prediction (the detector lags behind the camera)
+ * are compared with the tracks at the time of their frame, using the estimated velocity.
+ *
+ * <p>The tracks are stored as arrays of primitives and neither updates nor predictions allocate.
+ * Boxes are (left, top, right, bottom) and times are in frames, e.g. the frame number. The tracker
+ * is not thread-safe.
+ */
+public class ObjectTracker {
+
+  /** Maximum number of tracks, further detections do not start a track. */
+  public static final int MAX_TRACKS = 32;
+
+  // Noise of the filters, standard deviations relative to the size of the box. Per frame for the
+  // process noise: the acceleration of the center and the change of the size.
+  private static final float ACCELERATION_NOISE = 0.02f;
+  private static final float SIZE_NOISE = 0.05f;
+  private static final float MEASUREMENT_NOISE = 0.1f;
+  // Initial uncertainty of the velocity of a new track, relative to its size per frame.
+  private static final float INITIAL_VELOCITY_NOISE = 0.2f;
+
+  private final float minIou;
+  private final int minHits;
+  private final int maxMisses;
+
+  private int numTracks;
+  private int nextId;
+  private long timestamp;
+
+  // Track state, one entry per track.
+  private final int[] ids = new int[MAX_TRACKS];
+  private final int[] labels = new int[MAX_TRACKS];
+  private final float[] scores = new float[MAX_TRACKS];
+  private final int[] hits = new int[MAX_TRACKS];
+  private final int[] misses = new int[MAX_TRACKS];
+  private final boolean[] confirmed = new boolean[MAX_TRACKS];
+  // Center position and velocity with their covariance [[pp, pv], [pv, vv]] for x and y.
+  private final float[] cx = new float[MAX_TRACKS];
+  private final float[] vx = new float[MAX_TRACKS];
+  private final float[] xpp = new float[MAX_TRACKS];
+  private final float[] xpv = new float[MAX_TRACKS];
+  private final float[] xvv = new float[MAX_TRACKS];
+  private final float[] cy = new float[MAX_TRACKS];
+  private final float[] vy = new float[MAX_TRACKS];
+  private final float[] ypp = new float[MAX_TRACKS];
+  private final float[] ypv = new float[MAX_TRACKS];
+  private final float[] yvv = new float[MAX_TRACKS];
+  // Width and height with their variance.
+  private final float[] width = new float[MAX_TRACKS];
+  private final float[] widthVariance = new float[MAX_TRACKS];
+  private final float[] height = new float[MAX_TRACKS];
+  private final float[] heightVariance = new float[MAX_TRACKS];
+
+  // Association scratch, grown with the number of detections.
+  private long[] candidates = new long[0];
+  private boolean[] matchedDetections = new boolean[0];
+  private final boolean[] matchedTracks = new boolean[MAX_TRACKS];
+
+  /**
+   * Creates a tracker.
+   *
+   * @param minIou Minimum overlap of a detection with the prediction of a track to match it.
+   * @param minHits Consecutive matches after which a track is confirmed.
+   * @param maxMisses Updates without a match after which a confirmed track is dropped.
+   */
+  public ObjectTracker(float minIou, int minHits, int maxMisses) {
+    this.minIou = minIou;
+    this.minHits = minHits;
+    this.maxMisses = maxMisses;
+  }
+
+  /**
+   * Predicts the tracks to the time of the detections and corrects them with the detections.
+   *
+   * @param timestamp Time of the frame of the detections, may be older than the last prediction.
+   * @param boxes Boxes of the detections, 4 values each.
+   * @param detectionScores Confidence of each detection.
+   * @param detectionLabels Class of each detection, only detections of the same class are matched.
+   * @param numDetections Number of detections in the arrays.
+   */
+  public void update(
+      long timestamp,
+      float[] boxes,
+      float[] detectionScores,
+      int[] detectionLabels,
+      int numDetections) {
+    // Frames the detections lag behind the tracks.
+    final float lag = numTracks > 0 ? Math.max(0, this.timestamp - timestamp) : 0;
+    predict(timestamp);
+    ensureCapacity(numDetections);
+
+    // Candidate pairs sorted by their overlap. The IoU is positive, so the order of its bits is
+    // the order of the values, the lower bits hold the pair.
+    int numCandidates = 0;
+    for (int t = 0; t < numTracks; ++t) {
+      for (int d = 0; d < numDetections; ++d) {
+        if (labels[t] != detectionLabels[d]) {
+          continue;
+        }
+        final float iou = iou(t, boxes, 4 * d, lag);
+        if (iou >= minIou && iou > 0) {
+          candidates[numCandidates++] =
+              ((long) Float.floatToIntBits(iou) << 32) | ((long) t << 16) | d;
+        }
+      }
+    }
+    Arrays.sort(candidates, 0, numCandidates);
+
+    Arrays.fill(matchedTracks, 0, numTracks, false);
+    Arrays.fill(matchedDetections, 0, numDetections, false);
+    for (int i = numCandidates - 1; i >= 0; --i) {
+      final int t = (int) (candidates[i] >>> 16) & 0xFFFF;
+      final int d = (int) candidates[i] & 0xFFFF;
+      if (matchedTracks[t] || matchedDetections[d]) {
+        continue;
+      }
+      matchedTracks[t] = true;
+      matchedDetections[d] = true;
+      correct(t, boxes, 4 * d, lag);
+      scores[t] = detectionScores[d];
+      misses[t] = 0;
+      if (++hits[t] >= minHits) {
+        confirmed[t] = true;
+      }
+    }
+
+    // Remove tracks from the back, so that the moved last track was already handled.
+    for (int t = numTracks - 1; t >= 0; --t) {
+      if (matchedTracks[t]) {
+        continue;
+      }
+      hits[t] = 0;
+      misses[t]++;
+      if (!confirmed[t] || misses[t] > maxMisses) {
+        remove(t);
+      }
+    }
+
+    for (int d = 0; d < numDetections && numTracks < MAX_TRACKS; ++d) {
+      if (!matchedDetections[d]) {
+        add(boxes, 4 * d, detectionScores[d], detectionLabels[d]);
+      }
+    }
+  }
+
+  /** Moves the tracks to their predicted position at the given time, if it is later. */
+  public void predict(long timestamp) {
+    final float dt = numTracks > 0 ? timestamp - this.timestamp : 0;
+    if (numTracks == 0 || dt > 0) {
+      this.timestamp = timestamp;
+    }
+    if (dt <= 0) {
+      return;
+    }
+    final float dt2 = dt * dt;
+    for (int t = 0; t < numTracks; ++t) {
+      final float size = (float) Math.sqrt(width[t] * height[t]);
+      // Acceleration as white noise (discrete white noise acceleration model).
+      final float q = square(ACCELERATION_NOISE * size);
+      final float qpp = q * dt2 * dt2 / 4;
+      final float qpv = q * dt2 * dt / 2;
+      final float qvv = q * dt2;
+
+      cx[t] += vx[t] * dt;
+      xpp[t] += 2 * dt * xpv[t] + dt2 * xvv[t] + qpp;
+      xpv[t] += dt * xvv[t] + qpv;
+      xvv[t] += qvv;
+
+      cy[t] += vy[t] * dt;
+      ypp[t] += 2 * dt * ypv[t] + dt2 * yvv[t] + qpp;
+      ypv[t] += dt * yvv[t] + qpv;
+      yvv[t] += qvv;
+
+      widthVariance[t] += square(SIZE_NOISE * width[t]) * dt;
+      heightVariance[t] += square(SIZE_NOISE * height[t]) * dt;
+    }
+  }
+
+  /** Drops all tracks. IDs keep counting up. */
+  public void reset() {
+    numTracks = 0;
+  }
+
+  public int getNumTracks() {
+    return numTracks;
+  }
+
+  /** Returns the index of the track with the given ID or -1 if it was dropped. */
+  public int findTrack(int id) {
+    for (int t = 0; t < numTracks; ++t) {
+      if (ids[t] == id) {
+        return t;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the ID of a track, which stays the same while its index may change on updates. */
+  public int getId(int track) {
+    return ids[track];
+  }
+
+  public int getLabel(int track) {
+    return labels[track];
+  }
+
+  /** Returns the confidence of the last detection matched to the track. */
+  public float getScore(int track) {
+    return scores[track];
+  }
+
+  /** Returns whether the track was matched often enough to be considered an object. */
+  public boolean isConfirmed(int track) {
+    return confirmed[track];
+  }
+
+  /** Returns the number of updates since the track was last matched. */
+  public int getMisses(int track) {
+    return misses[track];
+  }
+
+  public float getCenterX(int track) {
+    return cx[track];
+  }
+
+  public float getCenterY(int track) {
+    return cy[track];
+  }
+
+  /** Writes the box of a track at {@code offset} of {@code box}, 4 values. */
+  public void getBox(int track, float[] box, int offset) {
+    box[offset] = cx[track] - width[track] / 2;
+    box[offset + 1] = cy[track] - height[track] / 2;
+    box[offset + 2] = cx[track] + width[track] / 2;
+    box[offset + 3] = cy[track] + height[track] / 2;
+  }
+
+  private void add(float[] boxes, int offset, float score, int label) {
+    final int t = numTracks++;
+    ids[t] = nextId++;
+    labels[t] = label;
+    scores[t] = score;
+    hits[t] = 1;
+    misses[t] = 0;
+    confirmed[t] = minHits <= 1;
+    width[t] = boxes[offset + 2] - boxes[offset];
+    height[t] = boxes[offset + 3] - boxes[offset + 1];
+    cx[t] = boxes[offset] + width[t] / 2;
+    cy[t] = boxes[offset + 1] + height[t] / 2;
+    vx[t] = 0;
+    vy[t] = 0;
+    final float size = (float) Math.sqrt(width[t] * height[t]);
+    xpp[t] = ypp[t] = square(MEASUREMENT_NOISE * size);
+    xpv[t] = ypv[t] = 0;
+    xvv[t] = yvv[t] = square(INITIAL_VELOCITY_NOISE * size);
+    widthVariance[t] = square(MEASUREMENT_NOISE * width[t]);
+    heightVariance[t] = square(MEASUREMENT_NOISE * height[t]);
+  }
+
+  private void remove(int t) {
+    final int last = --numTracks;
+    if (t == last) {
+      return;
+    }
+    ids[t] = ids[last];
+    labels[t] = labels[last];
+    scores[t] = scores[last];
+    hits[t] = hits[last];
+    misses[t] = misses[last];
+    confirmed[t] = confirmed[last];
+    matchedTracks[t] = matchedTracks[last];
+    cx[t] = cx[last];
+    vx[t] = vx[last];
+    xpp[t] = xpp[last];
+    xpv[t] = xpv[last];
+    xvv[t] = xvv[last];
+    cy[t] = cy[last];
+    vy[t] = vy[last];
+    ypp[t] = ypp[last];
+    ypv[t] = ypv[last];
+    yvv[t] = yvv[last];
+    width[t] = width[last];
+    widthVariance[t] = widthVariance[last];
+    height[t] = height[last];
+    heightVariance[t] = heightVariance[last];
+  }
+
+  // The innovation is taken at the time of the detection, lag frames before the track.
+  private void correct(int t, float[] boxes, int offset, float lag) {
+    final float measuredWidth = boxes[offset + 2] - boxes[offset];
+    final float measuredHeight = boxes[offset + 3] - boxes[offset + 1];
+    final float size = (float) Math.sqrt(measuredWidth * measuredHeight);
+    final float r = square(MEASUREMENT_NOISE * size);
+
+    float s = xpp[t] + r;
+    float gainP = xpp[t] / s;
+    float gainV = xpv[t] / s;
+    float innovation = boxes[offset] + measuredWidth / 2 - (cx[t] - lag * vx[t]);
+    cx[t] += gainP * innovation;
+    vx[t] += gainV * innovation;
+    xvv[t] -= gainV * xpv[t];
+    xpv[t] -= gainP * xpv[t];
+    xpp[t] -= gainP * xpp[t];
+
+    s = ypp[t] + r;
+    gainP = ypp[t] / s;
+    gainV = ypv[t] / s;
+    innovation = boxes[offset + 1] + measuredHeight / 2 - (cy[t] - lag * vy[t]);
+    cy[t] += gainP * innovation;
+    vy[t] += gainV * innovation;
+    yvv[t] -= gainV * ypv[t];
+    ypv[t] -= gainP * ypv[t];
+    ypp[t] -= gainP * ypp[t];
+
+    float gain = widthVariance[t] / (widthVariance[t] + square(MEASUREMENT_NOISE * measuredWidth));
+    width[t] += gain * (measuredWidth - width[t]);
+    widthVariance[t] -= gain * widthVariance[t];
+    gain = heightVariance[t] / (heightVariance[t] + square(MEASUREMENT_NOISE * measuredHeight));
+    height[t] += gain * (measuredHeight - height[t]);
+    heightVariance[t] -= gain * heightVariance[t];
+  }
+
+  // Intersection over union of a detection and the box of a track at the time of the detection.
+  private float iou(int t, float[] boxes, int offset, float lag) {
+    final float x = cx[t] - lag * vx[t];
+    final float y = cy[t] - lag * vy[t];
+    final float left = Math.max(x - width[t] / 2, boxes[offset]);
+    final float top = Math.max(y - height[t] / 2, boxes[offset + 1]);
+    final float right = Math.min(x + width[t] / 2, boxes[offset + 2]);
+    final float bottom = Math.min(y + height[t] / 2, boxes[offset + 3]);
+    if (right <= left || bottom <= top) {
+      return 0;
+    }
+    final float intersection = (right - left) * (bottom - top);
+    final float detectionArea =
+        (boxes[offset + 2] - boxes[offset]) * (boxes[offset + 3] - boxes[offset + 1]);
+    return intersection / (width[t] * height[t] + detectionArea - intersection);
+  }
+
+  private void ensureCapacity(int numDetections) {
+    if (matchedDetections.length < numDetections) {
+      matchedDetections = new boolean[numDetections];
+      candidates = new long[MAX_TRACKS * numDetections];
+    }
+  }
+
+  private static float square(float value) {
+    return value * value;
+  }
+}
@@ -0,0 +1,102 @@
+package org.openbot.env;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CaptureSizesTest {
+
+  // Output sizes of back cameras as logged by the app, largest first like the camera lists them.
+  private static final int[][] SIZES_WITH_720P =
+      CaptureSizes.parse(
+          "4032x3024, 4000x3000, 3840x2160, 2560x1440, 1920x1080, 1440x1080, 1280x960, 1280x720,"
+              + " 1024x768, 960x720, 800x600, 720x480, 640x480, 640x360, 352x288, 320x240,"
+              + " 176x144");
+  private static final int[][] SIZES_WITHOUT_VGA =
+      CaptureSizes.parse("1920x1080 1280x720 960x720 800x600 720x480 352x288 320x240");
+
+  @Test
+  public void parse_readsLoggedSizes() {
+    assertEquals(17, SIZES_WITH_720P.length);
+    assertEquals("4032x3024", toString(SIZES_WITH_720P[0]));
+    assertEquals("176x144", toString(SIZES_WITH_720P[16]));
+    assertEquals(7, SIZES_WITHOUT_VGA.length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void parse_rejectsOtherText() {
+    CaptureSizes.parse("1920x1080, auto");
+  }
+
+  @Test
+  public void choosePreviewSize_exactMatch() {
+    assertSize(
+        "1280x720",
+        SIZES_WITH_720P,
+        CaptureSizes.choosePreviewSize(SIZES_WITH_720P, 1280, 720, 320));
+    assertSize(
+        "640x480", SIZES_WITH_720P, CaptureSizes.choosePreviewSize(SIZES_WITH_720P, 640, 480, 320));
+  }
+
+  @Test
+  public void choosePreviewSize_fallsBackToSameAspect() {
+    // 720x480 is smaller, but 800x600 has the aspect ratio of 640x480.
+    assertSize(
+        "800x600",
+        SIZES_WITHOUT_VGA,
+        CaptureSizes.choosePreviewSize(SIZES_WITHOUT_VGA, 640, 480, 320));
+  }
+
+  @Test
+  public void choosePreviewSize_returnsFirstIfNoneIsBigEnough() {
+    assertEquals(0, CaptureSizes.choosePreviewSize(SIZES_WITHOUT_VGA, 3840, 2160, 320));
+  }
+
+  @Test
+  public void chooseScaledSize_smallestWithAspectOfFrame() {
+    // The preview itself is never chosen, only smaller sizes save work.
+    assertSize(
+        "640x360",
+        SIZES_WITH_720P,
+        CaptureSizes.chooseScaledSize(SIZES_WITH_720P, 1280, 720, 0.4f));
+    assertSize(
+        "640x480",
+        SIZES_WITH_720P,
+        CaptureSizes.chooseScaledSize(SIZES_WITH_720P, 1440, 1080, 0.3f));
+    assertSize(
+        "1280x960",
+        SIZES_WITH_720P,
+        CaptureSizes.chooseScaledSize(SIZES_WITH_720P, 1440, 1080, 0.8f));
+  }
+
+  @Test
+  public void chooseScaledSize_noSmallerSize() {
+    // 960x540 would do, but the camera does not offer it.
+    assertEquals(-1, CaptureSizes.chooseScaledSize(SIZES_WITH_720P, 1280, 720, 0.6f));
+    assertEquals(-1, CaptureSizes.chooseScaledSize(SIZES_WITHOUT_VGA, 1280, 720, 0.6f));
+    // Nothing is smaller than the smallest size.
+    assertEquals(-1, CaptureSizes.chooseScaledSize(SIZES_WITH_720P, 176, 144, 0));
+  }
+
+  @Test
+  public void getMinScale_keepsOnePixelPerInputPixel() {
+    // A 256x96 input cropped from the lower 1280x480 of a 1280x720 frame.
+    final float scale = CaptureSizes.getMinScale(1280, 480, 256, 96);
+    assertEquals(0.2f, scale, 1e-6f);
+    assertSize(
+        "640x360",
+        SIZES_WITH_720P,
+        CaptureSizes.chooseScaledSize(SIZES_WITH_720P, 1280, 720, scale));
+    // The input needs more pixels than the region has.
+    assertEquals(1, CaptureSizes.getMinScale(200, 100, 256, 96), 0);
+    assertEquals(1, CaptureSizes.getMinScale(0, 100, 256, 96), 0);
+  }
+
+  private static void assertSize(String expected, int[][] sizes, int index) {
+    assertEquals(expected, index >= 0 ? toString(sizes[index]) : "none");
+  }
+
+  private static String toString(int[] size) {
+    return size[0] + "x" + size[1];
+  }
+}
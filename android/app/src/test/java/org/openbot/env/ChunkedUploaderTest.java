@@ -0,0 +1,174 @@
+package org.openbot.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkedUploaderTest {
+
+  private static final int CHUNK_SIZE = 1000;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  // The chunked upload of upload.py for a single file.
+  private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+  private final List<Long> putOffsets = Collections.synchronizedList(new ArrayList<>());
+  private volatile int breakPut = -1;
+  private volatile boolean rejectAll;
+  private HttpServer server;
+  private ChunkedUploader uploader;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/upload/chunked/", this::handle);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    if (uploader != null) {
+      uploader.stop();
+    }
+    server.stop(0);
+  }
+
+  @Test(timeout = 20000)
+  public void upload_resumesFromAcknowledgedOffsetAfterBrokenConnection() throws Exception {
+    final byte[] data = new byte[5 * CHUNK_SIZE + 500];
+    new Random(1).nextBytes(data);
+    final File file = writeFile("session.zip", data);
+    // The connection breaks in the middle of the third chunk.
+    breakPut = 2;
+
+    final CountDownLatch uploaded = new CountDownLatch(1);
+    uploader = new ChunkedUploader(folder.newFile("queue"), CHUNK_SIZE, 1, 0);
+    uploader.setListener(f -> uploaded.countDown());
+    uploader.enqueue(file);
+    uploader.setServerUrl("http://127.0.0.1:" + server.getAddress().getPort());
+    assertTrue(uploaded.await(15, TimeUnit.SECONDS));
+
+    synchronized (received) {
+      assertArrayEquals(data, received.toByteArray());
+    }
+    // The broken chunk is sent again from where the server stopped, not from the beginning.
+    assertEquals(Arrays.asList(0L, 1000L, 2000L, 2000L, 3000L, 4000L, 5000L), putOffsets);
+    assertEquals(0, uploader.getPendingCount());
+  }
+
+  @Test(timeout = 20000)
+  public void upload_backsOffWhenChunksAreRejected() throws Exception {
+    final File file = writeFile("session.zip", new byte[3 * CHUNK_SIZE]);
+    rejectAll = true;
+
+    uploader = new ChunkedUploader(folder.newFile("queue"), CHUNK_SIZE, 1, 0);
+    uploader.enqueue(file);
+    uploader.setServerUrl("http://127.0.0.1:" + server.getAddress().getPort());
+    while (putOffsets.size() < 3) {
+      Thread.sleep(1);
+    }
+    // The first retry waits a second.
+    Thread.sleep(500);
+
+    assertEquals(3, putOffsets.size());
+    assertEquals(1, uploader.getPendingCount());
+  }
+
+  private File writeFile(String name, byte[] data) throws IOException {
+    final File file = new File(folder.getRoot(), name);
+    try (OutputStream output = new FileOutputStream(file)) {
+      output.write(data);
+    }
+    return file;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    final String method = exchange.getRequestMethod();
+    final String query = exchange.getRequestURI().getQuery();
+    synchronized (received) {
+      if (method.equals("PUT") && putOffsets.size() == breakPut) {
+        putOffsets.add(Long.parseLong(query.substring("offset=".length())));
+        // Drops the connection in the middle of the chunk, like a lost network.
+        exchange.getRequestBody().read(new byte[CHUNK_SIZE / 2]);
+        throw new IOException("Broken connection");
+      }
+      final byte[] body = readBody(exchange);
+      final long offset = received.size();
+      if (method.equals("GET")) {
+        respond(exchange, 200, offset);
+      } else if (method.equals("PUT")) {
+        final long putOffset = Long.parseLong(query.substring("offset=".length()));
+        putOffsets.add(putOffset);
+        if (putOffset != offset) {
+          respond(exchange, 409, offset);
+        } else if (rejectAll
+            || !sha256(body).equals(exchange.getRequestHeaders().getFirst("X-Content-SHA256"))) {
+          respond(exchange, 400, offset);
+        } else {
+          received.write(body, 0, body.length);
+          respond(exchange, 200, received.size());
+        }
+      } else {
+        final long size = Long.parseLong(query.substring("size=".length()));
+        respond(exchange, size == offset ? 200 : 409, offset);
+      }
+    }
+  }
+
+  private static byte[] readBody(HttpExchange exchange) throws IOException {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (InputStream input = exchange.getRequestBody()) {
+      final byte[] buffer = new byte[1024];
+      int read;
+      while ((read = input.read(buffer)) > 0) {
+        body.write(buffer, 0, read);
+      }
+    }
+    return body.toByteArray();
+  }
+
+  private static void respond(HttpExchange exchange, int status, long offset) throws IOException {
+    final byte[] response = ("{\"offset\": " + offset + "}").getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, response.length);
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(response);
+    }
+  }
+
+  private static String sha256(byte[] data) throws IOException {
+    try {
+      final StringBuilder hex = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package org.openbot.env;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TelemetryParserTest {
+
+  private final TelemetryParser parser = new TelemetryParser();
+  // Copies of the reused records: timestamp, voltage, left ticks, right ticks, sonar.
+  private final List<float[]> messages = new ArrayList<>();
+  private final List<Long> timestamps = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    parser.addListener(
+        telemetry -> {
+          timestamps.add(telemetry.getTimestamp());
+          messages.add(
+              new float[] {
+                telemetry.getBatteryVoltage(),
+                telemetry.getLeftWheelTicks(),
+                telemetry.getRightWheelTicks(),
+                telemetry.getSonarReading()
+              });
+        });
+  }
+
+  @Test
+  public void feed_fragmentedMessage() {
+    feed("11.", 1);
+    feed("7,-3", 2);
+    feed("2,", 3);
+    feed(" 40 ,", 4);
+    feed(".5\r", 5);
+    assertEquals(0, messages.size());
+    feed("\n", 6);
+
+    assertEquals(1, messages.size());
+    assertMessage(0, 11.7f, -32, 40, 0.5f);
+    // The message is complete when its last byte arrives.
+    assertEquals(6L, (long) timestamps.get(0));
+  }
+
+  @Test
+  public void feed_coalescedMessages() {
+    feed("12.1,1,2,30\n12.0,3,4,31\n11.9,5,", 1);
+    assertEquals(2, messages.size());
+    feed("6,32\n", 2);
+
+    assertEquals(3, messages.size());
+    assertMessage(0, 12.1f, 1, 2, 30);
+    assertMessage(1, 12.0f, 3, 4, 31);
+    assertMessage(2, 11.9f, 5, 6, 32);
+    assertEquals(Arrays.asList(1L, 1L, 2L), timestamps);
+    assertEquals(3, parser.getNumMessages());
+    assertEquals(0, parser.getNumSkipped());
+  }
+
+  @Test
+  public void feed_skipsGarbage() {
+    final StringBuilder longLine = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) {
+      longLine.append('x');
+    }
+    feed(
+        "Robot ready\n"
+            + "1,2,3\n"
+            + "1,2,3,4,5\n"
+            + "1,2,,4\n"
+            + "1,2,3,4x\n"
+            + "-,2,3,4\n"
+            + "1.2.3,2,3,4\n"
+            + "\n"
+            + longLine
+            + "1,2,3,4\n"
+            + "999999999999999999999,2,3,4\n"
+            + "12.2,7,8,9\n"
+            + longLine.substring(0, 200),
+        1);
+
+    assertEquals(1, messages.size());
+    assertMessage(0, 12.2f, 7, 8, 9);
+    // The long line counts once. The unfinished line at the end is not decided yet.
+    assertEquals(1, parser.getNumMessages());
+    assertEquals(10, parser.getNumSkipped());
+  }
+
+  @Test
+  public void feed_wrapsAroundRingBuffer() {
+    final Random random = new Random(1);
+    final List<float[]> expected = new ArrayList<>();
+    final StringBuilder stream = new StringBuilder();
+    // Many times the ring capacity, so lines cross its end at every position.
+    for (int i = 0; i < 2000; ++i) {
+      final float[] values = {
+        random.nextInt(1300) / 100f,
+        random.nextInt(200000) - 100000,
+        random.nextInt(200000) - 100000,
+        random.nextInt(4000) / 10f
+      };
+      expected.add(values);
+      stream.append(
+          String.format(
+              Locale.US,
+              "%.2f,%d,%d,%.1f\n",
+              values[0],
+              (int) values[1],
+              (int) values[2],
+              values[3]));
+      if (random.nextInt(10) == 0) {
+        stream.append("debug ").append(i).append('\n');
+      }
+    }
+    final byte[] bytes = stream.toString().getBytes(StandardCharsets.US_ASCII);
+    // Chunks of random size, like USB reads.
+    for (int offset = 0; offset < bytes.length; ) {
+      final int length = Math.min(1 + random.nextInt(100), bytes.length - offset);
+      parser.feed(bytes, offset, length, 0);
+      offset += length;
+    }
+
+    assertEquals(expected.size(), messages.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      final float[] values = expected.get(i);
+      assertMessage(i, values[0], values[1], values[2], values[3]);
+    }
+  }
+
+  private void feed(String text, long timestamp) {
+    parser.feed(text.getBytes(StandardCharsets.US_ASCII), timestamp);
+  }
+
+  private void assertMessage(
+      int index, float voltage, float leftTicks, float rightTicks, float sonar) {
+    final float[] message = messages.get(index);
+    assertEquals(voltage, message[0], 0);
+    assertEquals(leftTicks, message[1], 0);
+    assertEquals(rightTicks, message[2], 0);
+    assertEquals(sonar, message[3], 0);
+  }
+}
@@ -0,0 +1,57 @@
+package org.openbot.env;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class VehicleCommandWriterTest {
+
+  private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+  private final List<Long> writtenFrames = Collections.synchronizedList(new ArrayList<>());
+  private final List<Long> coalescedFrames = Collections.synchronizedList(new ArrayList<>());
+  private final VehicleCommandWriter.ControlListener listener =
+      new VehicleCommandWriter.ControlListener() {
+        @Override
+        public void onControlWritten(long frame) {
+          writtenFrames.add(frame);
+        }
+
+        @Override
+        public void onControlCoalesced(long frame) {
+          coalescedFrames.add(frame);
+        }
+      };
+
+  @Test(timeout = 10000)
+  public void setControl_reportsWrittenAndCoalescedFrames() throws InterruptedException {
+    final VehicleCommandWriter writer =
+        new VehicleCommandWriter(
+            data -> written.add(new String(data, StandardCharsets.US_ASCII)),
+            VehicleCommandWriter.Encoding.ASCII,
+            1,
+            listener);
+    writer.setControl(1, 2, 10);
+    while (written.isEmpty()) {
+      Thread.sleep(1);
+    }
+    // At one command per second, these wait and replace each other.
+    writer.setControl(3, 4, 11);
+    writer.setControl(5, 6);
+    writer.setControl(7, 8, 13);
+    writer.close();
+
+    assertEquals(2, written.size());
+    assertEquals("c1,2\n", written.get(0));
+    assertEquals("c7,8\n", written.get(1));
+    assertEquals(2, writer.getNumCoalesced());
+    assertEquals(2, writtenFrames.size());
+    assertEquals(10L, (long) writtenFrames.get(0));
+    assertEquals(13L, (long) writtenFrames.get(1));
+    // The untagged control is not reported.
+    assertEquals(Collections.singletonList(11L), coalescedFrames);
+  }
+}
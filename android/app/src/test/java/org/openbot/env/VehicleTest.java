@@ -0,0 +1,104 @@
+package org.openbot.env;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class VehicleTest {
+
+  private static final int NUM_READERS = 4;
+
+  private final Vehicle vehicle = new Vehicle();
+  private final AtomicBoolean running = new AtomicBoolean(true);
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  @Test(timeout = 30000)
+  public void read_neverSeesTornUpdates() throws InterruptedException {
+    final List<Thread> threads = new ArrayList<>();
+    // Every writer stores values that belong together, so a read that mixes two updates breaks
+    // the pairs.
+    threads.add(
+        thread(
+            () -> {
+              for (int i = 0; running.get(); ++i) {
+                final float value = (i % 2001 - 1000) / 1000f;
+                vehicle.setControl(value, -value);
+              }
+            }));
+    threads.add(
+        thread(
+            () -> {
+              final Telemetry telemetry = new Telemetry();
+              for (int i = 1; running.get(); ++i) {
+                telemetry.set(TimeUnit.MILLISECONDS.toNanos(i), i, i, i, i);
+                vehicle.setTelemetry(telemetry);
+              }
+            }));
+    // Without noise, the noisy control is a copy of the control.
+    threads.add(
+        thread(
+            () -> {
+              while (running.get()) {
+                vehicle.applyNoise();
+              }
+            }));
+    final long[] numReads = new long[NUM_READERS];
+    for (int r = 0; r < NUM_READERS; ++r) {
+      final int reader = r;
+      threads.add(
+          thread(
+              () -> {
+                final Vehicle.State state = new Vehicle.State();
+                long lastVersion = -1;
+                while (running.get()) {
+                  vehicle.read(state);
+                  assertEquals(-state.getLeft(), state.getRight(), 0);
+                  assertEquals(-state.getNoisyLeft(), state.getNoisyRight(), 0);
+                  final float voltage = state.getBatteryVoltage();
+                  assertEquals(voltage, state.getLeftWheelTicks(), 0);
+                  assertEquals(voltage, state.getRightWheelTicks(), 0);
+                  assertEquals(voltage, state.getSonarReading(), 0);
+                  assertTrue(state.getVersion() >= lastVersion);
+                  lastVersion = state.getVersion();
+                  numReads[reader]++;
+                }
+              }));
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    Thread.sleep(2000);
+    running.set(false);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    for (long reads : numReads) {
+      assertTrue(reads > 0);
+    }
+    assertTrue(vehicle.getState().getVersion() > 0);
+  }
+
+  // Stops all threads at the first failed assertion, which is rethrown by the test.
+  private Thread thread(Runnable runnable) {
+    return new Thread(
+        () -> {
+          try {
+            runnable.run();
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+            running.set(false);
+          }
+        });
+  }
+}
@@ -0,0 +1,97 @@
+package org.openbot.env;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class WheelOdometryTest {
+
+  // The vehicle as configured in Vehicle, and the firmware, which sends the ticks every second.
+  private static final int DISK_HOLES = 20;
+  private static final double WHEEL_DIAMETER = 0.065;
+  private static final double TRACK_WIDTH = 0.15;
+  private static final long WINDOW_NANOS = 3_000_000_000L;
+  private static final long SEND_INTERVAL_NANOS = 1_000_000_000L;
+  // Messages arrive up to 150 ms early or late over the serial connection.
+  private static final long MAX_JITTER_NANOS = 150_000_000L;
+  private static final double METERS_PER_TICK = Math.PI * WHEEL_DIAMETER / DISK_HOLES;
+
+  private final WheelOdometry odometry =
+      new WheelOdometry(DISK_HOLES, WHEEL_DIAMETER, TRACK_WIDTH, WINDOW_NANOS);
+  private final WheelOdometry.Estimate estimate = new WheelOdometry.Estimate();
+  private final Random random = new Random(14);
+
+  @Test
+  public void read_estimatesConstantSpeedDespiteJitter() {
+    // 90 rpm are 30 ticks per message.
+    for (int i = 0; i < 30; ++i) {
+      final long timestamp = addSample(i, 30, 30);
+      odometry.read(timestamp, estimate);
+      if (i >= 4) {
+        assertEquals("Message " + i, 90, estimate.getLeftWheelRPM(), 17);
+        assertEquals("Message " + i, 90, estimate.getRightWheelRPM(), 17);
+      }
+    }
+  }
+
+  @Test
+  public void read_integratesStraightLine() {
+    long timestamp = 0;
+    for (int i = 0; i <= 20; ++i) {
+      timestamp = addSample(i, 30, 30);
+    }
+    odometry.read(timestamp, estimate);
+    // The ticks of the first message only anchor the speed.
+    assertEquals(20 * 30 * METERS_PER_TICK, estimate.getX(), 1e-6);
+    assertEquals(0, estimate.getY(), 1e-6);
+    assertEquals(0, estimate.getHeading(), 1e-6);
+    assertEquals(0, estimate.getAngularVelocity(), 0.1);
+  }
+
+  @Test
+  public void read_integratesTurn() {
+    long timestamp = 0;
+    for (int i = 0; i <= 10; ++i) {
+      timestamp = addSample(i, 30, 35);
+    }
+    odometry.read(timestamp, estimate);
+    // A counterclockwise arc of constant radius.
+    final double distance = 10 * 32.5 * METERS_PER_TICK;
+    final double heading = 10 * 5 * METERS_PER_TICK / TRACK_WIDTH;
+    final double radius = distance / heading;
+    assertEquals(heading, estimate.getHeading(), 1e-6);
+    assertEquals(radius * Math.sin(heading), estimate.getX(), 0.02 * distance);
+    assertEquals(radius * (1 - Math.cos(heading)), estimate.getY(), 0.02 * distance);
+    assertEquals(5 * METERS_PER_TICK / TRACK_WIDTH, estimate.getAngularVelocity(), 0.1);
+  }
+
+  @Test
+  public void read_extrapolatesForWindowThenStops() {
+    long timestamp = 0;
+    for (int i = 0; i <= 5; ++i) {
+      timestamp = addSample(i, 30, 30);
+    }
+    odometry.read(timestamp, estimate);
+    final double x = estimate.getX();
+
+    odometry.read(timestamp + WINDOW_NANOS, estimate);
+    assertEquals(90, estimate.getLeftWheelRPM(), 17);
+    final double speed = estimate.getLinearVelocity();
+    assertEquals(x + speed * WINDOW_NANOS / 1e9, estimate.getX(), 1e-6);
+
+    odometry.read(timestamp + WINDOW_NANOS + 1, estimate);
+    assertEquals(0, estimate.getLeftWheelRPM(), 0);
+    assertEquals(0, estimate.getLinearVelocity(), 0);
+    assertEquals(x, estimate.getX(), 0);
+  }
+
+  // Adds the ticks of a message sent on schedule and received with jitter, returns the receive
+  // time.
+  private long addSample(int message, float leftTicks, float rightTicks) {
+    final long jitter = (long) ((2 * random.nextDouble() - 1) * MAX_JITTER_NANOS);
+    final long timestamp = SEND_INTERVAL_NANOS + message * SEND_INTERVAL_NANOS + jitter;
+    odometry.addSample(timestamp, leftTicks, rightTicks);
+    return timestamp;
+  }
+}
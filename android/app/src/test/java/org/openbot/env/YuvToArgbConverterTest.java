@@ -0,0 +1,107 @@
+package org.openbot.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+public class YuvToArgbConverterTest {
+  private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+  private final Random random = new Random(42);
+
+  @AfterClass
+  public static void shutDownPool() {
+    POOL.shutdown();
+  }
+
+  @Test
+  public void convertYUV420ToARGB8888_matchesImageUtils() {
+    final int[][] sizes = {{1, 1}, {2, 2}, {3, 5}, {17, 33}, {64, 48}, {101, 77}, {640, 480}};
+    for (int[] size : sizes) {
+      for (int uvPixelStride = 1; uvPixelStride <= 2; ++uvPixelStride) {
+        for (int padding : new int[] {0, 3, 16}) {
+          checkPlanes(size[0], size[1], uvPixelStride, padding);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void convertYUV420SPToARGB8888_matchesImageUtils() {
+    // NV21 stores the chroma of a row pair in one row of the image width, so widths are even.
+    final int[][] sizes = {{2, 1}, {2, 3}, {16, 9}, {64, 48}, {320, 241}};
+    for (int[] size : sizes) {
+      final int width = size[0];
+      final int height = size[1];
+      final byte[] input = randomBytes(width * height + width * ((height + 1) / 2));
+      final int[] expected = new int[width * height];
+      ImageUtils.convertYUV420SPToARGB8888(input, width, height, expected);
+      for (YuvToArgbConverter converter : converters()) {
+        final int[] actual = new int[width * height];
+        converter.convertYUV420SPToARGB8888(input, width, height, actual);
+        assertArrayEquals(width + "x" + height, expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void yuvToArgb_matchesImageUtilsForAllSamples() {
+    final byte[] y = new byte[1];
+    final byte[] u = new byte[1];
+    final byte[] v = new byte[1];
+    final int[] expected = new int[1];
+    for (int i = 0; i < 1 << 24; i += 7) {
+      y[0] = (byte) (i >> 16);
+      u[0] = (byte) (i >> 8);
+      v[0] = (byte) i;
+      ImageUtils.convertYUV420ToARGB8888(y, u, v, 1, 1, 1, 1, 1, expected);
+      assertEquals(
+          expected[0], YuvToArgbConverter.yuvToArgb(0xff & y[0], 0xff & u[0], 0xff & v[0]));
+    }
+  }
+
+  // Checks frames like the Camera2 planes: padded rows, and interleaved (stride 2) or planar
+  // (stride 1) chroma.
+  private void checkPlanes(int width, int height, int uvPixelStride, int padding) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    final int yRowStride = width + padding;
+    final int uvRowStride = chromaWidth * uvPixelStride + padding;
+    final byte[] yData = randomBytes(yRowStride * (height - 1) + width);
+    final byte[] uData =
+        randomBytes(uvRowStride * (chromaHeight - 1) + uvPixelStride * chromaWidth);
+    final byte[] vData = randomBytes(uData.length);
+    final int[] expected = new int[width * height];
+    ImageUtils.convertYUV420ToARGB8888(
+        yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, expected);
+    for (YuvToArgbConverter converter : converters()) {
+      final int[] actual = new int[width * height];
+      converter.convertYUV420ToARGB8888(
+          yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, actual);
+      assertArrayEquals(
+          String.format(
+              "%dx%d, pixel stride %d, padding %d", width, height, uvPixelStride, padding),
+          expected,
+          actual);
+    }
+  }
+
+  // One converter on the calling thread and some that split frames into bands.
+  private static YuvToArgbConverter[] converters() {
+    return new YuvToArgbConverter[] {
+      new YuvToArgbConverter(POOL, 1),
+      new YuvToArgbConverter(POOL, 3),
+      new YuvToArgbConverter(POOL, 8)
+    };
+  }
+
+  private byte[] randomBytes(int length) {
+    final byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,73 @@
+package org.openbot.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DetectionSchedulerTest {
+
+  private static final long FRAME_NANOS = 33_000_000L;
+
+  @Test
+  public void shouldDetect_admitsOneDetectionPerInterpreter() {
+    final DetectionScheduler scheduler = new DetectionScheduler(1, 10, 2);
+
+    assertTrue(scheduler.shouldDetect(0, at(0)));
+    assertTrue(scheduler.shouldDetect(1, at(1)));
+    assertFalse(scheduler.shouldDetect(2, at(2)));
+    assertEquals(2, scheduler.getNumInFlight());
+
+    scheduler.onDetectionDone(0, at(2));
+    assertEquals(1, scheduler.getNumInFlight());
+    assertTrue(scheduler.shouldDetect(3, at(3)));
+  }
+
+  @Test
+  public void onDetectionDone_forgetsOvertakenDetections() {
+    final DetectionScheduler scheduler = new DetectionScheduler(1, 10, 3);
+    assertTrue(scheduler.shouldDetect(0, at(0)));
+    assertTrue(scheduler.shouldDetect(1, at(1)));
+    assertTrue(scheduler.shouldDetect(2, at(2)));
+
+    // The result of frame 0 was dropped as stale.
+    scheduler.onDetectionDone(1, at(3));
+    assertEquals(1, scheduler.getNumInFlight());
+    // Unknown or already forgotten detections are ignored.
+    scheduler.onDetectionDone(0, at(3));
+    assertEquals(1, scheduler.getNumInFlight());
+  }
+
+  @Test
+  public void shouldDetect_forgetsDetectionsAfterTimeout() {
+    final DetectionScheduler scheduler = new DetectionScheduler(1, 10);
+    assertTrue(scheduler.shouldDetect(0, at(0)));
+    assertFalse(scheduler.shouldDetect(1, at(1)));
+
+    assertTrue(scheduler.shouldDetect(40, at(0) + 2_000_000_000L));
+    assertEquals(1, scheduler.getNumInFlight());
+  }
+
+  @Test
+  public void onDetectionDone_spreadsIntervalOverPool() {
+    // A detection takes 4 frame periods and may use half of the time.
+    assertEquals(8, intervalAfterDetection(new DetectionScheduler(0.5, 20, 1)));
+    assertEquals(4, intervalAfterDetection(new DetectionScheduler(0.5, 20, 2)));
+    assertEquals(3, intervalAfterDetection(new DetectionScheduler(0.5, 20, 3)));
+    assertEquals(5, intervalAfterDetection(new DetectionScheduler(0.5, 5, 1)));
+  }
+
+  // Timestamp of a frame, in the time base of System.nanoTime().
+  private static long at(long frameNum) {
+    return 1_000_000_000L + frameNum * FRAME_NANOS;
+  }
+
+  private static int intervalAfterDetection(DetectionScheduler scheduler) {
+    assertTrue(scheduler.shouldDetect(0, at(0)));
+    // Measures the frame period.
+    scheduler.shouldDetect(1, at(1));
+    scheduler.onDetectionDone(0, at(4));
+    return scheduler.getInterval();
+  }
+}
@@ -0,0 +1,149 @@
+package org.openbot.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class FrameQueueTest {
+
+  /** A synthetic frame. */
+  private static class Frame {
+    long frameNum;
+  }
+
+  private final AtomicInteger created = new AtomicInteger();
+  private final FrameQueue.Factory<Frame> factory =
+      () -> {
+        created.incrementAndGet();
+        return new Frame();
+      };
+
+  @Test
+  public void publish_dropsOldestWhenFull() {
+    final FrameQueue<Frame> queue = new FrameQueue<>("test", 2, factory);
+    for (int i = 1; i <= 5; ++i) {
+      publish(queue, i);
+    }
+    assertEquals(2, queue.getDepth());
+    assertEquals(5, queue.getPublished());
+    assertEquals(3, queue.getDropped());
+    assertEquals(4, takeAndRelease(queue));
+    assertEquals(5, takeAndRelease(queue));
+    assertNull(queue.poll());
+    assertEquals(0, queue.getDepth());
+  }
+
+  @Test
+  public void acquire_reusesReleasedDroppedAndDiscardedItems() {
+    final FrameQueue<Frame> queue = new FrameQueue<>("test", 2, factory);
+    // Capacity plus one item for each side.
+    assertEquals(4, created.get());
+    final Set<Frame> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (int i = 0; i < 1000; ++i) {
+      final Frame frame = queue.acquire();
+      seen.add(frame);
+      if (i % 7 == 0) {
+        queue.discard(frame);
+        continue;
+      }
+      frame.frameNum = i;
+      queue.publish(frame);
+      // The consumer falls behind on every third frame, so publishing drops frames.
+      if (i % 3 != 0) {
+        takeAndRelease(queue);
+      }
+    }
+    assertEquals(4, created.get());
+    assertEquals(4, seen.size());
+    assertTrue(queue.getDropped() > 0);
+  }
+
+  @Test
+  public void discard_returnsItemToProducer() {
+    final FrameQueue<Frame> queue = new FrameQueue<>("test", 1, factory);
+    final Frame frame = queue.acquire();
+    queue.discard(frame);
+    assertSame(frame, queue.acquire());
+    assertNull(queue.poll());
+    assertEquals(0, queue.getPublished());
+  }
+
+  @Test(timeout = 10000)
+  public void close_wakesUpWaitingConsumerAfterQueuedItems() throws InterruptedException {
+    final FrameQueue<Frame> queue = new FrameQueue<>("test", 2, factory);
+    final AtomicInteger taken = new AtomicInteger();
+    final Thread consumer =
+        new Thread(
+            () -> {
+              Frame frame;
+              while ((frame = queue.take()) != null) {
+                taken.incrementAndGet();
+                queue.release(frame);
+              }
+            });
+    consumer.start();
+    publish(queue, 1);
+    publish(queue, 2);
+    // Let the consumer wait on the empty queue.
+    while (taken.get() < 2) {
+      Thread.sleep(1);
+    }
+    Thread.sleep(50);
+    queue.close();
+    consumer.join();
+    assertEquals(2, taken.get());
+    assertNull(queue.take());
+  }
+
+  @Test(timeout = 30000)
+  public void concurrentProducerAndConsumer_deliverFramesInOrder() throws InterruptedException {
+    final int numFrames = 200000;
+    final FrameQueue<Frame> queue = new FrameQueue<>("test", 2, factory);
+    final AtomicInteger received = new AtomicInteger();
+    final AtomicInteger outOfOrder = new AtomicInteger();
+    final Thread consumer =
+        new Thread(
+            () -> {
+              long last = -1;
+              Frame frame;
+              while ((frame = queue.take()) != null) {
+                if (frame.frameNum <= last) {
+                  outOfOrder.incrementAndGet();
+                }
+                last = frame.frameNum;
+                received.incrementAndGet();
+                queue.release(frame);
+              }
+            });
+    consumer.start();
+    for (int i = 0; i < numFrames; ++i) {
+      publish(queue, i);
+    }
+    queue.close();
+    consumer.join();
+    assertEquals(0, outOfOrder.get());
+    assertEquals(numFrames, queue.getPublished());
+    assertEquals(numFrames, received.get() + queue.getDropped());
+    assertEquals(4, created.get());
+  }
+
+  private static void publish(FrameQueue<Frame> queue, long frameNum) {
+    final Frame frame = queue.acquire();
+    frame.frameNum = frameNum;
+    queue.publish(frame);
+  }
+
+  private static long takeAndRelease(FrameQueue<Frame> queue) {
+    final Frame frame = queue.poll();
+    final long frameNum = frame.frameNum;
+    queue.release(frame);
+    return frameNum;
+  }
+}
@@ -0,0 +1,145 @@
+package org.openbot.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class PipelineTest {
+
+  /** A synthetic frame, a number standing in for the pixels. */
+  private static class Frame {
+    long frameNum;
+    long value;
+  }
+
+  @Test(timeout = 30000)
+  public void slowStage_dropsFramesButKeepsOrder() throws InterruptedException {
+    final int numFrames = 500;
+    final FrameQueue<Frame> cameraFrames = new FrameQueue<>("camera", 1, Frame::new);
+    final FrameQueue<Frame> inputs = new FrameQueue<>("input", 1, Frame::new);
+    final List<Long> controlled = Collections.synchronizedList(new ArrayList<>());
+    final Pipeline pipeline =
+        new Pipeline()
+            .addStage(
+                new Stage<>(
+                    "preprocess",
+                    cameraFrames,
+                    inputs,
+                    (frame, input) -> {
+                      input.frameNum = frame.frameNum;
+                      input.value = 2 * frame.value;
+                      return true;
+                    }))
+            .addStage(
+                new Stage<Frame, Void>(
+                    "control",
+                    inputs,
+                    null,
+                    (input, output) -> {
+                      // Slower than the camera, like inference.
+                      sleep(1);
+                      assertEquals(2 * input.frameNum, input.value);
+                      controlled.add(input.frameNum);
+                      return false;
+                    }));
+    pipeline.start();
+    for (int i = 0; i < numFrames; ++i) {
+      final Frame frame = cameraFrames.acquire();
+      frame.frameNum = i;
+      frame.value = i;
+      cameraFrames.publish(frame);
+      Thread.sleep(0, 200000);
+    }
+    // Wait for the last frame, it is never dropped.
+    while (controlled.isEmpty() || controlled.get(controlled.size() - 1) != numFrames - 1) {
+      Thread.sleep(1);
+    }
+    pipeline.stop();
+
+    for (int i = 1; i < controlled.size(); ++i) {
+      assertTrue("Out of order at " + i, controlled.get(i) > controlled.get(i - 1));
+    }
+    final long dropped = cameraFrames.getDropped() + inputs.getDropped();
+    assertTrue(dropped > 0);
+    assertEquals(numFrames, controlled.size() + dropped);
+    assertTrue(pipeline.getStats().contains("camera: depth 0, published " + numFrames));
+  }
+
+  @Test(timeout = 30000)
+  public void rejectedOutput_isNotHandedOn() throws InterruptedException {
+    final FrameQueue<Frame> cameraFrames = new FrameQueue<>("camera", 4, Frame::new);
+    final FrameQueue<Frame> inputs = new FrameQueue<>("input", 4, Frame::new);
+    final List<Long> controlled = Collections.synchronizedList(new ArrayList<>());
+    final Pipeline pipeline =
+        new Pipeline()
+            .addStage(
+                new Stage<>(
+                    "preprocess",
+                    cameraFrames,
+                    inputs,
+                    (frame, input) -> {
+                      input.frameNum = frame.frameNum;
+                      // Only even frames, like a detector that skips frames.
+                      return frame.frameNum % 2 == 0;
+                    }))
+            .addStage(
+                new Stage<Frame, Void>(
+                    "control", inputs, null, (input, output) -> controlled.add(input.frameNum)));
+    pipeline.start();
+    for (int i = 0; i < 100; ++i) {
+      final Frame frame = cameraFrames.acquire();
+      frame.frameNum = i;
+      cameraFrames.publish(frame);
+      // Slow enough that nothing is dropped.
+      while (cameraFrames.getDepth() > 0 || inputs.getDepth() > 0) {
+        Thread.sleep(0, 100000);
+      }
+    }
+    while (controlled.size() < 50) {
+      Thread.sleep(1);
+    }
+    pipeline.stop();
+    assertEquals(50, controlled.size());
+    for (int i = 0; i < controlled.size(); ++i) {
+      assertEquals(2L * i, (long) controlled.get(i));
+    }
+    assertEquals(50, inputs.getPublished());
+  }
+
+  @Test(timeout = 10000)
+  public void stop_endsIdleStages() throws InterruptedException {
+    final FrameQueue<Frame> cameraFrames = new FrameQueue<>("camera", 1, Frame::new);
+    final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+    final Pipeline pipeline =
+        new Pipeline()
+            .addStage(
+                new Stage<Frame, Void>(
+                    "control",
+                    cameraFrames,
+                    null,
+                    (frame, output) -> threads.add(Thread.currentThread())));
+    pipeline.start();
+    final Frame frame = cameraFrames.acquire();
+    cameraFrames.publish(frame);
+    while (threads.isEmpty()) {
+      Thread.sleep(1);
+    }
+    // The stage now waits for the next frame.
+    pipeline.stop();
+    assertFalse(threads.get(0).isAlive());
+    assertEquals("control", threads.get(0).getName());
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
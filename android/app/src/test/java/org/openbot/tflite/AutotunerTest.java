@@ -0,0 +1,152 @@
+package org.openbot.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class AutotunerTest {
+
+  private static final int NUM_WARM_UPS = 2;
+  private static final int NUM_RUNS = 5;
+
+  // Interpreters created by the factory, to check that every one was run and closed.
+  private final List<FakeInterpreter> interpreters = new ArrayList<>();
+
+  /**
+   * Takes a fixed time per inference: 30 ms divided by the threads on the CPU, 1 ms on the GPU.
+   * NNAPI fails after the warm-up and the DSP cannot be created.
+   */
+  private final Autotuner.Factory factory =
+      (model, config) -> {
+        final long nanos;
+        int failAfter = Integer.MAX_VALUE;
+        switch (config.device) {
+          case "CPU":
+            nanos = 30_000_000L / config.numThreads;
+            break;
+          case "GPU":
+            nanos = 1_000_000L;
+            break;
+          case "NNAPI":
+            nanos = 500_000L;
+            failAfter = NUM_WARM_UPS;
+            break;
+          default:
+            throw new UnsupportedOperationException("No delegate for " + config.device);
+        }
+        final FakeInterpreter interpreter = new FakeInterpreter(nanos, failAfter);
+        interpreters.add(interpreter);
+        return interpreter;
+      };
+
+  @Test
+  public void sweep_picksFastestValidConfig() {
+    final Autotuner autotuner = new Autotuner(factory, NUM_WARM_UPS, NUM_RUNS);
+    final List<Autotuner.Result> results =
+        autotuner.sweep("model", Autotuner.configs("CPU", 3, "GPU", "NNAPI", "DSP"));
+
+    assertEquals(6, results.size());
+    for (int i = 0; i < 4; ++i) {
+      assertTrue(results.get(i).toString(), results.get(i).isValid());
+      assertTrue(results.get(i).medianMs <= results.get(i).maxMs);
+    }
+    final Autotuner.Result best = Autotuner.best(results);
+    assertSame(results.get(3), best);
+    assertEquals("GPU/1", best.config.toString());
+    assertTrue(best.medianMs >= 1);
+    // The CPU gets faster with every thread.
+    assertTrue(results.get(0).medianMs > results.get(1).medianMs);
+    assertTrue(results.get(1).medianMs > results.get(2).medianMs);
+  }
+
+  @Test
+  public void sweep_skipsFailedConfigs() {
+    final Autotuner autotuner = new Autotuner(factory, NUM_WARM_UPS, NUM_RUNS);
+    final List<Autotuner.Result> results =
+        autotuner.sweep("model", Autotuner.configs("CPU", 1, "NNAPI", "DSP"));
+
+    // NNAPI would be the fastest, but failed while it was timed.
+    final Autotuner.Result nnapi = results.get(1);
+    assertFalse(nnapi.isValid());
+    assertTrue(Double.isNaN(nnapi.medianMs));
+    assertTrue(nnapi.error, nnapi.error.contains("Inference failed"));
+    final Autotuner.Result dsp = results.get(2);
+    assertFalse(dsp.isValid());
+    assertTrue(dsp.error, dsp.error.contains("No delegate"));
+    assertEquals("CPU/1", Autotuner.best(results).config.toString());
+  }
+
+  @Test
+  public void best_returnsNullIfAllFailed() {
+    final Autotuner autotuner = new Autotuner(factory, NUM_WARM_UPS, NUM_RUNS);
+    assertNull(Autotuner.best(autotuner.sweep("model", Autotuner.configs("CPU", 0, "DSP"))));
+    assertNull(Autotuner.best(new ArrayList<>()));
+  }
+
+  @Test
+  public void run_warmsUpTimesAndClosesEveryInterpreter() {
+    final Autotuner autotuner = new Autotuner(factory, NUM_WARM_UPS, NUM_RUNS);
+    autotuner.sweep("model", Autotuner.configs("CPU", 2, "NNAPI"));
+
+    assertEquals(3, interpreters.size());
+    assertEquals(NUM_WARM_UPS + NUM_RUNS, interpreters.get(0).numRuns);
+    assertEquals(NUM_WARM_UPS + NUM_RUNS, interpreters.get(1).numRuns);
+    assertEquals(NUM_WARM_UPS + 1, interpreters.get(2).numRuns);
+    for (FakeInterpreter interpreter : interpreters) {
+      assertTrue(interpreter.closed);
+    }
+  }
+
+  @Test
+  public void config_parsesItsText() {
+    for (Autotuner.Config config : Autotuner.configs("CPU", 4, "GPU", "NNAPI")) {
+      final Autotuner.Config parsed = Autotuner.Config.parse(config.toString());
+      assertEquals(config.device, parsed.device);
+      assertEquals(config.numThreads, parsed.numThreads);
+    }
+    for (String text : Arrays.asList("", "CPU", "/4")) {
+      try {
+        Autotuner.Config.parse(text);
+        throw new AssertionError("Parsed " + text);
+      } catch (IllegalArgumentException expected) {
+        // Not a config.
+      }
+    }
+  }
+
+  private static final class FakeInterpreter implements Autotuner.Interpreter {
+    private final long nanos;
+    private final int failAfter;
+    int numRuns;
+    boolean closed;
+
+    FakeInterpreter(long nanos, int failAfter) {
+      this.nanos = nanos;
+      this.failAfter = failAfter;
+    }
+
+    @Override
+    public void run() throws Exception {
+      if (numRuns++ == failAfter) {
+        throw new IllegalStateException("Inference failed");
+      }
+      // Busy like an inference, sleeping could take much longer than asked.
+      final long end = System.nanoTime() + nanos;
+      while (System.nanoTime() < end) {
+        // Spin.
+      }
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
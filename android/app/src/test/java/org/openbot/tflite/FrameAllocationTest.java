@@ -0,0 +1,153 @@
+package org.openbot.tflite;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbot.env.YuvTensorSampler;
+import org.openbot.tracking.ObjectTracker;
+
+/**
+ * Checks that the per-frame work of the network that does not depend on Android allocates nothing
+ * once it is warmed up: sampling the input from the YUV planes, filling the input buffer, decoding
+ * and suppressing the SSD outputs, and tracking the detections.
+ */
+public class FrameAllocationTest {
+  private static final int FRAME_WIDTH = 640;
+  private static final int FRAME_HEIGHT = 480;
+  private static final int INPUT_SIZE = 300;
+  private static final int NUM_ANCHORS = 1917;
+  private static final int NUM_CLASSES = 91;
+  private static final int WARM_UP_FRAMES = 10;
+  private static final int FRAMES = 100;
+  private static final int MAX_ROUNDS = 10;
+
+  private final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private final Random random = new Random(7);
+
+  private final YuvTensorSampler sampler = new YuvTensorSampler(INPUT_SIZE, INPUT_SIZE);
+  private final byte[] y = new byte[FRAME_WIDTH * FRAME_HEIGHT];
+  private final byte[] u = new byte[FRAME_WIDTH * FRAME_HEIGHT / 2];
+  private final byte[] v = new byte[FRAME_WIDTH * FRAME_HEIGHT / 2];
+  private final int[] pixels = new int[INPUT_SIZE * INPUT_SIZE];
+  private final ImagePreprocessor uint8 = ImagePreprocessor.uint8();
+  private final ImagePreprocessor float32 = ImagePreprocessor.floatMeanStd(127.5f, 127.5f);
+  // The pipeline rotates the input buffers of several frames.
+  private final ByteBuffer[] uint8Buffers = {inputBuffer(1), inputBuffer(1)};
+  private final ByteBuffer[] float32Buffers = {inputBuffer(4), inputBuffer(4)};
+
+  private SsdBoxDecoder decoder;
+  private final DetectionPostprocessor postprocessor = new DetectionPostprocessor();
+  private final float[] encodings = new float[4 * NUM_ANCHORS];
+  private final float[] logits = new float[NUM_ANCHORS * NUM_CLASSES];
+  private final float[] boxes = new float[4 * NUM_ANCHORS];
+
+  private final ObjectTracker tracker = new ObjectTracker(0.3f, 2, 5);
+  private final float[] trackerBoxes = new float[4 * 10];
+  private final float[] trackerScores = new float[10];
+  private final int[] trackerLabels = new int[10];
+
+  @Before
+  public void setUp() {
+    random.nextBytes(y);
+    random.nextBytes(u);
+    random.nextBytes(v);
+    final float scale = (float) FRAME_HEIGHT / INPUT_SIZE;
+    sampler.setTransform(
+        new float[] {scale, 0, (FRAME_WIDTH - FRAME_HEIGHT) / 2f, 0, scale, 0, 0, 0, 1},
+        FRAME_WIDTH,
+        FRAME_HEIGHT);
+
+    final float[] yCenters = new float[NUM_ANCHORS];
+    final float[] xCenters = new float[NUM_ANCHORS];
+    final float[] heights = new float[NUM_ANCHORS];
+    final float[] widths = new float[NUM_ANCHORS];
+    final int gridSize = (int) Math.ceil(Math.sqrt(NUM_ANCHORS));
+    for (int i = 0; i < NUM_ANCHORS; ++i) {
+      yCenters[i] = (i / gridSize + 0.5f) / gridSize;
+      xCenters[i] = (i % gridSize + 0.5f) / gridSize;
+      heights[i] = 0.1f + 0.4f * random.nextFloat();
+      widths[i] = 0.1f + 0.4f * random.nextFloat();
+    }
+    decoder = new SsdBoxDecoder(yCenters, xCenters, heights, widths);
+    for (int i = 0; i < encodings.length; ++i) {
+      encodings[i] = (float) random.nextGaussian();
+    }
+    for (int i = 0; i < logits.length; ++i) {
+      // A few anchors pass the threshold.
+      logits[i] = random.nextInt(1000) == 0 ? 2 : -6;
+    }
+    final List<String> labels = new ArrayList<>();
+    for (int i = 0; i < NUM_CLASSES; ++i) {
+      labels.add(i == 1 ? "person" : "class" + i);
+    }
+    postprocessor.setTargetClasses(labels);
+    postprocessor.setMinScore(0.5f);
+    postprocessor.setMaxResults(10);
+    postprocessor.setNms(0.6f, true);
+  }
+
+  @Test
+  public void processFrame_doesNotAllocateAfterWarmUp() {
+    for (int frame = 0; frame < WARM_UP_FRAMES; ++frame) {
+      processFrame(frame);
+    }
+    // Reading the counter may allocate itself, measure that first.
+    final long overhead = -allocatedBytes() + allocatedBytes();
+    // Code that allocates does so on every frame, but the JVM may allocate while it recompiles or
+    // deoptimizes the code under test. So one round without allocation is enough.
+    long allocated = -1;
+    int frame = WARM_UP_FRAMES;
+    for (int round = 0; round < MAX_ROUNDS && allocated != 0; ++round) {
+      final long start = allocatedBytes();
+      for (int i = 0; i < FRAMES; ++i) {
+        processFrame(frame++);
+      }
+      allocated = allocatedBytes() - start - overhead;
+    }
+    assertEquals("Bytes allocated in " + FRAMES + " frames", 0, allocated);
+  }
+
+  // The work of a frame with detection, as done by the preprocess, inference and control stages,
+  // and of a frame without, on which the tracker predicts.
+  private void processFrame(int frame) {
+    sampler.sample(y, u, v, FRAME_WIDTH, FRAME_WIDTH, 2, pixels);
+    final ByteBuffer uint8Buffer = uint8Buffers[frame % uint8Buffers.length];
+    uint8Buffer.rewind();
+    uint8.fill(pixels, pixels.length, uint8Buffer);
+    final ByteBuffer float32Buffer = float32Buffers[frame % float32Buffers.length];
+    float32Buffer.rewind();
+    float32.fill(pixels, pixels.length, float32Buffer);
+
+    postprocessor.clear();
+    decoder.addCandidates(encodings, logits, NUM_CLASSES, 1, postprocessor, boxes);
+    final int numResults = postprocessor.run(boxes);
+    for (int i = 0; i < numResults; ++i) {
+      final int offset = 4 * postprocessor.getResultBox(i);
+      for (int j = 0; j < 4; ++j) {
+        // Moving slowly, so the tracks are kept.
+        trackerBoxes[4 * i + j] = INPUT_SIZE * boxes[offset + j] + 0.1f * frame;
+      }
+      trackerScores[i] = postprocessor.getResultScore(i);
+      trackerLabels[i] = postprocessor.getResultClass(i);
+    }
+    tracker.update(2L * frame, trackerBoxes, trackerScores, trackerLabels, numResults);
+    tracker.predict(2L * frame + 1);
+  }
+
+  private static ByteBuffer inputBuffer(int numBytesPerChannel) {
+    return ByteBuffer.allocateDirect(3 * numBytesPerChannel * INPUT_SIZE * INPUT_SIZE)
+        .order(ByteOrder.nativeOrder());
+  }
+
+  private long allocatedBytes() {
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,26 @@
+package org.openbot.env;
+
+import java.util.Random;
+
+/** Synthetic frames for the benchmarks. */
+public final class Frames {
+
+  private Frames() {}
+
+  /** Returns random bytes, the same for the same seed. */
+  public static byte[] random(int length, long seed) {
+    final byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  /** Returns random ARGB pixels, the same for the same seed. */
+  public static int[] randomArgb(int numPixels, long seed) {
+    final Random random = new Random(seed);
+    final int[] pixels = new int[numPixels];
+    for (int i = 0; i < numPixels; ++i) {
+      pixels[i] = 0xff000000 | random.nextInt(1 << 24);
+    }
+    return pixels;
+  }
+}
@@ -0,0 +1,67 @@
+package org.openbot.env;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Logging of a sensor reading with three values: as a text line formatted like the text logs of the
+ * SensorService, and as a record of a {@link BinarySensorLog}. Both write into buffered files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SensorLogBenchmark {
+
+  private File textFile;
+  private File binaryFile;
+  private Writer text;
+  private BinarySensorLog binary;
+  private final float[] values = {0.12f, -9.81f, 3.5f};
+  private long timestamp = 1_000_000_000L;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws IOException {
+    textFile = File.createTempFile("sensor", ".txt");
+    binaryFile = File.createTempFile("sensor", BinarySensorLog.EXTENSION);
+    text = new BufferedWriter(new FileWriter(textFile));
+    text.write("timestamp[ns],x,y,z\n");
+    binary = new BinarySensorLog(binaryFile, "timestamp[ns],x,y,z", values.length);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    text.close();
+    binary.close();
+    textFile.delete();
+    binaryFile.delete();
+  }
+
+  @Benchmark
+  public void appendText() throws IOException {
+    timestamp += 5_000_000;
+    final StringBuilder line = new StringBuilder().append(timestamp);
+    for (float value : values) {
+      line.append(',').append(value);
+    }
+    text.write(line.append('\n').toString());
+  }
+
+  @Benchmark
+  public void appendBinary() throws IOException {
+    timestamp += 5_000_000;
+    binary.append(timestamp, values);
+  }
+}
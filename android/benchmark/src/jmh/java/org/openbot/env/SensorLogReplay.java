@@ -0,0 +1,392 @@
+package org.openbot.env;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a sensor trace into the logs of the SensorService, once like the previous service (a text
+ * line per reading, flushed on the calling thread) and once through the {@link AsyncLogWriter}
+ * (binary sensor logs and text logs, written on the log writer thread). Three producer threads
+ * append like in the app: the sensor callbacks, the message handler (frames, inference, control,
+ * indicator, vehicle) and the location callback.
+ *
+ * <p>Every round replays the trace twice:
+ *
+ * <ul>
+ *   <li>as fast as possible, for the throughput in records per second, including closing the logs,
+ *   <li>at its recorded pace (sped up), for the time a callback is blocked by appending.
+ * </ul>
+ *
+ * Run on a desktop JVM with {@code ./gradlew :benchmark:sensorLogReplay}. The trace is the text
+ * logs of a recorded session, e.g. {@code -Preplay.args="path/to/session/sensor_data"}, or a
+ * synthetic ten minute session at the rates of the app if the folder is empty or not given. A
+ * second argument sets the speed of the paced replay (default 20).
+ */
+public final class SensorLogReplay {
+
+  private static final int ROUNDS = 4;
+
+  /** A log of the SensorService: file name, values per reading, producer thread and rate. */
+  private enum Stream {
+    ACCELEROMETER("accelerometerLog", 3, 0, 50),
+    GYROSCOPE("gyroscopeLog", 3, 0, 50),
+    GRAVITY("gravityLog", 3, 0, 50),
+    MAGNETIC("magneticLog", 3, 0, 50),
+    LIGHT("lightLog", 1, 0, 5),
+    PROXIMITY("proximityLog", 1, 0, 5),
+    PRESSURE("pressureLog", 1, 0, 5),
+    POSE("poseLog", 15, 0, 50),
+    MOTION("motionLog", 1, 0, 1),
+    FRAMES("rgbFrames", 1, 1, 30),
+    INFERENCE("inferenceTime", 1, 1, 30),
+    CONTROL("ctrlLog", 2, 1, 30),
+    INDICATOR("indicatorLog", 1, 1, 1),
+    VEHICLE("vehicleLog", 4, 1, 30),
+    GPS("gpsLog", 5, 2, 1);
+
+    final String name;
+    final int numValues;
+    final int producer;
+    final int rate;
+
+    Stream(String name, int numValues, int producer, int rate) {
+      this.name = name;
+      this.numValues = numValues;
+      this.producer = producer;
+      this.rate = rate;
+    }
+
+    // Sensor readings are binary logs in the app, the others stay text.
+    boolean isSensor() {
+      return producer == 0;
+    }
+  }
+
+  private static final int NUM_PRODUCERS = 3;
+  private static final String[] PRODUCER_NAMES = {
+    "sensor callbacks", "message handler", "location"
+  };
+
+  /** A reading of the trace. */
+  private static final class Reading {
+    final Stream stream;
+    final long timestamp;
+    final float[] values;
+
+    Reading(Stream stream, long timestamp, float[] values) {
+      this.stream = stream;
+      this.timestamp = timestamp;
+      this.values = values;
+    }
+  }
+
+  /** The logs of one replay, the previous or the asynchronous ones. */
+  private interface Logs {
+    void append(Reading reading) throws IOException;
+
+    void close() throws IOException;
+  }
+
+  /** Text logs flushed on every line, like the previous SensorService.appendLog. */
+  private static final class SyncLogs implements Logs {
+    private final BufferedWriter[] writers = new BufferedWriter[Stream.values().length];
+
+    SyncLogs(File folder) throws IOException {
+      for (Stream stream : Stream.values()) {
+        writers[stream.ordinal()] =
+            new BufferedWriter(new FileWriter(new File(folder, stream.name + ".txt"), true));
+      }
+    }
+
+    @Override
+    public void append(Reading reading) throws IOException {
+      final BufferedWriter writer = writers[reading.stream.ordinal()];
+      writer.append(toText(reading));
+      writer.newLine();
+      writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (BufferedWriter writer : writers) {
+        writer.close();
+      }
+    }
+  }
+
+  /** The logs of the current SensorService. */
+  private static final class AsyncLogs implements Logs {
+    private final AsyncLogWriter writer = new AsyncLogWriter();
+    private final AsyncLogWriter.BinaryLog[] binaryLogs =
+        new AsyncLogWriter.BinaryLog[Stream.values().length];
+    private final AsyncLogWriter.TextLog[] textLogs =
+        new AsyncLogWriter.TextLog[Stream.values().length];
+
+    AsyncLogs(File folder) throws IOException {
+      for (Stream stream : Stream.values()) {
+        if (stream.isSensor()) {
+          binaryLogs[stream.ordinal()] =
+              writer.openBinary(
+                  new File(folder, stream.name + BinarySensorLog.EXTENSION),
+                  "timestamp[ns]",
+                  stream.numValues);
+        } else {
+          textLogs[stream.ordinal()] =
+              writer.openText(new File(folder, stream.name + ".txt"), "timestamp[ns]");
+        }
+      }
+    }
+
+    @Override
+    public void append(Reading reading) {
+      if (reading.stream.isSensor()) {
+        binaryLogs[reading.stream.ordinal()].append(reading.timestamp, reading.values);
+      } else {
+        textLogs[reading.stream.ordinal()].append(toText(reading));
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      writer.close();
+    }
+  }
+
+  /** Results of one replay. */
+  private static final class Result {
+    double recordsPerSecond;
+    final long[] maxBlockingNanos = new long[NUM_PRODUCERS];
+    final long[] p99BlockingNanos = new long[NUM_PRODUCERS];
+  }
+
+  private SensorLogReplay() {}
+
+  public static void main(String[] args) throws Exception {
+    final List<List<Reading>> trace =
+        args.length > 0 && !args[0].isEmpty() ? readTrace(new File(args[0])) : syntheticTrace(600);
+    final double speed = args.length > 1 ? Double.parseDouble(args[1]) : 20;
+    int numReadings = 0;
+    for (List<Reading> readings : trace) {
+      numReadings += readings.size();
+    }
+    if (numReadings == 0) {
+      throw new IllegalArgumentException("No readings in " + args[0]);
+    }
+    System.out.printf(
+        Locale.US, "Trace: %d readings, paced replay at %.0fx speed.%n", numReadings, speed);
+
+    for (String mode : new String[] {"sync-flush", "async"}) {
+      double throughput = 0;
+      final long[] max = new long[NUM_PRODUCERS];
+      final long[] p99 = new long[NUM_PRODUCERS];
+      // The first round warms up the JIT and is not counted.
+      for (int round = 0; round <= ROUNDS; ++round) {
+        final Result fast = replay(mode, trace, 0);
+        final Result paced = replay(mode, trace, speed);
+        if (round == 0) {
+          continue;
+        }
+        throughput += fast.recordsPerSecond / ROUNDS;
+        for (int p = 0; p < NUM_PRODUCERS; ++p) {
+          max[p] = Math.max(max[p], paced.maxBlockingNanos[p]);
+          p99[p] = Math.max(p99[p], paced.p99BlockingNanos[p]);
+        }
+      }
+      System.out.printf(Locale.US, "%s: %.0f records/s%n", mode, throughput);
+      for (int p = 0; p < NUM_PRODUCERS; ++p) {
+        System.out.printf(
+            Locale.US,
+            "  %-16s blocked p99 %7.1f us, max %8.1f us%n",
+            PRODUCER_NAMES[p],
+            p99[p] / 1000.0,
+            max[p] / 1000.0);
+      }
+    }
+  }
+
+  /**
+   * Replays the trace into fresh logs.
+   *
+   * @param speed Speed of the replay relative to the recording, 0 for as fast as possible.
+   */
+  private static Result replay(String mode, List<List<Reading>> trace, double speed)
+      throws Exception {
+    final File folder = createTempFolder();
+    final Logs logs = mode.equals("async") ? new AsyncLogs(folder) : new SyncLogs(folder);
+    final Result result = new Result();
+    final long firstTimestamp = getFirstTimestamp(trace);
+    final CountDownLatch start = new CountDownLatch(1);
+    final Thread[] producers = new Thread[NUM_PRODUCERS];
+    final Exception[] failure = new Exception[1];
+    final long[] startNanos = new long[1];
+    int numReadings = 0;
+    for (int p = 0; p < NUM_PRODUCERS; ++p) {
+      final int producer = p;
+      final List<Reading> readings = trace.get(p);
+      numReadings += readings.size();
+      producers[p] =
+          new Thread(
+              () -> {
+                final long[] blocking = new long[readings.size()];
+                try {
+                  start.await();
+                  for (int i = 0; i < readings.size(); ++i) {
+                    final Reading reading = readings.get(i);
+                    if (speed > 0) {
+                      final long due =
+                          startNanos[0] + (long) ((reading.timestamp - firstTimestamp) / speed);
+                      long wait;
+                      while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                      }
+                    }
+                    final long before = System.nanoTime();
+                    logs.append(reading);
+                    blocking[i] = System.nanoTime() - before;
+                  }
+                } catch (Exception e) {
+                  synchronized (failure) {
+                    failure[0] = e;
+                  }
+                }
+                Arrays.sort(blocking);
+                if (blocking.length > 0) {
+                  result.maxBlockingNanos[producer] = blocking[blocking.length - 1];
+                  result.p99BlockingNanos[producer] =
+                      blocking[(int) (0.99 * (blocking.length - 1))];
+                }
+              },
+              PRODUCER_NAMES[p]);
+      producers[p].start();
+    }
+    startNanos[0] = System.nanoTime();
+    start.countDown();
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    logs.close();
+    final long elapsed = System.nanoTime() - startNanos[0];
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    result.recordsPerSecond = numReadings / (elapsed / 1e9);
+    deleteFolder(folder);
+    return result;
+  }
+
+  // Formats a reading like the text logs of the SensorService.
+  private static String toText(Reading reading) {
+    String line = Long.toString(reading.timestamp);
+    for (float value : reading.values) {
+      line += "," + value;
+    }
+    return line;
+  }
+
+  // Readings of a session of the given length at the rates of the streams, by producer.
+  private static List<List<Reading>> syntheticTrace(int seconds) {
+    final Random random = new Random(1);
+    final List<List<Reading>> trace = newTrace();
+    final long start = TimeUnit.HOURS.toNanos(1);
+    for (Stream stream : Stream.values()) {
+      final long period = TimeUnit.SECONDS.toNanos(1) / stream.rate;
+      for (long t = 0; t < TimeUnit.SECONDS.toNanos(seconds); t += period) {
+        final float[] values = new float[stream.numValues];
+        for (int i = 0; i < values.length; ++i) {
+          values[i] = (float) random.nextGaussian();
+        }
+        // Sensors jitter a little around their rate.
+        trace
+            .get(stream.producer)
+            .add(new Reading(stream, start + t + random.nextInt(1000), values));
+      }
+    }
+    sortTrace(trace);
+    return trace;
+  }
+
+  // Reads the text logs of a recorded session, e.g. accelerometerLog.txt. Missing logs are empty.
+  private static List<List<Reading>> readTrace(File folder) throws IOException {
+    final List<List<Reading>> trace = newTrace();
+    for (Stream stream : Stream.values()) {
+      final File file = new File(folder, stream.name + ".txt");
+      if (!file.isFile()) {
+        continue;
+      }
+      try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+        // Skip the header.
+        String line = reader.readLine();
+        while ((line = reader.readLine()) != null) {
+          final String[] columns = line.split(",");
+          try {
+            final float[] values = new float[columns.length - 1];
+            for (int i = 0; i < values.length; ++i) {
+              values[i] = Float.parseFloat(columns[i + 1].trim());
+            }
+            trace
+                .get(stream.producer)
+                .add(new Reading(stream, Long.parseLong(columns[0].trim()), values));
+          } catch (NumberFormatException e) {
+            // A truncated last line.
+          }
+        }
+      }
+    }
+    sortTrace(trace);
+    return trace;
+  }
+
+  private static List<List<Reading>> newTrace() {
+    final List<List<Reading>> trace = new ArrayList<>();
+    for (int p = 0; p < NUM_PRODUCERS; ++p) {
+      trace.add(new ArrayList<>());
+    }
+    return trace;
+  }
+
+  private static void sortTrace(List<List<Reading>> trace) {
+    for (List<Reading> readings : trace) {
+      readings.sort((a, b) -> Long.compare(a.timestamp, b.timestamp));
+    }
+  }
+
+  private static long getFirstTimestamp(List<List<Reading>> trace) {
+    long first = Long.MAX_VALUE;
+    for (List<Reading> readings : trace) {
+      if (!readings.isEmpty()) {
+        first = Math.min(first, readings.get(0).timestamp);
+      }
+    }
+    return first;
+  }
+
+  private static File createTempFolder() throws IOException {
+    final File folder = File.createTempFile("sensor_logs", "");
+    if (!folder.delete() || !folder.mkdir()) {
+      throw new IOException("Cannot create " + folder);
+    }
+    return folder;
+  }
+
+  private static void deleteFolder(File folder) {
+    final File[] files = folder.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    folder.delete();
+  }
+}
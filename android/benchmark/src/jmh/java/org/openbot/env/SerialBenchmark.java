@@ -0,0 +1,87 @@
+package org.openbot.env;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The USB framing: encoding of the vehicle commands and decoding of the status messages, which
+ * arrive in chunks that do not respect the message boundaries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerialBenchmark {
+
+  @Param({"ASCII", "BINARY"})
+  public VehicleCommandWriter.Encoding encoding;
+
+  private VehicleCommandWriter writer;
+  private Blackhole blackhole;
+  private int control;
+
+  // Status messages with debug output in between, cut into chunks of the size of a USB read.
+  private static final int CHUNK_SIZE = 64;
+  private byte[][] chunks;
+  private int chunk;
+  private final TelemetryParser parser = new TelemetryParser();
+
+  @Setup(Level.Trial)
+  public void setUp(Blackhole blackhole) {
+    this.blackhole = blackhole;
+    // Nothing is ever pending, the writer thread stays idle while the benchmark sends.
+    writer = new VehicleCommandWriter(this.blackhole::consume, encoding, 1);
+
+    final StringBuilder stream = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      stream.append(
+          String.format(Locale.US, "%.2f,%d,%d,%d\n", 7.4 + i % 10 / 100.0, i * 20, -i * 20, 120));
+      if (i % 10 == 0) {
+        stream.append("debug output\n");
+      }
+    }
+    final byte[] bytes = stream.toString().getBytes(StandardCharsets.US_ASCII);
+    chunks = new byte[(bytes.length + CHUNK_SIZE - 1) / CHUNK_SIZE][];
+    for (int i = 0; i < chunks.length; ++i) {
+      final int length = Math.min(CHUNK_SIZE, bytes.length - i * CHUNK_SIZE);
+      chunks[i] = new byte[length];
+      System.arraycopy(bytes, i * CHUNK_SIZE, chunks[i], 0, length);
+    }
+    parser.addListener(blackhole::consume);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    writer.close();
+  }
+
+  @Benchmark
+  public void encodeControl() {
+    control = (control + 7) % 511;
+    writer.sendControl(control - 255, 255 - control);
+  }
+
+  @Benchmark
+  public void encodeIndicator() {
+    writer.sendIndicator(-1);
+  }
+
+  /** Feeds one chunk of about 4 messages. */
+  @Benchmark
+  public long parseChunk() {
+    parser.feed(chunks[chunk], 0);
+    chunk = (chunk + 1) % chunks.length;
+    return parser.getNumMessages();
+  }
+}
@@ -0,0 +1,94 @@
+package org.openbot.env;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The per-pixel conversion of {@code ImageUtils}, which the camera used before the {@link
+ * YuvToArgbConverter}, on the frames of {@link YuvToArgbBenchmark}. ImageUtils depends on Android,
+ * so the conversion is copied here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YuvToArgbBaselineBenchmark {
+
+  private static final int MAX_CHANNEL_VALUE = 262143;
+
+  @Param({"640x480", "1280x720", "1920x1080"})
+  public String size;
+
+  private int width;
+  private int height;
+  private byte[] y;
+  private byte[] u;
+  private byte[] v;
+  private int[] argb;
+
+  @Setup
+  public void setUp() {
+    final String[] dimensions = size.split("x");
+    width = Integer.parseInt(dimensions[0]);
+    height = Integer.parseInt(dimensions[1]);
+    y = Frames.random(width * height, 1);
+    u = Frames.random(width * height / 2, 2);
+    v = new byte[u.length];
+    System.arraycopy(u, 1, v, 0, u.length - 1);
+    argb = new int[width * height];
+  }
+
+  @Benchmark
+  public int[] convert() {
+    convertYUV420ToARGB8888(y, u, v, width, height, width, width, 2, argb);
+    return argb;
+  }
+
+  // Copy of ImageUtils.convertYUV420ToARGB8888.
+  private static void convertYUV420ToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    int yp = 0;
+    for (int j = 0; j < height; j++) {
+      int pY = yRowStride * j;
+      int pUV = uvRowStride * (j >> 1);
+
+      for (int i = 0; i < width; i++) {
+        int uvOffset = pUV + (i >> 1) * uvPixelStride;
+
+        out[yp++] = yuv2Rgb(0xff & yData[pY + i], 0xff & uData[uvOffset], 0xff & vData[uvOffset]);
+      }
+    }
+  }
+
+  // Copy of ImageUtils.YUV2RGB.
+  private static int yuv2Rgb(int y, int u, int v) {
+    y = (y - 16) < 0 ? 0 : (y - 16);
+    u -= 128;
+    v -= 128;
+
+    int y1192 = 1192 * y;
+    int r = (y1192 + 1634 * v);
+    int g = (y1192 - 833 * v - 400 * u);
+    int b = (y1192 + 2066 * u);
+
+    r = r > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (r < 0 ? 0 : r);
+    g = g > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (g < 0 ? 0 : g);
+    b = b > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (b < 0 ? 0 : b);
+
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+}
@@ -0,0 +1,57 @@
+package org.openbot.env;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Conversion of a semi-planar camera frame (U and V interleaved) to ARGB, see {@link
+ * YuvToArgbBaselineBenchmark} for the previous per-pixel conversion.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YuvToArgbBenchmark {
+
+  @Param({"640x480", "1280x720", "1920x1080"})
+  public String size;
+
+  /** Bands the frame is split into, 1 converts on the calling thread. */
+  @Param({"1", "4"})
+  public int numBands;
+
+  private YuvToArgbConverter converter;
+  private int width;
+  private int height;
+  private byte[] y;
+  private byte[] u;
+  private byte[] v;
+  private int[] argb;
+
+  @Setup
+  public void setUp() {
+    final String[] dimensions = size.split("x");
+    width = Integer.parseInt(dimensions[0]);
+    height = Integer.parseInt(dimensions[1]);
+    converter = new YuvToArgbConverter(ForkJoinPool.commonPool(), numBands);
+    y = Frames.random(width * height, 1);
+    // Semi-planar chroma like most Camera2 devices deliver: V follows U in the same buffer.
+    u = Frames.random(width * height / 2, 2);
+    v = new byte[u.length];
+    System.arraycopy(u, 1, v, 0, u.length - 1);
+    argb = new int[width * height];
+  }
+
+  @Benchmark
+  public int[] convert() {
+    converter.convertYUV420ToARGB8888(y, u, v, width, height, width, width, 2, argb);
+    return argb;
+  }
+}
@@ -0,0 +1,107 @@
+package org.openbot.tflite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openbot.env.Frames;
+import org.openbot.env.YuvTensorSampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The preprocessing of a network input: sampling the crop from the YUV planes of a 1280x720 frame
+ * and writing the pixels into the input buffer, quantized or as normalized floats. The baselines
+ * write the buffer like the networks did before {@link ImagePreprocessor}, with three relative puts
+ * per pixel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreprocessBenchmark {
+
+  private static final int FRAME_WIDTH = 1280;
+  private static final int FRAME_HEIGHT = 720;
+  private static final float IMAGE_MEAN = 127.5f;
+  private static final float IMAGE_STD = 127.5f;
+
+  /** Width and height of the network input, e.g. 300 for SSD MobileNet. */
+  @Param({"224", "300"})
+  public int inputSize;
+
+  private YuvTensorSampler sampler;
+  private byte[] y;
+  private byte[] u;
+  private byte[] v;
+  private int[] pixels;
+  private final ImagePreprocessor uint8 = ImagePreprocessor.uint8();
+  private final ImagePreprocessor float32 = ImagePreprocessor.floatMeanStd(IMAGE_MEAN, IMAGE_STD);
+  private ByteBuffer uint8Buffer;
+  private ByteBuffer float32Buffer;
+
+  @Setup
+  public void setUp() {
+    final int numPixels = inputSize * inputSize;
+    sampler = new YuvTensorSampler(inputSize, inputSize);
+    // Center crop of the frame height, scaled to the input size.
+    final float scale = (float) FRAME_HEIGHT / inputSize;
+    sampler.setTransform(
+        new float[] {scale, 0, (FRAME_WIDTH - FRAME_HEIGHT) / 2f, 0, scale, 0, 0, 0, 1},
+        FRAME_WIDTH,
+        FRAME_HEIGHT);
+    y = Frames.random(FRAME_WIDTH * FRAME_HEIGHT, 1);
+    u = Frames.random(FRAME_WIDTH * FRAME_HEIGHT / 2, 2);
+    v = new byte[u.length];
+    System.arraycopy(u, 1, v, 0, u.length - 1);
+    pixels = Frames.randomArgb(numPixels, 3);
+    uint8Buffer = ByteBuffer.allocateDirect(3 * numPixels).order(ByteOrder.nativeOrder());
+    float32Buffer = ByteBuffer.allocateDirect(3 * 4 * numPixels).order(ByteOrder.nativeOrder());
+  }
+
+  @Benchmark
+  public int[] sampleYuv() {
+    sampler.sample(y, u, v, FRAME_WIDTH, FRAME_WIDTH, 2, pixels);
+    return pixels;
+  }
+
+  @Benchmark
+  public ByteBuffer fillUint8() {
+    uint8Buffer.rewind();
+    uint8.fill(pixels, pixels.length, uint8Buffer);
+    return uint8Buffer;
+  }
+
+  @Benchmark
+  public ByteBuffer fillFloat() {
+    float32Buffer.rewind();
+    float32.fill(pixels, pixels.length, float32Buffer);
+    return float32Buffer;
+  }
+
+  @Benchmark
+  public ByteBuffer baselineUint8() {
+    uint8Buffer.rewind();
+    for (int pixel : pixels) {
+      uint8Buffer.put((byte) ((pixel >> 16) & 0xFF));
+      uint8Buffer.put((byte) ((pixel >> 8) & 0xFF));
+      uint8Buffer.put((byte) (pixel & 0xFF));
+    }
+    return uint8Buffer;
+  }
+
+  @Benchmark
+  public ByteBuffer baselineFloat() {
+    float32Buffer.rewind();
+    for (int pixel : pixels) {
+      float32Buffer.putFloat((((pixel >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+      float32Buffer.putFloat((((pixel >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+      float32Buffer.putFloat(((pixel & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+    }
+    return float32Buffer;
+  }
+}
@@ -0,0 +1,100 @@
+package org.openbot.tflite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decoding and non-maximum suppression of the raw outputs of an SSD model, as done by {@link
+ * DetectorRawSsd}: 1917 anchors for a 300x300 input (MobileNet v1/v2) or 2034 anchors for a 320x320
+ * input (MobileNet v3), 91 classes including the background.
+ *
+ * <p>The anchors are a regular grid and the outputs are random: most logits are far below the
+ * threshold, a few clusters of overlapping anchors pass it, like objects in a frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SsdPostprocessBenchmark {
+
+  private static final int NUM_CLASSES = 91;
+  private static final int NUM_OBJECTS = 5;
+  private static final int ANCHORS_PER_OBJECT = 20;
+
+  @Param({"1917", "2034"})
+  public int numAnchors;
+
+  /** Whether all classes are detected, otherwise only the person class like the app. */
+  @Param({"false", "true"})
+  public boolean allClasses;
+
+  private SsdBoxDecoder decoder;
+  private final DetectionPostprocessor postprocessor = new DetectionPostprocessor();
+  private float[] encodings;
+  private float[] logits;
+  private float[] boxes;
+
+  @Setup
+  public void setUp() {
+    final Random random = new Random(1);
+    final float[] yCenters = new float[numAnchors];
+    final float[] xCenters = new float[numAnchors];
+    final float[] heights = new float[numAnchors];
+    final float[] widths = new float[numAnchors];
+    final int gridSize = (int) Math.ceil(Math.sqrt(numAnchors));
+    for (int i = 0; i < numAnchors; ++i) {
+      yCenters[i] = (i / gridSize + 0.5f) / gridSize;
+      xCenters[i] = (i % gridSize + 0.5f) / gridSize;
+      heights[i] = 0.1f + 0.4f * random.nextFloat();
+      widths[i] = 0.1f + 0.4f * random.nextFloat();
+    }
+    decoder = new SsdBoxDecoder(yCenters, xCenters, heights, widths);
+
+    encodings = new float[4 * numAnchors];
+    for (int i = 0; i < encodings.length; ++i) {
+      encodings[i] = (float) random.nextGaussian();
+    }
+    logits = new float[numAnchors * NUM_CLASSES];
+    for (int i = 0; i < logits.length; ++i) {
+      logits[i] = -6 + (float) random.nextGaussian();
+    }
+    // Neighbouring anchors of an object pass the threshold for its class.
+    for (int object = 0; object < NUM_OBJECTS; ++object) {
+      final int first = random.nextInt(numAnchors - ANCHORS_PER_OBJECT);
+      final int classId = object == 0 ? 1 : 1 + random.nextInt(NUM_CLASSES - 1);
+      for (int anchor = first; anchor < first + ANCHORS_PER_OBJECT; ++anchor) {
+        logits[anchor * NUM_CLASSES + classId] = 1 + (float) random.nextGaussian();
+      }
+    }
+    boxes = new float[4 * numAnchors];
+
+    final List<String> labels = new ArrayList<>();
+    for (int i = 0; i < NUM_CLASSES; ++i) {
+      labels.add(i == 1 ? "person" : "class" + i);
+    }
+    if (allClasses) {
+      postprocessor.setTargetClasses(labels);
+    } else {
+      postprocessor.setTargetClasses(labels, "person");
+    }
+    postprocessor.setMinScore(0.5f);
+    postprocessor.setMaxResults(10);
+    postprocessor.setNms(0.6f, false);
+  }
+
+  @Benchmark
+  public int decodeAndSuppress() {
+    postprocessor.clear();
+    decoder.addCandidates(encodings, logits, NUM_CLASSES, 1, postprocessor, boxes);
+    return postprocessor.run(boxes);
+  }
+}
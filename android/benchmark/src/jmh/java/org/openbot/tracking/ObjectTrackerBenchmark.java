@@ -0,0 +1,77 @@
+package org.openbot.tracking;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Association of the detections of a frame with the tracks, and the prediction on frames without
+ * detection. The objects move on circles, so the frames repeat without a jump.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ObjectTrackerBenchmark {
+
+  private static final int NUM_FRAMES = 256;
+
+  /** Detections per frame. */
+  @Param({"1", "10", "30"})
+  public int numDetections;
+
+  private final ObjectTracker tracker = new ObjectTracker(0.3f, 3, 5);
+  private float[][] boxes;
+  private float[][] scores;
+  private int[][] labels;
+  private long frame;
+
+  @Setup
+  public void setUp() {
+    final Random random = new Random(1);
+    boxes = new float[NUM_FRAMES][4 * numDetections];
+    scores = new float[NUM_FRAMES][numDetections];
+    labels = new int[NUM_FRAMES][numDetections];
+    for (int d = 0; d < numDetections; ++d) {
+      final float centerX = 100 + 1080 * random.nextFloat();
+      final float centerY = 100 + 520 * random.nextFloat();
+      final float size = 40 + 60 * random.nextFloat();
+      final float radius = 50 * random.nextFloat();
+      final int label = random.nextInt(3);
+      for (int f = 0; f < NUM_FRAMES; ++f) {
+        final double angle = 2 * Math.PI * f / NUM_FRAMES;
+        final float x = centerX + radius * (float) Math.cos(angle);
+        final float y = centerY + radius * (float) Math.sin(angle);
+        boxes[f][4 * d] = x - size / 2;
+        boxes[f][4 * d + 1] = y - size / 2;
+        boxes[f][4 * d + 2] = x + size / 2;
+        boxes[f][4 * d + 3] = y + size / 2;
+        scores[f][d] = 0.5f + 0.5f * random.nextFloat();
+        labels[f][d] = label;
+      }
+    }
+    // Confirm the tracks, so that prediction has something to predict.
+    for (int f = 0; f < NUM_FRAMES; ++f) {
+      update();
+    }
+  }
+
+  @Benchmark
+  public int update() {
+    final int f = (int) (frame % NUM_FRAMES);
+    tracker.update(frame++, boxes[f], scores[f], labels[f], numDetections);
+    return tracker.getNumTracks();
+  }
+
+  @Benchmark
+  public int predict() {
+    tracker.predict(frame++);
+    return tracker.getNumTracks();
+  }
+}
@@ -68,6 +68,13 @@
 // WARNING: If the sonar sensor is not setup, the car will go full speed forward!
 #define NO_PHONE_MODE 0
 
+// Enable/Disable binary commands (1,0)
+// Must match the command encoding selected in the app (VehicleCommandWriter).
+// Binary frames: 0xA5, type, payload, checksum (XOR of type and payload)
+// - control: type 'c', left and right as 16-bit little endian integers
+// - indicator: type 'i', value as 8-bit integer
+#define BINARY_COMMANDS 0
+
 //------------------------------------------------------//
 // PINOUT
 //------------------------------------------------------//
@@ -386,6 +393,36 @@ void update_right_motors() {
     }
 }
 
+#if BINARY_COMMANDS
+void read_msg() {
+  if (Serial.read() != 0xA5) {
+    return;
+  }
+  byte type;
+  if (Serial.readBytes(&type, 1) != 1) {
+    return;
+  }
+  byte len = type == 'c' ? 4 : (type == 'i' ? 1 : 0);
+  byte payload[4];
+  byte checksum;
+  if (len == 0 || Serial.readBytes(payload, len) != len || Serial.readBytes(&checksum, 1) != 1) {
+    return;
+  }
+  byte sum = type;
+  for (byte i = 0; i < len; i++) {
+    sum ^= payload[i];
+  }
+  if (sum != checksum) {
+    return;
+  }
+  if (len == 4) {
+    ctrl_left = (int16_t) (payload[0] | (payload[1] << 8));
+    ctrl_right = (int16_t) (payload[2] | (payload[3] << 8));
+  } else {
+    indicator_val = (int8_t) payload[0];
+  }
+}
+#else
 void read_msg() {
   if (Serial.available()) {
     char inChar = Serial.read();
@@ -402,6 +439,7 @@ void read_msg() {
     }
   }
 }
+#endif
 
 void send_vehicle_data() {
   float voltage_value = get_voltage();
@@ -5,7 +5,12 @@ import aiohttp_jinja2
 import jinja2
 from .api import dataset_dir, handle_api, get_dir_info
 from .preview import handle_preview
-from .upload import handle_file_upload
+from .upload import (
+    handle_file_upload,
+    handle_chunked_status,
+    handle_chunked_put,
+    handle_chunked_complete,
+)
 from .zeroconf import register
 
 
@@ -31,6 +36,9 @@ async def handle_post(request: web.Request) -> web.Response:
 app = web.Application()
 app.add_routes([
     web.post('/upload', handle_post),
+    web.get('/upload/chunked/{name}', handle_chunked_status),
+    web.put('/upload/chunked/{name}', handle_chunked_put),
+    web.post('/upload/chunked/{name}/complete', handle_chunked_complete),
     web.get('/api/dataset', handle_api),
     web.get('/{path:.*}/preview.gif', handle_preview),
     web.get('/{path:.*}', handle_get),
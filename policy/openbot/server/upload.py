@@ -1,3 +1,4 @@
+import asyncio
 import hashlib
 import os
 import zipfile
@@ -18,13 +19,80 @@ async def handle_file_upload(field: multipart.BodyPartReader) -> web.Response:
                 break
             size += f.write(chunk)
             hash.update(chunk)
+    extract_upload(path, field.filename)
+
+    return web.json_response({
+        "filename": (field.filename),
+        "size": size,
+        "hash": hash.hexdigest(),
+    })
+
+
+def extract_upload(path: str, filename: str):
     with zipfile.ZipFile(path, 'r') as zip_ref:
-        zip_ref.extractall(dataset_dir + "/uploaded/" + field.filename[:-4])
+        zip_ref.extractall(dataset_dir + "/uploaded/" + filename[:-4])
 
     os.unlink(path)
 
+
+# Chunked uploads, see ChunkedUploader in the app. Partial files are kept in
+# chunked_dir until they are complete, so an interrupted upload resumes from
+# the offset returned by handle_chunked_status.
+chunked_dir = os.path.join(dataset_dir, "chunked")
+# Serializes the check of the offset and the append per file. Requests for the
+# same name can interleave at every await.
+chunked_locks = {}
+
+
+def chunked_path(request: web.Request) -> str:
+    name = os.path.basename(request.match_info["name"])
+    if not name.endswith(".zip"):
+        raise web.HTTPBadRequest(text="not a zip file")
+    return os.path.join(chunked_dir, name)
+
+
+def chunked_offset(path: str) -> int:
+    return os.path.getsize(path) if os.path.exists(path) else 0
+
+
+async def handle_chunked_status(request: web.Request) -> web.Response:
+    return web.json_response({"offset": chunked_offset(chunked_path(request))})
+
+
+def chunked_lock(path: str) -> asyncio.Lock:
+    return chunked_locks.setdefault(path, asyncio.Lock())
+
+
+async def handle_chunked_put(request: web.Request) -> web.Response:
+    path = chunked_path(request)
+    chunk = await request.read()
+    async with chunked_lock(path):
+        # Only read once the body is here, another request may have appended.
+        offset = chunked_offset(path)
+        if int(request.query["offset"]) != offset:
+            return web.json_response({"offset": offset}, status=409)
+        if hashlib.sha256(chunk).hexdigest() != request.headers.get("X-Content-SHA256"):
+            return web.json_response({"offset": offset}, status=400)
+
+        os.makedirs(chunked_dir, exist_ok=True)
+        with open(path, 'ab') as f:
+            f.write(chunk)
+        return web.json_response({"offset": offset + len(chunk)})
+
+
+async def handle_chunked_complete(request: web.Request) -> web.Response:
+    path = chunked_path(request)
+    async with chunked_lock(path):
+        size = chunked_offset(path)
+        if int(request.query["size"]) != size:
+            # Start over, the partial file does not belong to this upload.
+            if os.path.exists(path):
+                os.unlink(path)
+            return web.json_response({"offset": 0}, status=409)
+
+        filename = os.path.basename(path)
+        extract_upload(path, filename)
     return web.json_response({
-        "filename": (field.filename),
+        "filename": filename,
         "size": size,
-        "hash": hash.hexdigest(),
     })